@@ -0,0 +1,82 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Regression check for the per-frame control path.  Feeds simulated hand samples through
+ * Arm.onHandSample (map, set, gripControl, findAnglesConstantPitch, setAxisAnglesOptimized,
+ * SerialComm.send and the FlightRecorder) without a serial port, and counts the bytes allocated by
+ * the calling thread once the JIT has warmed up.
+ *
+ * Exits with status 1 if any steady-state frame allocates, so it can be used as a build gate:
+ *
+ * java AllocationProbe [frames]
+ */
+public class AllocationProbe {
+	// frames run before measuring, so that the JIT has compiled the control path
+	private static final int WARMUP_FRAMES = 200000;
+	private static final int DEFAULT_FRAMES = 100000;
+
+	/**
+	 * SerialComm that swallows packets instead of writing them to a port.
+	 */
+	static class NullComm extends SerialComm {
+		long packets = 0;
+
+		public synchronized void serialOutput(byte[] toSend) {
+			packets++;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		int frames = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_FRAMES;
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		if (!threads.isThreadAllocatedMemorySupported()) {
+			System.out.println("Thread allocation counting is not supported by this JVM.");
+			System.exit(2);
+		}
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		NullComm comm = new NullComm();
+		Arm arm = new Arm(comm);
+
+		// the flight recorder is always on in production, so include it
+		File recording = File.createTempFile("probe", ".rec");
+		recording.deleteOnExit();
+		arm.setFlightRecorder(FlightRecorder.open(recording, FlightRecorder.DEFAULT_CAPACITY));
+
+		runFrames(arm, WARMUP_FRAMES);
+		comm.packets = 0;
+
+		// measure the cost of the measurement itself, then the frames
+		long overheadStart = threads.getCurrentThreadAllocatedBytes();
+		long overhead = threads.getCurrentThreadAllocatedBytes() - overheadStart;
+		long start = threads.getCurrentThreadAllocatedBytes();
+		runFrames(arm, frames);
+		long allocated = threads.getCurrentThreadAllocatedBytes() - start - overhead;
+
+		System.out.printf("%d frames, %d packets sent, %d bytes allocated (%.3f bytes/frame)%n",
+				frames, comm.packets, allocated, (double) allocated / frames);
+		if (allocated > 0) {
+			System.out.println("FAIL: the per-frame control path allocates.");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	/**
+	 * Sweeps a simulated hand slowly back and forth through the middle of the Leap's range, opening
+	 * and closing it, the way a real operator would.
+	 */
+	private static void runFrames(Arm arm, int frames) {
+		for (int i = 0; i < frames; i++) {
+			double phase = (i % 2000) / 2000.0 * 2 * Math.PI;
+			double x = 60 * Math.sin(phase);
+			double y = 120 + 40 * Math.cos(phase);
+			double z = 200 + 60 * Math.sin(2 * phase);
+			double grip = 70 + 15 * Math.cos(phase);
+			arm.onHandSample(x, y, z, grip);
+		}
+	}
+}
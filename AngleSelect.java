@@ -1,22 +1,29 @@
-import java.util.Scanner;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 
 public class AngleSelect {
 
-	public static void main(String[] args) {
-		SerialComm sc = new SerialComm(args);
+	public static void main(String[] args) throws IOException {
+		RunOptions options = new RunOptions(args);
+		SerialComm sc = new SerialComm(options.getPortNames());
 		Arm arm = new Arm(sc);
+		options.configure(arm, sc);
+		if (options.isHeadless())
+			new ConsoleMonitor(arm).start();
 		
-		Scanner scan = new Scanner(System.in);
-		while(true) {
-			if (scan.hasNext()) {
-				String input = scan.nextLine();
-				if (input.equals("x"))
-					break;
-				Integer angle = new Integer(input);
-				double[] angles = {0, 90, -45, 0, angle};
-				arm.setAxisAnglesOptimized(angles);
-			}
+		// run motion commands from a script, or as they are typed
+		File script = options.getScriptFile();
+		InputStream in = script == null ? System.in : new FileInputStream(script);
+		CommandDriver driver = new CommandDriver(arm, options.getRate());
+		boolean ok;
+		try {
+			ok = driver.run(in, script == null ? "stdin" : script.getPath(), options.isCheckOnly());
+		} finally {
+			in.close();
 		}
-		scan.close();
+		System.out.println(driver);
+		System.exit(ok ? 0 : 1);
 	}
 }
@@ -13,6 +13,9 @@ Suggestions:
 */
 
 
+import java.util.ArrayList;
+import java.util.List;
+
 import com.leapmotion.leap.*;
 
 class Arm extends Listener
@@ -36,6 +39,14 @@ class Arm extends Listener
 	private static final double MIN2_Y = 10;
 	private static final double MIN2_Z = -7.5;
 	private static final double MIN2_R = 0;
+
+	// indices of each axis in the angle arrays. See also Axis.
+	static final int BASE = 0;
+	static final int SHOULDER = 1;
+	static final int ELBOW = 2;
+	static final int WRIST = 3;
+	static final int GRIP = 4;
+	static final int NUM_AXES = 5;
     
 	public static void main(String[] args)
 	{
@@ -73,52 +84,193 @@ class Arm extends Listener
         double leapY = position.getY();
         double leapZ = position.getZ();
         
+        onHandSample(leapX, leapY, leapZ, grip);
+	}
+
+	/**
+	 * Maps a hand sample from Leap coordinates to robot coordinates and moves there.
+	 * Everything from here down to the serial port runs without allocating.
+	 *
+	 * @param leapX Leap x coordinate
+	 * @param leapY Leap y coordinate
+	 * @param leapZ Leap z coordinate
+	 * @param grip Leap sphere radius
+	 */
+	void onHandSample(double leapX, double leapY, double leapZ, double grip) {
+        ControlEvents.LeapFrame event = null;
+        if (ControlEvents.LEAP_FRAME.isEnabled()) {
+        	event = new ControlEvents.LeapFrame();
+        	event.begin();
+        }
         double robotX = Utility.map(leapX, MIN_X, MAX_X, MIN2_X, MAX2_X);
         double robotY = Utility.map(leapY, MIN_Y, MAX_Y, MIN2_Y, MAX2_Y);
         double robotZ = Utility.map(leapZ, MIN_Z, MAX_Z, MIN2_Z, MAX2_Z);
         double robotGrip = Utility.map(grip, MIN_R, MAX_R, MIN2_R, MAX2_R);
         
+        pose.publishHand(leapX, leapY, leapZ, grip);
+        if (recorder != null)
+        	recorder.recordHand(leapX, leapY, leapZ, grip);
         set(robotX, robotY, robotZ, robotGrip);
+        if (event != null) {
+        	event.leapX = leapX;
+        	event.leapY = leapY;
+        	event.leapZ = leapZ;
+        	event.grip = grip;
+        	event.commit();
+        }
 	}
 	
 	
-	double[] axisAngles;
+	double[] axisAngles;	// the last angles sent to the arm (or about to be sent). See servoModel for where the servos really are.
 
+	// {min, max} of each axis, from defaultAxisRanges. the named arrays are the rows of axisRanges.
 	double[] baseAxisRange;
-	double[] shoulderAxisRange = {45,135};    // not the actual limits of axis, but going lower risks slamming into the ground
-	double[] elbowAxisRange = {-140,0};
-	double[] wristAxisRange = {-90, 90};
-	double[] gripAxisRange = {30, 90};
-	double[][] axisRanges = {this.baseAxisRange, this.shoulderAxisRange, this.elbowAxisRange, this.wristAxisRange, this.gripAxisRange};
+	double[] shoulderAxisRange;
+	double[] elbowAxisRange;
+	double[] wristAxisRange;
+	double[] gripAxisRange;
+	double[][] axisRanges;
 
 	
 	SerialComm comm;
 
-	// adjustments between angle of motor and angle of axis. First number is due to the robot's design. Second is error correction (motors are not installed with perfect orientation).
-	int baseAxisToMotorAdjustment = + 90 + 4;
-	int shoulderAxisToMotorAdjustment = 0 + 14;
-	int elbowAxisToMotorAdjustment = + 180 - 2;
-	int wristAxisToMotorAdjustment = + 90;
-	int gripAxisToMotorAdjustment = + 45 - 2;
-	int[] axisToMotorAdjustments = {this.baseAxisToMotorAdjustment, this.shoulderAxisToMotorAdjustment, this.elbowAxisToMotorAdjustment, this.wristAxisToMotorAdjustment, this.gripAxisToMotorAdjustment};
+	// latest commanded pose and hand sample, readable from other threads without locking
+	final PoseSnapshot pose = new PoseSnapshot();
+	double[] commandedAngles = new double[NUM_AXES];
+
+	// geometry of the arm. All of the kinematics math lives here.
+	Kinematics kinematics;
+
+	// the board and any obstacles around the arm, for planning paths that avoid them
+	Workspace workspace;
+
+	// checks every command sent to the arm for clearance above the board
+	ClearanceGuard clearanceGuard;
+
+	// estimates where the servos really are, from what has been sent to them. volatile, like clock, because
+	// setClock replaces it while the GUI and console are reading it.
+	volatile ServoModel servoModel;
+
+	// where the time comes from for the servo model, the serial link and the waits between steps of a move.
+	// a VirtualClock runs moves in simulation faster than real time.
+	volatile Clock clock = Clock.SYSTEM;
+	// how far ahead of the estimated pose a streamed command may be, in seconds of servo travel
+	static final double MAX_COMMAND_LEAD = 0.05;
+	private static final Metrics.Counter limitedCommands = Metrics.counter("servoLimitedCommands");
+
+	// reusable buffers for the per-frame control path, so that it does not allocate. Only used by the control thread.
+	private final double[] targetAngles = new double[NUM_AXES - 1];
+	private final double[] pacedAngles = new double[NUM_AXES];
+	// whether the last call to set sent a command short of its target (see isSetCutShort)
+	private volatile boolean setCutShort = false;
+	private final double[] nextAngles = new double[NUM_AXES];
+	private final double[] servoAngles = new double[NUM_AXES];
+	private final GripInfo gripScratch = new GripInfo();
+	// grip geometry at gripInfoAngle, so that gripControl only works it out again once the grip has moved
+	private final GripInfo gripInfo = new GripInfo();
+	private double gripInfoAngle = Double.NaN;
 
-	double segment1Length = 15.25;	// in cm
-	double segment2Length = 12;	// in cm
+	// remembers solutions for targets the hand has already been at. Only used by the control thread.
+	SolutionCache solutionCache;
 
+	// plans the stepped moves of moveTo, moveStraightTo and moveAxesAtSpeed, and remembers the ones to coordinates
+	TrajectoryCache trajectoryCache;
 
+	// records everything sent to the arm. null if recording is off.
+	FlightRecorder recorder;
+
+	// publishes every commanded pose to other programs through shared memory. null if off.
+	PosePublisher posePublisher;
+
+	// records the commanded joint trajectory for teach and repeat. null if not teaching.
+	TrajectoryRecorder trajectoryRecorder;
+
+	// converts axis angles into servo angles and holds the segment lengths. Replaced by setCalibration.
+	volatile Calibration calibration = defaultCalibration();
+
+	// {min, max} of each axis when the arm is built, indexed by BASE ... GRIP. a new copy every call, so tools
+	// that work on the arm's geometry without an arm (CalibrationTool, KinematicsSweep) can change theirs.
+	static double[][] defaultAxisRanges()
+	{
+		return new double[][]{
+			{-90, 90},
+			{45, 135},	// not the actual limits of axis, but going lower risks slamming into the ground
+			{-140, 0},
+			{-90, 90},
+			{35, 90}};
+	}
+
+	// where the arm starts, indexed by BASE ... GRIP. a new copy every call.
+	static double[] startAngles()
+	{
+		return new double[]{0, 77, -82, -50, 75};
+	}
+
+	// calibration built into the code, used until a calibration file is loaded
+	static Calibration defaultCalibration()
+	{
+		// adjustments between angle of motor and angle of axis. First number is due to the robot's design. Second is error correction (motors are not installed with perfect orientation).
+		double[] axisToMotorAdjustments = {+ 90 + 4, 0 + 14, + 180 - 2, + 90, + 45 - 2};
+		double[] gains = {1, 1, 1, 1, 1};
+		return new Calibration(axisToMotorAdjustments, gains, 15.25, 12);	// segment lengths in cm
+	}
+
+
+
+	// pitch held while following the hand. Kept fixed rather than read back from the arm, since the servos
+	// reach a new pose at different rates and the pitch would drift a little on every move.
+	double teleopPitch;
 
 	// Function to pass in info from the Leap.
 	void set(double x, double y, double z, double gripSeparation)
+	{
+		this.set(x, y, z, this.teleopPitch, gripSeparation);
+	}
+
+	// moves the grip tip toward x, y, z with the gripper at the given pitch, as fast as the servos can follow.
+	// A NaN gripSeparation leaves the grip as it is.
+	void set(double x, double y, double z, double pitchAngle, double gripSeparation)
 	{
 		this.gripControl(gripSeparation);	// Set the grip separation.
-		double gripLength = this.getCurrentGripInfo().gripLength;
-		double pitchAngle = this.getAxisAngle("shoulder") + this.getAxisAngle("elbow") + this.getAxisAngle("wrist");
-		double[] newCoordinates = {x, y, z};
-		double[] newAngles = this.findAnglesConstantPitch(newCoordinates, gripLength, pitchAngle);
-		if (this.safetyCheckAxisAngles(newAngles))
-			this.setAxisAnglesOptimized(newAngles);	// Move to specified position
+		ControlEvents.Solve event = null;
+		long hits = 0;
+		if (ControlEvents.SOLVE.isEnabled())
+		{
+			event = new ControlEvents.Solve();
+			hits = this.solutionCache.getHits();
+			event.begin();
+		}
+		boolean safe = this.solutionCache.solve(x, y, z, pitchAngle, this.axisAngles[GRIP], this.targetAngles);
+		if (event != null)
+		{
+			event.end();
+			event.x = x;
+			event.y = y;
+			event.z = z;
+			event.pitch = pitchAngle;
+			event.cached = this.solutionCache.getHits() != hits;
+			event.safe = safe;
+			event.commit();
+		}
+		if (this.recorder != null)
+			this.recorder.recordSolve(this.targetAngles, safe);
+		if (safe)
+		{
+			// the hand can move faster than the servos, so never get further ahead of them than they can follow
+			System.arraycopy(this.targetAngles, 0, this.pacedAngles, 0, NUM_AXES - 1);
+			this.pacedAngles[GRIP] = this.axisAngles[GRIP];
+			boolean limited = this.servoModel.limit(this.pacedAngles, MAX_COMMAND_LEAD, this.clock.nanoTime());
+			if (limited)
+				limitedCommands.increment();
+			// a rejected command would only be rejected again, so don't count it as cut short
+			this.setCutShort = this.setAxisAnglesOptimized(this.pacedAngles) && limited;	// Move to specified position
+		}
 		else
+		{
+			this.setCutShort = false;
+			ControlEvents.safetyReject("target out of range", this.targetAngles);
 			System.out.println("invalid position specified");
+		}
 	}
 
 
@@ -126,27 +278,28 @@ class Arm extends Listener
 	//Arm(host, networkPort)
 	Arm(SerialComm serialComm)
 	{
-		this.axisAngles = new double[]{0, 77, -82, -50, 75};	// Stores the current axis angles. Initial values determine where the robot starts.
+		this.axisAngles = startAngles();	// Stores the current axis angles. Initial values determine where the robot starts.
 
-		this.baseAxisRange = new double[]{-90, 90};
-		this.shoulderAxisRange = new double[]{45,135};    // not the actual limits of axis, but going lower risks slamming into the ground
-		this.elbowAxisRange = new double[]{-140,0};
-		this.wristAxisRange = new double[]{-90, 90};
-		this.gripAxisRange = new double[]{35, 90};
-		this.axisRanges = new double[][]{this.baseAxisRange, this.shoulderAxisRange, this.elbowAxisRange, this.wristAxisRange, this.gripAxisRange};
+		this.axisRanges = defaultAxisRanges();
+		this.baseAxisRange = this.axisRanges[BASE];
+		this.shoulderAxisRange = this.axisRanges[SHOULDER];
+		this.elbowAxisRange = this.axisRanges[ELBOW];
+		this.wristAxisRange = this.axisRanges[WRIST];
+		this.gripAxisRange = this.axisRanges[GRIP];
 
 		this.comm = serialComm;
 
-		// adjustments between angle of motor and angle of axis. First number is due to the robot's design. Second is error correction (motors are not installed with perfect orientation).
-		this.baseAxisToMotorAdjustment = + 90 + 4;
-		this.shoulderAxisToMotorAdjustment = 0 + 14;
-		this.elbowAxisToMotorAdjustment = + 180 - 2;
-		this.wristAxisToMotorAdjustment = + 90;
-		this.gripAxisToMotorAdjustment = + 45 - 2;
-		this.axisToMotorAdjustments = new int[]{this.baseAxisToMotorAdjustment, this.shoulderAxisToMotorAdjustment, this.elbowAxisToMotorAdjustment, this.wristAxisToMotorAdjustment, this.gripAxisToMotorAdjustment};
+		this.kinematics = new Kinematics(this.calibration.getSegment1Length(), this.calibration.getSegment2Length(), this.axisRanges);
+		this.solutionCache = new SolutionCache(this.kinematics);
+		this.workspace = new Workspace(this.kinematics);
+		this.trajectoryCache = new TrajectoryCache(this.kinematics, this.workspace.getGroundHeight());
+		this.clearanceGuard = new ClearanceGuard(this.kinematics, this.workspace.getGroundHeight(), ClearanceGuard.DEFAULT_MARGIN);
+
+		System.arraycopy(this.axisAngles, 0, this.commandedAngles, 0, NUM_AXES);	// the arm starts where axisAngles says
+		this.servoModel = new ServoModel(this.axisAngles, this.clock.nanoTime());
+		this.teleopPitch = this.axisAngles[SHOULDER] + this.axisAngles[ELBOW] + this.axisAngles[WRIST];
 
-		this.segment1Length = 15.25;	// in cm
-		this.segment2Length = 12;	// in cm
+		this.pose.publishAngles(this.axisAngles);
 	}
 
 	void onReady()
@@ -182,206 +335,200 @@ class Arm extends Listener
 	// returns the angles needed to reach given coordinates and pitch.
 	double[] findAnglesConstantPitch(double[] coordinates, double gripLength, double pitchAngle)
 	{
-		double x = coordinates[0];
-		double y = coordinates[1];
-		double z = coordinates[2];
-		double newHorizontalLength = Math.sqrt(Math.pow(x,2) + Math.pow(y,2));
-		double totalDistance = Math.sqrt(Math.pow(x,2) + Math.pow(y,2) + Math.pow(z,2));
-
-		// we'll keep the gripper oriented the same way with respect to the xy plane
-		double verticalGripLength = gripLength * Utility.sind( pitchAngle);
-		double horizontalGripLength = gripLength * Utility.cosd( pitchAngle);
-
-		// by keeping the orientation of the gripper the same, we can solve for the position of the wrist axis instead.
-		double shoulderToWristLength = Math.sqrt( Math.pow((newHorizontalLength - horizontalGripLength),2) + Math.pow((z - verticalGripLength),2));
-		double shoulderToWristAngle = Utility.atand( (z - verticalGripLength) / (newHorizontalLength - horizontalGripLength) );
-		if ( shoulderToWristAngle < 0 ) shoulderToWristAngle = shoulderToWristAngle + 180;
-
-		/*
-	from Law of Cosines
-	c^2 = a^2 + b^2 - 2 * a * b * cosd(C)
-	2 * a * b * cosd(C) = a^2 + b^2 - c^2
-	cosd(C) = ( a^2 + b^2 - c^2 ) / ( 2 * a * b )
-	C = acosd( ( a^2 + b^2 - c^2 ) / ( 2 * a * b ) )
-		 */
-		double C = Utility.acosd( ( Math.pow(this.segment1Length,2) + Math.pow(this.segment2Length,2) - Math.pow(shoulderToWristLength,2) ) / ( 2 * this.segment1Length * this.segment2Length ) );
-		// B = acosd( ( a^2 + c^2 - b^2 ) / ( 2 * a * c ) )
-		double B = Utility.acosd( ( Math.pow(this.segment1Length,2) + Math.pow(shoulderToWristLength,2) - Math.pow(this.segment2Length,2) ) / ( 2 * this.segment1Length * shoulderToWristLength ) );
-
-		double newElbowAngle =  C - 180;
-		double newShoulderAngle = shoulderToWristAngle + B;
-
-		double newWristAngle = pitchAngle - newElbowAngle - newShoulderAngle;
-
-		double newBaseAngle = Utility.atand(x/y);
-
-		
-		double[] angles = {newBaseAngle, newShoulderAngle, newElbowAngle, newWristAngle};
+		double[] angles = new double[NUM_AXES - 1];
+		this.kinematics.findAnglesConstantPitch(coordinates[0], coordinates[1], coordinates[2], gripLength, pitchAngle, angles);
 		return angles;
 	}
 
 	// returns the coordinates corresponding to the given angles and gripLength
 	double[] findCoordinates(double[] angles, double gripLength)
 	{
-		double baseAngle = angles[0];
-		double shoulderAngle = angles[1];
-		double elbowAngle = angles[2];
-		double wristAngle = angles[3];
-		double z = this.segment1Length * Utility.sind(shoulderAngle) + this.segment2Length * Utility.sind(elbowAngle + shoulderAngle) + gripLength * Utility.sind(wristAngle + elbowAngle + shoulderAngle);
-		double horizontalLength = this.segment1Length * Utility.cosd(shoulderAngle) + this.segment2Length * Utility.cosd(elbowAngle + shoulderAngle) + gripLength * Utility.cosd(wristAngle + elbowAngle + shoulderAngle);
-		double y = horizontalLength * Utility.cosd(baseAngle);
-		double x = horizontalLength * Utility.sind(baseAngle);
-		double[] coordinates = {x,y,z};
+		double[] coordinates = new double[3];
+		this.kinematics.findCoordinates(angles, gripLength, coordinates);
 		return coordinates;
 	}
 
-	// checks to ensure the given angles are within the arm's limits
-	boolean safetyCheckAxisAngles(double[] angles)
+	// same as above, but writes the coordinates into the given array instead of allocating one
+	void findCoordinates(double[] angles, double gripLength, double[] coordinates)
 	{
-		for ( int i = 0; i < angles.length; ++i)
-		{
-			if ( angles[i] < this.axisRanges[i][0] || angles[i] > this.axisRanges[i][1] )
-			{
-				return false;
-			}
-		}
-		return true;
+		this.kinematics.findCoordinates(angles, gripLength, coordinates);
 	}
 
-	class GripInfo
+	// checks to ensure the given angles are within the arm's limits
+	boolean safetyCheckAxisAngles(double[] angles)
 	{
-		public double gripSeparation;
-		public double gripLength;
-		public double gripPadAngle;
-		public GripInfo(double separation, double length, double padAngle)
-		{
-			this.gripSeparation = separation;
-			this.gripLength = length;
-			this.gripPadAngle = padAngle;
-		}
+		return this.kinematics.safetyCheckAxisAngles(angles);
 	}
 
 	// calculates the grip separation and distance from wrist axis to grip tip, given the angle of the top linkage.
 	// returns a structure containing separation, length, and the angle of the gripper pads.
 	GripInfo getGripInfo(double topLinkageAngle)
 	{
-		// measurements are in cm. Sorry for the confusing names/descriptions.
-		double topLinkageLength = 5.2;	// length of linkage attached to gear
-		double bottomLinkageLength = 4.65;	//length of each bottom linkage
-		double linkageSeparationGripper = 2.7;	// distance between where the two linkages attach on the gripper side
-		double gripperBendDistance = 4.7;	// distance from where the top linkage attaches to where the piece bends
-		double bendAngle = 30;	// angle that the grip bends between the pad and where it attaches to the linkages.
-		double yBendToTip = 6.9;	// distance from the bend to the tip of the gripper (measured in line with the two screws holding the grip together.
-		double gripInteriorStep = .8;	// distance from the inner part of the grip (with pad) to the line between the two screws.
-		double topLinkageSeparation = 2.75;	// distance between the axes of the two gears (or the ends of the two top linkages)
-		double bottomLinkageSeparation = 1;	// distance between the two bottom linkages
-		double topToBottomLinkDistanceY = 2.4;	// distance between the top and bottom linkages on the main body (motor side), measured parallel to arm
-		double topToBottomLinkDistanceX = (topLinkageSeparation - bottomLinkageSeparation) / 2;	// distance between the top and bottom linkages on the main body (motor side), measured perpendicular to arm
-		double topToBottomLinkDistanceTotal = Math.sqrt(Math.pow(topToBottomLinkDistanceX,2) + Math.pow(topToBottomLinkDistanceY,2) );	// distance between axes of top  and bottom linkages on the arm end
-		double topToBottomLinkAngle = Utility.atand(topToBottomLinkDistanceX/topToBottomLinkDistanceY);	// angle between anchor points of the top and bottom linkages
-		double wristToGripGearLength = 4.7;	// length from the wrist axis to the center of the gears
+		GripInfo info = new GripInfo();
+		this.kinematics.getGripInfo(topLinkageAngle, info);
+		return info;
+	}
 
-		/*
-	figure out the angle of the gripPlane (plane along the inside of the gripper)
-	c^2 = a^2 + b^2 - 2 * a * b * cosd(C)		// Law of Cosines
-	C = acosd( ( a^2 + b^2 - c^2 ) / ( 2 * a * b ) ) // derived from Law of Cosines
+	// translates verbal name for axis into index for the arrays storing info (axisAngles, axisToMotorAdjustments, etc.)
+	// Throws IllegalArgumentException for unknown names. Prefer the BASE ... GRIP constants or Axis in new code.
+	int getIndexOfAxis(String axisName)
+	{
+		return Axis.fromName(axisName).index;
+	}
 
 
-	A ---------- B
-	 \	         \		illustration attempt. ABD = topLinkageAngle + topToBottomLinkAngle, AB = topLinkageLength,
-	  \           \		AC = linkageSeparationGripper, CD = bottomLinkageLength,
-	    -----______\		BD = topToBottomLinkDistanceTotal
-	  C            D
 
-		 */
+	double[] getCurrentCoordinates()
+	{
+		double[] coordinates = new double[3];
+		this.getCurrentCoordinates(new Vec3()).toArray(coordinates);
+		return coordinates;
+	}
 
-		// AD^2 = AB^2 + BD^2 - 2 * AB * BD * cosd(ABD)
-		double AD = Math.sqrt(Math.pow(topLinkageLength,2) + Math.pow(topToBottomLinkDistanceTotal,2) - 2*topLinkageLength*topToBottomLinkDistanceTotal*Utility.cosd(topLinkageAngle+topToBottomLinkAngle) );
+	// writes the current coordinates of the grip tip, from the estimated servo positions, into the given vector and returns it
+	Vec3 getCurrentCoordinates(Vec3 coordinates)
+	{
+		double[] angles = new double[NUM_AXES];
+		this.getEstimatedAngles(angles);
+		double gripLength = this.getGripInfo(angles[GRIP]).gripLength;
+		this.kinematics.findCoordinates(angles, gripLength, coordinates);
+		return coordinates;
+	}
 
-		// BD^2 = AB^2 + AD^2 - 2 * AB * AD * cosd(BAD)
-		// BAD = acosd( ( AB^2 + AD^2 - BD^2 ) / ( 2 * AB * AD ) )
-		double BAD = Utility.acosd( ( Math.pow(topLinkageLength,2) + Math.pow(AD,2) - Math.pow(topToBottomLinkDistanceTotal,2) ) / ( 2 * topLinkageLength * AD ) );
+	// starts recording hand samples, solutions, commands and serial packets. Pass null to stop.
+	void setFlightRecorder(FlightRecorder recorder)
+	{
+		this.recorder = recorder;
+		this.comm.setFlightRecorder(recorder);
+	}
 
-		// DAC = acosd( ( AC^2 + AD^2 - CD^2 ) / ( 2 * AC * AD ) )
-		double DAC = Utility.acosd( ( Math.pow(linkageSeparationGripper,2) + Math.pow(AD,2) - Math.pow(bottomLinkageLength,2) ) / ( 2 * linkageSeparationGripper * AD ) );
+	// switches to a fitted calibration (see CalibrationTool): the segment lengths are copied into the kinematics,
+	// and every command from now on is converted to servo angles through it. Call before the arm starts moving,
+	// since planners running on other threads read the segment lengths as they go.
+	void setCalibration(Calibration calibration)
+	{
+		this.kinematics.segment1Length = calibration.getSegment1Length();
+		this.kinematics.segment2Length = calibration.getSegment2Length();
+		this.solutionCache.clear();	// solved with the old lengths
+		this.trajectoryCache.clear();	// planned with the old lengths
+		this.calibration = calibration;
+	}
 
-		double BAC = BAD + DAC;
+	// replaces the cache of solutions used while following the hand, e.g. with a different size or resolution
+	void setSolutionCache(SolutionCache solutionCache)
+	{
+		this.solutionCache = solutionCache;
+	}
 
-		double gripPadAngle = ( topLinkageAngle - ( 180 - BAC ) + bendAngle );
+	// replaces the cache of planned moves, e.g. with a different budget or resolution
+	void setTrajectoryCache(TrajectoryCache trajectoryCache)
+	{
+		this.trajectoryCache = trajectoryCache;
+	}
 
-		// x and y coordinates of a gripper tip, with (0,0) as the center of the gear the top linkage is attached to
-		double y = (yBendToTip+gripperBendDistance*Utility.cosd(bendAngle))*Utility.cosd(gripPadAngle) + (gripInteriorStep+gripperBendDistance*Utility.sind(bendAngle))*Utility.sind(gripPadAngle) + topLinkageLength*Utility.cosd(topLinkageAngle);
-		double x = (yBendToTip+gripperBendDistance*Utility.cosd(bendAngle))*Utility.sind(gripPadAngle) + (gripInteriorStep+gripperBendDistance*Utility.sind(bendAngle))*Utility.sind(gripPadAngle-90) + topLinkageLength*Utility.sind(topLinkageAngle);
+	// starts publishing every commanded pose to other programs. Pass null to stop.
+	void setPosePublisher(PosePublisher posePublisher)
+	{
+		this.posePublisher = posePublisher;
+		if (posePublisher != null)
+			posePublisher.publish(this.commandedAngles);	// readers see where the arm is straight away
+	}
 
-		// these are for debugging purposes.
-		double xAtTopLink = topLinkageLength*Utility.sind(topLinkageAngle);
-		double sepAtTopLink = 2*xAtTopLink + topLinkageSeparation;
-		double xAtBend = xAtTopLink + (gripperBendDistance*Utility.cosd(bendAngle))*Utility.sind(gripPadAngle) + (gripperBendDistance*Utility.sind(bendAngle) )*Utility.sind(gripPadAngle-90);
-		double sepAtBend = 2*xAtBend + topLinkageSeparation;
-		double xAtTip = (yBendToTip + gripperBendDistance*Utility.cosd(bendAngle))*Utility.sind(gripPadAngle) + (gripInteriorStep+gripperBendDistance*Utility.sind(bendAngle))*Utility.sind(gripPadAngle-90) + topLinkageLength*Utility.sind(topLinkageAngle);
+	// records every command sent to the arm into the given recorder. Pass null to stop.
+	void setTrajectoryRecorder(TrajectoryRecorder trajectoryRecorder)
+	{
+		this.trajectoryRecorder = trajectoryRecorder;
+		if (trajectoryRecorder != null)
+			trajectoryRecorder.setClock(this.clock);
+	}
 
-		double currentSeparation = 2*x + topLinkageSeparation;
-		double gripLength = y + wristToGripGearLength;
+	// takes the time from the given clock from now on, e.g. a VirtualClock for simulation. the serial link and
+	// trajectory recorder are switched over too, and the servos are taken to be where they were last commanded,
+	// since times on the old clock mean nothing on the new one. call before the arm starts moving.
+	void setClock(Clock clock)
+	{
+		this.clock = clock;
+		this.comm.setClock(clock);
+		if (this.trajectoryRecorder != null)
+			this.trajectoryRecorder.setClock(clock);
+		this.servoModel = new ServoModel(this.commandedAngles, clock.nanoTime());
+	}
 
-		GripInfo info = new GripInfo(currentSeparation, gripLength, gripPadAngle);
-		return info;
+	// returns the pose snapshot that other threads can read without blocking the control thread
+	PoseSnapshot getPoseSnapshot()
+	{
+		return this.pose;
 	}
 
-	// translates verbal name for axis into index for the arrays storing info (axisAngles, axisToMotorAdjustments, etc.)
-	int getIndexOfAxis(String axisName)
+	double getAxisAngle(int axis)
 	{
-		if (axisName == "base" )
-			return 0;
-		else if (axisName == "shoulder")
-			return 1;
-		else if (axisName == "elbow")
-			return 2;
-		else if (axisName == "wrist")
-			return 3;
-		else if (axisName == "grip")
-			return 4;
-		else Utility.error("unrecognized axis");
-		return 0;	// TODO: should probably throw an exception instead.
+		return this.axisAngles[axis];
 	}
 
+	double getAxisAngle(Axis axis)
+	{
+		return this.axisAngles[axis.index];
+	}
 
+	// compatibility wrapper for the verbal axis names
+	double getAxisAngle(String axisName)
+	{
+		return this.axisAngles[getIndexOfAxis(axisName)];
+	}
 
-	double[] getCurrentCoordinates()
+	// pitch of the gripper with respect to the xy plane, from the estimated servo positions
+	double getPitchAngle()
 	{
-		double gripLength = this.getCurrentGripInfo().gripLength;
-		double[] coordinates = this.findCoordinates(this.axisAngles, gripLength);
-		return coordinates;
+		return this.servoModel.getEstimatedPitch(this.clock.nanoTime());
 	}
 
-	double getAxisAngle(String axisName)
+	// writes the estimated real angles of all five axes into the given array. never blocks the control thread,
+	// so the GUI and console can call it as often as they like.
+	void getEstimatedAngles(double[] angles)
 	{
-		int axis = getIndexOfAxis(axisName);
-		//if (axis == undefined)
-		//	return;
-		double angle = this.axisAngles[axis];
-		return angle;
+		this.servoModel.getEstimate(angles, this.clock.nanoTime());
 	}
 
 
 	// enhanced function, only sets the angles that actually change, and doesn't use servoRead. Much faster.
-	void setAxisAnglesOptimized(double[] newAngles)
+	// sends the given angles to the arm. returns false if they were not sent.
+	boolean setAxisAnglesOptimized(double[] newAngles)
 	{
 		if (!this.safetyCheckAxisAngles(newAngles))
 		{
+			ControlEvents.safetyReject("command out of range", newAngles);
 			System.out.println("invalid angles passed to setAxisAnglesOptimized. These should have been checked earlier.");
 			for(int i=0; i<newAngles.length; i++) {
 				System.out.println(newAngles[i]);
 			}
-			return;
+			return false;
 		}
-		double[] servoAngles = new double[5];
 		for(int i = 0; i < newAngles.length; ++i)
+			nextAngles[i] = newAngles[i];
+		for(int i = newAngles.length; i < NUM_AXES; ++i)
+			nextAngles[i] = axisAngles[i];
+		// make sure neither the new pose nor the motion to it goes through the board
+		if (!clearanceGuard.check(commandedAngles, nextAngles))
 		{
-			servoAngles[i] = newAngles[i] + axisToMotorAdjustments[i];
+			ControlEvents.safetyReject("too close to the board", nextAngles);
+			return false;
 		}
-		for(int i = newAngles.length; i < 5; ++i)
-			servoAngles[i] = axisAngles[i] + axisToMotorAdjustments[i];
+		for(int i = 0; i < NUM_AXES; ++i)
+			commandedAngles[i] = nextAngles[i];
+		System.arraycopy(commandedAngles, 0, axisAngles, 0, NUM_AXES);
+		servoModel.command(commandedAngles, this.clock.nanoTime());
+		Calibration calibration = this.calibration;
+		for(int i = 0; i < NUM_AXES; ++i)
+			servoAngles[i] = calibration.toServo(i, commandedAngles[i]);
+		if (recorder != null)
+			recorder.recordCommand(commandedAngles);
+		if (trajectoryRecorder != null)
+			trajectoryRecorder.record(commandedAngles);
 		comm.send(servoAngles[0], servoAngles[1], servoAngles[2], servoAngles[3], servoAngles[4]);
+		pose.publishAngles(commandedAngles);	// let the GUI and other observers see what we sent
+		if (posePublisher != null)
+			posePublisher.publish(commandedAngles);
+		return true;
 		/*
 		for ( int i = 0; i < newAngles.length; ++i)
 		{
@@ -399,17 +546,35 @@ class Arm extends Listener
 
 	GripInfo getCurrentGripInfo()
 	{
-		return this.getGripInfo(this.getAxisAngle("grip"));
+		return this.getGripInfo(this.axisAngles[GRIP]);
 	}
 
 	void gripControl(double targetSeparation)
 	{
+		if (!ControlEvents.GRIP_CONTROL.isEnabled())
+		{
+			gripControl(targetSeparation, false);
+			return;
+		}
+		ControlEvents.GripControl event = new ControlEvents.GripControl();
+		event.startAngle = this.axisAngles[GRIP];
+		event.begin();
 		gripControl(targetSeparation, false);
+		event.end();
+		event.targetSeparation = targetSeparation;
+		event.endAngle = this.axisAngles[GRIP];
+		event.commit();
 	}
 	// moves grip to specified separation
 	void gripControl(double targetSeparation, boolean relative)
 	{
-		double currentSeparation = this.getCurrentGripInfo().gripSeparation;
+		GripInfo info = this.gripInfo;
+		if ( this.axisAngles[GRIP] != this.gripInfoAngle )
+		{
+			this.kinematics.getGripInfo(this.axisAngles[GRIP], info);
+			this.gripInfoAngle = this.axisAngles[GRIP];
+		}
+		double currentSeparation = info.gripSeparation;
 		if (relative)
 			targetSeparation = currentSeparation + targetSeparation;
 		int direction;
@@ -417,19 +582,28 @@ class Arm extends Listener
 			direction = 1;
 		else
 			direction = -1;
-		double angle = this.getAxisAngle("grip");
+		double angle = this.axisAngles[GRIP];
 		// we could use inverse kinematics for this, but it's a lot easier to just open/close the grip until we reach our target.
 		while ( (targetSeparation-currentSeparation)*direction > 0 )
 		{
 			angle = angle + direction;	// advance closer to target by one degree
 			if ( angle < this.gripAxisRange[0] || angle > this.gripAxisRange[1] )
 			{
+				// the grip angle isn't always a whole number of degrees from the end of its range, so stop at the end first
+				double end = angle < this.gripAxisRange[0] ? this.gripAxisRange[0] : this.gripAxisRange[1];
+				if ( this.axisAngles[GRIP] != end )
+				{
+					this.axisAngles[GRIP] = end;
+					return;
+				}
 				Utility.error("grip angle out of range: %f", angle);
 				return;
 			}
 	//		this.gripMotor.angle = Utility.int16(angle+this.gripAxisToMotorAdjustment);
-			this.axisAngles[this.getIndexOfAxis("grip")] = angle;	// update the grip angle
-			currentSeparation = this.getCurrentGripInfo().gripSeparation;
+			this.axisAngles[GRIP] = angle;	// update the grip angle
+			this.kinematics.getGripInfo(angle, info);
+			this.gripInfoAngle = angle;
+			currentSeparation = info.gripSeparation;
 		}
 	}
 
@@ -447,15 +621,14 @@ class Arm extends Listener
 	 */
 	void move(String axisName, double angle, boolean relative, boolean safetyRangeOverride)
 	{
-		/*if (relative == undefined)
-			relative = false;
-		if (safetyRangeOverride == undefined)
-			safetyRangeOverride = false;
-*/
-		int i = this.getIndexOfAxis(axisName);
-		//if (i == undefined)
-		//	return;
-
+		move(this.getIndexOfAxis(axisName), angle, relative, safetyRangeOverride);
+	}
+	void move(Axis axis, double angle, boolean relative, boolean safetyRangeOverride)
+	{
+		move(axis.index, angle, relative, safetyRangeOverride);
+	}
+	void move(int i, double angle, boolean relative, boolean safetyRangeOverride)
+	{
 		if (relative)
 			// if set to relative, it means the arm should be moved by the specified amount.
 			angle = angle + this.axisAngles[i];
@@ -463,7 +636,7 @@ class Arm extends Listener
 		// check to ensure we're within bounds. The checks for unreal and infinity shouldn't be needed, but are there just in case.
 		if ( ( !safetyRangeOverride && ( angle < this.axisRanges[i][0] || angle > this.axisRanges[i][1] ) ))
 		{
-			Utility.error("invalid position for %s: %f", axisName, angle);
+			Utility.error("invalid position for %s: %f", Axis.values()[i].axisName, angle);
 			return;
 		}
 
@@ -476,110 +649,80 @@ class Arm extends Listener
 	//stacks four blocks at (27,0)
 	void stackBlocks()
 	{
-		double openSep = 4;	// how far apart the grip should be when "open" (not holding a block)
-		double closeSep = 2;	// how far apart the grip should be when "closed" (holding a block)
-		// for more pressure, specify a smaller separation
-
-		this.gripControl(openSep);	// make sure the grip is open first
-
-		// first block
-		this.moveTo(new double[]{17,21,0}, -55);	// position grip above block
-		this.moveStraightTo(new double[]{17,21,-6}, -55.0);	// drop down
-		this.gripControl(closeSep);	// grab block
-		this.moveStraightTo(new double[]{17,21,0},-55);	// go up
-		this.moveTo(new double[]{0,28,0}, -55);	// move to above the stack
-		this.moveStraightTo(new double[]{0,28,-5.5}, -55.0);	// drop down
-		this.gripControl(openSep);	// release block
-		this.moveStraightTo(new double[]{0,28,0},-55.0);	// go up
-
-		// second block
-		this.moveTo(new double[]{10,25,0},-55.0);	// position grip above block
-		this.moveStraightTo(new double[]{10,25,-6}, -55.0);	// drop down
-		this.gripControl(closeSep);	// grab block
-		this.moveStraightTo(new double[]{10,25,0},-55.0);	// go up
-		this.moveTo(new double[]{0,27,0},-55);	// move to above the stack
-		this.moveStraightTo(new double[]{0,27,-4},-55.0);	// drop down
-		this.gripControl(openSep);	// release block
-		this.moveStraightTo(new double[]{0,27,2},-55.0);	// go up
-
-		// third block
-		this.moveTo(new double[]{-9.25,26,2},-55.0);	// position grip above block
-		this.moveStraightTo(new double[]{-9.25,26,-6}, -55.0);	// drop down
-		this.gripControl(closeSep);	// grab block
-		this.moveStraightTo(new double[]{-9.25,26,2},-55.0);	// go up
-		this.moveTo(new double[]{1,28.5,2},-55);	// move to above the stack
-		this.moveStraightTo(new double[]{1,28.5,-0.5},-55.0);	// drop down
-		this.gripControl(openSep);	// release block
-		this.moveStraightTo(new double[]{1,27,3},-55.0);	// go up
-
-		// fourth block
-		this.moveTo(new double[]{-12,12.5,3},-60.0);	// position grip above block
-		this.moveStraightTo(new double[]{-12,12.5,-7},-60.0);	// drop down
-		this.gripControl(closeSep);	// grab block
-		this.moveStraightTo(new double[]{-12,12.5,-7},-55.0);
-		this.moveStraightTo(new double[]{-12,12.5,5},-50.0);	// go up
-		this.moveTo(new double[]{1,29,5},-50.0);	// move to above the stack
-		this.moveStraightTo(new double[]{1,29,2.5},-50.0);	// drop down
-		this.gripControl(openSep);	// release block
-		this.moveStraightTo(new double[]{1,29,6},-45.0);	// go up
-
+		runJobs(stackBlocksJobs());
 	}
 
 	// unstacks the blocks and returns them to their original positions.
 	void unstackBlocks()
 	{
-		double openSep = 4;	// how far apart the grip should be when "open" (not holding a block)
-		double closeSep = 2;	// how far apart the grip should be when "closed" (holding a block)
-		// for more pressure, specify a smaller separation
+		runJobs(unstackBlocksJobs());
+	}
 
-		this.gripControl(openSep);
+	// runs pick-and-place jobs, planning each one while the previous one is carried out
+	void runJobs(List<PickPlaceJob> jobs)
+	{
+		TaskEngine engine = new TaskEngine(this);
+		try
+		{
+			engine.run(jobs);
+			System.out.println(engine);
+		} finally
+		{
+			engine.shutdown();
+		}
+	}
 
+	// the jobs of stackBlocks. waypoints are {x, y, z, pitch}: for each block, where the grip goes above it, where it
+	// grabs it and where it goes up to, then the same for where it puts it down. stacking moves straight down and up.
+	static List<PickPlaceJob> stackBlocksJobs()
+	{
+		List<PickPlaceJob> jobs = new ArrayList<PickPlaceJob>();
+		// first block
+		jobs.add(new PickPlaceJob(
+				new PickPlaceJob.Stop(new double[]{17,21,0,-55}, new double[]{17,21,-6,-55}, true, new double[]{17,21,0,-55}),
+				new PickPlaceJob.Stop(new double[]{0,28,0,-55}, new double[]{0,28,-5.5,-55}, true, new double[]{0,28,0,-55})));
+		// second block
+		jobs.add(new PickPlaceJob(
+				new PickPlaceJob.Stop(new double[]{10,25,0,-55}, new double[]{10,25,-6,-55}, true, new double[]{10,25,0,-55}),
+				new PickPlaceJob.Stop(new double[]{0,27,0,-55}, new double[]{0,27,-4,-55}, true, new double[]{0,27,2,-55})));
+		// third block
+		jobs.add(new PickPlaceJob(
+				new PickPlaceJob.Stop(new double[]{-9.25,26,2,-55}, new double[]{-9.25,26,-6,-55}, true, new double[]{-9.25,26,2,-55}),
+				new PickPlaceJob.Stop(new double[]{1,28.5,2,-55}, new double[]{1,28.5,-0.5,-55}, true, new double[]{1,27,3,-55})));
+		// fourth block: tilts up before lifting
+		jobs.add(new PickPlaceJob(
+				new PickPlaceJob.Stop(new double[]{-12,12.5,3,-60}, new double[]{-12,12.5,-7,-60}, true, new double[]{-12,12.5,-7,-55}, new double[]{-12,12.5,5,-50}),
+				new PickPlaceJob.Stop(new double[]{1,29,5,-50}, new double[]{1,29,2.5,-50}, true, new double[]{1,29,6,-45})));
+		return jobs;
+	}
+
+	// the jobs of unstackBlocks, with waypoints as in stackBlocksJobs. unstacking moves in joint space throughout.
+	static List<PickPlaceJob> unstackBlocksJobs()
+	{
+		List<PickPlaceJob> jobs = new ArrayList<PickPlaceJob>();
 		// fourth block (top)
-		this.moveTo(new double[]{0,28,6},-50);	// move to above the stack
-		this.moveTo(new double[]{0,28.5,2.75},-50);	// drop down
-		this.gripControl(closeSep);	// grab block
-		this.moveTo(new double[]{0,29,6},-45);	// go up
-		this.moveTo(new double[]{-12,12.5,5},-50);	// position grip above the mark
-		this.moveTo(new double[]{-12,12.5,-7},-60);	// drop down
-		this.gripControl(openSep);	// release block
-		this.moveTo(new double[]{-12,12.5,3},-60);	// go up
-
+		jobs.add(new PickPlaceJob(
+				new PickPlaceJob.Stop(new double[]{0,28,6,-50}, new double[]{0,28.5,2.75,-50}, false, new double[]{0,29,6,-45}),
+				new PickPlaceJob.Stop(new double[]{-12,12.5,5,-50}, new double[]{-12,12.5,-7,-60}, false, new double[]{-12,12.5,3,-60})));
 		// third block
-		this.moveTo(new double[]{0,27,3},-55);	// move to above the stack
-		this.moveTo(new double[]{0,28,-0.5},-55);	// drop down
-		this.gripControl(closeSep);	// grab block
-		this.moveTo(new double[]{0,28,2.5},-55);	// go up
-		this.moveTo(new double[]{-9.8,25.5,2},-55);	// position grip above the mark
-		this.moveTo(new double[]{-9.8,25.5,-6.5}, -55);	// drop down
-		this.gripControl(openSep);	// release block
-		this.moveTo(new double[]{-9.8,25.5,2},-55);	// go up
-
+		jobs.add(new PickPlaceJob(
+				new PickPlaceJob.Stop(new double[]{0,27,3,-55}, new double[]{0,28,-0.5,-55}, false, new double[]{0,28,2.5,-55}),
+				new PickPlaceJob.Stop(new double[]{-9.8,25.5,2,-55}, new double[]{-9.8,25.5,-6.5,-55}, false, new double[]{-9.8,25.5,2,-55})));
 		// second block
-		this.moveTo(new double[]{0,28,2},-55);	// move to above the stack
-		this.moveTo(new double[]{0,28,-3.5},-55);	// drop down
-		this.gripControl(closeSep);	// grab block
-		this.moveTo(new double[]{0,28,0},-55);	// go up
-		this.moveTo(new double[]{10,25,0},-55);	// position grip above the mark
-		this.moveTo(new double[]{10,25,-7}, -55);	// drop down
-		this.gripControl(openSep);	// release block
-		this.moveTo(new double[]{10,25,0},-55);	// go up
-
+		jobs.add(new PickPlaceJob(
+				new PickPlaceJob.Stop(new double[]{0,28,2,-55}, new double[]{0,28,-3.5,-55}, false, new double[]{0,28,0,-55}),
+				new PickPlaceJob.Stop(new double[]{10,25,0,-55}, new double[]{10,25,-7,-55}, false, new double[]{10,25,0,-55})));
 		// first block (bottom)
-		this.moveTo(new double[]{0,28,0},-55);	// move to above the stack
-		this.moveTo(new double[]{0,28,-5.5}, -55);	// drop down
-		this.gripControl(closeSep);	// grab block
-		this.moveTo(new double[]{0,28,0},-55);	// go up
-		this.moveTo(new double[]{17,21,0},-55);	// position grip above the mark
-		this.moveTo(new double[]{17,21,-6}, -55);	// drop down
-		this.gripControl(openSep);	// release block
-		this.moveTo(new double[]{17,21,0}, -55);	// go up
-
+		jobs.add(new PickPlaceJob(
+				new PickPlaceJob.Stop(new double[]{0,28,0,-55}, new double[]{0,28,-5.5,-55}, false, new double[]{0,28,0,-55}),
+				new PickPlaceJob.Stop(new double[]{17,21,0,-55}, new double[]{17,21,-6,-55}, false, new double[]{17,21,0,-55})));
+		return jobs;
 	}
 
 
 	void moveTo(double[] coordinates)
 	{
-		double pitchAngle = this.getAxisAngle("shoulder") + this.getAxisAngle("elbow") + this.getAxisAngle("wrist");
+		double pitchAngle = this.getPitchAngle();
 		boolean moveEvenly = false;
 		moveTo(coordinates, pitchAngle, moveEvenly);
 	}
@@ -588,26 +731,24 @@ class Arm extends Listener
 		boolean moveEvenly = false;
 		moveTo(coordinates, pitchAngle, moveEvenly);
 	}
+	void moveTo(double[] coordinates, double pitchAngle, boolean moveEvenly)
+	{
+		moveTo(new Vec3(coordinates), pitchAngle, moveEvenly);
+	}
 	// moves the tip of the gripper to the given coordinates. Can specify a new pitch, or leave blank to use current one.
-	void moveTo(double[] coordinates, double pitchAngle, boolean moveEvenly)	
+	// the move is planned (or found already planned) and checked as a whole before the arm starts.
+	void moveTo(Vec3 coordinates, double pitchAngle, boolean moveEvenly)
 	{
-		double gripLength = this.getCurrentGripInfo().gripLength;
-		
-		double[] newAngles = this.findAnglesConstantPitch(coordinates, gripLength, pitchAngle);
-		if (!this.safetyCheckAxisAngles(newAngles))
-		{
-			Utility.error("invalid angles:\n%f     %f    %f     %f\nTrying to reach point (%f, %f, %f)", newAngles[0], newAngles[1], newAngles[2], newAngles[3], coordinates[0], coordinates[1], coordinates[2]);
-			return;
-		}
-		if (moveEvenly)
-			this.moveAxesAtSpeedEvenly(newAngles);
-		else
-			this.moveAxesAtSpeed(newAngles);
-		//this.setAxisAnglesOptimized(newAngles);
+		double speed = 50;	// degrees per second, as for moveAxesAtSpeed
+		double degreeStep = 1;
+		int kind = moveEvenly ? TrajectoryCache.EVEN : TrajectoryCache.JOINT;
+		TrajectoryCache.Steps steps = this.trajectoryCache.moveTo(kind, this.axisAngles, coordinates.x, coordinates.y, coordinates.z, pitchAngle, speed, degreeStep);
+		if (steps != null)
+			this.playSteps(steps);
 	}
 	void moveToInches(double[] coordinates, double pitchAngle)
 	{
-		this.moveTo(Utility.arrayMultiplication(coordinates, 2.54), pitchAngle);
+		this.moveTo(new Vec3(coordinates).scale(2.54), pitchAngle, false);
 	}
 
 
@@ -629,56 +770,9 @@ class Arm extends Listener
 	 */
 	void moveAxesAtSpeedEvenly(double[] targetAngles, double speed, double maxDegreeStep)
 	{
-		
-		double period = 1 / speed;	// seconds per degree
-	
-		//targetAngles = double(int16(targetAngles));
-		boolean thereYet = false;
-		double[] currentAngles = this.axisAngles;
-		double[] degreeStep = new double[currentAngles.length];	// the number of degrees to move each axis
-		if ( targetAngles.length < currentAngles.length )	// if not all angles are specified, remaining angles should be current angles
-		{
-			for ( int i = targetAngles.length; i < currentAngles.length; ++i)
-				targetAngles[i] = currentAngles[i];
-		}
-		for ( int i = 0; i < targetAngles.length; ++i)
-		{
-			degreeStep[i] = Math.abs(targetAngles[i] - currentAngles[i] ) / Utility.max(Utility.absArray(Utility.arraySubtraction(targetAngles, currentAngles) ) ) * maxDegreeStep;
-		}
-
-		while (!thereYet)
-		{
-			double[] nextAngles = currentAngles;		//preallocating, and ensuring that if we don't assign an axis, it will stay at the current value.
-			thereYet = true;
-			for ( int i = 0; i < targetAngles.length; ++i)	// 
-			{
-				int direction;
-				if ( targetAngles[i] - currentAngles[i] > 0 )
-					direction = 1;
-				else if ( targetAngles[i] - currentAngles[i] < 0 )
-					direction = -1;
-				else
-					// we're done with this axis. Move to the next one
-					continue;
-				thereYet = false;	// if we haven't skipped this with continue, it means we haven't reached this target angle yet, so we're not done yet.
-				if ( Math.abs(targetAngles[i] - currentAngles[i]) > degreeStep[i] )
-					nextAngles[i] = currentAngles[i] + degreeStep[i]*direction;
-				else
-					// the degreeStep is larger than the distance we have left.
-					nextAngles[i] = targetAngles[i];
-			}
-			this.setAxisAnglesOptimized(nextAngles);
-			//sleep(period*degreeStep*1000);
-			try
-			{
-				Thread.sleep((long) (period*Utility.max(degreeStep)*1000));
-			} catch (InterruptedException e)
-			{
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-			currentAngles = nextAngles;	// updating the angles.
-		}
+		TrajectoryCache.Steps steps = this.trajectoryCache.moveAxes(TrajectoryCache.EVEN, this.axisAngles, targetAngles, speed, maxDegreeStep);
+		if (steps != null)
+			this.playSteps(steps);
 	}
 
 	
@@ -693,59 +787,95 @@ class Arm extends Listener
 		double degreeStep = 1;
 		moveAxesAtSpeed(targetAngles, speed, degreeStep);
 	}
-	// moves the arm at the specified speed (in degrees/sec)
+	// moves the arm at the specified speed (in degrees/sec), every axis by degreeStep each step until it gets there
 	void moveAxesAtSpeed(double[] targetAngles, double speed, double degreeStep)
 	{
 		// speed of motors (how fast they move to a new position) is 300 degrees/sec for elbow, 428.5 for shoulder, 333 for wrist and grip
+		TrajectoryCache.Steps steps = this.trajectoryCache.moveAxes(TrajectoryCache.JOINT, this.axisAngles, targetAngles, speed, degreeStep);
+		if (steps != null)
+			this.playSteps(steps);
+	}
 
-		double period = 1 / speed;	// seconds per degree
-		
-		//targetAngles = Utility.int16(targetAngles);
-		boolean thereYet = false;
-
-		while (!thereYet)
+	// sends each step of a planned move in turn, waiting between them. stops if a step is rejected, or where
+	// the arm is if the thread is interrupted, leaving the interrupt flag set.
+	private void playSteps(TrajectoryCache.Steps steps)
+	{
+		double[] stepAngles = new double[NUM_AXES];
+		long stepMillis = steps.getStepMillis();
+		for (int step = 0; step < steps.size(); ++step)
 		{
-			double[] currentAngles = this.axisAngles;
-			double[] nextAngles = new double[currentAngles.length];
-			for (int i = 0; i < this.axisAngles.length; ++i)
-				nextAngles[i] = this.axisAngles[i];
-			thereYet = true;
-			for ( int i = 0; i < targetAngles.length; ++i)
-			{
-				int direction;
-				if ( targetAngles[i] - currentAngles[i] > 0 )
-					direction = 1;
-				else if ( targetAngles[i] - currentAngles[i] < 0 )
-					direction = -1;
-				else
-					// we're done with this axis. Move to the next one
-					continue;
-				thereYet = false;	// if we haven't skipped this with continue, it means we haven't reached all target angles yet.
-				if ( Math.abs(targetAngles[i] - currentAngles[i]) > degreeStep )
-					nextAngles[i] = currentAngles[i] + degreeStep*direction;
-				else
-					// the degreeStep is larger than the distance we have left.
-					nextAngles[i] = targetAngles[i];
-			}
-			this.setAxisAnglesOptimized(nextAngles);
+			long stepStart = this.clock.nanoTime();
+			steps.get(step, stepAngles);
+			if (!this.setAxisAnglesOptimized(stepAngles))
+				break;	// rejected, so we'd never get there
 			try
 			{
-				Thread.sleep((long) (period*degreeStep*1000));
+				this.clock.sleep(stepMillis * 1000000);
 			} catch (InterruptedException e)
 			{
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}	/// wait
-
+				Thread.currentThread().interrupt();
+				return;
+			}
+			ControlEvents.motionStep(step, stepStart, this.clock.nanoTime(), stepMillis * 1000000);
 		}
+		this.flushCommands();
+	}
+
+	// true if the last call to set only sent the arm part of the way to its target, because the servos
+	// couldn't follow any further. set has to be called again, with the same target or a newer one, to get there.
+	boolean isSetCutShort()
+	{
+		return this.setCutShort;
+	}
+
+	// sends the last command if the serial link is holding it back for the setpoint period (see SerialComm.flush).
+	// call at the end of anything that stops commanding the arm. returns false if interrupted while waiting.
+	boolean flushCommands()
+	{
+		return this.comm.flush();
 	}
 
 	
 
+	// moves the tip of the gripper through each of the given points in turn without stopping at them.
+	// the whole path is planned before the arm starts moving, and corners are cut by up to
+	// MotionQueue.DEFAULT_CORNER_TOLERANCE degrees on any axis.
+	boolean moveThrough(double[][] points, double pitchAngle)
+	{
+		double speed = 50;
+		MotionQueue queue = new MotionQueue(this);
+		for (double[] point : points)
+		{
+			if (!queue.moveTo(new Vec3(point), pitchAngle, speed))
+				return false;
+		}
+		return queue.execute(new MotionExecutor(this));
+	}
+
+	// moves the tip of the gripper to the given coordinates along a path that keeps the whole arm clear
+	// of the board and the boxes in the workspace. returns false if no such path was found.
+	boolean moveToAvoiding(double[] coordinates, double pitchAngle)
+	{
+		double speed = 50;
+		MotionQueue queue = new MotionQueue(this, 0);	// no blending, so the arm stays on the checked path
+		double[] start = new double[NUM_AXES];
+		queue.getLastWaypoint(start);
+		double[] goal = new double[NUM_AXES];
+		this.kinematics.getGripInfo(start[GRIP], this.gripScratch);
+		this.kinematics.findAnglesConstantPitch(coordinates[0], coordinates[1], coordinates[2], this.gripScratch.gripLength, pitchAngle, goal);
+		goal[GRIP] = start[GRIP];
+		List<double[]> path = new PathPlanner(this.kinematics, this.workspace).plan(start, goal);
+		if (path == null)
+			return false;
+		for (int i = 1; i < path.size(); ++i)
+			queue.addJointMove(path.get(i), speed);
+		return queue.execute(new MotionExecutor(this));
+	}
+
 	void moveStraightTo(double[] targetCoordinates)
 	{	
 		// if no pitch is specified, use the current one
-		double pitchAngle = this.getAxisAngle("shoulder") + this.getAxisAngle("elbow") + this.getAxisAngle("wrist");
+		double pitchAngle = this.getPitchAngle();
 		double speed = 35;
 		moveStraightTo(targetCoordinates, pitchAngle, speed);
 	}
@@ -754,44 +884,20 @@ class Arm extends Listener
 		double speed = 35;
 		moveStraightTo(targetCoordinates, pitchAngle, speed);
 	}
-	// moves the tip of the gripper to the given coordinates in a straight line.
 	void moveStraightTo(double[] targetCoordinates, double pitchAngle, double speed)
+	{
+		moveStraightTo(new Vec3(targetCoordinates), pitchAngle, speed);
+	}
+	// moves the tip of the gripper to the given coordinates in a straight line, from where the servos are now.
+	// the move is planned (or found already planned) and checked as a whole before the arm starts.
+	void moveStraightTo(Vec3 targetCoordinates, double pitchAngle, double speed)
 	{	
-		double gripLength = this.getCurrentGripInfo().gripLength;
-		
 		double stepDistance = 1;
-		double period = 1 / speed;
-		double[] currentCoordinates = this.getCurrentCoordinates();
-		double[] direction = Utility.getDirectionVector(currentCoordinates, targetCoordinates);
-		boolean reached = false;
-		while (!reached)
-		{
-			double distance = Math.sqrt( Math.pow((targetCoordinates[0]-currentCoordinates[0]),2) + Math.pow((targetCoordinates[1]-currentCoordinates[1]),2) + Math.pow((targetCoordinates[2]-currentCoordinates[2]),2) );
-			double[] nextCoordinates = new double[3];
-			if ( distance < stepDistance )
-			{
-				nextCoordinates = targetCoordinates;
-				reached = true;
-			}
-			else
-				nextCoordinates = Utility.arrayAddition(currentCoordinates, Utility.arrayMultiplication(stepDistance, direction ));
-			double[] newAngles = this.findAnglesConstantPitch(nextCoordinates, gripLength, pitchAngle);
-			if (!this.safetyCheckAxisAngles(newAngles))
-			{
-				Utility.error("invalid angles:\n%f     %f    %f     %f\nTrying to reach point (%f, %f, %f)", newAngles[0], newAngles[1], newAngles[2], newAngles[3], nextCoordinates[0], nextCoordinates[1], nextCoordinates[2]);
-				return;
-			}
-			this.setAxisAnglesOptimized(newAngles);
-			currentCoordinates = nextCoordinates;
-			try
-			{
-				Thread.sleep((long) (period*stepDistance*1000));
-			} catch (InterruptedException e)
-			{
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-		}
+		double[] start = new double[NUM_AXES];
+		this.getEstimatedAngles(start);
+		TrajectoryCache.Steps steps = this.trajectoryCache.moveTo(TrajectoryCache.STRAIGHT, start, targetCoordinates.x, targetCoordinates.y, targetCoordinates.z, pitchAngle, speed, stepDistance);
+		if (steps != null)
+			this.playSteps(steps);
 	}
 
 
@@ -0,0 +1,38 @@
+/**
+ * The axes of the robot arm.  The index of each axis is its position in the angle arrays used
+ * throughout Arm (axisAngles, axisRanges, commandedAngles, etc.) and matches the
+ * Arm.BASE ... Arm.GRIP constants.
+ */
+public enum Axis {
+	BASE("base"),
+	SHOULDER("shoulder"),
+	ELBOW("elbow"),
+	WRIST("wrist"),
+	GRIP("grip");
+
+	// index into the angle arrays
+	public final int index;
+	// verbal name, as used by the old string based methods
+	public final String axisName;
+
+	private Axis(String axisName) {
+		this.index = ordinal();
+		this.axisName = axisName;
+	}
+
+	/**
+	 * Looks up an axis by its verbal name.
+	 *
+	 * @param axisName "base", "shoulder", "elbow", "wrist" or "grip"
+	 * @return The matching axis
+	 * @throws IllegalArgumentException if the name is not recognized
+	 */
+	public static Axis fromName(String axisName) {
+		for (Axis axis : values()) {
+			if (axis.axisName.equals(axisName)) {
+				return axis;
+			}
+		}
+		throw new IllegalArgumentException("unrecognized axis: " + axisName);
+	}
+}
@@ -0,0 +1,341 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * How the servos and links of a particular arm differ from the drawings: the lengths of the upper arm
+ * and forearm, and for each axis how a servo angle turns into an axis angle.
+ *
+ * For a servo angle s, the nominal axis angle is u = s - offset, and the real axis angle is
+ * gain * u + correction(u).  The correction is an optional table of values at evenly spaced knots
+ * between two angles, interpolated linearly between them.  It is zero at both ends of the table and
+ * outside it, so it only bends the line in between (the shoulder, for one, is not linear).
+ *
+ * Commands go the other way, from axis angle to servo angle.  For axes with a table the inverse is
+ * worked out once, when the calibration is made, into a lookup table with LOOKUP_RESOLUTION spacing,
+ * so converting a command is an interpolation between two entries and never allocates.
+ *
+ * Calibrations are saved as plain text:
+ *   segment1 LENGTH
+ *   segment2 LENGTH
+ *   axis NAME OFFSET GAIN [KNOTMIN KNOTMAX CORRECTION...]
+ * with one axis line for each of the five axes and the corrections at the inner knots only.
+ * CalibrationTool fits one from measurements.
+ *
+ * Calibrations are immutable, so one can be shared by any number of threads.
+ */
+public class Calibration {
+	// spacing of the lookup table for axes with a correction table, in degrees
+	public static final double LOOKUP_RESOLUTION = 0.1;
+
+	private static final double ENTRIES_PER_DEGREE = 1 / LOOKUP_RESOLUTION;
+	private static final int NUM_AXES = Arm.NUM_AXES;
+
+	private final double segment1Length;
+	private final double segment2Length;
+	private final double[] offsets;
+	private final double[] gains;
+	// corrections at the inner knots of each axis, or null if the axis has no table
+	private final double[][] corrections;
+	private final double[] knotMin;
+	private final double[] knotMax;
+
+	// servo angles for axis angles lookupStart, lookupStart + LOOKUP_RESOLUTION, ...  null if the axis is linear
+	private final double[][] lookup;
+	private final double[] lookupStart;
+
+	/**
+	 * Constructor - a calibration without correction tables.
+	 *
+	 * @param offsets Servo angle at which each axis is at 0 degrees
+	 * @param gains Degrees of axis movement per degree of servo movement, for each axis
+	 * @param segment1Length Length of the upper arm, in cm
+	 * @param segment2Length Length of the forearm, in cm
+	 */
+	public Calibration(double[] offsets, double[] gains, double segment1Length, double segment2Length) {
+		this(offsets, gains, new double[NUM_AXES], new double[NUM_AXES], new double[NUM_AXES][], segment1Length, segment2Length);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param offsets Servo angle at which each axis is at 0 degrees
+	 * @param gains Degrees of axis movement per degree of servo movement, for each axis
+	 * @param knotMin Nominal axis angle of the first knot of each table
+	 * @param knotMax Nominal axis angle of the last knot of each table
+	 * @param corrections Correction at the inner knots of each table, in degrees, or null for an axis
+	 *        without one
+	 * @param segment1Length Length of the upper arm, in cm
+	 * @param segment2Length Length of the forearm, in cm
+	 * @throws IllegalArgumentException if a gain is not positive, a table is empty or back to front, or a
+	 *         table would make the axis turn backwards as the servo turns forwards
+	 */
+	public Calibration(double[] offsets, double[] gains, double[] knotMin, double[] knotMax, double[][] corrections,
+			double segment1Length, double segment2Length) {
+		this.segment1Length = segment1Length;
+		this.segment2Length = segment2Length;
+		this.offsets = offsets.clone();
+		this.gains = gains.clone();
+		this.knotMin = knotMin.clone();
+		this.knotMax = knotMax.clone();
+		this.corrections = new double[NUM_AXES][];
+		this.lookup = new double[NUM_AXES][];
+		this.lookupStart = new double[NUM_AXES];
+		for (int axis = 0; axis < NUM_AXES; axis++) {
+			if (!(gains[axis] > 0)) {
+				throw new IllegalArgumentException("gain of axis " + axis + " must be positive: " + gains[axis]);
+			}
+			if (corrections[axis] != null) {
+				if (corrections[axis].length == 0 || !(knotMax[axis] > knotMin[axis])) {
+					throw new IllegalArgumentException("correction table of axis " + axis + " is empty");
+				}
+				this.corrections[axis] = corrections[axis].clone();
+				checkIncreasing(axis);
+				buildLookup(axis);
+			}
+		}
+	}
+
+	/**
+	 * Throws if some stretch of the table turns the axis backwards, since it couldn't be inverted.
+	 */
+	private void checkIncreasing(int axis) {
+		double[] table = corrections[axis];
+		double spacing = (knotMax[axis] - knotMin[axis]) / (table.length + 1);
+		for (int i = 0; i <= table.length; i++) {
+			double left = i == 0 ? 0 : table[i - 1];
+			double right = i == table.length ? 0 : table[i];
+			if (!(gains[axis] + (right - left) / spacing > 0)) {
+				throw new IllegalArgumentException("correction table of axis " + axis + " is not increasing");
+			}
+		}
+	}
+
+	/**
+	 * Inverts the model of an axis with a table over the span of the table.  Outside it the axis is
+	 * linear and toServo() doesn't need the table.
+	 */
+	private void buildLookup(int axis) {
+		double first = gains[axis] * knotMin[axis];
+		int entries = (int) Math.ceil(gains[axis] * (knotMax[axis] - knotMin[axis]) / LOOKUP_RESOLUTION) + 1;
+		double[] table = new double[entries];
+		for (int i = 0; i < entries; i++) {
+			double axisAngle = first + i * LOOKUP_RESOLUTION;
+			// the model is increasing, so bisect for the nominal angle that reaches axisAngle
+			double low = knotMin[axis] - 1;
+			double high = knotMax[axis] + 1 + LOOKUP_RESOLUTION / gains[axis];
+			for (int step = 0; step < 60; step++) {
+				double middle = (low + high) / 2;
+				if (nominalToAxis(axis, middle) < axisAngle) {
+					low = middle;
+				} else {
+					high = middle;
+				}
+			}
+			table[i] = (low + high) / 2 + offsets[axis];
+		}
+		lookupStart[axis] = first;
+		lookup[axis] = table;
+	}
+
+	/**
+	 * The angle an axis is really at when its servo is at the given angle.
+	 *
+	 * @param axis Index of the axis (Arm.BASE ... Arm.GRIP)
+	 * @param servoAngle Angle of the servo, in degrees
+	 * @return Angle of the axis, in degrees
+	 */
+	public double toAxis(int axis, double servoAngle) {
+		return nominalToAxis(axis, servoAngle - offsets[axis]);
+	}
+
+	private double nominalToAxis(int axis, double nominal) {
+		return gains[axis] * nominal + correction(corrections[axis], knotMin[axis], knotMax[axis], nominal);
+	}
+
+	/**
+	 * Value of a correction table at a nominal angle.  Shared with CalibrationSolver, which keeps its
+	 * tables in its parameter vector.
+	 *
+	 * @param table Corrections at the inner knots, starting at table[first]; null for no table
+	 * @param count Number of inner knots
+	 */
+	static double correction(double[] table, int first, int count, double min, double max, double nominal) {
+		if (table == null || count == 0 || !(nominal > min && nominal < max)) {
+			return 0;
+		}
+		double position = (nominal - min) / (max - min) * (count + 1);
+		int index = Math.min((int) position, count);
+		double left = index == 0 ? 0 : table[first + index - 1];
+		double right = index == count ? 0 : table[first + index];
+		return left + (right - left) * (position - index);
+	}
+
+	private static double correction(double[] table, double min, double max, double nominal) {
+		return table == null ? 0 : correction(table, 0, table.length, min, max, nominal);
+	}
+
+	/**
+	 * The servo angle that puts an axis at the given angle.  Doesn't allocate, so it is used on every
+	 * command sent to the arm.
+	 *
+	 * @param axis Index of the axis (Arm.BASE ... Arm.GRIP)
+	 * @param axisAngle Angle of the axis, in degrees
+	 * @return Angle to send to the servo, in degrees
+	 */
+	public double toServo(int axis, double axisAngle) {
+		double[] table = lookup[axis];
+		if (table != null) {
+			double position = (axisAngle - lookupStart[axis]) * ENTRIES_PER_DEGREE;
+			if (position >= 0 && position < table.length - 1) {
+				int index = (int) position;
+				return table[index] + (table[index + 1] - table[index]) * (position - index);
+			}
+		}
+		return axisAngle / gains[axis] + offsets[axis];
+	}
+
+	public double getSegment1Length() {
+		return segment1Length;
+	}
+
+	public double getSegment2Length() {
+		return segment2Length;
+	}
+
+	public double getOffset(int axis) {
+		return offsets[axis];
+	}
+
+	public double getGain(int axis) {
+		return gains[axis];
+	}
+
+	/**
+	 * @param axis Index of the axis
+	 * @return Corrections at the inner knots of the axis's table, or null if it has none
+	 */
+	public double[] getCorrections(int axis) {
+		return corrections[axis] == null ? null : corrections[axis].clone();
+	}
+
+	public double getKnotMin(int axis) {
+		return knotMin[axis];
+	}
+
+	public double getKnotMax(int axis) {
+		return knotMax[axis];
+	}
+
+	/**
+	 * Saves the calibration as text.
+	 *
+	 * @param file File to write
+	 * @throws IOException if the file cannot be written
+	 */
+	public void save(File file) throws IOException {
+		PrintWriter out = new PrintWriter(file);
+		try {
+			out.println("segment1 " + segment1Length);
+			out.println("segment2 " + segment2Length);
+			for (Axis axis : Axis.values()) {
+				int i = axis.index;
+				out.print("axis " + axis.axisName + " " + offsets[i] + " " + gains[i]);
+				if (corrections[i] != null) {
+					out.print(" " + knotMin[i] + " " + knotMax[i]);
+					for (double correction : corrections[i]) {
+						out.print(" " + correction);
+					}
+				}
+				out.println();
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Loads a calibration saved with save().  Blank lines and lines starting with # are ignored.
+	 *
+	 * @param file File to read
+	 * @return The calibration
+	 * @throws IOException if the file cannot be read, a line is malformed, or a length or axis is missing
+	 */
+	public static Calibration load(File file) throws IOException {
+		double segment1 = Double.NaN;
+		double segment2 = Double.NaN;
+		double[] offsets = new double[NUM_AXES];
+		double[] gains = new double[NUM_AXES];
+		double[] knotMin = new double[NUM_AXES];
+		double[] knotMax = new double[NUM_AXES];
+		double[][] corrections = new double[NUM_AXES][];
+		boolean[] found = new boolean[NUM_AXES];
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			int lineNumber = 0;
+			while ((line = in.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				String[] fields = line.split("\\s+");
+				try {
+					if (fields[0].equals("segment1") && fields.length == 2) {
+						segment1 = Double.parseDouble(fields[1]);
+					} else if (fields[0].equals("segment2") && fields.length == 2) {
+						segment2 = Double.parseDouble(fields[1]);
+					} else if (fields[0].equals("axis") && (fields.length == 4 || fields.length >= 7)) {
+						int axis = Axis.fromName(fields[1]).index;
+						offsets[axis] = Double.parseDouble(fields[2]);
+						gains[axis] = Double.parseDouble(fields[3]);
+						if (fields.length > 4) {
+							knotMin[axis] = Double.parseDouble(fields[4]);
+							knotMax[axis] = Double.parseDouble(fields[5]);
+							corrections[axis] = new double[fields.length - 6];
+							for (int i = 6; i < fields.length; i++)
+								corrections[axis][i - 6] = Double.parseDouble(fields[i]);
+						}
+						found[axis] = true;
+					} else {
+						throw new IOException(file + ":" + lineNumber + ": expected segment1, segment2 or axis line");
+					}
+				} catch (IllegalArgumentException e) {
+					// also catches NumberFormatException
+					throw new IOException(file + ":" + lineNumber + ": " + e.getMessage());
+				}
+			}
+		} finally {
+			in.close();
+		}
+		if (Double.isNaN(segment1) || Double.isNaN(segment2))
+			throw new IOException(file + ": missing segment length");
+		for (Axis axis : Axis.values()) {
+			if (!found[axis.index])
+				throw new IOException(file + ": missing " + axis.axisName + " axis");
+		}
+		try {
+			return new Calibration(offsets, gains, knotMin, knotMax, corrections, segment1, segment2);
+		} catch (IllegalArgumentException e) {
+			throw new IOException(file + ": " + e.getMessage());
+		}
+	}
+
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		text.append(String.format("segments %.3f %.3f cm", segment1Length, segment2Length));
+		for (Axis axis : Axis.values()) {
+			int i = axis.index;
+			text.append(String.format("%n%-8s offset %8.3f gain %.4f", axis.axisName, offsets[i], gains[i]));
+			if (corrections[i] != null) {
+				text.append(String.format(" table %.0f..%.0f", knotMin[i], knotMax[i]));
+				for (double correction : corrections[i]) {
+					text.append(String.format(" %+.2f", correction));
+				}
+			}
+		}
+		return text.toString();
+	}
+}
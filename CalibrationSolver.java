@@ -0,0 +1,425 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Fits a Calibration to measurements: the servo angles sent to the arm and the position of the grip
+ * tip that was measured for each.  The offsets and gains of the base, shoulder, elbow and wrist and
+ * the two segment lengths are always fitted, along with any correction tables asked for with
+ * setTable().  The grip is kept as it was, since it hardly moves the tip.
+ *
+ * The fit is Levenberg-Marquardt on the distances between the measured tips and the tips the
+ * kinematics predicts.  Each iteration needs the residuals and their derivatives for every sample,
+ * which are independent, so the samples are split into chunks that are evaluated across a ForkJoinPool
+ * and their contributions to the normal equations added up.  The derivatives are finite differences.
+ *
+ * Measurements must be in the arm's coordinates (cm, origin at the shoulder axis, y straight ahead and
+ * z up).  The samples should cover the whole range of every axis, or the gains and tables of the axes
+ * that barely moved can't be told apart.
+ *
+ * A CalibrationSolver is not safe to use from two threads at once.
+ */
+public class CalibrationSolver {
+	public static final int MAX_ITERATIONS = 200;
+
+	// samples evaluated by one task
+	private static final int CHUNK = 64;
+	// base, shoulder, elbow and wrist are fitted; the grip is not
+	private static final int FITTED_AXES = 4;
+	private static final int NUM_AXES = Arm.NUM_AXES;
+	// index of the first gain and of the segment lengths in the parameter vector
+	private static final int GAINS = FITTED_AXES;
+	private static final int SEGMENTS = 2 * FITTED_AXES;
+	private static final int TABLES = SEGMENTS + 2;
+
+	private final Kinematics kinematics;
+	private final ForkJoinPool pool;
+
+	// servo angles of each sample, NUM_AXES apiece, and the measured tip, 3 apiece
+	private double[] servoAngles = new double[64 * NUM_AXES];
+	private double[] tips = new double[64 * 3];
+	private int size = 0;
+
+	// number of inner knots of the table to fit for each axis, 0 for none
+	private final int[] tableKnots = new int[NUM_AXES];
+
+	// layout of the parameter vector for the fit in progress
+	private double[] gripLengths;
+	private final int[] tableStart = new int[NUM_AXES];
+	private double[] knotMin;
+	private double[] knotMax;
+	private int parameters;
+
+	// results of the last fit
+	private double startRms;
+	private double rms;
+	private double maxError;
+	private int iterations;
+
+	/**
+	 * Constructor - evaluates residuals on the common ForkJoinPool.
+	 *
+	 * @param kinematics Geometry of the arm; only the grip geometry and the axis ranges are used
+	 */
+	public CalibrationSolver(Kinematics kinematics) {
+		this(kinematics, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param kinematics Geometry of the arm; only the grip geometry and the axis ranges are used
+	 * @param pool Pool to evaluate residuals on
+	 */
+	public CalibrationSolver(Kinematics kinematics, ForkJoinPool pool) {
+		this.kinematics = kinematics;
+		this.pool = pool;
+	}
+
+	/**
+	 * Adds a measurement.
+	 *
+	 * @param servo All five servo angles that were sent (axis angles already converted)
+	 * @param tip Where the grip tip was measured to be
+	 */
+	public void addSample(double[] servo, Vec3 tip) {
+		if (size * NUM_AXES == servoAngles.length) {
+			servoAngles = Arrays.copyOf(servoAngles, servoAngles.length * 2);
+			tips = Arrays.copyOf(tips, tips.length * 2);
+		}
+		System.arraycopy(servo, 0, servoAngles, size * NUM_AXES, NUM_AXES);
+		tips[size * 3] = tip.x;
+		tips[size * 3 + 1] = tip.y;
+		tips[size * 3 + 2] = tip.z;
+		size++;
+	}
+
+	public int getSampleCount() {
+		return size;
+	}
+
+	/**
+	 * Asks for a correction table to be fitted for an axis, spanning the axis's range.
+	 *
+	 * @param axis The axis; the grip can't have one
+	 * @param knots Number of inner knots, 0 for a straight line
+	 * @throws IllegalArgumentException if the axis is the grip or knots is negative
+	 */
+	public void setTable(Axis axis, int knots) {
+		if (axis.index >= FITTED_AXES || knots < 0) {
+			throw new IllegalArgumentException("cannot fit a " + knots + " knot table for the " + axis.axisName);
+		}
+		tableKnots[axis.index] = knots;
+	}
+
+	/**
+	 * Fits a calibration to the samples.
+	 *
+	 * @param start Calibration to start from.  Its grip is kept, and so is any of its tables that has the
+	 *        same number of knots as the one asked for.
+	 * @return The fitted calibration, or null if there are too few samples or the fit made no sense
+	 */
+	public Calibration solve(Calibration start) {
+		double[] p = layout(start);
+		if (size * 3 < parameters) {
+			Utility.error("cannot calibrate: %d samples for %d parameters%n", size, parameters);
+			return null;
+		}
+
+		double lambda = 1e-3;
+		Normal current = evaluate(p, true);
+		startRms = Math.sqrt(current.cost / size);
+		double[] trial = new double[parameters];
+		double[] step = new double[parameters];
+		double[][] system = new double[parameters][parameters + 1];
+		for (iterations = 0; iterations < MAX_ITERATIONS; iterations++) {
+			// damped normal equations: (JtJ + lambda * diag(JtJ)) step = -Jtr
+			for (int i = 0; i < parameters; i++) {
+				for (int j = 0; j < parameters; j++)
+					system[i][j] = current.jtj[i * parameters + j];
+				system[i][i] += lambda * Math.max(current.jtj[i * parameters + i], 1e-9);
+				system[i][parameters] = -current.jtr[i];
+			}
+			boolean better = false;
+			if (solveLinear(system, step)) {
+				for (int i = 0; i < parameters; i++)
+					trial[i] = p[i] + step[i];
+				if (isPlausible(trial)) {
+					Normal next = evaluate(trial, false);
+					better = next.cost < current.cost;
+					if (better) {
+						double gain = current.cost - next.cost;
+						System.arraycopy(trial, 0, p, 0, parameters);
+						current = evaluate(p, true);
+						lambda = Math.max(lambda / 10, 1e-12);
+						if (gain <= 1e-12 * current.cost || maxAbs(step) < 1e-10)
+							break;
+					}
+				}
+			}
+			if (!better) {
+				lambda *= 10;
+				if (lambda > 1e12)
+					break;
+			}
+		}
+		rms = Math.sqrt(current.cost / size);
+		maxError = current.maxError;
+
+		try {
+			return toCalibration(p, start);
+		} catch (IllegalArgumentException e) {
+			Utility.error("cannot calibrate: %s%n", e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Works out the layout of the parameter vector and fills it in from the starting calibration.
+	 */
+	private double[] layout(Calibration start) {
+		parameters = TABLES;
+		knotMin = new double[NUM_AXES];
+		knotMax = new double[NUM_AXES];
+		for (int axis = 0; axis < FITTED_AXES; axis++) {
+			tableStart[axis] = parameters;
+			parameters += tableKnots[axis];
+			knotMin[axis] = kinematics.axisRanges[axis][0];
+			knotMax[axis] = kinematics.axisRanges[axis][1];
+		}
+		double[] p = new double[parameters];
+		for (int axis = 0; axis < FITTED_AXES; axis++) {
+			p[axis] = start.getOffset(axis);
+			p[GAINS + axis] = start.getGain(axis);
+			double[] table = start.getCorrections(axis);
+			if (table != null && table.length == tableKnots[axis]) {
+				System.arraycopy(table, 0, p, tableStart[axis], table.length);
+				knotMin[axis] = start.getKnotMin(axis);
+				knotMax[axis] = start.getKnotMax(axis);
+			}
+		}
+		p[SEGMENTS] = start.getSegment1Length();
+		p[SEGMENTS + 1] = start.getSegment2Length();
+
+		// the grip isn't fitted, so its length at each sample never changes
+		gripLengths = new double[size];
+		GripInfo gripInfo = new GripInfo();
+		for (int i = 0; i < size; i++) {
+			kinematics.getGripInfo(start.toAxis(Arm.GRIP, servoAngles[i * NUM_AXES + Arm.GRIP]), gripInfo);
+			gripLengths[i] = gripInfo.gripLength;
+		}
+		return p;
+	}
+
+	private Calibration toCalibration(double[] p, Calibration start) {
+		double[] offsets = new double[NUM_AXES];
+		double[] gains = new double[NUM_AXES];
+		double[][] corrections = new double[NUM_AXES][];
+		for (int axis = 0; axis < FITTED_AXES; axis++) {
+			offsets[axis] = p[axis];
+			gains[axis] = p[GAINS + axis];
+			if (tableKnots[axis] > 0)
+				corrections[axis] = Arrays.copyOfRange(p, tableStart[axis], tableStart[axis] + tableKnots[axis]);
+		}
+		offsets[Arm.GRIP] = start.getOffset(Arm.GRIP);
+		gains[Arm.GRIP] = start.getGain(Arm.GRIP);
+		corrections[Arm.GRIP] = start.getCorrections(Arm.GRIP);
+		knotMin[Arm.GRIP] = start.getKnotMin(Arm.GRIP);
+		knotMax[Arm.GRIP] = start.getKnotMax(Arm.GRIP);
+		return new Calibration(offsets, gains, knotMin, knotMax, corrections, p[SEGMENTS], p[SEGMENTS + 1]);
+	}
+
+	/**
+	 * Rejects steps that make a gain or length meaningless, which can happen while the damping is low.
+	 */
+	private static boolean isPlausible(double[] p) {
+		for (int axis = 0; axis < FITTED_AXES; axis++) {
+			if (!(p[GAINS + axis] > 0))
+				return false;
+		}
+		return p[SEGMENTS] > 0 && p[SEGMENTS + 1] > 0;
+	}
+
+	/**
+	 * Writes the difference between the predicted and measured tip of a sample into residual.
+	 */
+	private void residual(double[] p, int sample, double[] residual) {
+		double baseAngle = axisAngle(p, sample, Arm.BASE);
+		double shoulder = axisAngle(p, sample, Arm.SHOULDER);
+		double elbow = shoulder + axisAngle(p, sample, Arm.ELBOW);
+		double pitch = elbow + axisAngle(p, sample, Arm.WRIST);
+		double gripLength = gripLengths[sample];
+		// same as Kinematics.findCoordinates, with the segment lengths being fitted
+		double horizontal = p[SEGMENTS] * Math.cos(Math.toRadians(shoulder)) + p[SEGMENTS + 1] * Math.cos(Math.toRadians(elbow))
+				+ gripLength * Math.cos(Math.toRadians(pitch));
+		double z = p[SEGMENTS] * Math.sin(Math.toRadians(shoulder)) + p[SEGMENTS + 1] * Math.sin(Math.toRadians(elbow))
+				+ gripLength * Math.sin(Math.toRadians(pitch));
+		residual[0] = horizontal * Math.sin(Math.toRadians(baseAngle)) - tips[sample * 3];
+		residual[1] = horizontal * Math.cos(Math.toRadians(baseAngle)) - tips[sample * 3 + 1];
+		residual[2] = z - tips[sample * 3 + 2];
+	}
+
+	private double axisAngle(double[] p, int sample, int axis) {
+		double nominal = servoAngles[sample * NUM_AXES + axis] - p[axis];
+		return p[GAINS + axis] * nominal + Calibration.correction(p, tableStart[axis], tableKnots[axis], knotMin[axis], knotMax[axis], nominal);
+	}
+
+	/**
+	 * Evaluates the cost, and optionally the normal equations, for a parameter vector over all samples.
+	 */
+	private Normal evaluate(double[] p, boolean withJacobian) {
+		return pool.invoke(new Evaluation(p, withJacobian, 0, size));
+	}
+
+	/**
+	 * Sum over a set of samples of the squared residuals, and of JtJ and Jtr if asked for.
+	 */
+	private class Normal {
+		final double[] jtj;
+		final double[] jtr;
+		double cost;
+		double maxError;
+
+		Normal(boolean withJacobian) {
+			jtj = withJacobian ? new double[parameters * parameters] : null;
+			jtr = withJacobian ? new double[parameters] : null;
+		}
+
+		void add(Normal other) {
+			cost += other.cost;
+			maxError = Math.max(maxError, other.maxError);
+			if (jtj != null) {
+				for (int i = 0; i < jtj.length; i++)
+					jtj[i] += other.jtj[i];
+				for (int i = 0; i < jtr.length; i++)
+					jtr[i] += other.jtr[i];
+			}
+		}
+	}
+
+	/**
+	 * Evaluates samples first to last - 1, splitting them in half until the pieces are small enough.
+	 */
+	private class Evaluation extends RecursiveTask<Normal> {
+		private final double[] p;
+		private final boolean withJacobian;
+		private final int first;
+		private final int last;
+
+		Evaluation(double[] p, boolean withJacobian, int first, int last) {
+			this.p = p;
+			this.withJacobian = withJacobian;
+			this.first = first;
+			this.last = last;
+		}
+
+		protected Normal compute() {
+			if (last - first > CHUNK) {
+				int middle = (first + last) >>> 1;
+				Evaluation right = new Evaluation(p, withJacobian, middle, last);
+				right.fork();
+				Normal sum = new Evaluation(p, withJacobian, first, middle).compute();
+				sum.add(right.join());
+				return sum;
+			}
+			Normal sum = new Normal(withJacobian);
+			double[] r = new double[3];
+			double[] shifted = withJacobian ? p.clone() : null;
+			double[] columns = withJacobian ? new double[3 * parameters] : null;
+			double[] moved = new double[3];
+			for (int sample = first; sample < last; sample++) {
+				residual(p, sample, r);
+				double squared = r[0] * r[0] + r[1] * r[1] + r[2] * r[2];
+				sum.cost += squared;
+				sum.maxError = Math.max(sum.maxError, Math.sqrt(squared));
+				if (!withJacobian)
+					continue;
+				for (int k = 0; k < parameters; k++) {
+					double h = 1e-6 * Math.max(1, Math.abs(p[k]));
+					shifted[k] = p[k] + h;
+					residual(shifted, sample, moved);
+					shifted[k] = p[k];
+					for (int c = 0; c < 3; c++)
+						columns[c * parameters + k] = (moved[c] - r[c]) / h;
+				}
+				for (int c = 0; c < 3; c++) {
+					int row = c * parameters;
+					for (int i = 0; i < parameters; i++) {
+						double ji = columns[row + i];
+						sum.jtr[i] += ji * r[c];
+						for (int j = 0; j < parameters; j++)
+							sum.jtj[i * parameters + j] += ji * columns[row + j];
+					}
+				}
+			}
+			return sum;
+		}
+	}
+
+	/**
+	 * Solves the augmented system in place by Gaussian elimination with partial pivoting.  Returns false
+	 * if it is singular.
+	 */
+	private static boolean solveLinear(double[][] system, double[] solution) {
+		int n = solution.length;
+		for (int column = 0; column < n; column++) {
+			int pivot = column;
+			for (int row = column + 1; row < n; row++) {
+				if (Math.abs(system[row][column]) > Math.abs(system[pivot][column]))
+					pivot = row;
+			}
+			if (!(Math.abs(system[pivot][column]) > 1e-300))
+				return false;
+			double[] swap = system[column];
+			system[column] = system[pivot];
+			system[pivot] = swap;
+			for (int row = column + 1; row < n; row++) {
+				double factor = system[row][column] / system[column][column];
+				for (int k = column; k <= n; k++)
+					system[row][k] -= factor * system[column][k];
+			}
+		}
+		for (int row = n - 1; row >= 0; row--) {
+			double sum = system[row][n];
+			for (int k = row + 1; k < n; k++)
+				sum -= system[row][k] * solution[k];
+			solution[row] = sum / system[row][row];
+		}
+		return true;
+	}
+
+	private static double maxAbs(double[] values) {
+		double max = 0;
+		for (double value : values)
+			max = Math.max(max, Math.abs(value));
+		return max;
+	}
+
+	/**
+	 * @return RMS distance between the measured and predicted tips before the last fit, in cm
+	 */
+	public double getStartRms() {
+		return startRms;
+	}
+
+	/**
+	 * @return RMS distance between the measured and predicted tips after the last fit, in cm
+	 */
+	public double getRms() {
+		return rms;
+	}
+
+	/**
+	 * @return Largest distance between a measured and predicted tip after the last fit, in cm
+	 */
+	public double getMaxError() {
+		return maxError;
+	}
+
+	/**
+	 * @return Iterations taken by the last fit
+	 */
+	public int getIterations() {
+		return iterations;
+	}
+}
@@ -0,0 +1,87 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Fits a calibration to measurements and saves it for Main -calibration=FILE.
+ *
+ * java CalibrationTool <samples> <output> [-from=FILE] [-table=AXIS:KNOTS]...
+ *
+ * The samples file has one measurement per line:
+ *   base shoulder elbow wrist grip x y z
+ * with the axis angles that were commanded (as shown by the GUI or the flight recorder) and where the
+ * grip tip was measured to be, in cm in the arm's coordinates.  Blank lines and lines starting with #
+ * are ignored.  The commanded angles are turned back into the servo angles that were sent using the
+ * calibration in use while measuring: the built-in one, or the one given with -from.
+ *
+ * -table=shoulder:5 also fits a correction table with five inner knots for the shoulder, for axes that
+ * aren't linear.  Offsets, gains and segment lengths are always fitted.
+ */
+public class CalibrationTool {
+	private static final int NUM_AXES = Arm.NUM_AXES;
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("usage: java CalibrationTool <samples> <output> [-from=FILE] [-table=AXIS:KNOTS]...");
+			return;
+		}
+		Calibration from = Arm.defaultCalibration();
+		CalibrationSolver solver = new CalibrationSolver(new Kinematics(from.getSegment1Length(), from.getSegment2Length(), Arm.defaultAxisRanges()));
+		for (int i = 2; i < args.length; i++) {
+			if (args[i].startsWith("-from=")) {
+				from = Calibration.load(new File(args[i].substring(6)));
+			} else if (args[i].startsWith("-table=")) {
+				String[] table = args[i].substring(7).split(":");
+				solver.setTable(Axis.fromName(table[0]), Integer.parseInt(table[1]));
+			} else {
+				Utility.error("unrecognized option: %s%n", args[i]);
+			}
+		}
+
+		loadSamples(new File(args[0]), from, solver);
+		long start = System.nanoTime();
+		Calibration fitted = solver.solve(from);
+		if (fitted == null) {
+			return;
+		}
+		System.out.printf("%d samples, %d iterations, %.0f ms%n", solver.getSampleCount(), solver.getIterations(), (System.nanoTime() - start) / 1e6);
+		System.out.printf("tip error %.3f cm RMS before, %.3f cm RMS after (worst %.3f cm)%n", solver.getStartRms(), solver.getRms(), solver.getMaxError());
+		System.out.println(fitted);
+		fitted.save(new File(args[1]));
+	}
+
+	/**
+	 * Reads a samples file into the solver, converting the commanded angles into servo angles.
+	 *
+	 * @throws IOException if the file cannot be read or a line is malformed
+	 */
+	static void loadSamples(File file, Calibration from, CalibrationSolver solver) throws IOException {
+		double[] servo = new double[NUM_AXES];
+		Vec3 tip = new Vec3();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			int lineNumber = 0;
+			while ((line = in.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				String[] fields = line.split("\\s+");
+				if (fields.length != NUM_AXES + 3)
+					throw new IOException(file + ":" + lineNumber + ": expected " + NUM_AXES + " angles and x y z");
+				try {
+					for (int axis = 0; axis < NUM_AXES; axis++)
+						servo[axis] = from.toServo(axis, Double.parseDouble(fields[axis]));
+					tip.set(Double.parseDouble(fields[NUM_AXES]), Double.parseDouble(fields[NUM_AXES + 1]), Double.parseDouble(fields[NUM_AXES + 2]));
+				} catch (NumberFormatException e) {
+					throw new IOException(file + ":" + lineNumber + ": " + e.getMessage());
+				}
+				solver.addSample(servo, tip);
+			}
+		} finally {
+			in.close();
+		}
+	}
+}
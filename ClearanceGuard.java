@@ -0,0 +1,131 @@
+/**
+ * Last line of defence against driving the arm into the board.  Every command sent to the arm is
+ * checked here, after the per-axis range check.
+ *
+ * A command is rejected if, in the new pose, the elbow, the wrist or the grip tip would be below the
+ * floor (the board plus a margin).  It is also rejected if the motion from the previous command could
+ * pass below the floor on the way, even though both ends are clear.  Commands are streamed in small
+ * steps, so each step is treated as a straight line through joint space.  Along it the height of a
+ * point is a sum of terms like length * sin(angle of the link), whose second derivative is at most
+ * M = sum of length * (change of angle)^2, so the point never gets more than M / 8 below the lower of
+ * its two end heights.
+ *
+ * A check is a few sines and doesn't allocate, so it runs on every teleop frame.  It is
+ * not safe to use one ClearanceGuard from two threads at once.
+ */
+public class ClearanceGuard {
+	// how far above the board the arm has to stay, in cm
+	public static final double DEFAULT_MARGIN = 0.25;
+
+	private static final Metrics.Counter poseRejects = Metrics.counter("clearancePoseRejects");
+	private static final Metrics.Counter sweepRejects = Metrics.counter("clearanceSweepRejects");
+
+	private final Kinematics kinematics;
+	private final double floor;
+
+	// heights of the elbow, wrist and tip and the grip length of the two ends of the move being
+	// checked.  After a command is accepted, its end becomes the start of the next check.
+	private Heights from = new Heights();
+	private Heights to = new Heights();
+	private final double[] lastAccepted = new double[Arm.NUM_AXES];
+	private boolean hasLastAccepted = false;
+	private final GripInfo gripInfo = new GripInfo();
+
+	private static class Heights {
+		double elbow;
+		double wrist;
+		double tip;
+		double gripAngle = Double.NaN;
+		double gripLength;
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param kinematics Geometry of the arm
+	 * @param groundHeight Height of the board, in cm
+	 * @param margin How far above the board the arm has to stay, in cm
+	 */
+	public ClearanceGuard(Kinematics kinematics, double groundHeight, double margin) {
+		this.kinematics = kinematics;
+		this.floor = groundHeight + margin;
+	}
+
+	/**
+	 * Checks a command.
+	 *
+	 * @param previous All five axis angles of the last command sent
+	 * @param next All five axis angles about to be sent
+	 * @return true if the command is safe to send
+	 */
+	public boolean check(double[] previous, double[] next) {
+		if (!hasLastAccepted || !sameAngles(previous, lastAccepted)) {
+			heights(previous, from);
+		}
+		heights(next, to);
+		if (to.elbow < floor || to.wrist < floor || to.tip < floor) {
+			poseRejects.increment();
+			return false;
+		}
+		// only motions that start clear are checked, so the arm can always be moved up out of trouble
+		if (from.elbow >= floor && from.wrist >= floor && from.tip >= floor) {
+			// change of the angle of each link (from horizontal) over the move, in radians
+			double upperArmTurn = Math.toRadians(next[Arm.SHOULDER] - previous[Arm.SHOULDER]);
+			double forearmTurn = upperArmTurn + Math.toRadians(next[Arm.ELBOW] - previous[Arm.ELBOW]);
+			double gripTurn = forearmTurn + Math.toRadians(next[Arm.WRIST] - previous[Arm.WRIST]);
+			double gripLength = Math.max(from.gripLength, to.gripLength);
+			double gripStretch = Math.abs(to.gripLength - from.gripLength);
+
+			// largest second derivative of each height along the move
+			double elbowBend = kinematics.segment1Length * upperArmTurn * upperArmTurn;
+			double wristBend = elbowBend + kinematics.segment2Length * forearmTurn * forearmTurn;
+			double tipBend = wristBend + gripLength * gripTurn * gripTurn + 2 * gripStretch * Math.abs(gripTurn);
+
+			if (Math.min(from.elbow, to.elbow) - elbowBend / 8 < floor
+					|| Math.min(from.wrist, to.wrist) - wristBend / 8 < floor
+					|| Math.min(from.tip, to.tip) - tipBend / 8 < floor) {
+				sweepRejects.increment();
+				return false;
+			}
+		}
+
+		// the accepted pose is the start of the next move
+		System.arraycopy(next, 0, lastAccepted, 0, Arm.NUM_AXES);
+		hasLastAccepted = true;
+		Heights swap = from;
+		from = to;
+		to = swap;
+		return true;
+	}
+
+	private static boolean sameAngles(double[] a, double[] b) {
+		for (int i = 0; i < Arm.NUM_AXES; i++) {
+			if (a[i] != b[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Works out the heights of the elbow, wrist and tip of a pose.  The grip length is only worked out
+	 * again if the grip angle changed, since that is the slowest part of a check.
+	 */
+	private void heights(double[] angles, Heights out) {
+		if (angles[Arm.GRIP] != out.gripAngle) {
+			double known = from.gripAngle == angles[Arm.GRIP] ? from.gripLength : to.gripAngle == angles[Arm.GRIP] ? to.gripLength : Double.NaN;
+			if (Double.isNaN(known)) {
+				kinematics.getGripInfo(angles[Arm.GRIP], gripInfo);
+				known = gripInfo.gripLength;
+			}
+			out.gripAngle = angles[Arm.GRIP];
+			out.gripLength = known;
+		}
+		double shoulder = angles[Arm.SHOULDER];
+		double elbow = shoulder + angles[Arm.ELBOW];
+		double pitch = elbow + angles[Arm.WRIST];
+		out.elbow = kinematics.segment1Length * Utility.sind(shoulder);
+		out.wrist = out.elbow + kinematics.segment2Length * Utility.sind(elbow);
+		out.tip = out.wrist + out.gripLength * Utility.sind(pitch);
+	}
+}
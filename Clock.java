@@ -0,0 +1,48 @@
+/**
+ * Where motion and pacing code gets the time from and how it waits, so that the same code can run
+ * against the real clock or a VirtualClock.  Arm, MotionExecutor and SerialComm take all their times
+ * from one; attach one with Arm.setClock.
+ *
+ * Times are in ns on an arbitrary origin, like System.nanoTime, and only differences between them
+ * mean anything.  SYSTEM is System.nanoTime and Thread.sleep.
+ */
+public class Clock {
+	public static final Clock SYSTEM = new Clock();
+
+	/**
+	 * Constructor - for SYSTEM and subclasses.
+	 */
+	protected Clock() {
+	}
+
+	/**
+	 * @return Current time in ns
+	 */
+	public long nanoTime() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Waits until nanoTime reaches the deadline.  Returns straight away if it already has.  Deadlines
+	 * are absolute, so small delays don't add up over a long move.
+	 *
+	 * @param deadline Time to wait until, in ns
+	 * @throws InterruptedException If the thread is interrupted while waiting
+	 */
+	public void sleepUntil(long deadline) throws InterruptedException {
+		long remaining = deadline - nanoTime();
+		if (remaining > 0) {
+			Thread.sleep(remaining / 1000000, (int) (remaining % 1000000));
+		}
+	}
+
+	/**
+	 * Waits for the given time.
+	 *
+	 * @param nanos Time to wait, in ns
+	 * @throws InterruptedException If the thread is interrupted while waiting
+	 */
+	public void sleep(long nanos) throws InterruptedException {
+		sleepUntil(nanoTime() + nanos);
+	}
+}
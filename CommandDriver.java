@@ -0,0 +1,270 @@
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Runs motion scripts: streams of joint or Cartesian commands, one per line, read from a file or
+ * stdin.  Commands are parsed straight from the bytes, checked, turned into a Trajectory with one
+ * waypoint per command, and played by a MotionExecutor at a fixed number of commands per second.
+ *
+ * Commands (angles in degrees, distances in cm):
+ *   joint BASE SHOULDER ELBOW WRIST GRIP   move every axis
+ *   move X Y Z PITCH [SEPARATION]          move the grip tip to X, Y, Z with the gripper at PITCH,
+ *                                          and open the grip to SEPARATION if given
+ *   grip ANGLE                             move the grip axis only
+ *   ANGLE                                  move to ANGLE_SELECT_POSE with the grip at ANGLE, as
+ *                                          AngleSelect always has
+ *   wait SECONDS                           hold the last pose
+ *   x                                      stop reading
+ * Blank lines and lines starting with # are ignored.
+ *
+ * Every command is checked before any of its batch is sent: that its numbers are finite, that it can
+ * be reached within the axis ranges, and that it and the move to it from the command before keep
+ * clear of the board, the same way the arm checks every command it is sent.  Errors are printed as
+ * file:line: message, and a batch with any errors is not run.  A file is one batch, so it is checked
+ * as a whole before the arm moves.  From a pipe or the keyboard, whatever has arrived when the driver
+ * catches up with the input is checked and run as a batch, so typed commands run as soon as they are
+ * entered.
+ *
+ * Move commands are solved up front; the arm moves between waypoints in joint space.  Counts and
+ * rates of commands read and played are kept, for measuring how fast long programs run.
+ */
+public class CommandDriver {
+	public static final double DEFAULT_RATE = 50;	// commands per second
+	// the pose a bare grip angle moves the other axes to: base, shoulder, elbow and wrist
+	public static final double[] ANGLE_SELECT_POSE = {0, 90, -45, 0};
+	// errors printed for a batch before the rest are only counted
+	public static final int MAX_ERRORS_SHOWN = 20;
+
+	private static final int NUM_AXES = Arm.NUM_AXES;
+
+	private static final Metrics.Counter pacingDelays = Metrics.counter("motionPacingDelays");
+
+	private final Arm arm;
+	private final Kinematics kinematics;
+	private final ClearanceGuard clearanceGuard;
+	private final MotionExecutor executor;
+	private final double period;
+
+	// the batch being read, and the poses before and at the command being checked
+	private final Trajectory batch = new Trajectory(1024);
+	private final double[] previous = new double[NUM_AXES];
+	private final double[] pose = new double[NUM_AXES];
+	private final double[] solved = new double[NUM_AXES - 1];
+	private final GripInfo gripInfo = new GripInfo();
+	private double time;
+	private int batchErrors;
+
+	// totals
+	private long lines = 0;
+	private long commands = 0;
+	private long errors = 0;
+	private long batches = 0;
+	private long readNanos = 0;
+	private long playNanos = 0;
+	private long commandsPlayed = 0;
+	private long delays = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param arm The arm to move
+	 * @param rate Commands to send per second
+	 */
+	public CommandDriver(Arm arm, double rate) {
+		if (!(rate > 0)) {
+			throw new IllegalArgumentException("rate must be positive: " + rate);
+		}
+		this.arm = arm;
+		this.kinematics = arm.kinematics;
+		// a guard of our own, since the arm's is used by whatever thread is commanding it
+		this.clearanceGuard = new ClearanceGuard(arm.kinematics, arm.workspace.getGroundHeight(), ClearanceGuard.DEFAULT_MARGIN);
+		this.period = 1 / rate;
+		this.executor = new MotionExecutor(arm, period);
+	}
+
+	/**
+	 * Reads, checks and runs commands until the end of the stream or an x command.  Blocks while the
+	 * arm moves.
+	 *
+	 * @param in Stream of commands
+	 * @param name Name of the stream, for error messages
+	 * @param checkOnly true to only check the commands, without moving the arm
+	 * @return true if every command was valid and run
+	 * @throws IOException if the stream cannot be read or a line is too long to be a command
+	 */
+	public boolean run(InputStream in, String name, boolean checkOnly) throws IOException {
+		CommandParser parser = new CommandParser(in, name);
+		boolean ok = true;
+		boolean more = true;
+		System.arraycopy(arm.commandedAngles, 0, pose, 0, NUM_AXES);
+		while (more) {
+			batch.clear();
+			batchErrors = 0;
+			time = 0;
+			long start = System.nanoTime();
+			while (true) {
+				if (!parser.nextLine() || parser.tokenEquals(0, "x")) {
+					more = false;
+					break;
+				}
+				lines++;
+				read(parser);
+				if (parser.isCaughtUp()) {
+					break;
+				}
+			}
+			readNanos += System.nanoTime() - start;
+
+			if (batchErrors > 0) {
+				if (batchErrors > MAX_ERRORS_SHOWN) {
+					Utility.error("%s: %d more errors%n", name, batchErrors - MAX_ERRORS_SHOWN);
+				}
+				Utility.error("%s: lines up to %d not run because of errors%n", name, parser.getLineNumber());
+				ok = false;
+				// the arm hasn't moved, so carry on from where it is
+				System.arraycopy(arm.commandedAngles, 0, pose, 0, NUM_AXES);
+				continue;
+			}
+			if (checkOnly || batch.size() == 0) {
+				continue;
+			}
+			batches++;
+			long sent = executor.getCommandsSent();
+			long delaysBefore = pacingDelays.get();
+			start = System.nanoTime();
+			boolean finished = executor.execute(batch, 1);
+			playNanos += System.nanoTime() - start;
+			commandsPlayed += executor.getCommandsSent() - sent;
+			delays += pacingDelays.get() - delaysBefore;
+			if (!finished) {
+				return false;
+			}
+		}
+		return ok;
+	}
+
+	/**
+	 * Parses and checks the current line, adding its waypoint to the batch.
+	 */
+	private void read(CommandParser parser) {
+		System.arraycopy(pose, 0, previous, 0, NUM_AXES);
+		int count = parser.getTokenCount();
+		try {
+			if (parser.tokenEquals(0, "joint")) {
+				if (count != NUM_AXES + 1) {
+					error(parser, "expected " + NUM_AXES + " angles");
+					return;
+				}
+				for (int i = 0; i < NUM_AXES; i++) {
+					pose[i] = parser.getNumber(i + 1);
+				}
+			} else if (parser.tokenEquals(0, "move")) {
+				if (count != 5 && count != 6) {
+					error(parser, "expected x, y, z, pitch and optionally a grip separation");
+					return;
+				}
+				if (count == 6) {
+					double separation = parser.getNumber(5);
+					double gripAngle = kinematics.findGripAngle(separation, gripInfo);
+					if (Double.isNaN(gripAngle)) {
+						error(parser, "grip separation out of range: " + parser.getToken(5));
+						return;
+					}
+					pose[Arm.GRIP] = gripAngle;
+				}
+				kinematics.getGripInfo(pose[Arm.GRIP], gripInfo);
+				kinematics.findAnglesConstantPitch(parser.getNumber(1), parser.getNumber(2), parser.getNumber(3),
+						gripInfo.gripLength, parser.getNumber(4), solved);
+				System.arraycopy(solved, 0, pose, 0, NUM_AXES - 1);
+			} else if (count == 1 && parser.isNumber(0)) {
+				System.arraycopy(ANGLE_SELECT_POSE, 0, pose, 0, NUM_AXES - 1);
+				pose[Arm.GRIP] = parser.getNumber(0);
+			} else if (parser.tokenEquals(0, "grip")) {
+				if (count != 2) {
+					error(parser, "expected a grip angle");
+					return;
+				}
+				pose[Arm.GRIP] = parser.getNumber(1);
+			} else if (parser.tokenEquals(0, "wait")) {
+				double seconds = count == 2 ? parser.getNumber(1) : -1;
+				if (!(seconds >= 0)) {
+					error(parser, "expected a time in seconds");
+					return;
+				}
+				if (batch.size() == 0) {
+					batch.add(0, pose);
+				}
+				time += seconds;
+				batch.add(time, pose);
+				return;
+			} else {
+				error(parser, "unknown command: " + parser.getToken(0));
+				return;
+			}
+		} catch (NumberFormatException e) {
+			error(parser, e.getMessage());
+			return;
+		}
+
+		if (!kinematics.safetyCheckAxisAngles(pose)) {
+			error(parser, "out of reach or outside the axis ranges");
+			return;
+		}
+		// the first command of a batch is approached in small steps, so only the pose itself is checked
+		if (!clearanceGuard.check(batch.size() == 0 ? pose : previous, pose)) {
+			error(parser, "too close to the board");
+			return;
+		}
+		commands++;
+		if (batch.size() > 0) {
+			time += period;
+		}
+		batch.add(time, pose);
+	}
+
+	/**
+	 * Reports an error on the current line, and puts the pose back to what it was before it.
+	 */
+	private void error(CommandParser parser, String message) {
+		System.arraycopy(previous, 0, pose, 0, NUM_AXES);
+		errors++;
+		batchErrors++;
+		if (batchErrors <= MAX_ERRORS_SHOWN) {
+			Utility.error("%s:%d: %s%n", parser.getName(), parser.getLineNumber(), message);
+		}
+	}
+
+	/**
+	 * @return Number of command lines read, valid or not
+	 */
+	public long getLines() {
+		return lines;
+	}
+
+	/**
+	 * @return Number of valid motion commands read
+	 */
+	public long getCommands() {
+		return commands;
+	}
+
+	public long getErrors() {
+		return errors;
+	}
+
+	/**
+	 * @return Number of commands sent to the arm, including the moves to the start of each batch
+	 */
+	public long getCommandsPlayed() {
+		return commandsPlayed;
+	}
+
+	public String toString() {
+		double readSeconds = readNanos / 1e9;
+		double playSeconds = playNanos / 1e9;
+		return String.format("read %d lines (%d commands, %d errors) in %.3f s, %.0f lines/s; "
+				+ "played %d batches in %.2f s, %d commands sent, %.1f commands/s, %d pacing delays",
+				lines, commands, errors, readSeconds, readSeconds > 0 ? lines / readSeconds : 0,
+				batches, playSeconds, commandsPlayed, playSeconds > 0 ? commandsPlayed / playSeconds : 0, delays);
+	}
+}
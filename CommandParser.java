@@ -0,0 +1,269 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits a stream of text commands into lines and whitespace separated tokens, and reads numbers
+ * straight from the bytes.  Made for long command scripts: nothing is allocated per line unless a
+ * token has to be turned into a String (for an error message) or a number is too long to be read
+ * exactly the fast way.
+ *
+ * Blank lines and lines starting with # are skipped.  Text is read as ASCII.
+ */
+public class CommandParser {
+	public static final int MAX_LINE = 4096;
+	public static final int MAX_TOKENS = 16;
+
+	// exact powers of ten; a long below 2^53 times or divided by one of these is correctly rounded
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	private final InputStream in;
+	private final String name;
+	private final byte[] buffer = new byte[64 * 1024];
+	private int position = 0;
+	private int limit = 0;
+	private boolean eof = false;
+
+	// the current line
+	private int lineNumber = 0;
+	private int tokens = 0;
+	private final int[] starts = new int[MAX_TOKENS];
+	private final int[] ends = new int[MAX_TOKENS];
+
+	/**
+	 * Constructor
+	 *
+	 * @param in Stream to read.  Buffered here, so it need not be buffered already.
+	 * @param name Name of the stream, e.g. the file name, for error messages
+	 */
+	public CommandParser(InputStream in, String name) {
+		this.in = in;
+		this.name = name;
+	}
+
+	/**
+	 * Moves on to the next line with something on it.
+	 *
+	 * @return false at the end of the stream
+	 * @throws IOException if the stream cannot be read, or a line is longer than MAX_LINE or has more
+	 *         than MAX_TOKENS tokens
+	 */
+	public boolean nextLine() throws IOException {
+		while (true) {
+			int end = findEndOfLine();
+			if (end < 0) {
+				return false;
+			}
+			lineNumber++;
+			tokenize(position, end);
+			position = end < limit ? end + 1 : end;
+			if (tokens > 0 && buffer[starts[0]] != '#') {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Finds the end of the line starting at position, reading more of the stream if needed.
+	 *
+	 * @return Index of the newline, or of the end of the buffered text if the stream ends without one,
+	 *         or -1 if there are no more lines
+	 */
+	private int findEndOfLine() throws IOException {
+		int searched = position;
+		while (true) {
+			for (int i = searched; i < limit; i++) {
+				if (buffer[i] == '\n') {
+					return i;
+				}
+			}
+			if (eof) {
+				return position < limit ? limit : -1;
+			}
+			if (limit - position >= MAX_LINE) {
+				throw new IOException(name + ":" + (lineNumber + 1) + ": line longer than " + MAX_LINE + " characters");
+			}
+			// keep the partial line and read more after it
+			int kept = limit - position;
+			System.arraycopy(buffer, position, buffer, 0, kept);
+			position = 0;
+			limit = kept;
+			searched = kept;
+			int read = in.read(buffer, limit, buffer.length - limit);
+			if (read < 0) {
+				eof = true;
+			} else {
+				limit += read;
+			}
+		}
+	}
+
+	private void tokenize(int from, int to) throws IOException {
+		tokens = 0;
+		int i = from;
+		while (true) {
+			while (i < to && buffer[i] <= ' ') {
+				i++;
+			}
+			if (i >= to) {
+				return;
+			}
+			if (tokens == MAX_TOKENS) {
+				throw new IOException(name + ":" + lineNumber + ": more than " + MAX_TOKENS + " fields");
+			}
+			starts[tokens] = i;
+			while (i < to && buffer[i] > ' ') {
+				i++;
+			}
+			ends[tokens] = i;
+			tokens++;
+		}
+	}
+
+	/**
+	 * @return true if every line read from the stream so far has been parsed and no more input is
+	 *         waiting, so that the next nextLine() may block
+	 * @throws IOException if the stream cannot be read
+	 */
+	public boolean isCaughtUp() throws IOException {
+		for (int i = position; i < limit; i++) {
+			if (buffer[i] == '\n') {
+				return false;
+			}
+		}
+		return eof || in.available() == 0;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return Number of the current line, counting from 1
+	 */
+	public int getLineNumber() {
+		return lineNumber;
+	}
+
+	/**
+	 * @return Number of tokens on the current line
+	 */
+	public int getTokenCount() {
+		return tokens;
+	}
+
+	/**
+	 * @param i Token index
+	 * @param word Word to compare with, in ASCII
+	 * @return true if the token is exactly the word
+	 */
+	public boolean tokenEquals(int i, String word) {
+		int length = ends[i] - starts[i];
+		if (length != word.length()) {
+			return false;
+		}
+		for (int j = 0; j < length; j++) {
+			if (buffer[starts[i] + j] != word.charAt(j)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return The token as a String.  Allocates, so meant for error messages.
+	 */
+	public String getToken(int i) {
+		return new String(buffer, starts[i], ends[i] - starts[i], StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * @return true if the token looks like the start of a number
+	 */
+	public boolean isNumber(int i) {
+		byte c = buffer[starts[i]];
+		return (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.';
+	}
+
+	/**
+	 * Reads a token as a decimal number, like Double.parseDouble but without making a String.
+	 *
+	 * @param i Token index
+	 * @return The number, correctly rounded
+	 * @throws NumberFormatException if the token is not a finite number
+	 */
+	public double getNumber(int i) {
+		int p = starts[i];
+		int end = ends[i];
+		boolean negative = false;
+		if (p < end && (buffer[p] == '-' || buffer[p] == '+')) {
+			negative = buffer[p] == '-';
+			p++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		boolean any = false;
+		for (; p < end && buffer[p] >= '0' && buffer[p] <= '9'; p++) {
+			any = true;
+			if (digits < 18) {
+				mantissa = mantissa * 10 + (buffer[p] - '0');
+				if (mantissa != 0) {
+					digits++;
+				}
+			} else {
+				exponent++;
+				digits++;
+			}
+		}
+		if (p < end && buffer[p] == '.') {
+			for (p++; p < end && buffer[p] >= '0' && buffer[p] <= '9'; p++) {
+				any = true;
+				if (digits < 18) {
+					mantissa = mantissa * 10 + (buffer[p] - '0');
+					exponent--;
+					if (mantissa != 0) {
+						digits++;
+					}
+				} else {
+					digits++;
+				}
+			}
+		}
+		if (any && p < end && (buffer[p] == 'e' || buffer[p] == 'E')) {
+			p++;
+			boolean negativeExponent = false;
+			if (p < end && (buffer[p] == '-' || buffer[p] == '+')) {
+				negativeExponent = buffer[p] == '-';
+				p++;
+			}
+			int e = 0;
+			boolean anyExponent = false;
+			for (; p < end && buffer[p] >= '0' && buffer[p] <= '9'; p++) {
+				anyExponent = true;
+				e = Math.min(e * 10 + (buffer[p] - '0'), 100000);
+			}
+			if (!anyExponent) {
+				throw new NumberFormatException("not a number: " + getToken(i));
+			}
+			exponent += negativeExponent ? -e : e;
+		}
+		if (!any || p != end) {
+			throw new NumberFormatException("not a number: " + getToken(i));
+		}
+		double value;
+		if (mantissa < 1L << 53 && digits <= 18 && exponent >= -22 && exponent <= 22) {
+			value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+		} else {
+			// too many digits to be sure of the rounding; rare enough to do the slow way
+			value = Math.abs(Double.parseDouble(getToken(i)));
+		}
+		if (Double.isInfinite(value)) {
+			throw new NumberFormatException("number out of range: " + getToken(i));
+		}
+		return negative ? -value : value;
+	}
+}
@@ -0,0 +1,88 @@
+import java.io.PrintStream;
+
+/**
+ * A text-only replacement for the View, used when running without a display.  Periodically prints
+ * the arm's pose and the registered Metrics to the console from its own daemon thread, so it never
+ * runs on the control thread and never loads any AWT or Swing classes.
+ */
+public class ConsoleMonitor implements Runnable {
+	// default time between reports in milliseconds
+	public static final int DEFAULT_PERIOD = 1000;
+
+	private final Arm arm;
+	private final int period;
+	private final PrintStream out;
+
+	// private copy of the arm's pose and a reused line buffer
+	private final PoseSnapshot pose = new PoseSnapshot();
+	private final double[] angles = new double[Arm.NUM_AXES];
+	private final StringBuilder line = new StringBuilder(256);
+
+	/**
+	 * Constructor - reports to System.out at the default period.
+	 *
+	 * @param arm The arm to report on
+	 */
+	public ConsoleMonitor(Arm arm) {
+		this(arm, DEFAULT_PERIOD, System.out);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param arm The arm to report on
+	 * @param period Time between reports in milliseconds
+	 * @param out Stream to print reports to
+	 */
+	public ConsoleMonitor(Arm arm, int period, PrintStream out) {
+		this.arm = arm;
+		this.period = period;
+		this.out = out;
+	}
+
+	/**
+	 * Starts reporting on a daemon thread.
+	 *
+	 * @return The reporting thread
+	 */
+	public Thread start() {
+		Thread thread = new Thread(this, "ConsoleMonitor");
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	public void run() {
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				Thread.sleep(period);
+			} catch (InterruptedException e) {
+				return;
+			}
+			report();
+		}
+	}
+
+	/**
+	 * Prints a single line with the current pose and metrics.
+	 */
+	public void report() {
+		arm.getPoseSnapshot().copyTo(pose);
+		line.setLength(0);
+		if (pose.isHandPresent()) {
+			// Convert leap coordinate system into 'Z-up' system
+			line.append("hand=(").append((long) Math.floor(pose.getHandX()))
+				.append(", ").append((long) Math.floor(pose.getHandZ()))
+				.append(", ").append((long) Math.floor(pose.getHandY()))
+				.append(") grip=").append((long) Math.floor(pose.getHandGrip())).append(' ');
+		}
+		// where the servos are estimated to be, which lags behind the commands while they move
+		arm.getEstimatedAngles(angles);
+		line.append("axes=");
+		for (int i = 0; i < PoseSnapshot.NUM_AXES; i++) {
+			line.append(i == 0 ? "" : ",").append(Math.round(angles[i]));
+		}
+		Metrics.appendTo(line);
+		out.println(line);
+	}
+}
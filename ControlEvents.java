@@ -0,0 +1,178 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * JDK Flight Recorder events for the control loop, so that a recording can line up a slow frame or a
+ * late motion step with the garbage collections, safepoints and thread scheduling around it.
+ * robot-arm.jfc turns them on, on top of the JDK's own settings:
+ *
+ * java -XX:StartFlightRecording:settings=default,settings=robot-arm.jfc,filename=arm.jfr Main ...
+ *
+ * Each event has a matching EventType here.  Callers check it is enabled before creating an event,
+ * so when nothing is recording an event costs one field read and the control path still never
+ * allocates.
+ */
+public class ControlEvents {
+	public static final EventType LEAP_FRAME = EventType.getEventType(LeapFrame.class);
+	public static final EventType GRIP_CONTROL = EventType.getEventType(GripControl.class);
+	public static final EventType SOLVE = EventType.getEventType(Solve.class);
+	public static final EventType SAFETY_REJECT = EventType.getEventType(SafetyReject.class);
+	public static final EventType SERIAL_WRITE = EventType.getEventType(SerialWrite.class);
+	public static final EventType MOTION_OVERRUN = EventType.getEventType(MotionOverrun.class);
+
+	// a motion step has to be this much later than planned to count as an overrun, since sleeps
+	// always run a little long
+	public static final long OVERRUN_SLACK_NANOS = 2000000;
+
+	private ControlEvents() {
+	}
+
+	@Name("robot.LeapFrame")
+	@Label("Leap Frame")
+	@Category({"Robot Arm", "Control"})
+	@Description("A hand sample taken in, from mapping to the command sent")
+	@StackTrace(false)
+	public static class LeapFrame extends Event {
+		@Label("Leap X")
+		public double leapX;
+		@Label("Leap Y")
+		public double leapY;
+		@Label("Leap Z")
+		public double leapZ;
+		@Label("Sphere Radius")
+		public double grip;
+	}
+
+	@Name("robot.GripControl")
+	@Label("Grip Control")
+	@Category({"Robot Arm", "Control"})
+	@Description("Stepping the grip angle toward a separation")
+	@StackTrace(false)
+	public static class GripControl extends Event {
+		@Label("Target Separation")
+		@Description("In cm")
+		public double targetSeparation;
+		@Label("Start Angle")
+		public double startAngle;
+		@Label("End Angle")
+		public double endAngle;
+	}
+
+	@Name("robot.Solve")
+	@Label("Inverse Kinematics Solve")
+	@Category({"Robot Arm", "Control"})
+	@Description("Solving a target for axis angles, through the solution cache")
+	@StackTrace(false)
+	public static class Solve extends Event {
+		@Label("X")
+		public double x;
+		@Label("Y")
+		public double y;
+		@Label("Z")
+		public double z;
+		@Label("Pitch")
+		public double pitch;
+		@Label("Cached")
+		@Description("Whether the solution came from the cache")
+		public boolean cached;
+		@Label("Safe")
+		@Description("Whether the angles are within the axis ranges")
+		public boolean safe;
+	}
+
+	@Name("robot.SafetyReject")
+	@Label("Safety Reject")
+	@Category({"Robot Arm", "Safety"})
+	@Description("A target or command that was not sent to the arm")
+	public static class SafetyReject extends Event {
+		@Label("Reason")
+		public String reason;
+		@Label("Base")
+		public double base;
+		@Label("Shoulder")
+		public double shoulder;
+		@Label("Elbow")
+		public double elbow;
+		@Label("Wrist")
+		public double wrist;
+		@Label("Grip")
+		@Description("NaN if the grip was not part of it")
+		public double grip;
+	}
+
+	@Name("robot.SerialWrite")
+	@Label("Serial Write")
+	@Category({"Robot Arm", "Serial"})
+	@Description("Writing and flushing a packet to the Arduino")
+	@StackTrace(false)
+	public static class SerialWrite extends Event {
+		@Label("Bytes")
+		public int bytes;
+		@Label("Flush Duration")
+		@Timespan(Timespan.NANOSECONDS)
+		public long flushDuration;
+	}
+
+	@Name("robot.MotionOverrun")
+	@Label("Motion Step Overrun")
+	@Category({"Robot Arm", "Motion"})
+	@Description("A step of a timed move that took longer than planned")
+	@StackTrace(false)
+	public static class MotionOverrun extends Event {
+		@Label("Step")
+		public int step;
+		@Label("Planned")
+		@Timespan(Timespan.NANOSECONDS)
+		public long planned;
+		@Label("Overrun")
+		@Timespan(Timespan.NANOSECONDS)
+		public long overrun;
+	}
+
+	/**
+	 * Records a rejected target or command, if SafetyReject events are being recorded.
+	 *
+	 * @param reason Why it was rejected; should be a constant, so nothing is allocated
+	 * @param angles The angles, either the first four axes or all five
+	 */
+	public static void safetyReject(String reason, double[] angles) {
+		if (!SAFETY_REJECT.isEnabled()) {
+			return;
+		}
+		SafetyReject event = new SafetyReject();
+		event.reason = reason;
+		event.base = angles[Arm.BASE];
+		event.shoulder = angles[Arm.SHOULDER];
+		event.elbow = angles[Arm.ELBOW];
+		event.wrist = angles[Arm.WRIST];
+		event.grip = angles.length > Arm.GRIP ? angles[Arm.GRIP] : Double.NaN;
+		event.commit();
+	}
+
+	/**
+	 * Records a motion step that ran late, if it is later than OVERRUN_SLACK_NANOS and MotionOverrun
+	 * events are being recorded.
+	 *
+	 * @param step Number of the step in its move
+	 * @param start When the step started, in ns on the arm's clock
+	 * @param end When the step finished, on the same clock
+	 * @param planned How long the step should have taken, in nanoseconds
+	 */
+	public static void motionStep(int step, long start, long end, long planned) {
+		long overrun = end - start - planned;
+		if (overrun <= OVERRUN_SLACK_NANOS || !MOTION_OVERRUN.isEnabled()) {
+			return;
+		}
+		MotionOverrun event = new MotionOverrun();
+		event.step = step;
+		event.planned = planned;
+		event.overrun = overrun;
+		event.commit();
+	}
+}
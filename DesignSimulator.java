@@ -0,0 +1,447 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Tries out arm designs before they are built.  Every combination of the segment lengths and axis
+ * ranges given is made into a Kinematics model of its own, and each model is scored with the same
+ * kinematics and planning code the real arm uses:
+ *
+ *   coverage  - fraction of a grid of targets over the board that the grip tip can reach, within the
+ *               axis ranges and clear of the board, at one or more of the pitches tried
+ *   dexterity - fraction of all the target and pitch pairs that can be reached
+ *   time      - for each cell layout (a list of pick-and-place jobs), the time the TaskPlanner's
+ *               trajectories for all its jobs take, one after another from the arm's start pose
+ *
+ * Designs are spread across a ForkJoinPool, then ranked: designs that can do every job first, then by
+ * total time (or coverage, with -sort=coverage).  The arm as built is always included and marked *.
+ *
+ * java DesignSimulator [options]
+ *
+ *   -segment1=MIN:MAX:STEP, -segment2=MIN:MAX:STEP  Segment lengths to try, in cm (default 13:17:1
+ *               and 10:14:1).
+ *   -base=, -shoulder=, -elbow=, -wrist=LOW:HIGH[,LOW:HIGH...]  Ranges to try for each axis, in degrees
+ *               (default only the arm's own, except -shoulder=45:135,30:150 and -elbow=-140:0,-160:0).
+ *   -x=MIN:MAX, -y=MIN:MAX, -z=MIN:MAX  Extent of the coverage grid in cm (default -25:25, 0:35, -7:12).
+ *   -step=CM    Spacing of the coverage grid (default 2).
+ *   -pitch=MIN:MAX:STEP  Pitches tried at every target (default -90:0:30).
+ *   -layout=NAME  A cell layout: stack or unstack (Arm.stackBlocks and unstackBlocks), or a file with one
+ *               job per line: job PICKX PICKY PICKZ PLACEX PLACEY PLACEZ PITCH APPROACH.  Can be given
+ *               more than once (default stack and unstack).
+ *   -sort=time|coverage  What to rank by (default time).
+ *   -top=N      Number of designs to list (default 20).
+ *   -csv=FILE   Also write every design's results to FILE.
+ */
+public class DesignSimulator {
+	private static final int NUM_AXES = Arm.NUM_AXES;
+
+	// the arm as built: segment lengths from the built-in calibration, and the axis ranges it starts with
+	private static final double[][] ARM_RANGES = Arm.defaultAxisRanges();
+	// where the arm starts
+	private static final double[] START_POSE = Arm.startAngles();
+	// grip separation used for the coverage grid, the same as PickPlaceJob's open grip
+	private static final double OPEN_SEPARATION = 4;
+
+	// design space
+	private double[] segment1Lengths = KinematicsSweep.values(13, 17, 1);
+	private double[] segment2Lengths = KinematicsSweep.values(10, 14, 1);
+	private final double[][][] axisRanges = {
+		{ARM_RANGES[Arm.BASE]},
+		{ARM_RANGES[Arm.SHOULDER], {30, 150}},
+		{ARM_RANGES[Arm.ELBOW], {-160, 0}},
+		{ARM_RANGES[Arm.WRIST]},
+		{ARM_RANGES[Arm.GRIP]}
+	};
+
+	// coverage grid
+	private double[] xs = KinematicsSweep.values(-25, 25, 2);
+	private double[] ys = KinematicsSweep.values(0, 35, 2);
+	private double[] zs = KinematicsSweep.values(-7, 12, 2);
+	private double[] pitches = KinematicsSweep.values(-90, 0, 30);
+
+	private final List<String> layoutNames = new ArrayList<String>();
+	private final List<List<PickPlaceJob>> layouts = new ArrayList<List<PickPlaceJob>>();
+
+	public static void main(String[] args) throws IOException {
+		DesignSimulator simulator = new DesignSimulator();
+		double[] x = {-25, 25};
+		double[] y = {0, 35};
+		double[] z = {-7, 12};
+		double step = 2;
+		boolean byCoverage = false;
+		int top = 20;
+		String csv = null;
+		for (String arg : args) {
+			if (arg.startsWith("-segment1=")) {
+				double[] range = KinematicsSweep.range(arg.substring(10));
+				simulator.segment1Lengths = KinematicsSweep.values(range[0], range[1], range.length > 2 ? range[2] : 1);
+			} else if (arg.startsWith("-segment2=")) {
+				double[] range = KinematicsSweep.range(arg.substring(10));
+				simulator.segment2Lengths = KinematicsSweep.values(range[0], range[1], range.length > 2 ? range[2] : 1);
+			} else if (arg.startsWith("-base=")) {
+				simulator.axisRanges[Arm.BASE] = axisRanges(arg.substring(6));
+			} else if (arg.startsWith("-shoulder=")) {
+				simulator.axisRanges[Arm.SHOULDER] = axisRanges(arg.substring(10));
+			} else if (arg.startsWith("-elbow=")) {
+				simulator.axisRanges[Arm.ELBOW] = axisRanges(arg.substring(7));
+			} else if (arg.startsWith("-wrist=")) {
+				simulator.axisRanges[Arm.WRIST] = axisRanges(arg.substring(7));
+			} else if (arg.startsWith("-x=")) {
+				x = KinematicsSweep.range(arg.substring(3));
+			} else if (arg.startsWith("-y=")) {
+				y = KinematicsSweep.range(arg.substring(3));
+			} else if (arg.startsWith("-z=")) {
+				z = KinematicsSweep.range(arg.substring(3));
+			} else if (arg.startsWith("-step=")) {
+				step = Double.parseDouble(arg.substring(6));
+			} else if (arg.startsWith("-pitch=")) {
+				double[] pitch = KinematicsSweep.range(arg.substring(7));
+				simulator.pitches = KinematicsSweep.values(pitch[0], pitch[1], pitch.length > 2 ? pitch[2] : 1);
+			} else if (arg.startsWith("-layout=")) {
+				simulator.addLayout(arg.substring(8));
+			} else if (arg.startsWith("-sort=")) {
+				byCoverage = arg.substring(6).equals("coverage");
+			} else if (arg.startsWith("-top=")) {
+				top = Integer.parseInt(arg.substring(5));
+			} else if (arg.startsWith("-csv=")) {
+				csv = arg.substring(5);
+			} else {
+				Utility.error("unrecognized option: %s%n", arg);
+			}
+		}
+		simulator.xs = KinematicsSweep.values(x[0], x[1], step);
+		simulator.ys = KinematicsSweep.values(y[0], y[1], step);
+		simulator.zs = KinematicsSweep.values(z[0], z[1], step);
+		if (simulator.layouts.isEmpty()) {
+			simulator.addLayout("stack");
+			simulator.addLayout("unstack");
+		}
+
+		Design[] designs = simulator.designs();
+		long start = System.nanoTime();
+		ForkJoinPool pool = ForkJoinPool.commonPool();
+		pool.invoke(simulator.new Evaluate(designs, 0, designs.length));
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("%d designs, %d targets at %d pitches, %d layouts: evaluated in %.2f s on %d threads (%.1f designs/s)%n",
+				designs.length, simulator.xs.length * simulator.ys.length * simulator.zs.length, simulator.pitches.length,
+				simulator.layouts.size(), seconds, pool.getParallelism(), designs.length / seconds);
+
+		Arrays.sort(designs, byCoverage ? BY_COVERAGE : BY_TIME);
+		simulator.report(designs, top);
+		if (csv != null) {
+			simulator.writeCsv(designs, new File(csv));
+		}
+	}
+
+	/**
+	 * Parses LOW:HIGH[,LOW:HIGH...].
+	 */
+	private static double[][] axisRanges(String text) {
+		String[] choices = text.split(",");
+		double[][] ranges = new double[choices.length][];
+		for (int i = 0; i < choices.length; i++) {
+			ranges[i] = KinematicsSweep.range(choices[i]);
+			if (ranges[i].length != 2 || !(ranges[i][0] < ranges[i][1]))
+				throw new IllegalArgumentException("expected LOW:HIGH: " + choices[i]);
+		}
+		return ranges;
+	}
+
+	/**
+	 * Adds a cell layout: stack, unstack, or the name of a job file.
+	 *
+	 * @param name The layout
+	 * @throws IOException if the file cannot be read or a line is malformed
+	 */
+	public void addLayout(String name) throws IOException {
+		if (name.equals("stack")) {
+			layouts.add(Arm.stackBlocksJobs());
+		} else if (name.equals("unstack")) {
+			layouts.add(Arm.unstackBlocksJobs());
+		} else {
+			layouts.add(loadJobs(new File(name)));
+		}
+		layoutNames.add(name);
+	}
+
+	/**
+	 * Loads pick-and-place jobs, one per line: job PICKX PICKY PICKZ PLACEX PLACEY PLACEZ PITCH APPROACH.
+	 * Blank lines and lines starting with # are ignored.
+	 */
+	static List<PickPlaceJob> loadJobs(File file) throws IOException {
+		List<PickPlaceJob> jobs = new ArrayList<PickPlaceJob>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			int lineNumber = 0;
+			while ((line = in.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				String[] fields = line.split("\\s+");
+				if (fields.length != 9 || !fields[0].equals("job"))
+					throw new IOException(file + ":" + lineNumber + ": expected job, pick and place points, pitch and approach height");
+				try {
+					double[] numbers = new double[8];
+					for (int i = 0; i < 8; i++)
+						numbers[i] = Double.parseDouble(fields[i + 1]);
+					jobs.add(new PickPlaceJob(new double[] {numbers[0], numbers[1], numbers[2]},
+							new double[] {numbers[3], numbers[4], numbers[5]}, numbers[6], numbers[7]));
+				} catch (NumberFormatException e) {
+					throw new IOException(file + ":" + lineNumber + ": " + e.getMessage());
+				}
+			}
+		} finally {
+			in.close();
+		}
+		if (jobs.isEmpty())
+			throw new IOException(file + ": no jobs");
+		return jobs;
+	}
+
+	/**
+	 * @return Every combination of the segment lengths and axis ranges, plus the arm as built if it isn't one of them
+	 */
+	Design[] designs() {
+		List<Design> designs = new ArrayList<Design>();
+		int[] choice = new int[NUM_AXES];
+		boolean foundArm = false;
+		for (double segment1 : segment1Lengths) {
+			for (double segment2 : segment2Lengths) {
+				Arrays.fill(choice, 0);
+				while (true) {
+					double[][] ranges = new double[NUM_AXES][];
+					for (int axis = 0; axis < NUM_AXES; axis++)
+						ranges[axis] = axisRanges[axis][choice[axis]].clone();
+					Design design = new Design(segment1, segment2, ranges, layouts.size());
+					foundArm |= design.current;
+					designs.add(design);
+					// next combination of ranges, like counting
+					int axis = 0;
+					while (axis < NUM_AXES && ++choice[axis] == axisRanges[axis].length) {
+						choice[axis] = 0;
+						axis++;
+					}
+					if (axis == NUM_AXES)
+						break;
+				}
+			}
+		}
+		if (!foundArm) {
+			Calibration calibration = Arm.defaultCalibration();
+			designs.add(new Design(calibration.getSegment1Length(), calibration.getSegment2Length(), ARM_RANGES, layouts.size()));
+		}
+		return designs.toArray(new Design[designs.size()]);
+	}
+
+	/**
+	 * One arm design and its scores.
+	 */
+	static class Design {
+		final double segment1;
+		final double segment2;
+		final double[][] ranges;
+		// whether this is the arm as built
+		final boolean current;
+
+		double coverage;
+		double dexterity;
+		// time for each layout in seconds, NaN if any of its jobs couldn't be planned
+		final double[] layoutTimes;
+		int failedJobs;
+		double totalTime;
+
+		Design(double segment1, double segment2, double[][] ranges, int layouts) {
+			this.segment1 = segment1;
+			this.segment2 = segment2;
+			this.ranges = ranges;
+			this.layoutTimes = new double[layouts];
+			Calibration calibration = Arm.defaultCalibration();
+			boolean current = segment1 == calibration.getSegment1Length() && segment2 == calibration.getSegment2Length();
+			for (int axis = 0; axis < NUM_AXES; axis++)
+				current &= Arrays.equals(ranges[axis], ARM_RANGES[axis]);
+			this.current = current;
+		}
+	}
+
+	// designs that can do every job first, then the fastest, then the best coverage and dexterity
+	static final Comparator<Design> BY_TIME = new Comparator<Design>() {
+		public int compare(Design a, Design b) {
+			if (a.failedJobs != b.failedJobs)
+				return Integer.compare(a.failedJobs, b.failedJobs);
+			if (a.totalTime != b.totalTime)
+				return Double.compare(a.totalTime, b.totalTime);
+			if (a.coverage != b.coverage)
+				return Double.compare(b.coverage, a.coverage);
+			return Double.compare(b.dexterity, a.dexterity);
+		}
+	};
+
+	// designs that can do every job first, then the best coverage, then the fastest and most dexterous
+	static final Comparator<Design> BY_COVERAGE = new Comparator<Design>() {
+		public int compare(Design a, Design b) {
+			if (a.failedJobs != b.failedJobs)
+				return Integer.compare(a.failedJobs, b.failedJobs);
+			if (a.coverage != b.coverage)
+				return Double.compare(b.coverage, a.coverage);
+			if (a.totalTime != b.totalTime)
+				return Double.compare(a.totalTime, b.totalTime);
+			return Double.compare(b.dexterity, a.dexterity);
+		}
+	};
+
+	/**
+	 * Scores one design.  Uses only objects of its own, so designs can be scored on any number of
+	 * threads at once.
+	 */
+	void evaluate(Design design) {
+		Kinematics kinematics = new Kinematics(design.segment1, design.segment2, design.ranges);
+		Workspace workspace = new Workspace(kinematics);
+		GripInfo gripInfo = new GripInfo();
+
+		// coverage, with the grip open
+		double gripAngle = kinematics.findGripAngle(OPEN_SEPARATION, gripInfo);
+		kinematics.getGripInfo(Double.isNaN(gripAngle) ? design.ranges[Arm.GRIP][1] : gripAngle, gripInfo);
+		double gripLength = gripInfo.gripLength;
+		double[] angles = new double[NUM_AXES - 1];
+		long reached = 0;
+		long reachedPitches = 0;
+		for (double x : xs) {
+			for (double y : ys) {
+				for (double z : zs) {
+					boolean any = false;
+					for (double pitch : pitches) {
+						kinematics.findAnglesConstantPitch(x, y, z, gripLength, pitch, angles);
+						if (kinematics.safetyCheckAxisAngles(angles) && workspace.isFree(angles, gripLength)) {
+							any = true;
+							reachedPitches++;
+						}
+					}
+					if (any)
+						reached++;
+				}
+			}
+		}
+		long targets = (long) xs.length * ys.length * zs.length;
+		design.coverage = (double) reached / targets;
+		design.dexterity = (double) reachedPitches / (targets * pitches.length);
+
+		// task time, each layout from the start pose, clamped into this design's ranges
+		TaskPlanner planner = new TaskPlanner(kinematics, workspace.getGroundHeight());
+		planner.setVerbose(false);
+		double[] pose = new double[NUM_AXES];
+		design.totalTime = 0;
+		for (int i = 0; i < layouts.size(); i++) {
+			for (int axis = 0; axis < NUM_AXES; axis++)
+				pose[axis] = Math.max(design.ranges[axis][0], Math.min(design.ranges[axis][1], START_POSE[axis]));
+			double time = 0;
+			for (PickPlaceJob job : layouts.get(i)) {
+				Trajectory trajectory = planner.plan(job, pose);
+				if (trajectory == null) {
+					design.failedJobs++;
+					time = Double.NaN;
+					continue;
+				}
+				time += trajectory.getDuration();
+				trajectory.getWaypoint(trajectory.size() - 1, pose);
+			}
+			design.layoutTimes[i] = time;
+			design.totalTime += Double.isNaN(time) ? Double.POSITIVE_INFINITY : time;
+		}
+	}
+
+	/**
+	 * Scores the designs from first to last - 1, halving until one design is left.
+	 */
+	private class Evaluate extends RecursiveAction {
+		private final Design[] designs;
+		private final int first;
+		private final int last;
+
+		Evaluate(Design[] designs, int first, int last) {
+			this.designs = designs;
+			this.first = first;
+			this.last = last;
+		}
+
+		protected void compute() {
+			if (last - first > 1) {
+				int middle = (first + last) >>> 1;
+				invokeAll(new Evaluate(designs, first, middle), new Evaluate(designs, middle, last));
+			} else if (last > first) {
+				evaluate(designs[first]);
+			}
+		}
+	}
+
+	/**
+	 * Prints the best designs, and where the arm as built ranks.
+	 */
+	void report(Design[] ranked, int top) {
+		StringBuilder header = new StringBuilder();
+		header.append(String.format("%5s  %5s %5s  %-9s %-9s %-9s %-9s  %8s %9s", "rank", "seg1", "seg2",
+				"base", "shoulder", "elbow", "wrist", "coverage", "dexterity"));
+		for (String name : layoutNames)
+			header.append(String.format(" %9s", shorten(name)));
+		header.append(String.format(" %9s", "total s"));
+		System.out.println(header);
+		for (int i = 0; i < ranked.length; i++) {
+			if (i < top || ranked[i].current)
+				System.out.println(row(i + 1, ranked[i]));
+		}
+	}
+
+	private String row(int rank, Design design) {
+		StringBuilder line = new StringBuilder();
+		line.append(String.format("%4d%s  %5.2f %5.2f ", rank, design.current ? "*" : " ", design.segment1, design.segment2));
+		for (int axis = 0; axis < NUM_AXES - 1; axis++)
+			line.append(String.format(" %-9s", (int) design.ranges[axis][0] + ":" + (int) design.ranges[axis][1]));
+		line.append(String.format("  %7.1f%% %8.1f%%", 100 * design.coverage, 100 * design.dexterity));
+		for (double time : design.layoutTimes)
+			line.append(Double.isNaN(time) ? String.format(" %9s", "fails") : String.format(" %9.2f", time));
+		line.append(design.failedJobs > 0 ? String.format(" %9s", design.failedJobs + " fail") : String.format(" %9.2f", design.totalTime));
+		return line.toString();
+	}
+
+	private static String shorten(String name) {
+		String base = new File(name).getName();
+		return base.length() > 9 ? base.substring(0, 9) : base;
+	}
+
+	/**
+	 * Writes every design's results as comma separated values, in ranked order.
+	 */
+	void writeCsv(Design[] ranked, File file) throws IOException {
+		PrintWriter out = new PrintWriter(file);
+		try {
+			out.print("rank,current,segment1,segment2");
+			for (Axis axis : Axis.values())
+				out.print("," + axis.axisName + "Min," + axis.axisName + "Max");
+			out.print(",coverage,dexterity,failedJobs");
+			for (String name : layoutNames)
+				out.print("," + new File(name).getName() + "Seconds");
+			out.println(",totalSeconds");
+			for (int i = 0; i < ranked.length; i++) {
+				Design design = ranked[i];
+				out.print((i + 1) + "," + design.current + "," + design.segment1 + "," + design.segment2);
+				for (int axis = 0; axis < NUM_AXES; axis++)
+					out.print("," + design.ranges[axis][0] + "," + design.ranges[axis][1]);
+				out.print("," + design.coverage + "," + design.dexterity + "," + design.failedJobs);
+				for (double time : design.layoutTimes)
+					out.print("," + (Double.isNaN(time) ? "" : Double.toString(time)));
+				out.println("," + (design.failedJobs > 0 ? "" : Double.toString(design.totalTime)));
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,225 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An always-on recorder for everything the arm is told to do.  Each hand sample, inverse kinematics
+ * result (with its safety check outcome), commanded pose and serial packet is appended as a fixed
+ * size binary record to a ring buffer in a memory-mapped file.  The file survives a crash or restart
+ * of the program, and FlightRecorderDump exports a window of it to CSV.
+ *
+ * Appending claims a slot with a single atomic increment and writes the record straight into the
+ * mapped file, so it never locks, never allocates and never makes a system call.  Any thread may
+ * append.
+ *
+ * File layout (little endian):
+ *   header, HEADER_SIZE bytes: int magic, int version, int capacity (records), int record size,
+ *                              long next sequence number
+ *   capacity records, RECORD_SIZE bytes each:
+ *     long sequence + 1 (0 while the slot is empty or being written; a reader that sees the same
+ *          non-zero value before and after reading the rest of the record has a complete record)
+ *     long timestamp, nanoseconds since the epoch
+ *     int type (HAND, SOLVE, COMMAND or SERIAL), int flags
+ *     MAX_VALUES doubles of data, depending on the type
+ */
+public class FlightRecorder {
+	public static final int MAGIC = 0x41524D52;	// "ARMR"
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 64;
+	public static final int RECORD_SIZE = 64;
+	public static final int MAX_VALUES = 5;
+	public static final int DEFAULT_CAPACITY = 65536;	// 4 MiB of records
+
+	// header offsets
+	static final int MAGIC_OFFSET = 0;
+	static final int VERSION_OFFSET = 4;
+	static final int CAPACITY_OFFSET = 8;
+	static final int RECORD_SIZE_OFFSET = 12;
+	static final int NEXT_SEQUENCE_OFFSET = 16;
+
+	// record offsets
+	static final int SEQUENCE_OFFSET = 0;
+	static final int TIME_OFFSET = 8;
+	static final int TYPE_OFFSET = 16;
+	static final int FLAGS_OFFSET = 20;
+	static final int VALUES_OFFSET = 24;
+
+	// record types
+	/** Leap hand sample: x, y, z, sphere radius (Leap coordinates) */
+	public static final int HAND = 1;
+	/** Inverse kinematics result: base, shoulder, elbow, wrist.  Flags are 1 if it passed the safety check. */
+	public static final int SOLVE = 2;
+	/** Axis angles sent to the arm: base, shoulder, elbow, wrist, grip */
+	public static final int COMMAND = 3;
+	/** Exact bytes written to the serial port, one per value */
+	public static final int SERIAL = 4;
+
+	// atomic access to the longs in the mapped file, for FlightRecorderDump too
+	static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+	private final MappedByteBuffer buffer;
+	private final int capacity;
+	private final AtomicLong nextSequence;
+
+	// converts System.nanoTime into nanoseconds since the epoch
+	private final long epochOffset;
+
+	private FlightRecorder(MappedByteBuffer buffer, int capacity, long nextSequence) {
+		this.buffer = buffer;
+		this.capacity = capacity;
+		this.nextSequence = new AtomicLong(nextSequence);
+		this.epochOffset = System.currentTimeMillis() * 1000000L - System.nanoTime();
+	}
+
+	/**
+	 * Opens (or creates) a recording file.  If the file already holds a recording with the same
+	 * capacity, new records continue after the existing ones so that nothing recorded before a
+	 * restart is lost until the ring wraps around.
+	 *
+	 * @param file The recording file
+	 * @param capacity Number of records kept in the ring
+	 * @return The recorder
+	 * @throws IOException if the file cannot be mapped
+	 */
+	public static FlightRecorder open(File file, int capacity) throws IOException {
+		long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			boolean reuse = raf.length() == size;
+			raf.setLength(size);
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			long next = 0;
+			if (reuse && buffer.getInt(MAGIC_OFFSET) == MAGIC && buffer.getInt(CAPACITY_OFFSET) == capacity) {
+				// continue after the newest record in the file
+				for (int i = 0; i < capacity; i++) {
+					next = Math.max(next, buffer.getLong(HEADER_SIZE + i * RECORD_SIZE + SEQUENCE_OFFSET));
+				}
+			} else {
+				for (int i = 0; i < capacity; i++) {
+					buffer.putLong(HEADER_SIZE + i * RECORD_SIZE + SEQUENCE_OFFSET, 0);
+				}
+			}
+			buffer.putInt(MAGIC_OFFSET, MAGIC);
+			buffer.putInt(VERSION_OFFSET, VERSION);
+			buffer.putInt(CAPACITY_OFFSET, capacity);
+			buffer.putInt(RECORD_SIZE_OFFSET, RECORD_SIZE);
+			buffer.putLong(NEXT_SEQUENCE_OFFSET, next);
+			return new FlightRecorder(buffer, capacity, next);
+		} finally {
+			// the mapping stays valid after the file is closed
+			raf.close();
+		}
+	}
+
+	/**
+	 * Records a Leap hand sample.
+	 */
+	public void recordHand(double x, double y, double z, double grip) {
+		long sequence = begin(HAND, 0);
+		int base = offset(sequence);
+		putValue(base, 0, x);
+		putValue(base, 1, y);
+		putValue(base, 2, z);
+		putValue(base, 3, grip);
+		end(sequence);
+	}
+
+	/**
+	 * Records the result of an inverse kinematics solve and whether it passed the safety check.
+	 *
+	 * @param angles Base, shoulder, elbow and wrist angles
+	 * @param safe Outcome of the safety check
+	 */
+	public void recordSolve(double[] angles, boolean safe) {
+		long sequence = begin(SOLVE, safe ? 1 : 0);
+		putValues(offset(sequence), angles, Math.min(angles.length, MAX_VALUES));
+		end(sequence);
+	}
+
+	/**
+	 * Records the axis angles being sent to the arm.
+	 *
+	 * @param angles All five axis angles
+	 */
+	public void recordCommand(double[] angles) {
+		long sequence = begin(COMMAND, 0);
+		putValues(offset(sequence), angles, Math.min(angles.length, MAX_VALUES));
+		end(sequence);
+	}
+
+	/**
+	 * Records the exact bytes of a serial packet.
+	 *
+	 * @param bytes The packet, at most MAX_VALUES bytes
+	 */
+	public void recordSerial(byte[] bytes) {
+		int length = Math.min(bytes.length, MAX_VALUES);
+		long sequence = begin(SERIAL, length);
+		int base = offset(sequence);
+		for (int i = 0; i < length; i++) {
+			putValue(base, i, bytes[i]);
+		}
+		end(sequence);
+	}
+
+	/**
+	 * Claims the next slot and writes the record header.  Returns the sequence number of the record.
+	 */
+	private long begin(int type, int flags) {
+		long sequence = nextSequence.getAndIncrement();
+		int base = offset(sequence);
+		// mark the slot as being written before touching its contents
+		LONGS.setOpaque(buffer, base + SEQUENCE_OFFSET, 0L);
+		VarHandle.storeStoreFence();
+		buffer.putLong(base + TIME_OFFSET, epochOffset + System.nanoTime());
+		buffer.putInt(base + TYPE_OFFSET, type);
+		buffer.putInt(base + FLAGS_OFFSET, flags);
+		return sequence;
+	}
+
+	/**
+	 * Publishes a record written since begin().
+	 */
+	private void end(long sequence) {
+		LONGS.setRelease(buffer, offset(sequence) + SEQUENCE_OFFSET, sequence + 1);
+		// records can be finished out of order by different threads, so the header only ever goes up
+		long next = (long) LONGS.getOpaque(buffer, NEXT_SEQUENCE_OFFSET);
+		while (next < sequence + 1 && !LONGS.weakCompareAndSet(buffer, NEXT_SEQUENCE_OFFSET, next, sequence + 1)) {
+			next = (long) LONGS.getOpaque(buffer, NEXT_SEQUENCE_OFFSET);
+		}
+	}
+
+	private int offset(long sequence) {
+		return HEADER_SIZE + (int) (sequence % capacity) * RECORD_SIZE;
+	}
+
+	private void putValue(int base, int i, double value) {
+		buffer.putDouble(base + VALUES_OFFSET + i * 8, value);
+	}
+
+	private void putValues(int base, double[] values, int count) {
+		for (int i = 0; i < count; i++) {
+			putValue(base, i, values[i]);
+		}
+	}
+
+	/**
+	 * Writes everything recorded so far out to the storage device.  Not needed to survive a crash of
+	 * the program, only of the whole machine.
+	 */
+	public void force() {
+		buffer.force();
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+}
@@ -0,0 +1,131 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Exports records from a FlightRecorder file to CSV, oldest first.  Can be run while the arm is still
+ * recording into the file: a record whose slot is being written, before or while it is read, is left
+ * out.
+ *
+ * java FlightRecorderDump <file> [seconds]
+ *
+ * With a number of seconds, only the records from that long before the newest record are exported.
+ * Columns: sequence, time (ms since the epoch), type, flags, then up to five values:
+ *   hand    - Leap x, y, z, sphere radius
+ *   solve   - base, shoulder, elbow, wrist (flags = 1 if it passed the safety check)
+ *   command - base, shoulder, elbow, wrist, grip
+ *   serial  - the bytes sent, as signed values (flags = number of bytes)
+ */
+public class FlightRecorderDump {
+	private static final String[] TYPE_NAMES = {"unknown", "hand", "solve", "command", "serial"};
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.out.println("usage: java FlightRecorderDump <file> [seconds]");
+			return;
+		}
+		double seconds = args.length > 1 ? Double.parseDouble(args[1]) : Double.POSITIVE_INFINITY;
+		dump(new File(args[0]), seconds, System.out);
+	}
+
+	/**
+	 * Writes the records from the given window to CSV.
+	 *
+	 * @param file The recording file
+	 * @param seconds Length of the window, ending at the newest record
+	 * @param out Stream to write to
+	 * @throws IOException if the file cannot be read or is not a recording
+	 */
+	public static void dump(File file, double seconds, PrintStream out) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		ByteBuffer buffer;
+		try {
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		if (buffer.getInt(FlightRecorder.MAGIC_OFFSET) != FlightRecorder.MAGIC) {
+			throw new IOException(file + " is not a flight recording");
+		}
+		int capacity = buffer.getInt(FlightRecorder.CAPACITY_OFFSET);
+		int recordSize = buffer.getInt(FlightRecorder.RECORD_SIZE_OFFSET);
+
+		// collect the slots that hold a complete record, in sequence order
+		long[] sequences = new long[capacity];
+		int[] slots = new int[capacity];
+		int count = 0;
+		long newest = Long.MIN_VALUE;
+		for (int i = 0; i < capacity; i++) {
+			int base = FlightRecorder.HEADER_SIZE + i * recordSize;
+			long sequence = (long) FlightRecorder.LONGS.getAcquire(buffer, base + FlightRecorder.SEQUENCE_OFFSET);
+			if (sequence == 0) {
+				continue;
+			}
+			long time = buffer.getLong(base + FlightRecorder.TIME_OFFSET);
+			if (!unchanged(buffer, base, sequence)) {
+				continue;
+			}
+			sequences[count] = sequence * capacity + i;	// sorts by sequence, remembers the slot
+			count++;
+			newest = Math.max(newest, time);
+		}
+		Arrays.sort(sequences, 0, count);
+		for (int i = 0; i < count; i++) {
+			slots[i] = (int) (sequences[i] % capacity);
+		}
+		long start = Double.isInfinite(seconds) ? Long.MIN_VALUE : newest - (long) (seconds * 1e9);
+
+		out.println("sequence,time_ms,type,flags,v0,v1,v2,v3,v4");
+		StringBuilder line = new StringBuilder(128);
+		for (int i = 0; i < count; i++) {
+			int base = FlightRecorder.HEADER_SIZE + slots[i] * recordSize;
+			long sequence = sequences[i] / capacity;
+			if ((long) FlightRecorder.LONGS.getAcquire(buffer, base + FlightRecorder.SEQUENCE_OFFSET) != sequence) {
+				continue;	// overwritten since it was collected
+			}
+			long time = buffer.getLong(base + FlightRecorder.TIME_OFFSET);
+			if (time < start) {
+				continue;
+			}
+			int type = buffer.getInt(base + FlightRecorder.TYPE_OFFSET);
+			int flags = buffer.getInt(base + FlightRecorder.FLAGS_OFFSET);
+			int values = type == FlightRecorder.SERIAL ? flags : type == FlightRecorder.HAND || type == FlightRecorder.SOLVE ? 4 : FlightRecorder.MAX_VALUES;
+
+			line.setLength(0);
+			line.append(sequence - 1).append(',');
+			line.append(time / 1000000).append('.').append(String.format("%06d", time % 1000000)).append(',');
+			line.append(type > 0 && type < TYPE_NAMES.length ? TYPE_NAMES[type] : TYPE_NAMES[0]).append(',');
+			line.append(flags);
+			for (int v = 0; v < FlightRecorder.MAX_VALUES; v++) {
+				line.append(',');
+				if (v < values) {
+					double value = buffer.getDouble(base + FlightRecorder.VALUES_OFFSET + v * 8);
+					if (type == FlightRecorder.SERIAL)
+						line.append((int) value);
+					else
+						line.append(value);
+				}
+			}
+			if (unchanged(buffer, base, sequence)) {
+				out.println(line);
+			}
+		}
+	}
+
+	/**
+	 * Checks that a record read since its sequence number was seen wasn't being written meanwhile.
+	 * The recorder zeroes the sequence number before it writes anything else, so a record that was
+	 * (or still is) being rewritten has a different one by now.
+	 */
+	private static boolean unchanged(ByteBuffer buffer, int base, long sequence) {
+		VarHandle.loadLoadFence();
+		return (long) FlightRecorder.LONGS.getOpaque(buffer, base + FlightRecorder.SEQUENCE_OFFSET) == sequence;
+	}
+}
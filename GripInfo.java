@@ -0,0 +1,24 @@
+/**
+ * Geometry of the gripper for a given angle of its top linkage: the separation of the jaws, the
+ * distance from the wrist axis to the grip tip, and the angle of the gripper pads.
+ * Instances are mutable so that they can be reused instead of allocated on every frame.
+ */
+class GripInfo
+{
+	public double gripSeparation;
+	public double gripLength;
+	public double gripPadAngle;
+	public GripInfo()
+	{
+	}
+	public GripInfo(double separation, double length, double padAngle)
+	{
+		this.set(separation, length, padAngle);
+	}
+	void set(double separation, double length, double padAngle)
+	{
+		this.gripSeparation = separation;
+		this.gripLength = length;
+		this.gripPadAngle = padAngle;
+	}
+}
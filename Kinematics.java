@@ -0,0 +1,179 @@
+/*
+Forward and inverse kinematics of the 4-axis robot arm, separated from Arm so that the same math can be used
+by the control thread, the GUI and planners at the same time.
+
+Kinematics only holds the geometry of the arm (link lengths and axis ranges). Every method writes its results
+into arrays or objects supplied by the caller, so nothing is allocated and nothing is shared between threads.
+*/
+class Kinematics
+{
+	double segment1Length;	// in cm
+	double segment2Length;	// in cm
+	double[][] axisRanges;	// {min, max} for each axis, indexed by Arm.BASE ... Arm.GRIP
+
+	Kinematics(double segment1Length, double segment2Length, double[][] axisRanges)
+	{
+		this.segment1Length = segment1Length;
+		this.segment2Length = segment2Length;
+		this.axisRanges = axisRanges;
+	}
+
+	// writes the angles needed to reach the given coordinates and pitch into angles (base, shoulder, elbow, wrist).
+	void findAnglesConstantPitch(double x, double y, double z, double gripLength, double pitchAngle, double[] angles)
+	{
+		double newHorizontalLength = Math.sqrt(x*x + y*y);
+
+		// we'll keep the gripper oriented the same way with respect to the xy plane
+		double verticalGripLength = gripLength * Utility.sind( pitchAngle);
+		double horizontalGripLength = gripLength * Utility.cosd( pitchAngle);
+
+		// by keeping the orientation of the gripper the same, we can solve for the position of the wrist axis instead.
+		double wristHorizontal = newHorizontalLength - horizontalGripLength;
+		double wristVertical = z - verticalGripLength;
+		double shoulderToWristLength = Math.sqrt( wristHorizontal*wristHorizontal + wristVertical*wristVertical );
+		double shoulderToWristAngle = Utility.atand( wristVertical / wristHorizontal );
+		if ( wristHorizontal < 0 ) shoulderToWristAngle = shoulderToWristAngle + 180;	// wrist behind the shoulder. Testing the sign of the angle instead got every wrist below the shoulder wrong.
+
+		/*
+	from Law of Cosines
+	c^2 = a^2 + b^2 - 2 * a * b * cosd(C)
+	2 * a * b * cosd(C) = a^2 + b^2 - c^2
+	cosd(C) = ( a^2 + b^2 - c^2 ) / ( 2 * a * b )
+	C = acosd( ( a^2 + b^2 - c^2 ) / ( 2 * a * b ) )
+		 */
+		double a2 = this.segment1Length*this.segment1Length;
+		double b2 = this.segment2Length*this.segment2Length;
+		double c2 = shoulderToWristLength*shoulderToWristLength;
+		double C = Utility.acosd( ( a2 + b2 - c2 ) / ( 2 * this.segment1Length * this.segment2Length ) );
+		// B = acosd( ( a^2 + c^2 - b^2 ) / ( 2 * a * c ) )
+		double B = Utility.acosd( ( a2 + c2 - b2 ) / ( 2 * this.segment1Length * shoulderToWristLength ) );
+
+		double newElbowAngle =  C - 180;
+		double newShoulderAngle = shoulderToWristAngle + B;
+
+		double newWristAngle = pitchAngle - newElbowAngle - newShoulderAngle;
+
+		double newBaseAngle = Utility.atand(x/y);
+
+		angles[Arm.BASE] = newBaseAngle;
+		angles[Arm.SHOULDER] = newShoulderAngle;
+		angles[Arm.ELBOW] = newElbowAngle;
+		angles[Arm.WRIST] = newWristAngle;
+	}
+
+	// writes the coordinates corresponding to the given angles and gripLength into coordinates (x, y, z).
+	void findCoordinates(double[] angles, double gripLength, double[] coordinates)
+	{
+		double baseAngle = angles[Arm.BASE];
+		double shoulderAngle = angles[Arm.SHOULDER];
+		double elbowAngle = angles[Arm.ELBOW];
+		double wristAngle = angles[Arm.WRIST];
+		double horizontalLength = this.segment1Length * Utility.cosd(shoulderAngle) + this.segment2Length * Utility.cosd(elbowAngle + shoulderAngle) + gripLength * Utility.cosd(wristAngle + elbowAngle + shoulderAngle);
+		coordinates[0] = horizontalLength * Utility.sind(baseAngle);
+		coordinates[1] = horizontalLength * Utility.cosd(baseAngle);
+		coordinates[2] = this.segment1Length * Utility.sind(shoulderAngle) + this.segment2Length * Utility.sind(elbowAngle + shoulderAngle) + gripLength * Utility.sind(wristAngle + elbowAngle + shoulderAngle);
+	}
+
+	// same as above, for callers working with Vec3
+	void findCoordinates(double[] angles, double gripLength, Vec3 coordinates)
+	{
+		double horizontalLength = this.segment1Length * Utility.cosd(angles[Arm.SHOULDER]) + this.segment2Length * Utility.cosd(angles[Arm.ELBOW] + angles[Arm.SHOULDER]) + gripLength * Utility.cosd(angles[Arm.WRIST] + angles[Arm.ELBOW] + angles[Arm.SHOULDER]);
+		double z = this.segment1Length * Utility.sind(angles[Arm.SHOULDER]) + this.segment2Length * Utility.sind(angles[Arm.ELBOW] + angles[Arm.SHOULDER]) + gripLength * Utility.sind(angles[Arm.WRIST] + angles[Arm.ELBOW] + angles[Arm.SHOULDER]);
+		coordinates.set(horizontalLength * Utility.sind(angles[Arm.BASE]), horizontalLength * Utility.cosd(angles[Arm.BASE]), z);
+	}
+
+	// checks to ensure the given angles are within the arm's limits
+	boolean safetyCheckAxisAngles(double[] angles)
+	{
+		for ( int i = 0; i < angles.length; ++i)
+		{
+			// written so that NaN angles fail the check too
+			if ( !( angles[i] >= this.axisRanges[i][0] && angles[i] <= this.axisRanges[i][1] ) )
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// calculates the grip separation and distance from wrist axis to grip tip, given the angle of the top linkage.
+	// writes separation, length, and the angle of the gripper pads into info.
+	void getGripInfo(double topLinkageAngle, GripInfo info)
+	{
+		// measurements are in cm. Sorry for the confusing names/descriptions.
+		double topLinkageLength = 5.2;	// length of linkage attached to gear
+		double bottomLinkageLength = 4.65;	//length of each bottom linkage
+		double linkageSeparationGripper = 2.7;	// distance between where the two linkages attach on the gripper side
+		double gripperBendDistance = 4.7;	// distance from where the top linkage attaches to where the piece bends
+		double bendAngle = 30;	// angle that the grip bends between the pad and where it attaches to the linkages.
+		double yBendToTip = 6.9;	// distance from the bend to the tip of the gripper (measured in line with the two screws holding the grip together.
+		double gripInteriorStep = .8;	// distance from the inner part of the grip (with pad) to the line between the two screws.
+		double topLinkageSeparation = 2.75;	// distance between the axes of the two gears (or the ends of the two top linkages)
+		double bottomLinkageSeparation = 1;	// distance between the two bottom linkages
+		double topToBottomLinkDistanceY = 2.4;	// distance between the top and bottom linkages on the main body (motor side), measured parallel to arm
+		double topToBottomLinkDistanceX = (topLinkageSeparation - bottomLinkageSeparation) / 2;	// distance between the top and bottom linkages on the main body (motor side), measured perpendicular to arm
+		double topToBottomLinkDistanceTotal = Math.sqrt(Math.pow(topToBottomLinkDistanceX,2) + Math.pow(topToBottomLinkDistanceY,2) );	// distance between axes of top  and bottom linkages on the arm end
+		double topToBottomLinkAngle = Utility.atand(topToBottomLinkDistanceX/topToBottomLinkDistanceY);	// angle between anchor points of the top and bottom linkages
+		double wristToGripGearLength = 4.7;	// length from the wrist axis to the center of the gears
+
+		/*
+	figure out the angle of the gripPlane (plane along the inside of the gripper)
+	c^2 = a^2 + b^2 - 2 * a * b * cosd(C)		// Law of Cosines
+	C = acosd( ( a^2 + b^2 - c^2 ) / ( 2 * a * b ) ) // derived from Law of Cosines
+
+
+	A ---------- B
+	 \	         \		illustration attempt. ABD = topLinkageAngle + topToBottomLinkAngle, AB = topLinkageLength,
+	  \           \		AC = linkageSeparationGripper, CD = bottomLinkageLength,
+	    -----______\		BD = topToBottomLinkDistanceTotal
+	  C            D
+
+		 */
+
+		// AD^2 = AB^2 + BD^2 - 2 * AB * BD * cosd(ABD)
+		double AD = Math.sqrt(Math.pow(topLinkageLength,2) + Math.pow(topToBottomLinkDistanceTotal,2) - 2*topLinkageLength*topToBottomLinkDistanceTotal*Utility.cosd(topLinkageAngle+topToBottomLinkAngle) );
+
+		// BD^2 = AB^2 + AD^2 - 2 * AB * AD * cosd(BAD)
+		// BAD = acosd( ( AB^2 + AD^2 - BD^2 ) / ( 2 * AB * AD ) )
+		double BAD = Utility.acosd( ( Math.pow(topLinkageLength,2) + Math.pow(AD,2) - Math.pow(topToBottomLinkDistanceTotal,2) ) / ( 2 * topLinkageLength * AD ) );
+
+		// DAC = acosd( ( AC^2 + AD^2 - CD^2 ) / ( 2 * AC * AD ) )
+		double DAC = Utility.acosd( ( Math.pow(linkageSeparationGripper,2) + Math.pow(AD,2) - Math.pow(bottomLinkageLength,2) ) / ( 2 * linkageSeparationGripper * AD ) );
+
+		double BAC = BAD + DAC;
+
+		double gripPadAngle = ( topLinkageAngle - ( 180 - BAC ) + bendAngle );
+
+		// x and y coordinates of a gripper tip, with (0,0) as the center of the gear the top linkage is attached to
+		double y = (yBendToTip+gripperBendDistance*Utility.cosd(bendAngle))*Utility.cosd(gripPadAngle) + (gripInteriorStep+gripperBendDistance*Utility.sind(bendAngle))*Utility.sind(gripPadAngle) + topLinkageLength*Utility.cosd(topLinkageAngle);
+		double x = (yBendToTip+gripperBendDistance*Utility.cosd(bendAngle))*Utility.sind(gripPadAngle) + (gripInteriorStep+gripperBendDistance*Utility.sind(bendAngle))*Utility.sind(gripPadAngle-90) + topLinkageLength*Utility.sind(topLinkageAngle);
+
+		double currentSeparation = 2*x + topLinkageSeparation;
+		double gripLength = y + wristToGripGearLength;
+
+		info.set(currentSeparation, gripLength, gripPadAngle);
+	}
+
+	// returns the grip angle that gives the target separation, or NaN if it is outside the grip's range.
+	// separation grows with the grip angle, so this is a bisection over the grip axis range.
+	double findGripAngle(double targetSeparation, GripInfo info)
+	{
+		double low = this.axisRanges[Arm.GRIP][0];
+		double high = this.axisRanges[Arm.GRIP][1];
+		this.getGripInfo(low, info);
+		double lowSeparation = info.gripSeparation;
+		this.getGripInfo(high, info);
+		if ( !( targetSeparation >= lowSeparation && targetSeparation <= info.gripSeparation ) )
+			return Double.NaN;
+		for ( int i = 0; i < 40; ++i)
+		{
+			double middle = (low + high) / 2;
+			this.getGripInfo(middle, info);
+			if ( info.gripSeparation < targetSeparation )
+				low = middle;
+			else
+				high = middle;
+		}
+		return (low + high) / 2;
+	}
+}
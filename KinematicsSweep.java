@@ -0,0 +1,375 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Checks the inverse kinematics against the forward kinematics over a grid of the workspace: for every
+ * target position, pitch and grip angle, the angles from findAnglesConstantPitch are fed back through
+ * findCoordinates and compared with the target.  Grid slices are spread across a ForkJoinPool.
+ *
+ * java KinematicsSweep [options]
+ *
+ *   -x=MIN:MAX, -y=MIN:MAX, -z=MIN:MAX  Extent of the grid in cm (default -30:30, 0:30, -8:30).  The base
+ *               can't turn past 90 degrees, so nothing behind the arm (y < 0) is reachable.
+ *   -step=CM    Spacing of the grid (default 1).
+ *   -pitch=MIN:MAX:STEP, -grip=MIN:MAX:STEP  Pitches and grip angles tried at every position, in degrees
+ *               (default -90:90:15 and 35:90:11).
+ *   -trig=MODE  Trig functions to check: exact (default), polynomial or table.
+ *   -tolerance=CM  Round trip error above which a target counts as wrong (default 1e-6).
+ *   -gate       Exit with status 1 if any target within the axis ranges is wrong, or any target other
+ *               than straight above the base is singular.  For checking optimised kinematics or trig.
+ *
+ * Every target falls in one of these classes:
+ *   out of reach - the wrist position is too far from or too close to the shoulder; IK gives NaN
+ *   singular     - the target is within reach but IK gives NaN anyway, e.g. atand(0/0) straight above the base
+ *   wrong        - IK gives angles, but FK puts the tip more than the tolerance away from the target
+ *   good         - the rest
+ * and is also checked against the axis ranges.  Straight above the base (x = y = 0) the base angle is
+ * undefined, so singular targets there are expected.  The report gives the counts, error percentiles,
+ * round trips per second, and maps of each column of the grid seen from above and from the front.  A
+ * column shows its worst class, or if all its targets are good, the number of digits its largest error
+ * is good to: 6 for under 1e-6 cm, up to 9.
+ */
+public class KinematicsSweep {
+	private static final int NUM_AXES = Arm.NUM_AXES;
+
+	// classes of target, in increasing order of how much they matter on a map
+	private static final int OUT_OF_REACH = 0;
+	private static final int GOOD = 1;
+	private static final int WRONG = 2;
+	private static final int SINGULAR = 3;
+	private static final char[] MAP_SYMBOLS = {' ', '.', 'X', 'N'};
+	private static final int MAX_MAP_DIGITS = 9;
+	private static final String[] CLASS_NAMES = {"out of reach", "good", "wrong", "singular"};
+
+	// error histogram: HISTOGRAM_DECADES decades up from 1e-15 cm, BINS_PER_DECADE bins per decade
+	private static final double HISTOGRAM_FLOOR = 1e-15;
+	private static final int BINS_PER_DECADE = 20;
+	private static final int HISTOGRAM_DECADES = 18;
+	private static final int BINS = BINS_PER_DECADE * HISTOGRAM_DECADES + 1;
+
+	// grid
+	private double[] xs = values(-30, 30, 1);
+	private double[] ys = values(0, 30, 1);
+	private double[] zs = values(-8, 30, 1);
+	private double[] pitches = values(-90, 90, 15);
+	private double[] grips = values(35, 90, 11);
+	private double tolerance = 1e-6;
+
+	private final Kinematics kinematics;
+	private double[] gripLengths;
+
+	public static void main(String[] args) {
+		double[] x = {-30, 30};
+		double[] y = {0, 30};
+		double[] z = {-8, 30};
+		double step = 1;
+		boolean gate = false;
+		KinematicsSweep sweep = new KinematicsSweep(new Kinematics(Arm.defaultCalibration().getSegment1Length(),
+				Arm.defaultCalibration().getSegment2Length(), Arm.defaultAxisRanges()));
+		for (String arg : args) {
+			if (arg.startsWith("-x=")) {
+				x = range(arg.substring(3));
+			} else if (arg.startsWith("-y=")) {
+				y = range(arg.substring(3));
+			} else if (arg.startsWith("-z=")) {
+				z = range(arg.substring(3));
+			} else if (arg.startsWith("-step=")) {
+				step = Double.parseDouble(arg.substring(6));
+			} else if (arg.startsWith("-pitch=")) {
+				double[] pitch = range(arg.substring(7));
+				sweep.pitches = values(pitch[0], pitch[1], pitch[2]);
+			} else if (arg.startsWith("-grip=")) {
+				double[] grip = range(arg.substring(6));
+				sweep.grips = values(grip[0], grip[1], grip[2]);
+			} else if (arg.startsWith("-trig=")) {
+				Utility.setTrigMode(Utility.TrigMode.valueOf(arg.substring(6).toUpperCase()));
+			} else if (arg.startsWith("-tolerance=")) {
+				sweep.tolerance = Double.parseDouble(arg.substring(11));
+			} else if (arg.equals("-gate")) {
+				gate = true;
+			} else {
+				Utility.error("unrecognized option: %s%n", arg);
+			}
+		}
+		sweep.xs = values(x[0], x[1], step);
+		sweep.ys = values(y[0], y[1], step);
+		sweep.zs = values(z[0], z[1], step);
+
+		Result result = sweep.run(ForkJoinPool.commonPool());
+		sweep.report(result);
+		if (gate) {
+			boolean passed = result.wrongInRange == 0 && result.counts[SINGULAR] == result.singularAboveBase;
+			System.out.println(passed ? "PASSED" : "FAILED");
+			if (!passed)
+				System.exit(1);
+		}
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param kinematics Kinematics to check
+	 */
+	public KinematicsSweep(Kinematics kinematics) {
+		this.kinematics = kinematics;
+	}
+
+	/**
+	 * Parses MIN:MAX or MIN:MAX:STEP.
+	 */
+	static double[] range(String text) {
+		String[] fields = text.split(":");
+		double[] range = new double[fields.length];
+		for (int i = 0; i < fields.length; i++)
+			range[i] = Double.parseDouble(fields[i]);
+		if (range.length < 2)
+			throw new IllegalArgumentException("expected MIN:MAX: " + text);
+		return range;
+	}
+
+	/**
+	 * min, min + step, ... up to max.
+	 */
+	static double[] values(double min, double max, double step) {
+		if (!(step > 0) || max < min)
+			throw new IllegalArgumentException("bad range " + min + ":" + max + ":" + step);
+		int count = (int) Math.floor((max - min) / step + 1e-9) + 1;
+		double[] values = new double[count];
+		for (int i = 0; i < count; i++)
+			values[i] = min + i * step;
+		return values;
+	}
+
+	/**
+	 * Sweeps the whole grid.
+	 *
+	 * @param pool Pool to spread the grid over
+	 * @return Counts, errors and maps for the grid
+	 */
+	public Result run(ForkJoinPool pool) {
+		// the grip length only depends on the grip angle, so work it out once for each
+		gripLengths = new double[grips.length];
+		GripInfo info = new GripInfo();
+		for (int i = 0; i < grips.length; i++) {
+			kinematics.getGripInfo(grips[i], info);
+			gripLengths[i] = info.gripLength;
+		}
+		long start = System.nanoTime();
+		Result result = pool.invoke(new Slices(0, xs.length));
+		result.nanos = System.nanoTime() - start;
+		return result;
+	}
+
+	/**
+	 * Everything found in part of the grid.  Parts are added together as the slices finish.
+	 */
+	public class Result {
+		final long[] counts = new long[CLASS_NAMES.length];
+		// targets the arm would actually be sent to (angles within the axis ranges) that came out wrong
+		long wrongInRange;
+		// singular targets straight above the base, where the base angle is undefined
+		long singularAboveBase;
+		final long[] histogram = new long[BINS];
+		double maxError;
+		final double[] worst = new double[5];	// x, y, z, pitch, grip of the largest error
+		double maxPitchError;
+		// worst class in each column seen from above (x by y) and from the front (x by z)
+		final int[] topMap = new int[xs.length * ys.length];
+		final int[] frontMap = new int[xs.length * zs.length];
+		// largest error in each column, in the same layout
+		final double[] topErrors = new double[topMap.length];
+		final double[] frontErrors = new double[frontMap.length];
+		long nanos;
+
+		void add(Result other) {
+			for (int i = 0; i < counts.length; i++)
+				counts[i] += other.counts[i];
+			wrongInRange += other.wrongInRange;
+			singularAboveBase += other.singularAboveBase;
+			for (int i = 0; i < BINS; i++)
+				histogram[i] += other.histogram[i];
+			if (other.maxError > maxError) {
+				maxError = other.maxError;
+				System.arraycopy(other.worst, 0, worst, 0, worst.length);
+			}
+			maxPitchError = Math.max(maxPitchError, other.maxPitchError);
+			for (int i = 0; i < topMap.length; i++) {
+				topMap[i] = Math.max(topMap[i], other.topMap[i]);
+				topErrors[i] = Math.max(topErrors[i], other.topErrors[i]);
+			}
+			for (int i = 0; i < frontMap.length; i++) {
+				frontMap[i] = Math.max(frontMap[i], other.frontMap[i]);
+				frontErrors[i] = Math.max(frontErrors[i], other.frontErrors[i]);
+			}
+		}
+
+		public long getTotal() {
+			long total = 0;
+			for (long count : counts)
+				total += count;
+			return total;
+		}
+
+		/**
+		 * @return Error below which the given fraction of the targets IK gave angles for fall, in cm (the
+		 *         upper edge of its histogram bin)
+		 */
+		public double percentile(double fraction) {
+			long solved = counts[GOOD] + counts[WRONG];
+			long rank = (long) Math.ceil(fraction * solved);
+			long seen = 0;
+			for (int i = 0; i < BINS; i++) {
+				seen += histogram[i];
+				if (seen >= rank && seen > 0)
+					return i == 0 ? HISTOGRAM_FLOOR : HISTOGRAM_FLOOR * Math.pow(10, (double) i / BINS_PER_DECADE);
+			}
+			return maxError;
+		}
+	}
+
+	/**
+	 * Sweeps the slices of the grid with x index first to last - 1, halving until one slice is left.
+	 */
+	private class Slices extends RecursiveTask<Result> {
+		private final int first;
+		private final int last;
+
+		Slices(int first, int last) {
+			this.first = first;
+			this.last = last;
+		}
+
+		protected Result compute() {
+			if (last - first > 1) {
+				int middle = (first + last) >>> 1;
+				Slices right = new Slices(middle, last);
+				right.fork();
+				Result result = new Slices(first, middle).compute();
+				result.add(right.join());
+				return result;
+			}
+			return sweepSlice(first);
+		}
+	}
+
+	private Result sweepSlice(int xi) {
+		Result result = new Result();
+		double[] angles = new double[NUM_AXES];
+		double[] tip = new double[3];
+		double a = kinematics.segment1Length;
+		double b = kinematics.segment2Length;
+		double x = xs[xi];
+		for (int yi = 0; yi < ys.length; yi++) {
+			double y = ys[yi];
+			for (int zi = 0; zi < zs.length; zi++) {
+				double z = zs[zi];
+				int worstClass = OUT_OF_REACH;
+				double worstError = 0;
+				for (int pi = 0; pi < pitches.length; pi++) {
+					double pitch = pitches[pi];
+					for (int gi = 0; gi < grips.length; gi++) {
+						double gripLength = gripLengths[gi];
+						kinematics.findAnglesConstantPitch(x, y, z, gripLength, pitch, angles);
+						angles[Arm.GRIP] = grips[gi];
+						int targetClass;
+						if (Double.isNaN(angles[Arm.BASE]) || Double.isNaN(angles[Arm.SHOULDER])
+								|| Double.isNaN(angles[Arm.ELBOW]) || Double.isNaN(angles[Arm.WRIST])) {
+							// within reach if the wrist is no further from the shoulder than both segments
+							// straightened out, and no closer than the elbow folded all the way
+							double wristHorizontal = Math.sqrt(x * x + y * y) - gripLength * Math.cos(Math.toRadians(pitch));
+							double wristVertical = z - gripLength * Math.sin(Math.toRadians(pitch));
+							double reach = Math.sqrt(wristHorizontal * wristHorizontal + wristVertical * wristVertical);
+							targetClass = reach < a + b && reach > Math.abs(a - b) ? SINGULAR : OUT_OF_REACH;
+							if (targetClass == SINGULAR && x == 0 && y == 0)
+								result.singularAboveBase++;
+						} else {
+							kinematics.findCoordinates(angles, gripLength, tip);
+							double dx = tip[0] - x;
+							double dy = tip[1] - y;
+							double dz = tip[2] - z;
+							double error = Math.sqrt(dx * dx + dy * dy + dz * dz);
+							double pitchError = Math.abs(angles[Arm.SHOULDER] + angles[Arm.ELBOW] + angles[Arm.WRIST] - pitch);
+							// NaN errors (infinite angles) count as wrong
+							targetClass = error <= tolerance ? GOOD : WRONG;
+							if (targetClass == WRONG && kinematics.safetyCheckAxisAngles(angles))
+								result.wrongInRange++;
+							result.histogram[bin(error)]++;
+							if (!(error <= result.maxError)) {
+								result.maxError = Double.isNaN(error) ? Double.POSITIVE_INFINITY : error;
+								result.worst[0] = x;
+								result.worst[1] = y;
+								result.worst[2] = z;
+								result.worst[3] = pitch;
+								result.worst[4] = grips[gi];
+							}
+							result.maxPitchError = Math.max(result.maxPitchError, pitchError);
+							worstError = Math.max(worstError, error);
+						}
+						result.counts[targetClass]++;
+						worstClass = Math.max(worstClass, targetClass);
+					}
+				}
+				int top = xi * ys.length + yi;
+				int front = xi * zs.length + zi;
+				result.topMap[top] = Math.max(result.topMap[top], worstClass);
+				result.frontMap[front] = Math.max(result.frontMap[front], worstClass);
+				result.topErrors[top] = Math.max(result.topErrors[top], worstError);
+				result.frontErrors[front] = Math.max(result.frontErrors[front], worstError);
+			}
+		}
+		return result;
+	}
+
+	private static int bin(double error) {
+		if (!(error > HISTOGRAM_FLOOR))
+			return Double.isNaN(error) ? BINS - 1 : 0;
+		int bin = (int) Math.ceil(Math.log10(error / HISTOGRAM_FLOOR) * BINS_PER_DECADE);
+		return Math.min(bin, BINS - 1);
+	}
+
+	/**
+	 * Prints the counts, errors and maps.
+	 */
+	public void report(Result result) {
+		long total = result.getTotal();
+		System.out.printf("%d round trips (%d positions x %d pitches x %d grip angles) in %.0f ms: %.2f million per second%n",
+				total, xs.length * ys.length * zs.length, pitches.length, grips.length, result.nanos / 1e6,
+				total / (result.nanos / 1e3));
+		for (int i = 0; i < CLASS_NAMES.length; i++)
+			System.out.printf("  %-13s %10d  (%.2f%%)%n", CLASS_NAMES[i], result.counts[i], 100.0 * result.counts[i] / total);
+		System.out.printf("  wrong within the axis ranges: %d, singular straight above the base: %d%n", result.wrongInRange, result.singularAboveBase);
+		System.out.printf("tip error: 50%% < %.1e cm, 99%% < %.1e cm, 99.9%% < %.1e cm, max %.3e cm%n",
+				result.percentile(0.5), result.percentile(0.99), result.percentile(0.999), result.maxError);
+		if (result.maxError > 0)
+			System.out.printf("  worst at x %.1f y %.1f z %.1f pitch %.0f grip %.0f%n",
+					result.worst[0], result.worst[1], result.worst[2], result.worst[3], result.worst[4]);
+		System.out.printf("pitch error: max %.3e degrees%n", result.maxPitchError);
+
+		System.out.println();
+		System.out.printf("From above, worst in each column (x %.0f to %.0f across, y %.0f to %.0f up)%n", xs[0], xs[xs.length - 1], ys[0], ys[ys.length - 1]);
+		printMap(result.topMap, result.topErrors, ys.length);
+		System.out.println();
+		System.out.printf("From the front, worst in each column (x %.0f to %.0f across, z %.0f to %.0f up)%n", xs[0], xs[xs.length - 1], zs[0], zs[zs.length - 1]);
+		printMap(result.frontMap, result.frontErrors, zs.length);
+		System.out.println("  ' ' out of reach   0-9 good to that many digits   'X' wrong   'N' singular");
+	}
+
+	private void printMap(int[] map, double[] errors, int rows) {
+		StringBuilder line = new StringBuilder();
+		for (int row = rows - 1; row >= 0; row--) {
+			line.setLength(0);
+			line.append("  |");
+			for (int xi = 0; xi < xs.length; xi++) {
+				int cell = xi * rows + row;
+				if (map[cell] == GOOD) {
+					int digits = errors[cell] > 0 ? (int) Math.floor(-Math.log10(errors[cell])) : MAX_MAP_DIGITS;
+					line.append((char) ('0' + Math.max(0, Math.min(MAX_MAP_DIGITS, digits))));
+				} else {
+					line.append(MAP_SYMBOLS[map[cell]]);
+				}
+			}
+			line.append('|');
+			System.out.println(line);
+		}
+	}
+}
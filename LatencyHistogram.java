@@ -0,0 +1,113 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in buckets that grow with the duration, four to each power of two, so percentiles
+ * are known to within 25% from a nanosecond up to hours.  Recording is a few atomic adds and never
+ * allocates, so it can be done on every frame from any thread.
+ */
+public class LatencyHistogram {
+	// durations below this are counted exactly, one bucket each
+	private static final int LINEAR = 4;
+	private static final int BUCKETS = LINEAR + 4 * 62;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Counts a duration.
+	 *
+	 * @param nanos The duration, in nanoseconds.  Negative durations count as 0.
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		buckets.incrementAndGet(bucket(nanos));
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+		long m;
+		while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) {
+		}
+	}
+
+	private static int bucket(long nanos) {
+		if (nanos < LINEAR) {
+			return (int) nanos;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);	// 2 or more
+		int sub = (int) (nanos >>> (exponent - 2)) & 3;
+		return LINEAR + 4 * (exponent - 2) + sub;
+	}
+
+	/**
+	 * Largest duration that falls into a bucket.
+	 */
+	private static long upperBound(int bucket) {
+		if (bucket < LINEAR) {
+			return bucket;
+		}
+		int exponent = (bucket - LINEAR) / 4 + 2;
+		int sub = (bucket - LINEAR) % 4;
+		return ((4L + sub + 1) << (exponent - 2)) - 1;
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return Longest duration counted, in nanoseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return Mean duration, in nanoseconds, or 0 if nothing was counted
+	 */
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) total.get() / n;
+	}
+
+	/**
+	 * @param fraction Fraction of the durations, e.g. 0.99
+	 * @return Duration that at least that fraction of the durations were no longer than, in nanoseconds
+	 *         (rounded up to the end of its bucket, but never more than the longest)
+	 */
+	public long getPercentile(double fraction) {
+		long n = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			n += buckets.get(i);
+		}
+		long rank = Math.max(1, (long) Math.ceil(fraction * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank) {
+				return Math.min(upperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Forgets everything counted so far.  Counts made at the same time may be partly lost.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets.set(i, 0);
+		}
+		count.set(0);
+		total.set(0);
+		max.set(0);
+	}
+
+	public String toString() {
+		return String.format("%d samples, mean %.1f us, 50%% %.1f us, 99%% %.1f us, max %.1f us", getCount(),
+				getMean() / 1e3, getPercentile(0.5) / 1e3, getPercentile(0.99) / 1e3, getMax() / 1e3);
+	}
+}
@@ -1,14 +1,46 @@
+import java.io.File;
+import java.io.IOException;
+
 import com.leapmotion.leap.Controller;
 
 public class Main {
 
-	public static void main(String[] args) {
-		SerialComm sc = new SerialComm(args);
+	public static void main(String[] args) throws IOException {
+		RunOptions options = new RunOptions(args);
+		SerialComm sc = new SerialComm(options.getPortNames());
 		Arm arm = new Arm(sc);
-		View view = new View();
-		Controller controller = new Controller();
-		controller.addListener(arm);
-		controller.addListener(view);
+		options.configure(arm, sc);
+		if (options.isHeadless())
+			new ConsoleMonitor(arm).start();
+		else
+			startView(arm);
+
+		// replay a taught trajectory instead of following the Leap
+		if (options.getRepeatFile() != null) {
+			Trajectory trajectory = Trajectory.load(options.getRepeatFile());
+			new MotionExecutor(arm).execute(trajectory, options.getSpeed());
+			System.exit(0);
+		}
+
+		TrajectoryRecorder teacher = null;
+		if (options.getTeachFile() != null) {
+			teacher = new TrajectoryRecorder();
+			arm.setTrajectoryRecorder(teacher);
+			teacher.start();
+		}
+
+		// follow targets sent by other processes, or the Leap
+		Controller controller = null;
+		TargetServer server = null;
+		if (options.getListenPort() >= 0) {
+			TargetSlot targets = new TargetSlot();
+			server = new TargetServer(targets, options.getListenPort());
+			server.start();
+			new TargetFollower(arm, targets).start();
+		} else {
+			controller = new Controller();
+			controller.addListener(arm);
+		}
 		
 		try{
 		      System.in.read();
@@ -16,7 +48,26 @@ public class Main {
 		    catch (Exception e){
 		        System.out.print(e);
 		      }
+
+		if (teacher != null)
+			saveTaught(teacher.stop(), options.getTeachFile(), options.getTolerance());
+		if (server != null)
+			server.close();
+
 	      // forces GUI window to close	
 	      System.exit(0);
 	}
+
+	// Kept in its own method so that View (and with it AWT/Swing) is only loaded when a GUI is wanted.
+	private static void startView(Arm arm) {
+		new View(arm);
+	}
+
+	// Simplifies a taught trajectory and saves it for -repeat.
+	private static void saveTaught(Trajectory recorded, File file, double tolerance) throws IOException {
+		Trajectory simplified = recorded.simplify(tolerance);
+		simplified.save(file);
+		System.out.printf("Saved %s: %d waypoints (%d recorded), %.1f seconds%n",
+				file, simplified.size(), recorded.size(), simplified.getDuration());
+	}
 }
@@ -0,0 +1,71 @@
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Static registry of named counters that the control code can update cheaply and that the console
+ * monitor (or anything else) can print.  Counters should be created once, typically in a static field,
+ * and not looked up per frame.
+ */
+public class Metrics {
+	private static final List<Counter> counters = new CopyOnWriteArrayList<Counter>();
+
+	/**
+	 * Returns the counter with the given name, creating it if needed.
+	 *
+	 * @param name Name shown when the metrics are printed
+	 * @return The counter
+	 */
+	public static synchronized Counter counter(String name) {
+		for (Counter c : counters) {
+			if (c.name.equals(name)) {
+				return c;
+			}
+		}
+		Counter c = new Counter(name);
+		counters.add(c);
+		return c;
+	}
+
+	/**
+	 * Appends "name=value" pairs for every counter to the given builder.
+	 *
+	 * @param out Builder to append to
+	 */
+	public static void appendTo(StringBuilder out) {
+		for (Counter c : counters) {
+			if (out.length() > 0) {
+				out.append(' ');
+			}
+			out.append(c.name).append('=').append(c.get());
+		}
+	}
+
+	/**
+	 * A monotonically increasing count that is safe to update from any thread.
+	 */
+	public static class Counter {
+		private final String name;
+		private final AtomicLong value = new AtomicLong();
+
+		private Counter(String name) {
+			this.name = name;
+		}
+
+		public void increment() {
+			value.incrementAndGet();
+		}
+
+		public void add(long amount) {
+			value.addAndGet(amount);
+		}
+
+		public long get() {
+			return value.get();
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+}
@@ -0,0 +1,165 @@
+/**
+ * Regression checks for the motion code, run end to end on a simulated arm: a SimulatedArduino
+ * behind a SimulatedArduino.Link, on a VirtualClock, so that every check is exact and takes a moment
+ * however long the moves would take the arm.
+ *
+ * Exits with status 1 if any check fails, so it can be used as a build gate:
+ *
+ * java MotionCheck
+ */
+public class MotionCheck {
+	// how far a servo may end from where it was sent, in degrees: quantizing to a byte loses up to one
+	private static final double SERVO_TOLERANCE = 1.5;
+
+	public static void main(String[] args) {
+		boolean ok = true;
+		ok &= check("last setpoint of a move is sent", lastSetpointSent());
+		ok &= check("trajectory not starting at 0 plays in time", lateStartPlaysInTime());
+		ok &= check("rejected command stops a trajectory", rejectedCommandStops());
+		ok &= check("single network target is reached", singleTargetReached());
+		if (!ok) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+		System.out.println("PASSED");
+	}
+
+	private static boolean check(String name, boolean passed) {
+		System.out.printf("  %-48s %s%n", name, passed ? "ok" : "FAIL");
+		return passed;
+	}
+
+	/**
+	 * A simulated arm: an Arm talking to a SimulatedArduino, on a VirtualClock.
+	 */
+	private static class Rig {
+		final VirtualClock clock = new VirtualClock();
+		final SimulatedArduino arduino = new SimulatedArduino();
+		final SimulatedArduino.Link link = new SimulatedArduino.Link(arduino);
+		final Arm arm = new Arm(link);
+
+		Rig() {
+			clock.setLink(link);
+			arm.setClock(clock);
+		}
+
+		/**
+		 * Lets the last bytes arrive and the servos finish moving to the last setpoint.
+		 */
+		void settle() {
+			clock.advance(SimulatedArduino.MAX_INTERVAL_MS * 1000000 + link.getMaxDelay());
+		}
+
+		/**
+		 * @return true if every servo is where the arm last commanded it, to within SERVO_TOLERANCE
+		 */
+		boolean servosAtCommand() {
+			double[] servo = new double[Arm.NUM_AXES];
+			arduino.getServoAngles(servo);
+			for (int i = 0; i < Arm.NUM_AXES; i++) {
+				double sent = arm.calibration.toServo(i, arm.commandedAngles[i]);
+				if (Math.abs(servo[i] - sent) > SERVO_TOLERANCE) {
+					System.out.printf("    axis %d commanded %.2f, servo at %.2f%n", i, sent, servo[i]);
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * In setpoint mode, angles that come too soon after a setpoint are held back.  The end of a move
+	 * must still send them, or the arm stops short of where it thinks it is.
+	 */
+	private static boolean lastSetpointSent() {
+		Rig rig = new Rig();
+		rig.link.setSetpointRate(10);
+		double[][] targets = {{17, 21, -5}, {-9, 26, -5}, {0, 28, 0}};
+		for (double[] target : targets) {
+			rig.arm.moveTo(target, -55);
+			rig.settle();
+			if (!rig.servosAtCommand()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * A trajectory whose first waypoint isn't at time 0, like a recording, plays in the time between
+	 * its first and last waypoints.
+	 */
+	private static boolean lateStartPlaysInTime() {
+		Rig rig = new Rig();
+		double[] pose = rig.arm.commandedAngles.clone();
+		Trajectory trajectory = new Trajectory();
+		trajectory.add(3, pose);
+		pose[Arm.BASE] += 10;
+		trajectory.add(4, pose);
+
+		// the arm is already at the first waypoint, so there is nothing to approach
+		long start = rig.clock.nanoTime();
+		if (!new MotionExecutor(rig.arm).execute(trajectory, 1.0)) {
+			return false;
+		}
+		double seconds = (rig.clock.nanoTime() - start) / 1e9;
+		if (trajectory.getDuration() != 1 || Math.abs(seconds - 1) > 2 * MotionExecutor.COMMAND_PERIOD) {
+			System.out.printf("    1 s trajectory (duration %.2f s) took %.2f s%n", trajectory.getDuration(), seconds);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * A trajectory that leaves the axis ranges stops at the edge, and isn't reported as played.
+	 */
+	private static boolean rejectedCommandStops() {
+		Rig rig = new Rig();
+		double[] pose = rig.arm.commandedAngles.clone();
+		Trajectory trajectory = new Trajectory();
+		trajectory.add(0, pose);
+		pose[Arm.SHOULDER] = rig.arm.shoulderAxisRange[0] - 20;
+		trajectory.add(1, pose);
+		if (new MotionExecutor(rig.arm).execute(trajectory, 1.0)) {
+			System.out.println("    trajectory out of range reported as played");
+			return false;
+		}
+		return rig.arm.commandedAngles[Arm.SHOULDER] >= rig.arm.shoulderAxisRange[0];
+	}
+
+	/**
+	 * The arm only takes a target as far as the servos can follow at once, so a TargetFollower given
+	 * a single target far from the arm must keep sending it until the arm gets there.
+	 */
+	private static boolean singleTargetReached() {
+		Rig rig = new Rig();
+		TargetSlot slot = new TargetSlot();
+		double[] goal = {-17, 21, -5};
+		slot.offer(1, goal[0], goal[1], goal[2], -55, Double.NaN, System.nanoTime());
+		Thread follower = new TargetFollower(rig.arm, slot).start();
+		try {
+			// the follower is done when it parks waiting for the next target
+			long giveUp = System.nanoTime() + 5000000000L;
+			while (follower.getState() != Thread.State.WAITING || rig.arm.isSetCutShort()) {
+				if (System.nanoTime() > giveUp) {
+					System.out.println("    follower never settled");
+					return false;
+				}
+				Thread.sleep(1);
+			}
+		} catch (InterruptedException e) {
+			return false;
+		} finally {
+			follower.interrupt();
+		}
+		rig.settle();
+		Vec3 tip = rig.arm.getCurrentCoordinates(new Vec3());
+		double miss = Math.sqrt((tip.x - goal[0]) * (tip.x - goal[0]) + (tip.y - goal[1]) * (tip.y - goal[1])
+				+ (tip.z - goal[2]) * (tip.z - goal[2]));
+		if (miss > 0.5) {
+			System.out.printf("    stopped at (%.2f, %.2f, %.2f), %.2f cm from the target%n", tip.x, tip.y, tip.z, miss);
+			return false;
+		}
+		return rig.servosAtCommand();
+	}
+}
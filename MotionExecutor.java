@@ -0,0 +1,193 @@
+/**
+ * Plays joint-space trajectories on the arm in real time.  Commands are interpolated from the
+ * trajectory and streamed to the arm at a fixed rate, so the number of waypoints in a trajectory has
+ * no effect on how smooth the motion is, only on how closely it follows the original path.
+ *
+ * Before a trajectory starts, the arm is moved from its estimated pose to the first waypoint at
+ * APPROACH_SPEED so that it never jumps.
+ *
+ * Commands are paced by the arm's ServoModel: if the servos fall behind, the rest of the trajectory
+ * is delayed until they catch up, instead of sending commands they can't follow.
+ *
+ * Time is taken from the arm's Clock, so with a VirtualClock a trajectory plays as fast as it can
+ * be interpolated.
+ */
+public class MotionExecutor {
+	// time between commands sent to the arm, in seconds
+	public static final double COMMAND_PERIOD = 0.02;
+	// speed used to reach the start of a trajectory, in degrees per second
+	public static final double APPROACH_SPEED = 50;
+
+	private static final int NUM_AXES = Arm.NUM_AXES;
+
+	private static final Metrics.Counter pacingDelays = Metrics.counter("motionPacingDelays");
+	private static final Metrics.Counter rejected = Metrics.counter("motionCommandsRejected");
+
+	private final Arm arm;
+	// time between commands sent to the arm, in seconds
+	private final double commandPeriod;
+	private long commandsSent = 0;
+
+	// reused buffers
+	private final double[] command = new double[NUM_AXES];
+	private final double[] from = new double[NUM_AXES];
+	private final double[] to = new double[NUM_AXES];
+
+	/**
+	 * Constructor - sends commands every COMMAND_PERIOD.
+	 *
+	 * @param arm The arm to move
+	 */
+	public MotionExecutor(Arm arm) {
+		this(arm, COMMAND_PERIOD);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param arm The arm to move
+	 * @param commandPeriod Time between commands sent to the arm, in seconds
+	 */
+	public MotionExecutor(Arm arm, double commandPeriod) {
+		if (!(commandPeriod > 0)) {
+			throw new IllegalArgumentException("command period must be positive: " + commandPeriod);
+		}
+		this.arm = arm;
+		this.commandPeriod = commandPeriod;
+	}
+
+	/**
+	 * Plays a trajectory, blocking until it is finished.  If the calling thread is interrupted, the
+	 * arm stops where it is and the interrupt flag is left set.  If the arm rejects a command (out of
+	 * range or too close to the board), it stops at the last command it took.
+	 *
+	 * @param trajectory The trajectory to play
+	 * @param speedMultiplier How much faster than recorded to play it (2 = twice as fast)
+	 * @return true if the whole trajectory was played, false if it was interrupted or rejected
+	 */
+	public boolean execute(Trajectory trajectory, double speedMultiplier) {
+		if (trajectory.size() == 0) {
+			return true;
+		}
+		if (!(speedMultiplier > 0)) {
+			throw new IllegalArgumentException("speed multiplier must be positive: " + speedMultiplier);
+		}
+
+		// move to the start from wherever the arm is
+		arm.getEstimatedAngles(from);
+		trajectory.getWaypoint(0, to);
+		if (!moveLinear(from, to, APPROACH_SPEED)) {
+			return false;
+		}
+
+		double duration = trajectory.getDuration() / speedMultiplier;
+		double start = trajectory.getTime(0);
+		long startTime = arm.clock.nanoTime();
+		int hint = 0;
+		for (int step = 1; ; step++) {
+			double t = Math.min(step * commandPeriod, duration);
+			hint = trajectory.interpolate(start + t * speedMultiplier, command, hint);
+			if (!sleepUntil(startTime + (long) (t * 1e9))) {
+				return false;
+			}
+			long lag = lag(command);
+			if (lag > 0) {
+				startTime += lag;
+				if (!sleepUntil(startTime + (long) (t * 1e9))) {
+					return false;
+				}
+			}
+			if (!arm.setAxisAnglesOptimized(command)) {
+				rejected.increment();
+				arm.flushCommands();
+				return false;
+			}
+			commandsSent++;
+			if (t >= duration) {
+				return arm.flushCommands();
+			}
+		}
+	}
+
+	/**
+	 * Moves every axis in a straight line through joint space from one pose to another, so that the
+	 * axis with the farthest to go moves at the given speed.
+	 *
+	 * @return false if interrupted or a command was rejected
+	 */
+	boolean moveLinear(double[] start, double[] end, double speed) {
+		double distance = 0;
+		for (int i = 0; i < NUM_AXES; i++) {
+			distance = Math.max(distance, Math.abs(end[i] - start[i]));
+		}
+		double duration = distance / speed;
+		long startTime = arm.clock.nanoTime();
+		for (int step = 1; ; step++) {
+			double t = Math.min(step * commandPeriod, duration);
+			double fraction = duration > 0 ? t / duration : 1;
+			for (int i = 0; i < NUM_AXES; i++) {
+				command[i] = start[i] + (end[i] - start[i]) * fraction;
+			}
+			if (!sleepUntil(startTime + (long) (t * 1e9))) {
+				return false;
+			}
+			long lag = lag(command);
+			if (lag > 0) {
+				startTime += lag;
+				if (!sleepUntil(startTime + (long) (t * 1e9))) {
+					return false;
+				}
+			}
+			if (!arm.setAxisAnglesOptimized(command)) {
+				rejected.increment();
+				arm.flushCommands();
+				return false;
+			}
+			commandsSent++;
+			if (t >= duration) {
+				return arm.flushCommands();
+			}
+		}
+	}
+
+	public double getCommandPeriod() {
+		return commandPeriod;
+	}
+
+	/**
+	 * @return Number of commands sent to the arm so far, approaches to the start included
+	 */
+	public long getCommandsSent() {
+		return commandsSent;
+	}
+
+	/**
+	 * How long to wait before sending a command, so that the servos can follow it.
+	 *
+	 * @return The wait in nanoseconds, 0 if the command can be sent now
+	 */
+	private long lag(double[] command) {
+		double behind = arm.servoModel.timeToReach(command, arm.clock.nanoTime()) - Arm.MAX_COMMAND_LEAD;
+		if (behind <= 0) {
+			return 0;
+		}
+		pacingDelays.increment();
+		return (long) (behind * 1e9);
+	}
+
+	/**
+	 * Sleeps until the arm's clock reaches the deadline.  Deadlines are absolute, so small delays don't
+	 * add up over a long trajectory.
+	 *
+	 * @return false if interrupted
+	 */
+	private boolean sleepUntil(long deadline) {
+		try {
+			arm.clock.sleepUntil(deadline);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+}
@@ -0,0 +1,469 @@
+import java.util.Arrays;
+
+/**
+ * A queue of moves that is planned as a whole before the arm starts, instead of one blocking move at
+ * a time.  Looking ahead at the next move lets the planner:
+ *
+ *   - round off each corner between two moves with a parabolic blend (a quadratic Bezier curve in
+ *     joint space), so the arm keeps moving through it.  No axis strays more than the corner
+ *     tolerance from the waypoint, and because the blend stays inside the triangle formed by the
+ *     waypoint and its two neighbours, it can't leave the axis ranges either.
+ *   - limit the acceleration along the whole path, speeding up and slowing down only where needed.
+ *     Without blending, the arm has to stop at the end of every move.
+ *
+ * Moves are checked against the axis ranges as they are added, and the result of plan() is an
+ * ordinary Trajectory that a MotionExecutor can play.
+ */
+public class MotionQueue {
+	// default largest distance on any axis between a waypoint and the blended path, in degrees
+	public static final double DEFAULT_CORNER_TOLERANCE = 3;
+	// default acceleration along the path, in degrees per second squared
+	public static final double DEFAULT_ACCELERATION = 250;
+	// distance between waypoints of straight-line moves, in cm
+	public static final double STRAIGHT_STEP = 1;
+
+	// number of pieces each blend and each speed change is split into
+	private static final int BLEND_PIECES = 8;
+	private static final int RAMP_PIECES = 4;
+	// distances smaller than this are treated as zero
+	private static final double EPSILON = 1e-9;
+
+	private static final int NUM_AXES = Arm.NUM_AXES;
+
+	private final Kinematics kinematics;
+	private final double cornerTolerance;
+	private final double acceleration;
+
+	// waypoints, flat, and the speed of the move ending at each one (speeds[0] is unused).  Waypoints
+	// in the middle of a straight-line move aren't corners, and are always blended.
+	private double[] waypoints;
+	private double[] speeds;
+	private boolean[] corners;
+	private int size = 0;
+
+	// reused buffers
+	private final double[] solution = new double[NUM_AXES];
+	private final double[] last = new double[NUM_AXES];
+	private final GripInfo gripInfo = new GripInfo();
+	private final Vec3 from = new Vec3();
+	private final Vec3 point = new Vec3();
+	private final Vec3 direction = new Vec3();
+
+	/**
+	 * Constructor - starts from the arm's estimated pose, with the default tolerance and acceleration.
+	 *
+	 * @param arm The arm the moves are for
+	 */
+	public MotionQueue(Arm arm) {
+		this(arm, DEFAULT_CORNER_TOLERANCE);
+	}
+
+	/**
+	 * Constructor - starts from the arm's estimated pose, with the default acceleration.
+	 *
+	 * @param arm The arm the moves are for
+	 * @param cornerTolerance Largest distance on any axis between the end of a move and the path, in
+	 *                        degrees.  0 turns blending between moves off.
+	 */
+	public MotionQueue(Arm arm, double cornerTolerance) {
+		this(arm.kinematics, currentPose(arm), cornerTolerance, DEFAULT_ACCELERATION);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param kinematics Geometry of the arm the moves are for
+	 * @param startPose All five axis angles at the start of the first move
+	 * @param cornerTolerance Largest distance on any axis between the end of a move and the path, in
+	 *                        degrees.  0 turns blending between moves off.
+	 * @param acceleration Acceleration along the path, in degrees per second squared
+	 */
+	public MotionQueue(Kinematics kinematics, double[] startPose, double cornerTolerance, double acceleration) {
+		if (!(cornerTolerance >= 0)) {
+			throw new IllegalArgumentException("corner tolerance must not be negative: " + cornerTolerance);
+		}
+		if (!(acceleration > 0)) {
+			throw new IllegalArgumentException("acceleration must be positive: " + acceleration);
+		}
+		this.kinematics = kinematics;
+		this.cornerTolerance = cornerTolerance;
+		this.acceleration = acceleration;
+		waypoints = new double[16 * NUM_AXES];
+		speeds = new double[16];
+		corners = new boolean[16];
+		System.arraycopy(startPose, 0, waypoints, 0, NUM_AXES);
+		size = 1;
+	}
+
+	private static double[] currentPose(Arm arm) {
+		double[] pose = new double[NUM_AXES];
+		arm.getEstimatedAngles(pose);
+		return pose;
+	}
+
+	/**
+	 * Adds a move through joint space, so that the axis with the farthest to go moves at the given speed.
+	 *
+	 * @param target All five axis angles to move to
+	 * @param speed Speed of the fastest axis, in degrees per second
+	 * @return false if the target is outside the axis ranges
+	 */
+	public boolean addJointMove(double[] target, double speed) {
+		if (!(speed > 0)) {
+			throw new IllegalArgumentException("speed must be positive: " + speed);
+		}
+		if (!kinematics.safetyCheckAxisAngles(target)) {
+			Utility.error("invalid angles:\n%f     %f    %f     %f     %f%n", target[0], target[1], target[2], target[3], target[4]);
+			return false;
+		}
+		add(target, speed, true);
+		return true;
+	}
+
+	/**
+	 * Adds a move of the grip tip to the given coordinates through joint space, keeping the grip as it is.
+	 *
+	 * @param coordinates Where to move the grip tip, in cm
+	 * @param pitch Pitch of the gripper, in degrees
+	 * @param speed Speed of the fastest axis, in degrees per second
+	 * @return false if the coordinates are out of reach
+	 */
+	public boolean moveTo(Vec3 coordinates, double pitch, double speed) {
+		return solve(coordinates, pitch) && addJointMove(solution, speed);
+	}
+
+	/**
+	 * Adds a move of the grip tip to the given coordinates in a straight line, keeping the grip as it is.
+	 *
+	 * @param coordinates Where to move the grip tip, in cm
+	 * @param pitch Pitch of the gripper at the end of the line, in degrees
+	 * @param speed Speed of the grip tip, in cm per second
+	 * @return false if part of the line is out of reach.  The moves up to that point stay queued.
+	 */
+	public boolean moveStraightTo(Vec3 coordinates, double pitch, double speed) {
+		if (!(speed > 0)) {
+			throw new IllegalArgumentException("speed must be positive: " + speed);
+		}
+		getLastWaypoint(last);
+		kinematics.getGripInfo(last[Arm.GRIP], gripInfo);
+		kinematics.findCoordinates(last, gripInfo.gripLength, from);
+		double fromPitch = last[Arm.SHOULDER] + last[Arm.ELBOW] + last[Arm.WRIST];
+		double distance = direction.setDirection(from, coordinates);
+		int steps = Math.max(1, (int) Math.ceil(distance / STRAIGHT_STEP));
+		double travelled = 0;
+		for (int i = 1; i <= steps; i++) {
+			double next = Math.min(i * STRAIGHT_STEP, distance);
+			point.set(from).addScaled(direction, next);
+			if (!solve(point, fromPitch + (pitch - fromPitch) * i / steps)) {
+				return false;
+			}
+			// convert the tip speed into a joint speed for this step
+			double time = (next - travelled) / speed;
+			travelled = next;
+			double jointDistance = maxDistance(solution, waypoints, (size - 1) * NUM_AXES);
+			if (jointDistance > EPSILON) {
+				add(solution, jointDistance / time, i == steps);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Adds a move of the grip alone to the given separation.
+	 *
+	 * @param separation Distance between the grip pads, in cm
+	 * @param speed Speed of the grip axis, in degrees per second
+	 * @return false if the separation is outside the grip's range
+	 */
+	public boolean grip(double separation, double speed) {
+		double angle = kinematics.findGripAngle(separation, gripInfo);
+		if (Double.isNaN(angle)) {
+			Utility.error("grip separation out of range: %f%n", separation);
+			return false;
+		}
+		getLastWaypoint(solution);
+		solution[Arm.GRIP] = angle;
+		return addJointMove(solution, speed);
+	}
+
+	/**
+	 * Solves IK for the point with the last queued grip into solution, and checks it against the axis ranges.
+	 */
+	private boolean solve(Vec3 target, double pitch) {
+		getLastWaypoint(last);
+		kinematics.getGripInfo(last[Arm.GRIP], gripInfo);
+		kinematics.findAnglesConstantPitch(target.x, target.y, target.z, gripInfo.gripLength, pitch, solution);
+		solution[Arm.GRIP] = last[Arm.GRIP];
+		if (!kinematics.safetyCheckAxisAngles(solution)) {
+			Utility.error("invalid angles:\n%f     %f    %f     %f\nTrying to reach point %s%n", solution[0], solution[1], solution[2], solution[3], target);
+			return false;
+		}
+		return true;
+	}
+
+	private void add(double[] target, double speed, boolean corner) {
+		if (maxDistance(target, waypoints, (size - 1) * NUM_AXES) <= EPSILON) {
+			return;
+		}
+		if (size == speeds.length) {
+			waypoints = Arrays.copyOf(waypoints, size * 2 * NUM_AXES);
+			speeds = Arrays.copyOf(speeds, size * 2);
+			corners = Arrays.copyOf(corners, size * 2);
+		}
+		System.arraycopy(target, 0, waypoints, size * NUM_AXES, NUM_AXES);
+		speeds[size] = speed;
+		corners[size] = corner;
+		size++;
+	}
+
+	/**
+	 * Copies the last queued pose (the start pose if nothing is queued) into the given array.
+	 */
+	public void getLastWaypoint(double[] pose) {
+		System.arraycopy(waypoints, (size - 1) * NUM_AXES, pose, 0, NUM_AXES);
+	}
+
+	/**
+	 * @return Number of waypoints queued, including the start pose
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Plans the queued moves into a trajectory that starts and ends at rest.
+	 *
+	 * @return The trajectory
+	 */
+	public Trajectory plan() {
+		Path path = buildPath();
+		double[] v = speedProfile(path);
+		return timePath(path, v);
+	}
+
+	/**
+	 * Plans the queued moves and plays them on the arm, blocking until they are done.
+	 *
+	 * @param executor Executor for the arm to move
+	 * @return true if the whole path was played
+	 */
+	public boolean execute(MotionExecutor executor) {
+		return executor.execute(plan(), 1.0);
+	}
+
+	/**
+	 * The path through the waypoints with the corners replaced by blends, as a polyline.  Each point
+	 * has a speed limit for the edge leading to it and a limit for passing through it.
+	 */
+	private static class Path {
+		double[] points = new double[64 * NUM_AXES];
+		double[] edgeSpeeds = new double[64];	// cruise speed along the path for the edge ending here
+		double[] pointLimits = new double[64];	// largest speed through the point
+		boolean[] smooth = new boolean[64];	// true if the point is part of a blend
+		int size = 0;
+
+		void add(double[] source, int offset, double speed, boolean isSmooth) {
+			if (size > 0 && maxDistance(source, offset, points, (size - 1) * NUM_AXES) <= EPSILON) {
+				smooth[size - 1] &= isSmooth;
+				return;
+			}
+			if (size == edgeSpeeds.length) {
+				points = Arrays.copyOf(points, size * 2 * NUM_AXES);
+				edgeSpeeds = Arrays.copyOf(edgeSpeeds, size * 2);
+				pointLimits = Arrays.copyOf(pointLimits, size * 2);
+				smooth = Arrays.copyOf(smooth, size * 2);
+			}
+			System.arraycopy(source, offset, points, size * NUM_AXES, NUM_AXES);
+			edgeSpeeds[size] = speed;
+			smooth[size] = isSmooth;
+			size++;
+		}
+
+		double length(int i) {
+			return distance(points, (i - 1) * NUM_AXES, points, i * NUM_AXES);
+		}
+	}
+
+	private Path buildPath() {
+		Path path = new Path();
+		// how far back from each waypoint its blend starts (0 for a sharp corner)
+		double[] blend = new double[size];
+		for (int k = 1; k < size - 1; k++) {
+			double turn = turn(waypoints, (k - 1) * NUM_AXES, k * NUM_AXES, (k + 1) * NUM_AXES);
+			double before = distance(waypoints, (k - 1) * NUM_AXES, waypoints, k * NUM_AXES);
+			double after = distance(waypoints, k * NUM_AXES, waypoints, (k + 1) * NUM_AXES);
+			// the middle of the blend is turn * blend / 4 from the waypoint
+			double limit = corners[k] ? 4 * cornerTolerance / turn : Double.POSITIVE_INFINITY;
+			blend[k] = turn > EPSILON ? Math.min(limit, Math.min(before, after) / 2) : 0;
+		}
+
+		double[] start = new double[NUM_AXES];
+		double[] corner = new double[NUM_AXES];
+		double[] end = new double[NUM_AXES];
+		double[] sample = new double[NUM_AXES];
+		path.add(waypoints, 0, 0, false);
+		for (int k = 1; k < size; k++) {
+			boolean blended = k < size - 1 && blend[k] > EPSILON;
+			if (!blended) {
+				// straight to the waypoint; a sharp corner unless the path doesn't turn there
+				boolean straight = k < size - 1 && turn(waypoints, (k - 1) * NUM_AXES, k * NUM_AXES, (k + 1) * NUM_AXES) <= EPSILON;
+				path.add(waypoints, k * NUM_AXES, speeds[k], straight);
+				continue;
+			}
+			// straight to the start of the blend, then along the blend to its end
+			pointAlong(waypoints, k * NUM_AXES, (k - 1) * NUM_AXES, blend[k], start);
+			path.add(start, 0, speeds[k], true);
+			System.arraycopy(waypoints, k * NUM_AXES, corner, 0, NUM_AXES);
+			pointAlong(waypoints, k * NUM_AXES, (k + 1) * NUM_AXES, blend[k], end);
+			double speed = Math.min(speeds[k], speeds[k + 1]);
+			for (int piece = 1; piece <= BLEND_PIECES; piece++) {
+				double t = (double) piece / BLEND_PIECES;
+				for (int axis = 0; axis < NUM_AXES; axis++) {
+					sample[axis] = (1 - t) * (1 - t) * start[axis] + 2 * (1 - t) * t * corner[axis] + t * t * end[axis];
+				}
+				path.add(sample, 0, speed, true);
+			}
+		}
+
+		// speeds are given for the fastest axis; convert them to speeds along the path
+		for (int i = 1; i < path.size; i++) {
+			double length = path.length(i);
+			double fastest = maxDistance(path.points, (i - 1) * NUM_AXES, path.points, i * NUM_AXES);
+			path.edgeSpeeds[i] *= fastest > EPSILON ? length / fastest : 1;
+		}
+		// going around a blend at speed v needs about v^2 * turn / length of acceleration
+		for (int i = 1; i < path.size - 1; i++) {
+			double turn = turn(path.points, (i - 1) * NUM_AXES, i * NUM_AXES, (i + 1) * NUM_AXES);
+			if (turn <= EPSILON) {
+				path.pointLimits[i] = Double.POSITIVE_INFINITY;
+			} else if (path.smooth[i]) {
+				path.pointLimits[i] = Math.sqrt(acceleration * Math.min(path.length(i), path.length(i + 1)) / turn);
+			} else {
+				path.pointLimits[i] = 0;
+			}
+		}
+		return path;
+	}
+
+	/**
+	 * Finds the largest speed through each point of the path that never needs more than the
+	 * acceleration limit to reach or leave, starting and ending at rest.
+	 */
+	private double[] speedProfile(Path path) {
+		int n = path.size;
+		double[] v = new double[n];
+		for (int i = 1; i < n - 1; i++) {
+			v[i] = Math.min(path.pointLimits[i], Math.min(path.edgeSpeeds[i], path.edgeSpeeds[i + 1]));
+		}
+		// forward pass: limited by how fast the arm can speed up
+		for (int i = 1; i < n; i++) {
+			v[i] = Math.min(v[i], Math.sqrt(v[i - 1] * v[i - 1] + 2 * acceleration * path.length(i)));
+		}
+		// backward pass: limited by how fast the arm can slow down
+		for (int i = n - 2; i >= 0; i--) {
+			v[i] = Math.min(v[i], Math.sqrt(v[i + 1] * v[i + 1] + 2 * acceleration * path.length(i + 1)));
+		}
+		return v;
+	}
+
+	/**
+	 * Turns the path and its speed profile into timed waypoints.  Each edge is a trapezoid (or
+	 * triangle) of speed over time, and the speed changes are split into pieces so that linear
+	 * interpolation between waypoints follows them closely.
+	 */
+	private Trajectory timePath(Path path, double[] v) {
+		Trajectory trajectory = new Trajectory(path.size * 2);
+		double[] pose = new double[NUM_AXES];
+		double time = 0;
+		System.arraycopy(path.points, 0, pose, 0, NUM_AXES);
+		trajectory.add(time, pose);
+		double a = acceleration;
+		for (int i = 1; i < path.size; i++) {
+			double length = path.length(i);
+			double v0 = v[i - 1];
+			double v1 = v[i];
+			double cruise = Math.max(path.edgeSpeeds[i], Math.max(v0, v1));
+			double peak = Math.min(cruise, Math.sqrt((2 * a * length + v0 * v0 + v1 * v1) / 2));
+			double accelTime = Math.max(0, (peak - v0) / a);
+			double decelTime = Math.max(0, (peak - v1) / a);
+			double accelDistance = (v0 + peak) / 2 * accelTime;
+			double decelDistance = (peak + v1) / 2 * decelTime;
+			double cruiseTime = Math.max(0, (length - accelDistance - decelDistance) / peak);
+
+			int from = (i - 1) * NUM_AXES;
+			int to = i * NUM_AXES;
+			for (int piece = 1; accelTime > 0 && piece <= RAMP_PIECES; piece++) {
+				double t = accelTime * piece / RAMP_PIECES;
+				addPoint(trajectory, path, from, to, (v0 * t + a * t * t / 2) / length, time + t, pose);
+			}
+			if (cruiseTime > 0) {
+				addPoint(trajectory, path, from, to, (accelDistance + peak * cruiseTime) / length, time + accelTime + cruiseTime, pose);
+			}
+			double decelStart = time + accelTime + cruiseTime;
+			double decelFrom = length - decelDistance;
+			for (int piece = 1; decelTime > 0 && piece <= RAMP_PIECES; piece++) {
+				double t = decelTime * piece / RAMP_PIECES;
+				addPoint(trajectory, path, from, to, (decelFrom + peak * t - a * t * t / 2) / length, decelStart + t, pose);
+			}
+			time += accelTime + cruiseTime + decelTime;
+		}
+		return trajectory;
+	}
+
+	private static void addPoint(Trajectory trajectory, Path path, int from, int to, double fraction, double time, double[] pose) {
+		fraction = Math.min(1, fraction);
+		for (int axis = 0; axis < NUM_AXES; axis++) {
+			pose[axis] = path.points[from + axis] + (path.points[to + axis] - path.points[from + axis]) * fraction;
+		}
+		trajectory.add(time, pose);
+	}
+
+	/**
+	 * Writes the point the given distance from a toward b into out.
+	 */
+	private static void pointAlong(double[] points, int a, int b, double distance, double[] out) {
+		double fraction = distance / distance(points, a, points, b);
+		for (int axis = 0; axis < NUM_AXES; axis++) {
+			out[axis] = points[a + axis] + (points[b + axis] - points[a + axis]) * fraction;
+		}
+	}
+
+	/**
+	 * How sharply the path turns at b: the length of the difference between the unit directions of
+	 * a-b and b-c (0 for straight on, 2 for straight back).
+	 */
+	private static double turn(double[] points, int a, int b, int c) {
+		double before = distance(points, a, points, b);
+		double after = distance(points, b, points, c);
+		if (before <= EPSILON || after <= EPSILON) {
+			return 0;
+		}
+		double sum = 0;
+		for (int axis = 0; axis < NUM_AXES; axis++) {
+			double d = (points[c + axis] - points[b + axis]) / after - (points[b + axis] - points[a + axis]) / before;
+			sum += d * d;
+		}
+		return Math.sqrt(sum);
+	}
+
+	private static double distance(double[] p, int a, double[] q, int b) {
+		double sum = 0;
+		for (int axis = 0; axis < NUM_AXES; axis++) {
+			double d = q[b + axis] - p[a + axis];
+			sum += d * d;
+		}
+		return Math.sqrt(sum);
+	}
+
+	private static double maxDistance(double[] p, int a, double[] q, int b) {
+		double max = 0;
+		for (int axis = 0; axis < NUM_AXES; axis++) {
+			max = Math.max(max, Math.abs(q[b + axis] - p[a + axis]));
+		}
+		return max;
+	}
+
+	private static double maxDistance(double[] pose, double[] q, int b) {
+		return maxDistance(pose, 0, q, b);
+	}
+}
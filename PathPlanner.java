@@ -0,0 +1,335 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Finds collision-free paths through the joint space of the base, shoulder, elbow and wrist, avoiding
+ * the board and the boxes of a Workspace.  The grip is held at its start angle.
+ *
+ * Planning uses RRT-Connect: two trees of poses grow toward random samples, one from the start and
+ * one from the goal, each trying to reach the other after every step.  Once they meet, the path is
+ * shortened by repeatedly replacing random stretches of it with straight lines where those are free.
+ *
+ * An edge is checked by testing poses along it every RESOLUTION degrees.  Long edges (the direct
+ * connection attempts and the shortcuts) are split across a ForkJoinPool, and the whole check stops
+ * as soon as any part of it finds a collision.
+ *
+ * A PathPlanner is not safe to use from two threads at once, but the Workspace it plans in may be
+ * shared.
+ */
+public class PathPlanner {
+	// largest step of a tree toward a sample, in degrees on any axis
+	public static final double STEP = 10;
+	// spacing of the poses checked along an edge, in degrees on any axis
+	public static final double RESOLUTION = 2;
+	// samples tried before giving up
+	public static final int MAX_ITERATIONS = 5000;
+	// random shortcuts tried on a path that was found
+	public static final int SHORTCUT_ATTEMPTS = 60;
+
+	// edges with fewer poses than this are checked on the calling thread
+	private static final int PARALLEL_THRESHOLD = 24;
+	// base, shoulder, elbow and wrist are planned; the grip is not
+	private static final int DIMENSIONS = 4;
+	private static final int NUM_AXES = Arm.NUM_AXES;
+
+	private static final Metrics.Counter plans = Metrics.counter("pathPlans");
+	private static final Metrics.Counter planFailures = Metrics.counter("pathPlanFailures");
+
+	private final Kinematics kinematics;
+	private final Workspace workspace;
+	private final ForkJoinPool pool;
+	private final Random random;
+
+	// grip length for the plan in progress
+	private double gripLength;
+	private final GripInfo gripInfo = new GripInfo();
+
+	/**
+	 * Constructor - checks edges on the common ForkJoinPool.
+	 *
+	 * @param kinematics Geometry of the arm
+	 * @param workspace Obstacles to avoid
+	 */
+	public PathPlanner(Kinematics kinematics, Workspace workspace) {
+		this(kinematics, workspace, ForkJoinPool.commonPool(), new Random());
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param kinematics Geometry of the arm
+	 * @param workspace Obstacles to avoid
+	 * @param pool Pool to check long edges on
+	 * @param random Source of samples; seed it to make plans repeatable
+	 */
+	public PathPlanner(Kinematics kinematics, Workspace workspace, ForkJoinPool pool, Random random) {
+		this.kinematics = kinematics;
+		this.workspace = workspace;
+		this.pool = pool;
+		this.random = random;
+	}
+
+	/**
+	 * Plans a path from one pose to another.
+	 *
+	 * @param start All five axis angles to start from
+	 * @param goal Axis angles to end at.  The grip angle is ignored; the grip stays at its start angle.
+	 * @return The poses to move through in turn, first start and last goal, or null if either end is
+	 *         blocked or outside the axis ranges, or no path was found
+	 */
+	public List<double[]> plan(double[] start, double[] goal) {
+		plans.increment();
+		kinematics.getGripInfo(start[Arm.GRIP], gripInfo);
+		gripLength = gripInfo.gripLength;
+		double[] from = Arrays.copyOf(start, NUM_AXES);
+		double[] to = Arrays.copyOf(goal, NUM_AXES);
+		to[Arm.GRIP] = from[Arm.GRIP];
+		if (!isPoseFree(from) || !isPoseFree(to)) {
+			Utility.error("cannot plan path: %s end is blocked or out of range%n", isPoseFree(from) ? "goal" : "start");
+			planFailures.increment();
+			return null;
+		}
+
+		List<double[]> path = isEdgeFree(from, to) ? pathOf(from, to) : search(from, to);
+		if (path == null) {
+			Utility.error("cannot plan path: no path found in %d samples%n", MAX_ITERATIONS);
+			planFailures.increment();
+			return null;
+		}
+		shortcut(path);
+		return path;
+	}
+
+	private static List<double[]> pathOf(double[] from, double[] to) {
+		List<double[]> path = new ArrayList<double[]>();
+		path.add(from);
+		path.add(to);
+		return path;
+	}
+
+	/**
+	 * RRT-Connect.  Returns the path from start to goal, or null.
+	 */
+	private List<double[]> search(double[] start, double[] goal) {
+		Tree a = new Tree(start);
+		Tree b = new Tree(goal);
+		double[] sample = Arrays.copyOf(start, NUM_AXES);
+		for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+			for (int axis = 0; axis < DIMENSIONS; axis++) {
+				double[] range = kinematics.axisRanges[axis];
+				sample[axis] = range[0] + random.nextDouble() * (range[1] - range[0]);
+			}
+			if (extend(a, sample) >= 0) {
+				double[] reached = a.pose(a.size - 1);
+				int joined = connect(b, reached);
+				if (joined >= 0) {
+					// the trees meet at reached; walk back up both of them
+					Tree fromStart = a.root == start ? a : b;
+					Tree fromGoal = a.root == start ? b : a;
+					int startEnd = fromStart == a ? a.size - 1 : joined;
+					int goalEnd = fromGoal == a ? a.size - 1 : joined;
+					List<double[]> path = new ArrayList<double[]>();
+					for (int i = startEnd; i >= 0; i = fromStart.parents[i]) {
+						path.add(0, fromStart.pose(i));
+					}
+					for (int i = fromGoal.parents[goalEnd]; i >= 0; i = fromGoal.parents[i]) {
+						path.add(fromGoal.pose(i));
+					}
+					return path;
+				}
+			}
+			Tree swap = a;
+			a = b;
+			b = swap;
+		}
+		return null;
+	}
+
+	/**
+	 * Grows the tree one step toward the target.  Returns the index of the new node, or -1 if the
+	 * step is blocked.
+	 */
+	private int extend(Tree tree, double[] target) {
+		int nearest = tree.nearest(target);
+		double[] near = tree.pose(nearest);
+		double distance = maxDistance(near, target);
+		double[] next = Arrays.copyOf(target, NUM_AXES);
+		if (distance > STEP) {
+			for (int axis = 0; axis < DIMENSIONS; axis++) {
+				next[axis] = near[axis] + (target[axis] - near[axis]) * STEP / distance;
+			}
+		}
+		if (!isEdgeFree(near, next)) {
+			return -1;
+		}
+		return tree.add(next, nearest);
+	}
+
+	/**
+	 * Grows the tree all the way to the target if it can.  The direct edge from the nearest node is
+	 * tried first, then steps toward the target until one is blocked.  Returns the index of the node
+	 * at the target, or -1 if it wasn't reached.
+	 */
+	private int connect(Tree tree, double[] target) {
+		int nearest = tree.nearest(target);
+		if (isEdgeFree(tree.pose(nearest), target)) {
+			return tree.add(Arrays.copyOf(target, NUM_AXES), nearest);
+		}
+		while (true) {
+			int added = extend(tree, target);
+			if (added < 0) {
+				return -1;
+			}
+			if (maxDistance(tree.pose(added), target) == 0) {
+				return added;
+			}
+		}
+	}
+
+	/**
+	 * Replaces random stretches of the path with straight edges where they are free.
+	 */
+	private void shortcut(List<double[]> path) {
+		for (int attempt = 0; attempt < SHORTCUT_ATTEMPTS && path.size() > 2; attempt++) {
+			int i = random.nextInt(path.size() - 2);
+			int j = i + 2 + random.nextInt(path.size() - i - 2);
+			if (isEdgeFree(path.get(i), path.get(j))) {
+				path.subList(i + 1, j).clear();
+			}
+		}
+	}
+
+	private boolean isPoseFree(double[] pose) {
+		return kinematics.safetyCheckAxisAngles(pose) && workspace.isFree(pose, gripLength);
+	}
+
+	/**
+	 * Checks the poses along an edge, excluding its start.  Both ends must be within the axis ranges,
+	 * so every pose between them is too.
+	 */
+	boolean isEdgeFree(double[] from, double[] to) {
+		int steps = Math.max(1, (int) Math.ceil(maxDistance(from, to) / RESOLUTION));
+		if (steps < PARALLEL_THRESHOLD) {
+			return isStretchFree(from, to, steps, 1, steps + 1, null);
+		}
+		EdgeCheck check = new EdgeCheck(from, to, steps, 1, steps + 1, new AtomicBoolean());
+		pool.invoke(check);
+		return !check.blocked.get();
+	}
+
+	/**
+	 * Checks poses first to last - 1 of an edge split into steps.  Stops early if blocked is set by
+	 * another part of the same check.
+	 */
+	private boolean isStretchFree(double[] from, double[] to, int steps, int first, int last, AtomicBoolean blocked) {
+		double[] pose = Arrays.copyOf(from, NUM_AXES);
+		for (int i = first; i < last; i++) {
+			if (blocked != null && blocked.get()) {
+				return false;
+			}
+			double fraction = (double) i / steps;
+			for (int axis = 0; axis < DIMENSIONS; axis++) {
+				pose[axis] = from[axis] + (to[axis] - from[axis]) * fraction;
+			}
+			if (!workspace.isFree(pose, gripLength)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks a stretch of an edge, splitting it in half until the pieces are small enough.
+	 */
+	private class EdgeCheck extends RecursiveAction {
+		private final double[] from;
+		private final double[] to;
+		private final int steps;
+		private final int first;
+		private final int last;
+		final AtomicBoolean blocked;
+
+		EdgeCheck(double[] from, double[] to, int steps, int first, int last, AtomicBoolean blocked) {
+			this.from = from;
+			this.to = to;
+			this.steps = steps;
+			this.first = first;
+			this.last = last;
+			this.blocked = blocked;
+		}
+
+		protected void compute() {
+			if (blocked.get()) {
+				return;
+			}
+			if (last - first <= PARALLEL_THRESHOLD / 2) {
+				if (!isStretchFree(from, to, steps, first, last, blocked)) {
+					blocked.set(true);
+				}
+				return;
+			}
+			int middle = (first + last) >>> 1;
+			invokeAll(new EdgeCheck(from, to, steps, first, middle, blocked),
+					new EdgeCheck(from, to, steps, middle, last, blocked));
+		}
+	}
+
+	/**
+	 * A tree of poses, each but the root linked to its parent.
+	 */
+	private static class Tree {
+		final double[] root;
+		double[] poses = new double[256 * NUM_AXES];
+		int[] parents = new int[256];
+		int size = 0;
+
+		Tree(double[] root) {
+			this.root = root;
+			add(root, -1);
+		}
+
+		int add(double[] pose, int parent) {
+			if (size == parents.length) {
+				poses = Arrays.copyOf(poses, size * 2 * NUM_AXES);
+				parents = Arrays.copyOf(parents, size * 2);
+			}
+			System.arraycopy(pose, 0, poses, size * NUM_AXES, NUM_AXES);
+			parents[size] = parent;
+			return size++;
+		}
+
+		double[] pose(int i) {
+			return Arrays.copyOfRange(poses, i * NUM_AXES, (i + 1) * NUM_AXES);
+		}
+
+		int nearest(double[] target) {
+			int best = 0;
+			double bestDistance = Double.POSITIVE_INFINITY;
+			for (int i = 0; i < size; i++) {
+				double sum = 0;
+				for (int axis = 0; axis < DIMENSIONS; axis++) {
+					double d = poses[i * NUM_AXES + axis] - target[axis];
+					sum += d * d;
+				}
+				if (sum < bestDistance) {
+					bestDistance = sum;
+					best = i;
+				}
+			}
+			return best;
+		}
+	}
+
+	private static double maxDistance(double[] a, double[] b) {
+		double max = 0;
+		for (int axis = 0; axis < DIMENSIONS; axis++) {
+			max = Math.max(max, Math.abs(b[axis] - a[axis]));
+		}
+		return max;
+	}
+}
@@ -0,0 +1,136 @@
+/**
+ * A single pick-and-place job for the TaskEngine: pick a block up at one point and put it down at
+ * another.  By default the gripper approaches and leaves each point vertically, from the approach
+ * height above it; a Stop can give any other path in and out.
+ */
+public class PickPlaceJob {
+	/**
+	 * One end of a job: where the block is grabbed or released, and the path in to it and back out.
+	 * Waypoints are given as {x, y, z, pitch}, in cm and degrees.  The gripper is moved to the
+	 * approach in joint space, then on to the point and out through each retreat waypoint in turn,
+	 * either with the grip tip in straight lines or in joint space.
+	 */
+	public static class Stop {
+		// where the gripper goes before coming in to the point
+		final Vec3 approach;
+		final double approachPitch;
+		// where the grip tip should be when grabbing or releasing the block, and the pitch there
+		final Vec3 point;
+		final double pitch;
+		// where the gripper goes afterwards, in order
+		final Vec3[] retreat;
+		final double[] retreatPitches;
+		// whether the moves in and out are straight lines of the grip tip, or moves in joint space
+		final boolean straight;
+
+		/**
+		 * Constructor
+		 *
+		 * @param approach Where to start coming in from {x, y, z, pitch}
+		 * @param point Where to grab or release the block {x, y, z, pitch}
+		 * @param straight true to move the grip tip in straight lines in and out, false to move in joint space
+		 * @param retreat Where to go afterwards, at least one {x, y, z, pitch}
+		 */
+		public Stop(double[] approach, double[] point, boolean straight, double[]... retreat) {
+			if (retreat.length == 0) {
+				throw new IllegalArgumentException("a stop needs somewhere to retreat to");
+			}
+			this.approach = new Vec3(waypoint(approach));
+			this.approachPitch = approach[3];
+			this.point = new Vec3(waypoint(point));
+			this.pitch = point[3];
+			this.straight = straight;
+			this.retreat = new Vec3[retreat.length];
+			this.retreatPitches = new double[retreat.length];
+			for (int i = 0; i < retreat.length; i++) {
+				this.retreat[i] = new Vec3(waypoint(retreat[i]));
+				this.retreatPitches[i] = retreat[i][3];
+			}
+		}
+
+		/**
+		 * @return A stop that comes in and goes out straight down and up from the given height above the point
+		 */
+		static Stop vertical(double[] point, double pitch, double height) {
+			double[] above = {point[0], point[1], point[2] + height, pitch};
+			return new Stop(above, new double[] {point[0], point[1], point[2], pitch}, true, above);
+		}
+
+		private static double[] waypoint(double[] waypoint) {
+			if (waypoint.length != 4) {
+				throw new IllegalArgumentException("waypoints are {x, y, z, pitch}, not " + waypoint.length + " numbers");
+			}
+			return waypoint;
+		}
+
+		public String toString() {
+			return point.toString();
+		}
+	}
+
+	final Stop pick;
+	final Stop place;
+	// how far apart the grip should be when "open" (not holding a block) and "closed" (holding a block).
+	// for more pressure, specify a smaller closed separation
+	final double openSeparation;
+	final double closeSeparation;
+
+	/**
+	 * Constructor - uses the same pitch at both ends and the grip separations from Arm.stackBlocks.
+	 *
+	 * @param pick Where to grab the block
+	 * @param place Where to release the block
+	 * @param pitch Pitch of the gripper
+	 * @param approachHeight Height of the vertical approach
+	 */
+	public PickPlaceJob(double[] pick, double[] place, double pitch, double approachHeight) {
+		this(pick, place, pitch, pitch, approachHeight, approachHeight, 4, 2);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param pick Where to grab the block {x, y, z}
+	 * @param place Where to release the block {x, y, z}
+	 * @param pickPitch Pitch of the gripper when grabbing
+	 * @param placePitch Pitch of the gripper when releasing
+	 * @param pickApproach Height of the vertical approach to pick
+	 * @param placeApproach Height of the vertical approach to place
+	 * @param openSeparation Grip separation when not holding a block
+	 * @param closeSeparation Grip separation when holding a block
+	 */
+	public PickPlaceJob(double[] pick, double[] place, double pickPitch, double placePitch, double pickApproach,
+			double placeApproach, double openSeparation, double closeSeparation) {
+		this(Stop.vertical(pick, pickPitch, pickApproach), Stop.vertical(place, placePitch, placeApproach),
+				openSeparation, closeSeparation);
+	}
+
+	/**
+	 * Constructor - uses the grip separations from Arm.stackBlocks.
+	 *
+	 * @param pick Where and how to grab the block
+	 * @param place Where and how to release the block
+	 */
+	public PickPlaceJob(Stop pick, Stop place) {
+		this(pick, place, 4, 2);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param pick Where and how to grab the block
+	 * @param place Where and how to release the block
+	 * @param openSeparation Grip separation when not holding a block
+	 * @param closeSeparation Grip separation when holding a block
+	 */
+	public PickPlaceJob(Stop pick, Stop place, double openSeparation, double closeSeparation) {
+		this.pick = pick;
+		this.place = place;
+		this.openSeparation = openSeparation;
+		this.closeSeparation = closeSeparation;
+	}
+
+	public String toString() {
+		return "pick " + pick + " place " + place;
+	}
+}
@@ -0,0 +1,136 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Publishes the arm's commanded pose into a small memory-mapped file, so that other programs on the
+ * same computer (dashboards, loggers, a simulation of the arm) can watch it at full rate by reading
+ * memory, without system calls and without slowing the control thread.  Put the file on a RAM disk
+ * such as /dev/shm to keep it off the storage device.  PoseReader reads it from Java.
+ *
+ * The pose is written with the same seqlock as PoseSnapshot, but with the version in the file: it is
+ * made odd before a write and even after, and a reader that sees it odd, or changed after copying the
+ * data, must copy again.
+ *
+ * File layout (little endian, FILE_SIZE bytes):
+ *   header: int magic, int version, int file size
+ *   at POSE_OFFSET, on its own cache line:
+ *     long seqlock version (odd while being written)
+ *     long count of poses published
+ *     long timestamp, nanoseconds since the epoch
+ *     5 doubles: base, shoulder, elbow, wrist and grip angles, in degrees
+ *     3 doubles: grip tip x, y, z from the forward kinematics, in cm
+ *     double pitch of the gripper, in degrees
+ *     3 doubles: grip separation and grip length in cm, grip pad angle in degrees
+ *
+ * Publishing works out the tip and grip without allocating, then takes about as long as copying 16
+ * numbers.  Not safe to publish from two threads at once.
+ */
+public class PosePublisher {
+	public static final int MAGIC = 0x41524D50;	// "ARMP"
+	public static final int VERSION = 1;
+	public static final int FILE_SIZE = 256;
+
+	// header offsets
+	static final int MAGIC_OFFSET = 0;
+	static final int VERSION_OFFSET = 4;
+	static final int SIZE_OFFSET = 8;
+
+	// pose offsets
+	static final int POSE_OFFSET = 64;
+	static final int SEQLOCK_OFFSET = POSE_OFFSET;
+	static final int COUNT_OFFSET = POSE_OFFSET + 8;
+	static final int TIME_OFFSET = POSE_OFFSET + 16;
+	static final int ANGLES_OFFSET = POSE_OFFSET + 24;
+	static final int TIP_OFFSET = ANGLES_OFFSET + 5 * 8;
+	static final int PITCH_OFFSET = TIP_OFFSET + 3 * 8;
+	static final int GRIP_OFFSET = PITCH_OFFSET + 8;
+
+	static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+	private final MappedByteBuffer buffer;
+	private final Kinematics kinematics;
+
+	// converts System.nanoTime into nanoseconds since the epoch
+	private final long epochOffset;
+
+	private long version = 0;
+	private long count = 0;
+	private final double[] tip = new double[3];
+	private final GripInfo gripInfo = new GripInfo();
+
+	private PosePublisher(MappedByteBuffer buffer, Kinematics kinematics) {
+		this.buffer = buffer;
+		this.kinematics = kinematics;
+		this.epochOffset = System.currentTimeMillis() * 1000000L - System.nanoTime();
+	}
+
+	/**
+	 * Creates (or takes over) a pose file.  Readers already watching it see the count start again.
+	 *
+	 * @param file The pose file
+	 * @param kinematics Geometry of the arm, for the tip and grip
+	 * @return The publisher
+	 * @throws IOException if the file cannot be mapped
+	 */
+	public static PosePublisher open(File file, Kinematics kinematics) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(FILE_SIZE);
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			PosePublisher publisher = new PosePublisher(buffer, kinematics);
+			// carry on from the version in the file, so a reader never sees it go backwards
+			long version = buffer.getInt(MAGIC_OFFSET) == MAGIC ? (long) LONGS.getAcquire(buffer, SEQLOCK_OFFSET) : 0;
+			publisher.version = (version + 1) & ~1L;
+			buffer.putInt(MAGIC_OFFSET, MAGIC);
+			buffer.putInt(VERSION_OFFSET, VERSION);
+			buffer.putInt(SIZE_OFFSET, FILE_SIZE);
+			return publisher;
+		} finally {
+			// the mapping stays valid after the file is closed
+			raf.close();
+		}
+	}
+
+	/**
+	 * Publishes a pose.
+	 *
+	 * @param angles All five axis angles
+	 */
+	public void publish(double[] angles) {
+		// work everything out first, so the version is odd for as short a time as possible
+		kinematics.getGripInfo(angles[Arm.GRIP], gripInfo);
+		kinematics.findCoordinates(angles, gripInfo.gripLength, tip);
+		long time = epochOffset + System.nanoTime();
+
+		LONGS.setOpaque(buffer, SEQLOCK_OFFSET, version + 1);
+		VarHandle.storeStoreFence();
+		buffer.putLong(COUNT_OFFSET, ++count);
+		buffer.putLong(TIME_OFFSET, time);
+		for (int i = 0; i < Arm.NUM_AXES; i++) {
+			buffer.putDouble(ANGLES_OFFSET + i * 8, angles[i]);
+		}
+		for (int i = 0; i < 3; i++) {
+			buffer.putDouble(TIP_OFFSET + i * 8, tip[i]);
+		}
+		buffer.putDouble(PITCH_OFFSET, angles[Arm.SHOULDER] + angles[Arm.ELBOW] + angles[Arm.WRIST]);
+		buffer.putDouble(GRIP_OFFSET, gripInfo.gripSeparation);
+		buffer.putDouble(GRIP_OFFSET + 8, gripInfo.gripLength);
+		buffer.putDouble(GRIP_OFFSET + 16, gripInfo.gripPadAngle);
+		version += 2;
+		LONGS.setRelease(buffer, SEQLOCK_OFFSET, version);
+	}
+
+	/**
+	 * @return Number of poses published since the file was opened
+	 */
+	public long getCount() {
+		return count;
+	}
+}
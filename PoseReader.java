@@ -0,0 +1,152 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the pose a PosePublisher keeps in a memory-mapped file, from another program.  Reading copies
+ * the pose out of memory and never blocks the arm; run it as a program to print the pose as it
+ * changes.
+ *
+ * java PoseReader <file> [reads per second]
+ */
+public class PoseReader {
+	private static final VarHandle LONGS = PosePublisher.LONGS;
+
+	private final MappedByteBuffer buffer;
+
+	// copy of the pose made by read()
+	private long count;
+	private long time;
+	private final double[] angles = new double[Arm.NUM_AXES];
+	private final double[] tip = new double[3];
+	private double pitch;
+	private double gripSeparation;
+	private double gripLength;
+	private double gripPadAngle;
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 1) {
+			System.out.println("usage: java PoseReader <file> [reads per second]");
+			return;
+		}
+		double rate = args.length > 1 ? Double.parseDouble(args[1]) : 10;
+		PoseReader reader = open(new File(args[0]));
+		long last = -1;
+		while (true) {
+			long count = reader.read();
+			if (count != last) {
+				last = count;
+				System.out.printf("%d  angles %.1f %.1f %.1f %.1f %.1f  tip (%.2f, %.2f, %.2f)  pitch %.1f  grip %.2f cm%n",
+						count, reader.angles[0], reader.angles[1], reader.angles[2], reader.angles[3], reader.angles[4],
+						reader.tip[0], reader.tip[1], reader.tip[2], reader.pitch, reader.gripSeparation);
+			}
+			Thread.sleep((long) (1000 / rate));
+		}
+	}
+
+	private PoseReader(MappedByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Maps a pose file for reading.
+	 *
+	 * @param file The pose file
+	 * @return The reader
+	 * @throws IOException if the file cannot be mapped or is not a pose file
+	 */
+	public static PoseReader open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			if (raf.length() < PosePublisher.FILE_SIZE) {
+				throw new IOException(file + " is not a pose file");
+			}
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, PosePublisher.FILE_SIZE);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			if (buffer.getInt(PosePublisher.MAGIC_OFFSET) != PosePublisher.MAGIC
+					|| buffer.getInt(PosePublisher.VERSION_OFFSET) != PosePublisher.VERSION) {
+				throw new IOException(file + " is not a pose file");
+			}
+			return new PoseReader(buffer);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Copies the latest pose.  Spins while the publisher is half way through a write, which takes well
+	 * under a microsecond.
+	 *
+	 * @return Count of poses published when the copy was made, 0 if none yet.  The same count means
+	 *         the same pose.
+	 */
+	public long read() {
+		while (true) {
+			long v = (long) LONGS.getAcquire(buffer, PosePublisher.SEQLOCK_OFFSET);
+			if ((v & 1) != 0) {
+				Thread.onSpinWait();
+				continue;
+			}
+			count = buffer.getLong(PosePublisher.COUNT_OFFSET);
+			time = buffer.getLong(PosePublisher.TIME_OFFSET);
+			for (int i = 0; i < angles.length; i++) {
+				angles[i] = buffer.getDouble(PosePublisher.ANGLES_OFFSET + i * 8);
+			}
+			for (int i = 0; i < 3; i++) {
+				tip[i] = buffer.getDouble(PosePublisher.TIP_OFFSET + i * 8);
+			}
+			pitch = buffer.getDouble(PosePublisher.PITCH_OFFSET);
+			gripSeparation = buffer.getDouble(PosePublisher.GRIP_OFFSET);
+			gripLength = buffer.getDouble(PosePublisher.GRIP_OFFSET + 8);
+			gripPadAngle = buffer.getDouble(PosePublisher.GRIP_OFFSET + 16);
+			VarHandle.loadLoadFence();
+			if ((long) LONGS.getAcquire(buffer, PosePublisher.SEQLOCK_OFFSET) == v) {
+				return count;
+			}
+		}
+	}
+
+	// Getters for the pose copied by the last read().
+
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return When the pose was published, in nanoseconds since the epoch
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	public double getAxisAngle(int axis) {
+		return angles[axis];
+	}
+
+	/**
+	 * @param coordinates Array to write the grip tip's x, y and z into, in cm
+	 */
+	public void getTip(double[] coordinates) {
+		System.arraycopy(tip, 0, coordinates, 0, 3);
+	}
+
+	public double getPitch() {
+		return pitch;
+	}
+
+	public double getGripSeparation() {
+		return gripSeparation;
+	}
+
+	public double getGripLength() {
+		return gripLength;
+	}
+
+	public double getGripPadAngle() {
+		return gripPadAngle;
+	}
+}
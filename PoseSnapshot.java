@@ -0,0 +1,119 @@
+import java.lang.invoke.VarHandle;
+
+/**
+ * Holds the most recent pose of the arm (commanded axis angles and the last hand sample) so that
+ * other threads can read it without ever blocking the thread that controls the arm.
+ *
+ * Writers bump a version counter to an odd value, write the data, then bump it back to an even value.
+ * Readers copy the data and retry if the version changed underneath them (a seqlock).  Writers are
+ * serialized with each other, but readers never take a lock.
+ */
+public class PoseSnapshot {
+	// number of axes on the arm (base, shoulder, elbow, wrist, grip)
+	public static final int NUM_AXES = 5;
+
+	// odd while a write is in progress
+	private volatile long version = 0;
+
+	// pose data, only touched by writers while version is odd
+	private final double[] axisAngles = new double[NUM_AXES];
+	private double handX = 0;
+	private double handY = 0;
+	private double handZ = 0;
+	private double handGrip = 0;
+	private boolean handPresent = false;
+
+	/**
+	 * Publishes a new set of commanded axis angles.
+	 *
+	 * @param angles The axis angles, in degrees.  Must contain NUM_AXES values.
+	 */
+	public synchronized void publishAngles(double[] angles) {
+		long v = version;
+		version = v + 1;
+		VarHandle.storeStoreFence();
+		for (int i = 0; i < NUM_AXES; i++) {
+			axisAngles[i] = angles[i];
+		}
+		version = v + 2;
+	}
+
+	/**
+	 * Publishes a new hand sample in Leap coordinates.
+	 *
+	 * @param x Leap x coordinate
+	 * @param y Leap y coordinate
+	 * @param z Leap z coordinate
+	 * @param grip Leap sphere radius
+	 */
+	public synchronized void publishHand(double x, double y, double z, double grip) {
+		long v = version;
+		version = v + 1;
+		VarHandle.storeStoreFence();
+		handX = x;
+		handY = y;
+		handZ = z;
+		handGrip = grip;
+		handPresent = true;
+		version = v + 2;
+	}
+
+	/**
+	 * Copies the latest pose into another snapshot without locking.  The destination should only be
+	 * used by the calling thread.
+	 *
+	 * @param dest Snapshot to copy into
+	 * @return The version that was copied.  Unchanged versions mean the pose has not changed.
+	 */
+	public long copyTo(PoseSnapshot dest) {
+		while (true) {
+			long v = version;
+			if ((v & 1) != 0) {
+				Thread.onSpinWait();
+				continue;
+			}
+			for (int i = 0; i < NUM_AXES; i++) {
+				dest.axisAngles[i] = axisAngles[i];
+			}
+			dest.handX = handX;
+			dest.handY = handY;
+			dest.handZ = handZ;
+			dest.handGrip = handGrip;
+			dest.handPresent = handPresent;
+			VarHandle.loadLoadFence();
+			if (version == v) {
+				return v;
+			}
+		}
+	}
+
+	// Getters.  These should only be used on a private copy made with copyTo.
+
+	public double getAxisAngle(int axis) {
+		return axisAngles[axis];
+	}
+
+	public double[] getAxisAngles() {
+		return axisAngles;
+	}
+
+	public double getHandX() {
+		return handX;
+	}
+
+	public double getHandY() {
+		return handY;
+	}
+
+	public double getHandZ() {
+		return handZ;
+	}
+
+	public double getHandGrip() {
+		return handGrip;
+	}
+
+	public boolean isHandPresent() {
+		return handPresent;
+	}
+}
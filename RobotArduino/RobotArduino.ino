@@ -2,11 +2,49 @@
 
 int outputPins[] = {11, 10, 9, 6, 5};
 Servo base, shoulder, elbow, wrist, grip;
+Servo* servos[] = {&base, &shoulder, &elbow, &wrist, &grip};
+
+// The host sends one of two kinds of packet (see SerialComm):
+//   angles:   5 angle bytes, written to the servos as soon as they arrive
+//   setpoint: SYNC, 5 angle bytes, a 14 bit timestamp in ms (low 7 bits, high 7 bits) and a 7 bit
+//             checksum of the 8 bytes before it.  The servos are moved smoothly from where they are to
+//             the setpoint over the time since the last setpoint, so the host can send setpoints
+//             far less often than the servos are refreshed.
+// An angle byte is never SYNC and the other setpoint bytes are below 128, so a SYNC always starts a
+// setpoint, and a packet cut short by a lost byte is dropped instead of shifting every packet after it.
+const byte SYNC = 0x81;
+const int NUM_AXES = 5;
+const int SETPOINT_LENGTH = 9;
+
+// how often the servos are sent a new position while moving to a setpoint, the same as their pulse period
+const unsigned long REFRESH_MS = 20;
+// limits on the time taken to reach a setpoint, so a setpoint after a pause doesn't crawl
+const unsigned long MIN_INTERVAL_MS = 10;
+const unsigned long MAX_INTERVAL_MS = 250;
+// pulse widths the Servo library maps 0 and 180 degrees to
+const float MIN_PULSE = 544;
+const float MAX_PULSE = 2400;
+
+// parser state: bytes of the packet being received
+byte packet[SETPOINT_LENGTH];
+int received = 0;
+boolean inSetpoint = false;
+
+// interpolation state, in degrees
+float from[NUM_AXES] = {90, 90, 90, 90, 90};
+float to[NUM_AXES] = {90, 90, 90, 90, 90};
+float position[NUM_AXES] = {90, 90, 90, 90, 90};
+unsigned long moveStart = 0;
+unsigned long moveDuration = 0;
+boolean moving = false;
+unsigned int lastStamp = 0;
+boolean haveStamp = false;
+unsigned long lastRefresh = 0;
 
 void setup() {
   // initialize Serial w/ baud rate 9600
   Serial.begin(9600);
-  
+
   // attach servos to pins
   base.attach(outputPins[4]);
   shoulder.attach(outputPins[3]);
@@ -16,23 +54,104 @@ void setup() {
 }
 
 void loop() {
-  // look for serial data
-  if(Serial.available()) {
-    // load it into a buffer - chars are equivalent to java bytes
-    char received[5];
-    Serial.readBytes(received, 5);
-    
-    // convert the chars into bytes representing angles
-    byte converted[5];
-    for(int i=0; i<5; i++) {
-      converted[i] = map(received[i], -128, 127, 0, 180);
+  // take whatever serial data has arrived, without waiting for the rest of a packet
+  while(Serial.available() > 0) {
+    receive(Serial.read());
+  }
+
+  // move toward the setpoint at the servo refresh rate
+  unsigned long now = millis();
+  if(now - lastRefresh >= REFRESH_MS) {
+    // keep to a steady beat, unless it has fallen a whole refresh behind
+    lastRefresh = now - lastRefresh < 2 * REFRESH_MS ? lastRefresh + REFRESH_MS : now;
+    if(moving) {
+      refresh(now);
     }
-    
-    // write the angles to the servos
-    base.write(converted[0]);
-    shoulder.write(converted[1]);
-    elbow.write(converted[2]);
-    wrist.write(converted[3]);
-    grip.write(converted[4]);
+  }
+}
+
+// feeds one received byte to the packet parser
+void receive(byte b) {
+  if(b == SYNC) {
+    // start of a setpoint, even if another packet was cut short
+    inSetpoint = true;
+    packet[0] = b;
+    received = 1;
+    return;
+  }
+  packet[received++] = b;
+  if(!inSetpoint && received == NUM_AXES) {
+    anglesReceived();
+    received = 0;
+  } else if(inSetpoint && received == SETPOINT_LENGTH) {
+    setpointReceived();
+    inSetpoint = false;
+    received = 0;
+  }
+}
+
+// converts a received byte to a degree - chars are equivalent to java bytes
+int toDegree(byte b) {
+  return map((char) b, -128, 127, 0, 180);
+}
+
+// an angle packet: write the angles to the servos straight away
+void anglesReceived() {
+  moving = false;
+  haveStamp = false;
+  for(int i=0; i<NUM_AXES; i++) {
+    position[i] = toDegree(packet[i]);
+    servos[i]->write((int) position[i]);
+  }
+}
+
+// a setpoint packet: start moving to it from where the servos are now
+void setpointReceived() {
+  byte check = 0;
+  for(int i=0; i<SETPOINT_LENGTH - 1; i++) {
+    check += packet[i];
+  }
+  if((check & 0x7F) != packet[SETPOINT_LENGTH - 1]) {
+    return;
+  }
+  unsigned int stamp = packet[6] | (packet[7] << 7);
+  // reach the setpoint when the next one is due, which is as long after this one as this one was
+  // after the last
+  unsigned long interval = haveStamp ? (stamp - lastStamp) & 0x3FFF : MAX_INTERVAL_MS;
+  lastStamp = stamp;
+  haveStamp = true;
+
+  // start from where the servos are by now, between refreshes
+  unsigned long now = millis();
+  interpolate(now);
+  for(int i=0; i<NUM_AXES; i++) {
+    from[i] = position[i];
+    to[i] = toDegree(packet[i + 1]);
+  }
+  moveStart = now;
+  moveDuration = constrain(interval, MIN_INTERVAL_MS, MAX_INTERVAL_MS);
+  moving = true;
+}
+
+// works out how far along the move to the setpoint the servos should be by now
+void interpolate(unsigned long now) {
+  if(!moving) {
+    return;
+  }
+  float fraction = (float) (now - moveStart) / moveDuration;
+  if(fraction >= 1) {
+    fraction = 1;
+    moving = false;
+  }
+  for(int i=0; i<NUM_AXES; i++) {
+    position[i] = from[i] + (to[i] - from[i]) * fraction;
+  }
+}
+
+// writes the interpolated position to the servos, as pulse widths so they move by less than a degree
+void refresh(unsigned long now) {
+  interpolate(now);
+  for(int i=0; i<NUM_AXES; i++) {
+    servos[i]->writeMicroseconds((int) (MIN_PULSE + position[i] * (MAX_PULSE - MIN_PULSE) / 180 + 0.5));
   }
 }
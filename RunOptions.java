@@ -0,0 +1,346 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses the command line shared by Main and AngleSelect.  Arguments starting with '-' are options,
+ * everything else is treated as a possible USB port name and passed on to SerialComm.
+ *
+ * Options:
+ *   -headless   Run without a GUI.  No AWT or Swing classes are loaded; a ConsoleMonitor prints the
+ *               pose and metrics instead.  Can also be enabled with -Drobot.headless=true.
+ *   -trig=MODE  Accuracy of the degree trig functions: exact (default), polynomial or table.
+ *               See Utility.TrigMode.
+ *   -flight=FILE Where the FlightRecorder keeps its ring of recent commands (default flight.rec).
+ *               Use -flight=off to disable it.  Export it with FlightRecorderDump.
+ *   -teach=FILE Record the joint trajectory of the Leap session, simplify it and save it to FILE on exit.
+ *   -tolerance=DEG  How far (in degrees, on any axis) the simplified trajectory may stray from the
+ *               recorded one (default 1).
+ *   -repeat=FILE Replay a taught trajectory instead of following the Leap.
+ *   -speed=X    Replay speed multiplier (default 1).
+ *   -calibration=FILE  Use a calibration fitted with CalibrationTool instead of the built-in one.
+ *   -publish=FILE  Publish every commanded pose to FILE through shared memory, for other programs to
+ *               watch with PoseReader.  A file in /dev/shm stays in memory.
+ *   -ikcache=ENTRIES[:CM:DEG]  Size of the cache of solutions used while following the hand (default
+ *               4096, 0 to solve every sample exactly), and optionally the grid it rounds targets to:
+ *               CM for positions and DEG for the pitch and grip angle (default 0.05:0.1).
+ *   -hysteresis=DEG  How far past the middle of two degrees a servo angle must go before the servo is
+ *               moved (default 0.25).  See ServoQuantizer.
+ *   -diffuse    Carry the part of each servo angle that could not be sent over to the next packet, so
+ *               slow sweeps are smoother.  Brings back some flipping while the arm is still.
+ *   -setpoints=HZ  Send the arm setpoints this many times a second for the firmware to move smoothly
+ *               between, instead of every new set of angles.  Much less serial traffic and smoother
+ *               motion, for a lag of about one setpoint.  Needs the interpolating firmware; see SerialComm.
+ *   -listen=PORT  Follow targets sent by other processes to this UDP and TCP port on localhost, instead
+ *               of the Leap.  See TargetServer for the message format.
+ *
+ * AngleSelect only:
+ *   -script=FILE  Run the motion commands in FILE instead of reading them from stdin.  See CommandDriver.
+ *   -rate=HZ    Commands sent per second (default 50).
+ *   -check      Only check the commands, without moving the arm.
+ */
+public class RunOptions {
+	// printed with an option that can't be understood
+	public static final String USAGE = "usage: java Main|AngleSelect [options] <portname>...\n"
+			+ "options: -headless -trig=exact|polynomial|table -flight=FILE|off -teach=FILE -tolerance=DEG\n"
+			+ "         -repeat=FILE -speed=X -calibration=FILE -publish=FILE -ikcache=ENTRIES[:CM:DEG]\n"
+			+ "         -hysteresis=DEG -diffuse -setpoints=HZ -listen=PORT\n"
+			+ "AngleSelect only: -script=FILE -rate=HZ -check\n";
+
+	private boolean headless = Boolean.getBoolean("robot.headless");
+	private String flightFile = "flight.rec";
+	private String teachFile = null;
+	private String repeatFile = null;
+	private double tolerance = 1;
+	private double speed = 1;
+	private String calibrationFile = null;
+	private int listenPort = -1;
+	private String publishFile = null;
+	private String solutionCacheSpec = null;
+	private double hysteresis = Double.NaN;
+	private String scriptFile = null;
+	private double rate = CommandDriver.DEFAULT_RATE;
+	private boolean checkOnly = false;
+	private boolean diffusion = false;
+	private double setpointRate = 0;
+	private final List<String> portNames = new ArrayList<String>();
+
+	/**
+	 * Constructor - parses the given arguments.
+	 *
+	 * @param args Command line arguments
+	 */
+	public RunOptions(String[] args) {
+		for (String arg : args) {
+			try {
+				parse(arg);
+			} catch (IllegalArgumentException e) {
+				// NumberFormatException, a number out of range or a -trig mode that doesn't exist
+				fail("bad value in option %s%n", arg);
+			}
+		}
+		if (headless) {
+			// make sure nothing we call tries to open a display
+			System.setProperty("java.awt.headless", "true");
+		}
+	}
+
+	private void parse(String arg) {
+		if (arg.equals("-headless")) {
+			headless = true;
+		} else if (arg.startsWith("-teach=")) {
+			teachFile = arg.substring(7);
+		} else if (arg.startsWith("-repeat=")) {
+			repeatFile = arg.substring(8);
+		} else if (arg.startsWith("-tolerance=")) {
+			tolerance = notNegative(arg.substring(11));
+		} else if (arg.startsWith("-speed=")) {
+			speed = positive(arg.substring(7));
+		} else if (arg.startsWith("-calibration=")) {
+			calibrationFile = arg.substring(13);
+		} else if (arg.startsWith("-publish=")) {
+			publishFile = arg.substring(9);
+		} else if (arg.startsWith("-ikcache=")) {
+			solutionCacheSpec = arg.substring(9);
+		} else if (arg.startsWith("-hysteresis=")) {
+			hysteresis = Double.parseDouble(arg.substring(12));
+		} else if (arg.equals("-diffuse")) {
+			diffusion = true;
+		} else if (arg.startsWith("-setpoints=")) {
+			setpointRate = notNegative(arg.substring(11));
+		} else if (arg.startsWith("-script=")) {
+			scriptFile = arg.substring(8);
+		} else if (arg.startsWith("-rate=")) {
+			rate = positive(arg.substring(6));
+		} else if (arg.equals("-check")) {
+			checkOnly = true;
+		} else if (arg.startsWith("-listen=")) {
+			listenPort = Integer.parseInt(arg.substring(8));
+			if (listenPort < 0 || listenPort > 65535) {
+				throw new IllegalArgumentException("no such port: " + listenPort);
+			}
+		} else if (arg.startsWith("-flight=")) {
+			flightFile = arg.substring(8);
+		} else if (arg.startsWith("-trig=")) {
+			Utility.setTrigMode(Utility.TrigMode.valueOf(arg.substring(6).toUpperCase()));
+		} else if (arg.startsWith("-")) {
+			Utility.error("unrecognized option: %s%n", arg);
+		} else {
+			portNames.add(arg);
+		}
+	}
+
+	// reports an option that can't be used, with the usage, and exits. the arm must not run with
+	// something other than what was asked for.
+	private static void fail(String format, Object... args) {
+		Utility.error(format, args);
+		Utility.error("%s", USAGE);
+		System.exit(2);
+	}
+
+	// a finite number above zero, for speeds and rates
+	private static double positive(String value) {
+		double number = Double.parseDouble(value);
+		if (!(number > 0) || Double.isInfinite(number)) {
+			throw new IllegalArgumentException("must be positive: " + value);
+		}
+		return number;
+	}
+
+	// a finite number that isn't below zero
+	private static double notNegative(String value) {
+		double number = Double.parseDouble(value);
+		if (!(number >= 0) || Double.isInfinite(number)) {
+			throw new IllegalArgumentException("must be 0 or more: " + value);
+		}
+		return number;
+	}
+
+	public boolean isHeadless() {
+		return headless;
+	}
+
+	/**
+	 * Sets up an arm and its serial link as selected on the command line: the flight recorder,
+	 * quantizer, setpoint rate, calibration, pose publisher and solution cache.  Exits if an option
+	 * can't be used.
+	 *
+	 * @param arm The arm to set up
+	 * @param sc The serial link the arm sends through
+	 */
+	public void configure(Arm arm, SerialComm sc) {
+		arm.setFlightRecorder(openFlightRecorder());
+		ServoQuantizer quantizer = createQuantizer();
+		if (quantizer != null) {
+			sc.setQuantizer(quantizer);
+		}
+		if (setpointRate > 0) {
+			sc.setSetpointRate(setpointRate);
+		}
+		Calibration calibration = loadCalibration();
+		if (calibration != null) {
+			arm.setCalibration(calibration);
+		}
+		arm.setPosePublisher(openPosePublisher(arm.kinematics));
+		SolutionCache solutionCache = createSolutionCache(arm.kinematics);
+		if (solutionCache != null) {
+			arm.setSolutionCache(solutionCache);
+		}
+	}
+
+	/**
+	 * Opens the flight recorder file selected on the command line.
+	 *
+	 * @return The recorder, or null if recording is off or the file could not be opened
+	 */
+	public FlightRecorder openFlightRecorder() {
+		if (flightFile.equals("off")) {
+			return null;
+		}
+		try {
+			return FlightRecorder.open(new File(flightFile), FlightRecorder.DEFAULT_CAPACITY);
+		} catch (IOException e) {
+			Utility.error("could not open flight recorder %s: %s%n", flightFile, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Opens the pose file selected on the command line.
+	 *
+	 * @param kinematics Geometry of the arm
+	 * @return The publisher, or null if publishing is off or the file could not be opened
+	 */
+	public PosePublisher openPosePublisher(Kinematics kinematics) {
+		if (publishFile == null) {
+			return null;
+		}
+		try {
+			return PosePublisher.open(new File(publishFile), kinematics);
+		} catch (IOException e) {
+			Utility.error("could not open pose file %s: %s%n", publishFile, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Creates the solution cache selected on the command line.
+	 *
+	 * @param kinematics Geometry of the arm
+	 * @return The cache, or null if none was selected.  Exits if the option is invalid.
+	 */
+	public SolutionCache createSolutionCache(Kinematics kinematics) {
+		if (solutionCacheSpec == null) {
+			return null;
+		}
+		String[] parts = solutionCacheSpec.split(":");
+		try {
+			if (parts.length == 1) {
+				return new SolutionCache(kinematics, Integer.parseInt(parts[0]),
+						SolutionCache.DEFAULT_POSITION_RESOLUTION, SolutionCache.DEFAULT_ANGLE_RESOLUTION);
+			} else if (parts.length == 3) {
+				return new SolutionCache(kinematics, Integer.parseInt(parts[0]),
+						Double.parseDouble(parts[1]), Double.parseDouble(parts[2]));
+			}
+		} catch (IllegalArgumentException e) {
+			// NumberFormatException included
+		}
+		fail("invalid -ikcache option: %s%n", solutionCacheSpec);
+		return null;
+	}
+
+	/**
+	 * Creates the servo quantizer selected on the command line.
+	 *
+	 * @return The quantizer, or null if neither -hysteresis nor -diffuse was given.  Exits if the
+	 *         hysteresis is invalid.
+	 */
+	public ServoQuantizer createQuantizer() {
+		if (Double.isNaN(hysteresis) && !diffusion) {
+			return null;
+		}
+		try {
+			return new ServoQuantizer(Double.isNaN(hysteresis) ? ServoQuantizer.DEFAULT_HYSTERESIS : hysteresis, diffusion);
+		} catch (IllegalArgumentException e) {
+			fail("invalid -hysteresis option: %s%n", e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * @return Setpoints to send per second, or 0 to send every new set of angles
+	 */
+	public double getSetpointRate() {
+		return setpointRate;
+	}
+
+	/**
+	 * Loads the calibration selected on the command line.
+	 *
+	 * @return The calibration, or null if none was selected.  Exits if the file can't be loaded, rather
+	 *         than drive the arm with the built-in calibration.
+	 */
+	public Calibration loadCalibration() {
+		if (calibrationFile == null) {
+			return null;
+		}
+		try {
+			return Calibration.load(new File(calibrationFile));
+		} catch (IOException e) {
+			fail("could not load calibration %s: %s%n", calibrationFile, e);
+			return null;
+		}
+	}
+
+	/**
+	 * @return File to save a taught trajectory to, or null if not teaching
+	 */
+	public File getTeachFile() {
+		return teachFile == null ? null : new File(teachFile);
+	}
+
+	/**
+	 * @return File with a trajectory to replay, or null to follow the Leap
+	 */
+	public File getRepeatFile() {
+		return repeatFile == null ? null : new File(repeatFile);
+	}
+
+	public double getTolerance() {
+		return tolerance;
+	}
+
+	public double getSpeed() {
+		return speed;
+	}
+
+	/**
+	 * @return File of motion commands to run, or null to read them from stdin
+	 */
+	public File getScriptFile() {
+		return scriptFile == null ? null : new File(scriptFile);
+	}
+
+	/**
+	 * @return Motion commands to send per second
+	 */
+	public double getRate() {
+		return rate;
+	}
+
+	public boolean isCheckOnly() {
+		return checkOnly;
+	}
+
+	/**
+	 * @return Port to listen for targets on, or -1 to follow the Leap
+	 */
+	public int getListenPort() {
+		return listenPort;
+	}
+
+	public String[] getPortNames() {
+		return portNames.toArray(new String[portNames.size()]);
+	}
+}
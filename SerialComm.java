@@ -1,9 +1,51 @@
+import java.util.Arrays;
+
 /**
  * A class for communicating serially with the Arduino
  *
+ * Angles go out in one of two kinds of packet, which the firmware tells apart:
+ *   angles:   5 angle bytes (see ServoQuantizer.toByte), written to the servos as soon as they arrive.
+ *             Sent for every new set of angles.  The default.
+ *   setpoint: SETPOINT_SYNC, the 5 angle bytes, a 14 bit timestamp in ms (low 7 bits, then high 7 bits)
+ *             and a 7 bit checksum (the sum of the 8 bytes before it).  The firmware moves the servos
+ *             smoothly to each setpoint over the time since the one before, at their refresh rate.
+ *             Sent at a fixed rate chosen with setSetpointRate, for following the hand without
+ *             streaming every sample over the 9600 baud link.
+ * No angle byte is ever SETPOINT_SYNC, and the rest of a setpoint is below 128, so the firmware
+ * can always find the start of a setpoint.  SimulatedArduino runs the firmware's side of this.
+ *
  * @author Haley Garrison
  */
 public class SerialComm extends SerialManager {
+	// a packet the same as the last one is only sent again after this long, in case the last was lost
+	public static final long REFRESH_NANOS = 250000000L;
+	// first byte of a setpoint; never the byte of an angle
+	public static final byte SETPOINT_SYNC = (byte) 0x81;
+	public static final int SETPOINT_LENGTH = 9;
+	// setpoint timestamps are in ms and wrap around at this
+	public static final int TIMESTAMP_MODULUS = 1 << 14;
+
+	private static final Metrics.Counter skipped = Metrics.counter("serialPacketsSkipped");
+	private static final Metrics.Counter deferred = Metrics.counter("serialSetpointsDeferred");
+
+	// packet buffer, reused for every send so that sending does not allocate
+	private final byte[] buffer = new byte[5];
+	private final byte[] setpoint = new byte[SETPOINT_LENGTH];
+	// the last packet sent, and when
+	private final byte[] sent = new byte[5];
+	private boolean anySent = false;
+	private long sentAt;
+	// the newest angles held back in setpoint mode, if any, to go out when the period is up
+	private final byte[] pending = new byte[5];
+	private boolean hasPending = false;
+	// time between setpoints in ns, or 0 to send every set of angles as it comes
+	private long setpointPeriod = 0;
+	// picks the degree each servo is driven to
+	private ServoQuantizer quantizer = new ServoQuantizer();
+	// records every packet sent. null if recording is off.
+	private FlightRecorder recorder = null;
+	// where send takes the time from when it isn't given it
+	private volatile Clock clock = Clock.SYSTEM;
 	
 	/**
 	 * Constructor - runs initialization with default values for timeOut and dataRate.
@@ -24,31 +66,190 @@ public class SerialComm extends SerialManager {
 	public SerialComm(String[] portNames, int timeout, int dataRate) {
 		super(portNames, timeout, dataRate);
 	}
+
+	/**
+	 * Constructor - does not open a port.  For subclasses that simulate or replace the Arduino.
+	 */
+	protected SerialComm() {
+		super();
+	}
 	
 	/**
-	 * Sends angles serially to the Arduino.
+	 * Sends angles serially to the Arduino.  Each angle goes through the quantizer, and a packet the
+	 * same as the last one is skipped unless REFRESH_NANOS have passed since it was sent.
 	 */
 	public void send(double base, double shoulder, double elbow, double wrist, double grip) {
-		// convert doubles to ints and store in an array
-		byte[] buffer = new byte[5];
-		buffer[0] = mapAngleToByte(base);
-		buffer[1] = mapAngleToByte(shoulder);
-		buffer[2] = mapAngleToByte(elbow);
-		buffer[3] = mapAngleToByte(wrist);
-		buffer[4] = mapAngleToByte(grip);
-		
+		send(base, shoulder, elbow, wrist, grip, clock.nanoTime());
+	}
+
+	/**
+	 * Sends angles serially to the Arduino, as of the given time.  In setpoint mode, angles that come
+	 * less than a setpoint period after the last setpoint are held back; the newest of them go out with
+	 * the first call after the period is up, or from flush.  Anything that stops sending, such as the
+	 * end of a move, should call flush so that its last angles aren't left behind.
+	 *
+	 * @param now Current time on the clock, in ns
+	 */
+	public synchronized void send(double base, double shoulder, double elbow, double wrist, double grip, long now) {
+		// convert doubles to ints and store in the packet buffer
+		buffer[0] = ServoQuantizer.toByte(quantizer.quantize(Arm.BASE, base));
+		buffer[1] = ServoQuantizer.toByte(quantizer.quantize(Arm.SHOULDER, shoulder));
+		buffer[2] = ServoQuantizer.toByte(quantizer.quantize(Arm.ELBOW, elbow));
+		buffer[3] = ServoQuantizer.toByte(quantizer.quantize(Arm.WRIST, wrist));
+		buffer[4] = ServoQuantizer.toByte(quantizer.quantize(Arm.GRIP, grip));
+
+		boolean same = anySent && Arrays.equals(buffer, sent);
+		if (same && now - sentAt < REFRESH_NANOS) {
+			// the arm is already headed here, so anything held back is out of date
+			hasPending = false;
+			skipped.increment();
+			return;
+		}
+		if (!same && anySent && now - sentAt < setpointPeriod) {
+			System.arraycopy(buffer, 0, pending, 0, buffer.length);
+			hasPending = true;
+			deferred.increment();
+			return;
+		}
+		hasPending = false;
+		sendPacket(buffer, now);
+	}
+
+	/**
+	 * Sends the angles held back in setpoint mode, if any, waiting on the clock until the setpoint
+	 * period is up.  Returns straight away if nothing is held back.
+	 *
+	 * @return false if the thread was interrupted while waiting, leaving the interrupt flag set
+	 */
+	public boolean flush() {
+		long due;
+		synchronized (this) {
+			if (!hasPending) {
+				return true;
+			}
+			due = sentAt + setpointPeriod;
+		}
+		try {
+			clock.sleepUntil(due);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		synchronized (this) {
+			// a send while waiting may have sent these angles or newer ones already
+			if (hasPending) {
+				hasPending = false;
+				sendPacket(pending, Math.max(clock.nanoTime(), sentAt + setpointPeriod));
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Writes a packet of angle bytes to the port, as a setpoint in setpoint mode, and remembers it as
+	 * the last packet sent.
+	 *
+	 * @param angles The 5 angle bytes
+	 * @param now Current time on the clock, in ns
+	 */
+	protected void sendPacket(byte[] angles, long now) {
+		System.arraycopy(angles, 0, sent, 0, angles.length);
+		anySent = true;
+		sentAt = now;
+
 		// send the bytes
-		serialOutput(buffer);
+		if (recorder != null) {
+			recorder.recordSerial(angles);
+		}
+		if (setpointPeriod > 0) {
+			serialOutput(toSetpoint(angles, now));
+		} else {
+			serialOutput(angles);
+		}
+	}
+
+	/**
+	 * Builds a setpoint packet in the setpoint buffer.
+	 *
+	 * @param angles The 5 angle bytes
+	 * @param now Current time on the clock, for the timestamp
+	 * @return The setpoint buffer
+	 */
+	private byte[] toSetpoint(byte[] angles, long now) {
+		int stamp = (int) Math.floorMod(Math.floorDiv(now, 1000000L), (long) TIMESTAMP_MODULUS);
+		setpoint[0] = SETPOINT_SYNC;
+		System.arraycopy(angles, 0, setpoint, 1, angles.length);
+		setpoint[6] = (byte) (stamp & 0x7F);
+		setpoint[7] = (byte) (stamp >> 7);
+		setpoint[8] = checksum(setpoint);
+		return setpoint;
+	}
+
+	/**
+	 * @return The checksum of a setpoint: the sum of all but its last byte, in 7 bits
+	 */
+	static byte checksum(byte[] setpoint) {
+		int sum = 0;
+		for (int i = 0; i < SETPOINT_LENGTH - 1; i++) {
+			sum += setpoint[i] & 0xFF;
+		}
+		return (byte) (sum & 0x7F);
+	}
+
+	/**
+	 * Switches between sending every set of angles as it comes and sending setpoints at a fixed rate
+	 * for the firmware to move smoothly between.  Setpoints need the interpolating firmware.  The
+	 * next angles are always sent.
+	 *
+	 * @param rate Setpoints per second, or 0 to send every set of angles
+	 */
+	public synchronized void setSetpointRate(double rate) {
+		if (!(rate >= 0) || Double.isInfinite(rate)) {
+			throw new IllegalArgumentException("setpoint rate must be 0 or more: " + rate);
+		}
+		setpointPeriod = rate > 0 ? Math.round(1e9 / rate) : 0;
+		anySent = false;
+		hasPending = false;
+	}
+
+	/**
+	 * @return Setpoints sent per second, or 0 if every set of angles is sent
+	 */
+	public synchronized double getSetpointRate() {
+		return setpointPeriod > 0 ? 1e9 / setpointPeriod : 0;
 	}
 	
 	/**
-	 * Converts an angle from 0 to 180 degrees into a single byte.
-	 * 
-	 * @param angle The angle to convert.  Value will be rounded to an int before conversion.
-	 * @return A single byte representing the angle
+	 * Records every packet sent from now on.
+	 *
+	 * @param recorder The recorder to use, or null to stop recording
+	 */
+	public synchronized void setFlightRecorder(FlightRecorder recorder) {
+		this.recorder = recorder;
+	}
+
+	/**
+	 * Takes the time for sends that aren't given it from another clock, e.g. a VirtualClock.  Times
+	 * on the old clock mean nothing on the new one, so the next packet is always sent.
+	 *
+	 * @param clock The clock to use
 	 */
-	private byte mapAngleToByte(double angle) {
-		angle = Utility.map(angle, 0, 180, -128, 127);
-		return (byte)Math.round((float)angle);
+	public synchronized void setClock(Clock clock) {
+		this.clock = clock;
+		anySent = false;
+	}
+
+	/**
+	 * Replaces the quantizer, e.g. with one with a different hysteresis.  The next packet is always sent.
+	 *
+	 * @param quantizer The quantizer to use
+	 */
+	public synchronized void setQuantizer(ServoQuantizer quantizer) {
+		this.quantizer = quantizer;
+		anySent = false;
+	}
+
+	public synchronized ServoQuantizer getQuantizer() {
+		return quantizer;
 	}
 }
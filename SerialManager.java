@@ -58,6 +58,12 @@ public class SerialManager implements SerialPortEventListener {
 		initialize(portNames);
 	}
 
+	/**
+	 * Constructor - does not open a port.  For subclasses that simulate or replace the device.
+	 */
+	protected SerialManager() {
+	}
+
 	/**
 	 * Getter for input stream reader.
 	 * 
@@ -166,8 +172,20 @@ public class SerialManager implements SerialPortEventListener {
 	 */
 	public synchronized void serialOutput(byte[] toSend) {
 		try {
-			output.write(toSend);
-			output.flush();
+			if (ControlEvents.SERIAL_WRITE.isEnabled()) {
+				ControlEvents.SerialWrite event = new ControlEvents.SerialWrite();
+				event.begin();
+				output.write(toSend);
+				long flushStart = System.nanoTime();
+				output.flush();
+				event.end();
+				event.flushDuration = System.nanoTime() - flushStart;
+				event.bytes = toSend.length;
+				event.commit();
+			} else {
+				output.write(toSend);
+				output.flush();
+			}
 		}
 		catch(Exception e) {
 			e.printStackTrace();
@@ -0,0 +1,188 @@
+import java.lang.invoke.VarHandle;
+
+/**
+ * Estimates where the servos actually are, since the arm can't measure it.  Each servo is modelled
+ * as turning toward its last commanded angle at its top speed, which is how hobby servos behave when
+ * they aren't overloaded.  A servo at rest ignores a new command within its deadband.
+ *
+ * The estimate is used for anything that needs the arm's real pose (the start of planned moves, the
+ * pitch held during teleop, the GUI), and to pace commands so that they never get further ahead of
+ * the servos than they can follow.
+ *
+ * All methods are given the current time, in ns on the arm's Clock (System.nanoTime, or a
+ * VirtualClock in simulation), so the model never needs a thread of its own.  Safe to use from any
+ * thread.  Methods that move the estimate forward are serialized, but getEstimate only reads it, like
+ * PoseSnapshot, so the GUI and console can watch the servos without ever blocking the control thread.
+ */
+public class ServoModel {
+	// top speed of each axis in degrees per second: base, shoulder, elbow, wrist, grip
+	public static final double[] DEFAULT_SPEEDS = {333, 428.5, 300, 333, 333};
+	// smallest change of command that gets a resting servo moving, in degrees
+	public static final double DEFAULT_DEADBAND = 0.5;
+
+	private static final int NUM_AXES = Arm.NUM_AXES;
+
+	private final double[] speeds;
+	private final double deadband;
+
+	// odd while the estimate is being moved forward or retargeted
+	private volatile long version = 0;
+
+	// the estimate as of time, only changed while version is odd
+	private final double[] position = new double[NUM_AXES];
+	private final double[] target = new double[NUM_AXES];
+	private long time;
+
+	/**
+	 * Constructor - uses the default speeds and deadband.
+	 *
+	 * @param start All five axis angles the servos start at
+	 * @param now Current time on the arm's Clock, in ns
+	 */
+	public ServoModel(double[] start, long now) {
+		this(start, now, DEFAULT_SPEEDS, DEFAULT_DEADBAND);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param start All five axis angles the servos start at
+	 * @param now Current time on the arm's Clock, in ns
+	 * @param speeds Top speed of each axis, in degrees per second
+	 * @param deadband How close a servo has to get to its target before it stops, in degrees
+	 */
+	public ServoModel(double[] start, long now, double[] speeds, double deadband) {
+		this.speeds = speeds.clone();
+		this.deadband = deadband;
+		System.arraycopy(start, 0, position, 0, NUM_AXES);
+		System.arraycopy(start, 0, target, 0, NUM_AXES);
+		time = now;
+	}
+
+	/**
+	 * Tells the model that new angles were sent to the servos.
+	 *
+	 * @param angles All five axis angles sent
+	 * @param now Current time on the arm's Clock, in ns
+	 */
+	public synchronized void command(double[] angles, long now) {
+		advance(now);
+		long v = version;
+		version = v + 1;
+		VarHandle.storeStoreFence();
+		for (int i = 0; i < NUM_AXES; i++) {
+			// a change inside the deadband doesn't get a resting servo moving
+			if (position[i] != target[i] || Math.abs(angles[i] - position[i]) > deadband) {
+				target[i] = angles[i];
+			}
+		}
+		version = v + 2;
+	}
+
+	/**
+	 * Writes the estimated angles of all five axes into the given array.  Never takes the lock: the
+	 * estimate is copied and carried forward to the given time without changing the model, and copied
+	 * again if it changed meanwhile.
+	 *
+	 * @param angles Array to write into
+	 * @param now Current time on the arm's Clock, in ns
+	 */
+	public void getEstimate(double[] angles, long now) {
+		while (true) {
+			long v = version;
+			if ((v & 1) != 0) {
+				Thread.onSpinWait();
+				continue;
+			}
+			double elapsed = Math.max(0, (now - time) / 1e9);
+			for (int i = 0; i < NUM_AXES; i++) {
+				angles[i] = estimate(i, elapsed);
+			}
+			VarHandle.loadLoadFence();
+			if (version == v) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Pulls a command back toward the estimated position, along the straight line between them, until
+	 * every servo can reach it in the given time.  Pulling it back along the line (rather than one axis
+	 * at a time) keeps the arm heading the same way.
+	 *
+	 * @param angles All five axis angles about to be sent; changed in place
+	 * @param lead Longest time the servos may need to reach the command, in seconds
+	 * @param now Current time on the arm's Clock, in ns
+	 * @return true if the command was changed
+	 */
+	public synchronized boolean limit(double[] angles, double lead, long now) {
+		advance(now);
+		double fraction = 1;
+		for (int i = 0; i < NUM_AXES; i++) {
+			double distance = Math.abs(angles[i] - position[i]);
+			double reach = speeds[i] * lead + deadband;
+			if (distance > reach) {
+				fraction = Math.min(fraction, reach / distance);
+			}
+		}
+		if (fraction == 1) {
+			return false;
+		}
+		for (int i = 0; i < NUM_AXES; i++) {
+			angles[i] = position[i] + (angles[i] - position[i]) * fraction;
+		}
+		return true;
+	}
+
+	/**
+	 * @param now Current time on the arm's Clock, in ns
+	 * @return Estimated pitch of the gripper (shoulder + elbow + wrist), in degrees
+	 */
+	public synchronized double getEstimatedPitch(long now) {
+		advance(now);
+		return position[Arm.SHOULDER] + position[Arm.ELBOW] + position[Arm.WRIST];
+	}
+
+	/**
+	 * @param angles All five axis angles
+	 * @param now Current time on the arm's Clock, in ns
+	 * @return Time until every servo would be within its deadband of the given angles, in seconds (0 if
+	 *         they already are)
+	 */
+	public synchronized double timeToReach(double[] angles, long now) {
+		advance(now);
+		double longest = 0;
+		for (int i = 0; i < NUM_AXES; i++) {
+			longest = Math.max(longest, (Math.abs(angles[i] - position[i]) - deadband) / speeds[i]);
+		}
+		return longest;
+	}
+
+	/**
+	 * Moves the estimate forward to the given time.
+	 */
+	private void advance(long now) {
+		long v = version;
+		version = v + 1;
+		VarHandle.storeStoreFence();
+		double elapsed = (now - time) / 1e9;
+		time = now;
+		if (elapsed > 0) {
+			for (int i = 0; i < NUM_AXES; i++) {
+				position[i] = estimate(i, elapsed);
+			}
+		}
+		version = v + 2;
+	}
+
+	/**
+	 * @param axis Axis to estimate
+	 * @param elapsed Time since the estimate was last moved forward, in seconds; not negative
+	 * @return Where the axis will be after that long, turning toward its target at its top speed
+	 */
+	private double estimate(int axis, double elapsed) {
+		double error = target[axis] - position[axis];
+		double step = speeds[axis] * elapsed;
+		return Math.abs(error) <= step ? target[axis] : position[axis] + Math.signum(error) * step;
+	}
+}
@@ -0,0 +1,180 @@
+/**
+ * Turns the servo angles sent to the Arduino into the whole degrees the servos are really driven to,
+ * remembering what each servo was last sent.  Rounding every angle afresh makes a servo whose angle
+ * hovers near the middle of two degrees flip between them on every packet, which wastes the serial
+ * link and makes the servo buzz and heat up.  Instead, a servo keeps its degree until the angle is
+ * more than half a degree plus the hysteresis away from it.
+ *
+ * With error diffusion on, the part of each angle that was not sent is carried over and added to the
+ * next one, so that over a slow sweep the servo's average position follows the angle instead of
+ * lagging behind it by up to the hysteresis.  That brings some flipping back while the angle sits
+ * between two degrees, so it is off by default.
+ *
+ * The firmware converts each byte back to a degree with map(b, -128, 127, 0, 180), which rounds down,
+ * so toByte picks the byte that comes back as exactly the degree wanted.
+ *
+ * Per axis, the quantizer counts updates, changes of degree, flips (changes that undo the direction
+ * of the last one) and suppressed updates (where plain rounding would have changed the degree but
+ * the hysteresis held it).  Flips and suppressed updates are also counted in Metrics.
+ *
+ * Not thread safe; SerialComm only uses it while sending.
+ */
+public class ServoQuantizer {
+	public static final double DEFAULT_HYSTERESIS = 0.25;	// degrees
+	public static final int MAX_DEGREE = 180;
+
+	private static final Metrics.Counter flipCounter = Metrics.counter("servoFlips");
+	private static final Metrics.Counter suppressedCounter = Metrics.counter("servoUpdatesSuppressed");
+
+	private final double hysteresis;
+	private final boolean diffusion;
+
+	// per axis. A degree of -1 means nothing has been sent yet.
+	private final int[] degrees = new int[Arm.NUM_AXES];
+	private final int[] lastStep = new int[Arm.NUM_AXES];
+	private final double[] carry = new double[Arm.NUM_AXES];
+	private final long[] updates = new long[Arm.NUM_AXES];
+	private final long[] changes = new long[Arm.NUM_AXES];
+	private final long[] flips = new long[Arm.NUM_AXES];
+	private final long[] suppressed = new long[Arm.NUM_AXES];
+
+	/**
+	 * Constructor - the default hysteresis, without error diffusion.
+	 */
+	public ServoQuantizer() {
+		this(DEFAULT_HYSTERESIS, false);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param hysteresis How far past the middle of two degrees an angle must go before the servo is
+	 *        moved, in degrees.  0 rounds every angle like before.
+	 * @param diffusion Whether to carry the part of each angle that was not sent over to the next
+	 */
+	public ServoQuantizer(double hysteresis, boolean diffusion) {
+		if (!(hysteresis >= 0 && hysteresis < 1)) {
+			throw new IllegalArgumentException("hysteresis must be at least 0 and less than 1 degree: " + hysteresis);
+		}
+		this.hysteresis = hysteresis;
+		this.diffusion = diffusion;
+		reset();
+	}
+
+	/**
+	 * Picks the degree to drive a servo to.
+	 *
+	 * @param axis Axis index, Arm.BASE ... Arm.GRIP
+	 * @param angle Servo angle, in degrees.  Kept within 0 to 180; NaN holds the servo where it is.
+	 * @return The degree, from 0 to 180
+	 */
+	public int quantize(int axis, double angle) {
+		int degree = degrees[axis];
+		if (Double.isNaN(angle)) {
+			return degree < 0 ? MAX_DEGREE / 2 : degree;
+		}
+		updates[axis]++;
+		double wanted = Math.max(0, Math.min(MAX_DEGREE, angle));
+		if (degree < 0) {
+			degrees[axis] = (int) Math.round(wanted);
+			return degrees[axis];
+		}
+		if (diffusion) {
+			wanted += carry[axis];
+		}
+		int rounded = (int) Math.max(0, Math.min(MAX_DEGREE, Math.round(wanted)));
+		if (rounded != degree) {
+			if (Math.abs(wanted - degree) > 0.5 + hysteresis) {
+				int step = rounded > degree ? 1 : -1;
+				if (lastStep[axis] == -step) {
+					flips[axis]++;
+					flipCounter.increment();
+				}
+				lastStep[axis] = step;
+				changes[axis]++;
+				degree = rounded;
+				degrees[axis] = degree;
+			} else {
+				suppressed[axis]++;
+				suppressedCounter.increment();
+			}
+		}
+		if (diffusion) {
+			// never carry more than a degree, so a servo held at the end of its range doesn't wind up
+			carry[axis] = Math.max(-1, Math.min(1, wanted - degree));
+		}
+		return degree;
+	}
+
+	/**
+	 * Converts a degree into the byte the firmware maps back to that degree.
+	 *
+	 * @param degree Degree from 0 to 180
+	 * @return The byte to send
+	 */
+	public static byte toByte(int degree) {
+		// smallest b with (b + 128) * 180 / 255 >= degree, which is below degree + 1
+		return (byte) ((degree * 255 + MAX_DEGREE - 1) / MAX_DEGREE - 128);
+	}
+
+	/**
+	 * Forgets what was sent, so that the next angle for every axis is rounded afresh.  Counts are kept.
+	 */
+	public void reset() {
+		for (int i = 0; i < Arm.NUM_AXES; i++) {
+			degrees[i] = -1;
+			lastStep[i] = 0;
+			carry[i] = 0;
+		}
+	}
+
+	public double getHysteresis() {
+		return hysteresis;
+	}
+
+	public boolean isDiffusion() {
+		return diffusion;
+	}
+
+	/**
+	 * @return Degree the axis was last sent, or -1 if none yet
+	 */
+	public int getDegree(int axis) {
+		return degrees[axis];
+	}
+
+	public long getUpdates(int axis) {
+		return updates[axis];
+	}
+
+	public long getChanges(int axis) {
+		return changes[axis];
+	}
+
+	public long getFlips(int axis) {
+		return flips[axis];
+	}
+
+	public long getSuppressed(int axis) {
+		return suppressed[axis];
+	}
+
+	/**
+	 * @return Fraction of the axis's updates that flipped it back the way it had come, or 0 if none yet
+	 */
+	public double getFlipRate(int axis) {
+		return updates[axis] == 0 ? 0 : (double) flips[axis] / updates[axis];
+	}
+
+	public String toString() {
+		StringBuilder out = new StringBuilder();
+		out.append(String.format("hysteresis %.2f deg%s:", hysteresis, diffusion ? " with error diffusion" : ""));
+		for (Axis axis : Axis.values()) {
+			int i = axis.index;
+			out.append(String.format(" %s %d changes %d flips (%.2f%%) %d suppressed;", axis.axisName,
+					changes[i], flips[i], 100 * getFlipRate(i), suppressed[i]));
+		}
+		out.setLength(out.length() - 1);
+		return out.toString();
+	}
+}
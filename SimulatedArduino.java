@@ -0,0 +1,353 @@
+import java.util.zip.CRC32;
+
+/**
+ * The Arduino firmware (RobotArduino.ino) in Java, for trying SerialComm out without an arm: the same
+ * byte-at-a-time packet parser, and the same interpolation toward setpoints at the servo refresh
+ * rate.  Time is given to every method in ms, as the firmware's millis() would be, so a simulation
+ * can run as fast as it likes.  Keep the two in step when either changes.
+ *
+ * Link is a SerialComm that sends to a SimulatedArduino instead of a port, taking as long as the
+ * 9600 baud line would, so that streaming too much shows up as packets arriving late.  Attached to
+ * a VirtualClock, it is delivered to as the clock moves on.
+ *
+ * Run on its own, it compares sending every sample of a simulated hand with sending setpoints at a
+ * few rates: bytes sent, how smoothly the servos move (the RMS change in their speed from one
+ * refresh to the next) and how far they lag the hand.
+ *
+ * java SimulatedArduino [seconds] [samples per second]
+ */
+public class SimulatedArduino {
+	public static final long REFRESH_MS = 20;
+	public static final long MIN_INTERVAL_MS = 10;
+	public static final long MAX_INTERVAL_MS = 250;
+	// pulse widths the Servo library maps 0 and 180 degrees to
+	public static final double MIN_PULSE = 544;
+	public static final double MAX_PULSE = 2400;
+
+	private static final int NUM_AXES = Arm.NUM_AXES;
+
+	// parser state
+	private final byte[] packet = new byte[SerialComm.SETPOINT_LENGTH];
+	private int received = 0;
+	private boolean inSetpoint = false;
+
+	// interpolation state, in degrees
+	private final double[] from = new double[NUM_AXES];
+	private final double[] to = new double[NUM_AXES];
+	private final double[] position = new double[NUM_AXES];
+	// what the servos were last told, in degrees
+	private final double[] written = new double[NUM_AXES];
+	private long moveStart = 0;
+	private long moveDuration = 0;
+	private boolean moving = false;
+	private int lastStamp = 0;
+	private boolean haveStamp = false;
+	private long lastRefresh = 0;
+
+	// counts
+	private long bytesReceived = 0;
+	private long anglePackets = 0;
+	private long setpoints = 0;
+	private long badSetpoints = 0;
+
+	/**
+	 * Constructor - the servos start at 90 degrees, as the firmware assumes.
+	 */
+	public SimulatedArduino() {
+		for (int i = 0; i < NUM_AXES; i++) {
+			from[i] = to[i] = position[i] = written[i] = 90;
+		}
+	}
+
+	/**
+	 * Feeds one received byte to the packet parser, as loop() does.
+	 *
+	 * @param b The byte
+	 * @param millis Current time in ms
+	 */
+	public void receive(byte b, long millis) {
+		bytesReceived++;
+		if (b == SerialComm.SETPOINT_SYNC) {
+			inSetpoint = true;
+			packet[0] = b;
+			received = 1;
+			return;
+		}
+		packet[received++] = b;
+		if (!inSetpoint && received == NUM_AXES) {
+			anglesReceived();
+			received = 0;
+		} else if (inSetpoint && received == SerialComm.SETPOINT_LENGTH) {
+			setpointReceived(millis);
+			inSetpoint = false;
+			received = 0;
+		}
+	}
+
+	/**
+	 * Moves toward the setpoint if a refresh is due, as loop() does.
+	 *
+	 * @param millis Current time in ms
+	 */
+	public void update(long millis) {
+		if (millis - lastRefresh >= REFRESH_MS) {
+			// keep to a steady beat, unless it has fallen a whole refresh behind
+			lastRefresh = millis - lastRefresh < 2 * REFRESH_MS ? lastRefresh + REFRESH_MS : millis;
+			if (moving) {
+				refresh(millis);
+			}
+		}
+	}
+
+	// map(b, -128, 127, 0, 180), which rounds toward zero
+	private static int toDegree(byte b) {
+		return (b + 128) * 180 / 255;
+	}
+
+	private void anglesReceived() {
+		anglePackets++;
+		moving = false;
+		haveStamp = false;
+		for (int i = 0; i < NUM_AXES; i++) {
+			position[i] = toDegree(packet[i]);
+			written[i] = position[i];
+		}
+	}
+
+	private void setpointReceived(long millis) {
+		if (SerialComm.checksum(packet) != packet[SerialComm.SETPOINT_LENGTH - 1]) {
+			badSetpoints++;
+			return;
+		}
+		setpoints++;
+		int stamp = packet[6] | (packet[7] << 7);
+		long interval = haveStamp ? (stamp - lastStamp) & (SerialComm.TIMESTAMP_MODULUS - 1) : MAX_INTERVAL_MS;
+		lastStamp = stamp;
+		haveStamp = true;
+
+		// start from where the servos are by now, between refreshes
+		interpolate(millis);
+		for (int i = 0; i < NUM_AXES; i++) {
+			from[i] = position[i];
+			to[i] = toDegree(packet[i + 1]);
+		}
+		moveStart = millis;
+		moveDuration = Math.max(MIN_INTERVAL_MS, Math.min(MAX_INTERVAL_MS, interval));
+		moving = true;
+	}
+
+	private void interpolate(long millis) {
+		if (!moving) {
+			return;
+		}
+		double fraction = (double) (millis - moveStart) / moveDuration;
+		if (fraction >= 1) {
+			fraction = 1;
+			moving = false;
+		}
+		for (int i = 0; i < NUM_AXES; i++) {
+			position[i] = from[i] + (to[i] - from[i]) * fraction;
+		}
+	}
+
+	private void refresh(long millis) {
+		interpolate(millis);
+		for (int i = 0; i < NUM_AXES; i++) {
+			// the firmware's float math and writeMicroseconds, and back to degrees
+			int pulse = (int) (MIN_PULSE + position[i] * (MAX_PULSE - MIN_PULSE) / 180 + 0.5);
+			written[i] = (pulse - MIN_PULSE) * 180 / (MAX_PULSE - MIN_PULSE);
+		}
+	}
+
+	/**
+	 * Writes the angles the servos were last told to go to, in degrees, into the given array.
+	 */
+	public void getServoAngles(double[] angles) {
+		System.arraycopy(written, 0, angles, 0, NUM_AXES);
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	public long getAnglePackets() {
+		return anglePackets;
+	}
+
+	public long getSetpoints() {
+		return setpoints;
+	}
+
+	/**
+	 * @return Number of setpoints dropped because their checksum was wrong
+	 */
+	public long getBadSetpoints() {
+		return badSetpoints;
+	}
+
+	/**
+	 * A SerialComm connected to a SimulatedArduino.  Bytes written are queued and delivered one every
+	 * BYTE_NANOS, as over a 9600 baud line with 10 bits a byte, when deliver is called.  Sends and
+	 * deliveries must use the same clock: give send the time, or set the clock with setClock.
+	 */
+	public static class Link extends SerialComm {
+		public static final long BYTE_NANOS = 10 * 1000000000L / SerialManager.DEFAULT_DATA_RATE;
+
+		private final SimulatedArduino arduino;
+		// bytes in flight and when each one arrives, in a ring
+		private byte[] bytes = new byte[1024];
+		private long[] arrivals = new long[1024];
+		private int head = 0;
+		private int count = 0;
+		// time of the packet being sent, and when the line is free again
+		private long now = 0;
+		private long lineFree = Long.MIN_VALUE;
+		private long bytesSent = 0;
+		private long maxDelay = 0;
+		private final CRC32 checksum = new CRC32();
+
+		public Link(SimulatedArduino arduino) {
+			super();
+			this.arduino = arduino;
+		}
+
+		protected synchronized void sendPacket(byte[] angles, long now) {
+			this.now = now;
+			super.sendPacket(angles, now);
+		}
+
+		public synchronized void serialOutput(byte[] toSend) {
+			if (count + toSend.length > bytes.length) {
+				grow();
+			}
+			for (byte b : toSend) {
+				lineFree = Math.max(lineFree, now) + BYTE_NANOS;
+				int tail = (head + count) % bytes.length;
+				bytes[tail] = b;
+				arrivals[tail] = lineFree;
+				count++;
+			}
+			bytesSent += toSend.length;
+			checksum.update(toSend, 0, toSend.length);
+			maxDelay = Math.max(maxDelay, lineFree - now);
+		}
+
+		private void grow() {
+			byte[] newBytes = new byte[bytes.length * 2];
+			long[] newArrivals = new long[arrivals.length * 2];
+			for (int i = 0; i < count; i++) {
+				newBytes[i] = bytes[(head + i) % bytes.length];
+				newArrivals[i] = arrivals[(head + i) % arrivals.length];
+			}
+			bytes = newBytes;
+			arrivals = newArrivals;
+			head = 0;
+		}
+
+		/**
+		 * Hands the Arduino every byte that has arrived by now, then lets it refresh the servos.
+		 *
+		 * @param now Current time in ns, on the same clock as the sends
+		 */
+		public synchronized void deliver(long now) {
+			while (count > 0 && arrivals[head] <= now) {
+				arduino.receive(bytes[head], arrivals[head] / 1000000);
+				head = (head + 1) % bytes.length;
+				count--;
+			}
+			arduino.update(now / 1000000);
+		}
+
+		public synchronized long getBytesSent() {
+			return bytesSent;
+		}
+
+		/**
+		 * @return CRC-32 of every byte sent, to tell at a glance whether two runs sent the same
+		 */
+		public synchronized long getChecksum() {
+			return checksum.getValue();
+		}
+
+		/**
+		 * @return Longest time from a packet being written to its last byte arriving, in ns
+		 */
+		public synchronized long getMaxDelay() {
+			return maxDelay;
+		}
+	}
+
+	public static void main(String[] args) {
+		double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 60;
+		double sampleRate = args.length > 1 ? Double.parseDouble(args[1]) : 100;
+
+		System.out.printf("Following a simulated hand for %.0f s, %.0f samples per second:%n", seconds, sampleRate);
+		System.out.printf("  %-16s %8s %9s %7s %12s %12s %10s%n", "mode", "packets", "bytes/s", "line", "roughness", "lag (RMS)", "max delay");
+		double[] rates = {0, 50, 20, 10, 5};
+		for (double rate : rates) {
+			run(rate, seconds, sampleRate);
+		}
+	}
+
+	/**
+	 * Sends a simulated hand's angles through a Link, sampling the servos every refresh.
+	 *
+	 * @param setpointRate Setpoints per second, or 0 to send every sample
+	 */
+	private static void run(double setpointRate, double seconds, double sampleRate) {
+		SimulatedArduino arduino = new SimulatedArduino();
+		Link link = new Link(arduino);
+		link.setSetpointRate(setpointRate);
+
+		long samplePeriod = Math.round(1e9 / sampleRate);
+		long end = Math.round(seconds * 1e9);
+		long nextSample = 0;
+		double[] angles = new double[NUM_AXES];
+		double[] servo = new double[NUM_AXES];
+		double[] last = new double[NUM_AXES];
+		double[] lastSpeed = new double[NUM_AXES];
+		double roughness = 0;
+		double lag = 0;
+		long refreshes = 0;
+		// step the simulation 1 ms at a time, sampling the servos every refresh
+		for (long now = 0; now <= end; now += 1000000) {
+			if (now >= nextSample) {
+				hand(now / 1e9, angles);
+				link.send(angles[0], angles[1], angles[2], angles[3], angles[4], now);
+				nextSample += samplePeriod;
+			}
+			link.deliver(now);
+			if (now % (REFRESH_MS * 1000000) == 0) {
+				arduino.getServoAngles(servo);
+				hand(now / 1e9, angles);
+				for (int i = 0; i < NUM_AXES; i++) {
+					double speed = servo[i] - last[i];
+					if (refreshes >= 2) {
+						roughness += (speed - lastSpeed[i]) * (speed - lastSpeed[i]);
+						lag += (servo[i] - angles[i]) * (servo[i] - angles[i]);
+					}
+					lastSpeed[i] = speed;
+					last[i] = servo[i];
+				}
+				refreshes++;
+			}
+		}
+		long samples = (refreshes - 2) * NUM_AXES;
+		System.out.printf("  %-16s %8d %9.0f %6.0f%% %8.3f deg %8.2f deg %7.1f ms%n",
+				setpointRate > 0 ? String.format("setpoints %.0f Hz", setpointRate) : "every sample",
+				arduino.getAnglePackets() + arduino.getSetpoints(), link.getBytesSent() / seconds,
+				100.0 * link.getBytesSent() * Link.BYTE_NANOS / end,
+				Math.sqrt(roughness / samples), Math.sqrt(lag / samples), link.getMaxDelay() / 1e6);
+	}
+
+	/**
+	 * A hand moving the arm about like an operator would: each axis sweeping at its own pace.
+	 */
+	private static void hand(double t, double[] angles) {
+		angles[Arm.BASE] = 90 + 40 * Math.sin(2 * Math.PI * 0.13 * t);
+		angles[Arm.SHOULDER] = 95 + 25 * Math.sin(2 * Math.PI * 0.21 * t + 1);
+		angles[Arm.ELBOW] = 60 + 30 * Math.sin(2 * Math.PI * 0.17 * t + 2);
+		angles[Arm.WRIST] = 90 + 35 * Math.sin(2 * Math.PI * 0.29 * t + 3);
+		angles[Arm.GRIP] = 60 + 20 * Math.sin(2 * Math.PI * 0.4 * t);
+	}
+}
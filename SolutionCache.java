@@ -0,0 +1,290 @@
+import java.util.Arrays;
+
+/**
+ * Remembers inverse kinematics solutions, so that a hand held nearly still does not solve the same
+ * pose over and over.  The servos can only be sent whole steps of about 0.7 degrees, so targets a
+ * fraction of a millimetre apart end up as the same packet anyway.
+ *
+ * Targets are rounded to a grid (positionResolution in cm for x, y and z, angleResolution in degrees
+ * for the pitch and grip angle), and each grid point is solved once, at the grid point itself, so the
+ * answer for a target never depends on what was solved before it.  With the default resolutions the
+ * grid is much finer than a servo step.
+ *
+ * The cache holds at most capacity solutions and forgets the least recently used when full.  Keys are
+ * packed into two longs and found by open addressing in an int table at most half full, so a lookup
+ * is a hash, a probe or two and a copy of four angles, and nothing is allocated after construction.
+ * Hits, misses and evictions are counted in Metrics as well as per cache.
+ *
+ * Only used by the control thread.  Call clear() whenever the kinematics it solves with change.
+ */
+public class SolutionCache {
+	public static final int DEFAULT_CAPACITY = 4096;
+	public static final double DEFAULT_POSITION_RESOLUTION = 0.05;	// cm
+	public static final double DEFAULT_ANGLE_RESOLUTION = 0.1;	// degrees
+
+	// rounded coordinates are packed into 21 bits each, angles into 32
+	private static final long COORDINATE_LIMIT = 1L << 20;
+	private static final long ANGLE_LIMIT = 1L << 31;
+	private static final long COORDINATE_MASK = (1L << 21) - 1;
+	private static final long ANGLE_MASK = 0xFFFFFFFFL;
+
+	private static final int ANGLES = Arm.NUM_AXES - 1;
+	private static final int NONE = -1;
+
+	private static final Metrics.Counter hitCounter = Metrics.counter("ikCacheHits");
+	private static final Metrics.Counter missCounter = Metrics.counter("ikCacheMisses");
+	private static final Metrics.Counter evictionCounter = Metrics.counter("ikCacheEvictions");
+
+	private final Kinematics kinematics;
+	private final int capacity;
+	private final double positionResolution;
+	private final double angleResolution;
+
+	// open addressing index: entry number + 1, or 0 for an empty slot
+	private final int[] table;
+	private final int mask;
+
+	// entries, in fixed arrays
+	private final long[] keyHigh;
+	private final long[] keyLow;
+	private final int[] hashes;
+	private final double[] solutions;
+	private final boolean[] safe;
+	private int size = 0;
+
+	// least recently used list through the entries
+	private final int[] newer;
+	private final int[] older;
+	private int newest = NONE;
+	private int oldest = NONE;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	private final GripInfo gripInfo = new GripInfo();
+
+	/**
+	 * Constructor - a cache with the default capacity and resolutions.
+	 *
+	 * @param kinematics Geometry of the arm to solve with
+	 */
+	public SolutionCache(Kinematics kinematics) {
+		this(kinematics, DEFAULT_CAPACITY, DEFAULT_POSITION_RESOLUTION, DEFAULT_ANGLE_RESOLUTION);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param kinematics Geometry of the arm to solve with
+	 * @param capacity Most solutions to keep.  0 turns caching off: every target is solved exactly as given.
+	 * @param positionResolution Spacing of the grid for x, y and z, in cm
+	 * @param angleResolution Spacing of the grid for the pitch and grip angle, in degrees
+	 */
+	public SolutionCache(Kinematics kinematics, int capacity, double positionResolution, double angleResolution) {
+		if (capacity < 0 || capacity > 1 << 28) {
+			throw new IllegalArgumentException("capacity out of range: " + capacity);
+		}
+		if (!(positionResolution > 0) || !(angleResolution > 0)) {
+			throw new IllegalArgumentException("resolutions must be positive");
+		}
+		this.kinematics = kinematics;
+		this.capacity = capacity;
+		this.positionResolution = positionResolution;
+		this.angleResolution = angleResolution;
+		int tableSize = Integer.highestOneBit(Math.max(1, capacity) * 2 - 1) << 1;
+		this.table = new int[tableSize];
+		this.mask = tableSize - 1;
+		this.keyHigh = new long[capacity];
+		this.keyLow = new long[capacity];
+		this.hashes = new int[capacity];
+		this.solutions = new double[capacity * ANGLES];
+		this.safe = new boolean[capacity];
+		this.newer = new int[capacity];
+		this.older = new int[capacity];
+	}
+
+	/**
+	 * Solves for the angles that put the grip tip at x, y, z with the given pitch, like
+	 * Kinematics.findAnglesConstantPitch, and checks them against the axis ranges.
+	 *
+	 * @param x Grip tip x coordinate, in cm
+	 * @param y Grip tip y coordinate, in cm
+	 * @param z Grip tip z coordinate, in cm
+	 * @param pitchAngle Pitch of the gripper, in degrees
+	 * @param gripAngle Grip axis angle, which sets the grip length
+	 * @param angles Array to write the base, shoulder, elbow and wrist angles into
+	 * @return true if the angles are within the arm's limits
+	 */
+	public boolean solve(double x, double y, double z, double pitchAngle, double gripAngle, double[] angles) {
+		double sx = x / positionResolution;
+		double sy = y / positionResolution;
+		double sz = z / positionResolution;
+		double sp = pitchAngle / angleResolution;
+		double sg = gripAngle / angleResolution;
+		// written so that NaN targets fail too. Those, and targets off the grid, are solved as they are.
+		if (capacity == 0 || !(Math.abs(sx) < COORDINATE_LIMIT && Math.abs(sy) < COORDINATE_LIMIT && Math.abs(sz) < COORDINATE_LIMIT
+				&& Math.abs(sp) < ANGLE_LIMIT && Math.abs(sg) < ANGLE_LIMIT)) {
+			return compute(x, y, z, pitchAngle, gripAngle, angles);
+		}
+		long qx = Math.round(sx);
+		long qy = Math.round(sy);
+		long qz = Math.round(sz);
+		long qp = Math.round(sp);
+		long qg = Math.round(sg);
+		long high = (qx & COORDINATE_MASK) << 42 | (qy & COORDINATE_MASK) << 21 | (qz & COORDINATE_MASK);
+		long low = (qp & ANGLE_MASK) << 32 | (qg & ANGLE_MASK);
+		int hash = hash(high, low);
+
+		for (int i = hash & mask; table[i] != 0; i = (i + 1) & mask) {
+			int e = table[i] - 1;
+			if (keyHigh[e] == high && keyLow[e] == low) {
+				hits++;
+				hitCounter.increment();
+				moveToNewest(e);
+				System.arraycopy(solutions, e * ANGLES, angles, 0, ANGLES);
+				return safe[e];
+			}
+		}
+
+		misses++;
+		missCounter.increment();
+		int e;
+		if (size < capacity) {
+			e = size++;
+		} else {
+			e = oldest;
+			unlink(e);
+			remove(e);
+			evictions++;
+			evictionCounter.increment();
+		}
+		keyHigh[e] = high;
+		keyLow[e] = low;
+		hashes[e] = hash;
+		safe[e] = compute(qx * positionResolution, qy * positionResolution, qz * positionResolution,
+				qp * angleResolution, qg * angleResolution, angles);
+		System.arraycopy(angles, 0, solutions, e * ANGLES, ANGLES);
+		int i = hash & mask;
+		while (table[i] != 0) {
+			i = (i + 1) & mask;
+		}
+		table[i] = e + 1;
+		linkNewest(e);
+		return safe[e];
+	}
+
+	private boolean compute(double x, double y, double z, double pitchAngle, double gripAngle, double[] angles) {
+		kinematics.getGripInfo(gripAngle, gripInfo);
+		kinematics.findAnglesConstantPitch(x, y, z, gripInfo.gripLength, pitchAngle, angles);
+		return kinematics.safetyCheckAxisAngles(angles);
+	}
+
+	private static int hash(long high, long low) {
+		long h = (high ^ Long.rotateLeft(low, 29)) * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/**
+	 * Takes an entry out of the index, shifting back any entries that probed past it so that every
+	 * entry can still be found from its home slot.
+	 */
+	private void remove(int e) {
+		int i = hashes[e] & mask;
+		while (table[i] != e + 1) {
+			i = (i + 1) & mask;
+		}
+		int j = i;
+		while (true) {
+			j = (j + 1) & mask;
+			if (table[j] == 0) {
+				break;
+			}
+			int home = hashes[table[j] - 1] & mask;
+			// move it back unless its home lies cyclically in (i, j]
+			boolean stays = i <= j ? (home > i && home <= j) : (home > i || home <= j);
+			if (!stays) {
+				table[i] = table[j];
+				i = j;
+			}
+		}
+		table[i] = 0;
+	}
+
+	private void linkNewest(int e) {
+		older[e] = newest;
+		newer[e] = NONE;
+		if (newest != NONE) {
+			newer[newest] = e;
+		} else {
+			oldest = e;
+		}
+		newest = e;
+	}
+
+	private void unlink(int e) {
+		if (older[e] != NONE) {
+			newer[older[e]] = newer[e];
+		} else {
+			oldest = newer[e];
+		}
+		if (newer[e] != NONE) {
+			older[newer[e]] = older[e];
+		} else {
+			newest = older[e];
+		}
+	}
+
+	private void moveToNewest(int e) {
+		if (e != newest) {
+			unlink(e);
+			linkNewest(e);
+		}
+	}
+
+	/**
+	 * Forgets every solution.  The counts of hits, misses and evictions are kept.
+	 */
+	public void clear() {
+		Arrays.fill(table, 0);
+		size = 0;
+		newest = NONE;
+		oldest = NONE;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return Number of solutions held
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	public long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return Fraction of lookups answered from the cache, or 0 if there have been none
+	 */
+	public double getHitRate() {
+		long lookups = hits + misses;
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	public String toString() {
+		return String.format("%d of %d solutions cached, %.1f%% hits (%d hits, %d misses, %d evictions)",
+				size, capacity, 100 * getHitRate(), hits, misses, evictions);
+	}
+}
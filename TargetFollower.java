@@ -0,0 +1,91 @@
+/**
+ * Moves the arm to the targets arriving in a TargetSlot (usually from a TargetServer), on its own
+ * daemon thread, in place of the Leap.  It waits for a new target and sends the arm toward it.  The
+ * arm only takes a command as far as the servos can follow (see Arm.set), so until the whole target
+ * has been commanded the follower sends it again every COMMAND_PERIOD, switching to a newer target
+ * if one has come.  It never falls behind: targets that arrive while it is busy replace each other,
+ * and only the newest is followed.
+ *
+ * The time from a target being received to the command for it being sent is kept in a
+ * LatencyHistogram.
+ */
+public class TargetFollower implements Runnable {
+	// time between commands while the arm is on its way to a target, in ns
+	public static final long COMMAND_PERIOD = (long) (MotionExecutor.COMMAND_PERIOD * 1e9);
+
+	private static final Metrics.Counter followed = Metrics.counter("targetsFollowed");
+
+	private final Arm arm;
+	private final TargetSlot slot;
+	private final LatencyHistogram latency = new LatencyHistogram();
+
+	// private copy of the target being followed
+	private final TargetSlot target = new TargetSlot();
+
+	/**
+	 * Constructor
+	 *
+	 * @param arm The arm to move
+	 * @param slot Slot the targets arrive in
+	 */
+	public TargetFollower(Arm arm, TargetSlot slot) {
+		this.arm = arm;
+		this.slot = slot;
+	}
+
+	/**
+	 * Starts following on a daemon thread.  Interrupt the thread to stop.
+	 *
+	 * @return The following thread
+	 */
+	public Thread start() {
+		Thread thread = new Thread(this, "TargetFollower");
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	public void run() {
+		long seen = 0;
+		try {
+			while (true) {
+				seen = slot.await(seen, target);
+				follow();
+				latency.record(System.nanoTime() - target.getReceivedAt());
+				followed.increment();
+				// keep going until the whole target has been commanded
+				while (arm.isSetCutShort()) {
+					arm.clock.sleep(COMMAND_PERIOD);
+					long latest = slot.poll(seen, target);
+					follow();
+					if (latest != seen) {
+						seen = latest;
+						latency.record(System.nanoTime() - target.getReceivedAt());
+						followed.increment();
+					}
+				}
+				// in setpoint mode, make sure the target goes out even if no other one follows it
+				if (!arm.flushCommands()) {
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			return;
+		}
+	}
+
+	// sends the arm toward the target
+	private void follow() {
+		if (Double.isNaN(target.getPitch()))
+			arm.set(target.getX(), target.getY(), target.getZ(), target.getGripSeparation());
+		else
+			arm.set(target.getX(), target.getY(), target.getZ(), target.getPitch(), target.getGripSeparation());
+	}
+
+	/**
+	 * @return Time from receiving each target to sending the command for it
+	 */
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+}
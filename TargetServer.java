@@ -0,0 +1,253 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/**
+ * Lets other processes on the same computer (vision, a cell controller) send targets for the arm.
+ * Listens on localhost only, for UDP datagrams and TCP connections on the same port number, and puts
+ * every target it receives into a TargetSlot for a TargetFollower to move the arm to.
+ *
+ * A target message is MESSAGE_SIZE bytes in network byte order:
+ *   long  sequence         must go up with every message from a client, or the message is dropped
+ *                          as stale.  A new TCP connection, or datagrams from a new address, may
+ *                          start again from any number.
+ *   float x, y, z          grip tip position, in cm
+ *   float pitch            pitch of the gripper, in degrees, or NaN to keep the teleop pitch
+ *   float gripSeparation   in cm, or NaN to leave the grip as it is
+ * Each UDP datagram holds one message; a TCP connection carries any number back to back.  encode()
+ * writes one.
+ *
+ * Everything runs on one thread with a Selector and never blocks on a slow client.  Messages that
+ * arrive faster than the arm can follow simply replace each other in the slot.
+ */
+public class TargetServer implements Runnable {
+	public static final int DEFAULT_PORT = 7341;
+	public static final int MESSAGE_SIZE = 28;
+
+	// messages a TCP connection can have waiting in its buffer
+	private static final int CONNECTION_BUFFER_MESSAGES = 64;
+
+	private static final Metrics.Counter received = Metrics.counter("targetsReceived");
+	private static final Metrics.Counter malformed = Metrics.counter("targetsMalformed");
+
+	private final TargetSlot slot;
+	private final Selector selector;
+	private final DatagramChannel udp;
+	private final ServerSocketChannel tcp;
+
+	private Thread thread;
+	private volatile boolean closed = false;
+
+	// one byte longer than a message, so longer datagrams can be told apart
+	private final ByteBuffer datagram = ByteBuffer.allocateDirect(MESSAGE_SIZE + 1);
+	// where the last datagram came from, since sequence numbers only go up within one client
+	private SocketAddress lastSender = null;
+
+	/**
+	 * Constructor - opens the UDP and TCP ports straight away.
+	 *
+	 * @param slot Slot to put targets into
+	 * @param port Port to listen on, or 0 for any free port (see getPort)
+	 * @throws IOException if either port can't be opened
+	 */
+	public TargetServer(TargetSlot slot, int port) throws IOException {
+		this.slot = slot;
+		this.selector = Selector.open();
+		this.tcp = ServerSocketChannel.open();
+		this.udp = DatagramChannel.open();
+		try {
+			InetAddress localhost = InetAddress.getLoopbackAddress();
+			tcp.bind(new InetSocketAddress(localhost, port));
+			// with port 0, use the same port number for both
+			udp.bind(new InetSocketAddress(localhost, getPort()));
+			tcp.configureBlocking(false);
+			udp.configureBlocking(false);
+			tcp.register(selector, SelectionKey.OP_ACCEPT);
+			udp.register(selector, SelectionKey.OP_READ);
+		} catch (IOException e) {
+			closeChannels();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return Port the server listens on, for both UDP and TCP
+	 */
+	public int getPort() {
+		return tcp.socket().getLocalPort();
+	}
+
+	/**
+	 * Starts serving on a daemon thread.
+	 *
+	 * @return The serving thread
+	 */
+	public Thread start() {
+		Thread thread = new Thread(this, "TargetServer");
+		thread.setDaemon(true);
+		this.thread = thread;
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Stops serving.  The ports and all connections are closed by the serving thread as it stops, or
+	 * straight away if it was never started.
+	 */
+	public void close() {
+		closed = true;
+		if (thread == null) {
+			closeChannels();
+		} else {
+			selector.wakeup();
+		}
+	}
+
+	private void closeChannels() {
+		try {
+			for (SelectionKey key : selector.keys()) {
+				key.channel().close();
+			}
+			selector.close();
+			tcp.close();
+			udp.close();
+		} catch (IOException e) {
+			Utility.error("error closing target server: %s%n", e);
+		}
+	}
+
+	public void run() {
+		try {
+			while (!closed) {
+				selector.select();
+				long now = System.nanoTime();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+					} else if (key.channel() == udp) {
+						readDatagrams(now);
+					} else {
+						readConnection(key, now);
+					}
+				}
+			}
+		} catch (IOException e) {
+			Utility.error("target server stopped: %s%n", e);
+		} finally {
+			closeChannels();
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel connection = tcp.accept();
+		if (connection == null) {
+			return;
+		}
+		connection.configureBlocking(false);
+		connection.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		connection.register(selector, SelectionKey.OP_READ, ByteBuffer.allocateDirect(MESSAGE_SIZE * CONNECTION_BUFFER_MESSAGES));
+		// a client that reconnects numbers its targets from the start again
+		slot.resetSequence();
+	}
+
+	private void readDatagrams(long now) throws IOException {
+		while (true) {
+			datagram.clear();
+			SocketAddress sender = udp.receive(datagram);
+			if (sender == null) {
+				return;
+			}
+			if (!sender.equals(lastSender)) {
+				slot.resetSequence();
+				lastSender = sender;
+			}
+			if (datagram.position() != MESSAGE_SIZE) {
+				malformed.increment();
+				continue;
+			}
+			datagram.flip();
+			decode(datagram, now);
+		}
+	}
+
+	private void readConnection(SelectionKey key, long now) {
+		SocketChannel connection = (SocketChannel) key.channel();
+		ByteBuffer buffer = (ByteBuffer) key.attachment();
+		int read;
+		try {
+			read = connection.read(buffer);
+		} catch (IOException e) {
+			read = -1;	// reset by the client
+		}
+		buffer.flip();
+		while (buffer.remaining() >= MESSAGE_SIZE) {
+			decode(buffer, now);
+		}
+		buffer.compact();
+		if (read < 0) {
+			if (buffer.position() > 0) {
+				malformed.increment();	// partial message at the end
+			}
+			key.cancel();
+			try {
+				connection.close();
+			} catch (IOException e) {
+				Utility.error("error closing target connection: %s%n", e);
+			}
+		}
+	}
+
+	/**
+	 * Reads one message from the buffer and offers it to the slot.
+	 */
+	private void decode(ByteBuffer buffer, long now) {
+		long sequence = buffer.getLong();
+		double x = buffer.getFloat();
+		double y = buffer.getFloat();
+		double z = buffer.getFloat();
+		double pitch = buffer.getFloat();
+		double gripSeparation = buffer.getFloat();
+		received.increment();
+		// a NaN pitch or grip means "keep it", but the position has to be real
+		if (!Double.isFinite(x + y + z) || Double.isInfinite(pitch) || Double.isInfinite(gripSeparation)) {
+			malformed.increment();
+			return;
+		}
+		slot.offer(sequence, x, y, z, pitch, gripSeparation, now);
+	}
+
+	/**
+	 * Writes a target message into a buffer, for clients written in Java.
+	 *
+	 * @param out Buffer to write into; must be in network byte order (the default) with MESSAGE_SIZE bytes free
+	 * @param sequence Sequence number, higher than the last one sent
+	 * @param x Grip tip x coordinate, in cm
+	 * @param y Grip tip y coordinate, in cm
+	 * @param z Grip tip z coordinate, in cm
+	 * @param pitch Pitch of the gripper, in degrees, or NaN to keep the teleop pitch
+	 * @param gripSeparation Grip separation, in cm, or NaN to leave the grip as it is
+	 */
+	public static void encode(ByteBuffer out, long sequence, double x, double y, double z, double pitch, double gripSeparation) {
+		out.putLong(sequence);
+		out.putFloat((float) x);
+		out.putFloat((float) y);
+		out.putFloat((float) z);
+		out.putFloat((float) pitch);
+		out.putFloat((float) gripSeparation);
+	}
+}
@@ -0,0 +1,188 @@
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Holds the newest target for the arm (grip tip position, pitch and grip separation) handed from the
+ * threads that receive targets to the thread that moves the arm.  Only the latest target is kept: one
+ * that arrives before the previous one was taken replaces it, so a fast source can never build up a
+ * queue in front of the serial port.
+ *
+ * Every target carries a sequence number, and a target whose number isn't higher than the last one
+ * offered is stale (reordered or duplicated on the way) and dropped.  Sources should number targets
+ * from 1 up, e.g. with a timestamp.  Numbers only mean anything within one source, so whatever offers
+ * targets calls resetSequence when a new source starts (TargetServer does on every new connection).
+ *
+ * Offering uses the same seqlock as PoseSnapshot, so the taker never blocks the senders.  The taker
+ * waits in await(), which parks until a newer target is offered.
+ */
+public class TargetSlot {
+	private static final Metrics.Counter stale = Metrics.counter("targetsStale");
+	private static final Metrics.Counter replaced = Metrics.counter("targetsReplaced");
+
+	// odd while a write is in progress
+	private volatile long version = 0;
+	// version last copied by await, to count targets replaced before they were taken
+	private volatile long takenVersion = 0;
+	// thread waiting in await, if any
+	private volatile Thread waiter;
+	// sequence number of the last target taken from the current source, only touched by offer and resetSequence
+	private long lastSequence = 0;
+
+	// target data, only touched by writers while version is odd
+	private long sequence = 0;
+	private double x;
+	private double y;
+	private double z;
+	private double pitch;
+	private double gripSeparation;
+	private long receivedAt;
+
+	/**
+	 * Offers a new target.
+	 *
+	 * @param sequence Sequence number of the target
+	 * @param x Grip tip x coordinate, in cm
+	 * @param y Grip tip y coordinate, in cm
+	 * @param z Grip tip z coordinate, in cm
+	 * @param pitch Pitch of the gripper, in degrees, or NaN to keep the pitch held during teleop
+	 * @param gripSeparation Grip separation, in cm, or NaN to leave the grip as it is
+	 * @param receivedAt System.nanoTime when the target was received
+	 * @return false if the target is stale and was dropped
+	 */
+	public synchronized boolean offer(long sequence, double x, double y, double z, double pitch, double gripSeparation, long receivedAt) {
+		if (sequence <= lastSequence) {
+			stale.increment();
+			return false;
+		}
+		lastSequence = sequence;
+		long v = version;
+		if (v != takenVersion) {
+			replaced.increment();
+		}
+		version = v + 1;
+		VarHandle.storeStoreFence();
+		this.sequence = sequence;
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		this.pitch = pitch;
+		this.gripSeparation = gripSeparation;
+		this.receivedAt = receivedAt;
+		version = v + 2;
+
+		Thread thread = waiter;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+		return true;
+	}
+
+	/**
+	 * Starts numbering again, for a new source: the next target offered is taken whatever its
+	 * sequence number.
+	 */
+	public synchronized void resetSequence() {
+		lastSequence = Long.MIN_VALUE;
+	}
+
+	/**
+	 * Copies the latest target into another slot without locking.  The destination should only be used
+	 * by the calling thread.
+	 *
+	 * @param dest Slot to copy into
+	 * @return The version that was copied.  Unchanged versions mean no new target has arrived.
+	 */
+	public long copyTo(TargetSlot dest) {
+		while (true) {
+			long v = version;
+			if ((v & 1) != 0) {
+				Thread.onSpinWait();
+				continue;
+			}
+			dest.sequence = sequence;
+			dest.x = x;
+			dest.y = y;
+			dest.z = z;
+			dest.pitch = pitch;
+			dest.gripSeparation = gripSeparation;
+			dest.receivedAt = receivedAt;
+			VarHandle.loadLoadFence();
+			if (version == v) {
+				return v;
+			}
+		}
+	}
+
+	/**
+	 * Waits until a target newer than the given version arrives, then copies it.  Only one thread may
+	 * wait at a time.
+	 *
+	 * @param seen Version returned by the previous call, or 0 the first time
+	 * @param dest Slot to copy into
+	 * @return The version that was copied
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public long await(long seen, TargetSlot dest) throws InterruptedException {
+		waiter = Thread.currentThread();
+		try {
+			while (version == seen) {
+				LockSupport.park(this);
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+			}
+		} finally {
+			waiter = null;
+		}
+		long v = copyTo(dest);
+		takenVersion = v;
+		return v;
+	}
+
+	/**
+	 * Copies the latest target if one newer than the given version has arrived, without waiting.  Only
+	 * the thread that calls await may call this.
+	 *
+	 * @param seen Version returned by the previous call to await or poll
+	 * @param dest Slot to copy into
+	 * @return The version that was copied, or seen if there is nothing newer
+	 */
+	public long poll(long seen, TargetSlot dest) {
+		if (version == seen) {
+			return seen;
+		}
+		long v = copyTo(dest);
+		takenVersion = v;
+		return v;
+	}
+
+	// Getters.  These should only be used on a private copy made with copyTo or await.
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	public double getX() {
+		return x;
+	}
+
+	public double getY() {
+		return y;
+	}
+
+	public double getZ() {
+		return z;
+	}
+
+	public double getPitch() {
+		return pitch;
+	}
+
+	public double getGripSeparation() {
+		return gripSeparation;
+	}
+
+	public long getReceivedAt() {
+		return receivedAt;
+	}
+}
@@ -0,0 +1,188 @@
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs a queue of pick-and-place jobs on the arm as a work cell.  Planning is pipelined: while the
+ * arm carries out job N on the calling thread, job N+1 is planned (inverse kinematics, safety checks
+ * and trajectory generation) on a worker thread, starting from the pose job N will end in.  As long
+ * as planning a job takes less time than doing one, the arm never waits for the planner.
+ *
+ * A job that cannot be planned is skipped with an error and the next one is planned from the same
+ * start pose, so the arm never moves toward a job it can't finish.
+ *
+ * Throughput is reported as cycles (completed jobs) per minute, along with the time spent planning
+ * and the time the arm spent waiting for a plan.  Cycles are timed on the arm's Clock, so in a
+ * simulation on a VirtualClock they are as fast as the arm would be; planning and waiting are always
+ * real time.
+ */
+public class TaskEngine {
+	private static final int NUM_AXES = Arm.NUM_AXES;
+
+	private static final Metrics.Counter cycles = Metrics.counter("taskCycles");
+	private static final Metrics.Counter planFailures = Metrics.counter("taskPlanFailures");
+
+	private final Arm arm;
+	private final MotionExecutor executor;
+	private final TaskPlanner planner;
+	private final ExecutorService worker;
+
+	// statistics for the last call to run()
+	private int completed;
+	private long runNanos;
+	private volatile long planNanos;	// only written by the worker
+	private long waitNanos;
+
+	/**
+	 * Constructor
+	 *
+	 * @param arm The arm to run jobs on
+	 */
+	public TaskEngine(Arm arm) {
+		this.arm = arm;
+		this.executor = new MotionExecutor(arm);
+		this.planner = new TaskPlanner(arm.kinematics, arm.workspace.getGroundHeight());
+		this.worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "TaskPlanner");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Runs the jobs in order, blocking until they are done.  If the calling thread is interrupted, the
+	 * arm stops where it is, the remaining jobs are dropped and the interrupt flag is left set.
+	 *
+	 * @param jobs The jobs to run
+	 * @return true if every job was planned and carried out
+	 */
+	public boolean run(List<PickPlaceJob> jobs) {
+		completed = 0;
+		planNanos = 0;
+		waitNanos = 0;
+		long startTime = arm.clock.nanoTime();
+		try {
+			return runJobs(jobs);
+		} finally {
+			runNanos = arm.clock.nanoTime() - startTime;
+		}
+	}
+
+	private boolean runJobs(List<PickPlaceJob> jobs) {
+		if (jobs.isEmpty()) {
+			return true;
+		}
+		// the first job starts from wherever the arm is
+		double[] start = new double[NUM_AXES];
+		arm.getEstimatedAngles(start);
+
+		boolean allDone = true;
+		Future<Trajectory> next = submit(jobs.get(0), start);
+		for (int i = 0; i < jobs.size(); i++) {
+			Trajectory trajectory = await(next);
+			if (Thread.currentThread().isInterrupted()) {
+				return false;
+			}
+			if (trajectory == null) {
+				// skip the job; the arm stays put, so the next job starts from the same pose
+				planFailures.increment();
+				allDone = false;
+				if (i + 1 < jobs.size()) {
+					next = submit(jobs.get(i + 1), start);
+				}
+				continue;
+			}
+
+			// plan the next job from where this one ends, while this one runs
+			start = new double[NUM_AXES];
+			trajectory.getWaypoint(trajectory.size() - 1, start);
+			next = i + 1 < jobs.size() ? submit(jobs.get(i + 1), start) : null;
+			if (!executor.execute(trajectory, 1.0)) {
+				if (next != null) {
+					next.cancel(true);
+				}
+				return false;
+			}
+			completed++;
+			cycles.increment();
+		}
+		return allDone;
+	}
+
+	private Future<Trajectory> submit(final PickPlaceJob job, final double[] startPose) {
+		return worker.submit(new Callable<Trajectory>() {
+			public Trajectory call() {
+				long begin = System.nanoTime();
+				Trajectory trajectory = planner.plan(job, startPose);
+				planNanos += System.nanoTime() - begin;
+				return trajectory;
+			}
+		});
+	}
+
+	/**
+	 * Waits for a plan, adding the time spent waiting to the statistics.  Returns null if the plan
+	 * failed or the wait was interrupted.
+	 */
+	private Trajectory await(Future<Trajectory> plan) {
+		long begin = System.nanoTime();
+		try {
+			return plan.get();
+		} catch (InterruptedException e) {
+			plan.cancel(true);
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			Utility.error("planning failed: %s%n", e.getCause());
+			return null;
+		} finally {
+			waitNanos += System.nanoTime() - begin;
+		}
+	}
+
+	/**
+	 * Stops the planning thread.  The engine can't be used afterwards.
+	 */
+	public void shutdown() {
+		worker.shutdownNow();
+	}
+
+	/**
+	 * @return Number of jobs completed by the last run
+	 */
+	public int getCompleted() {
+		return completed;
+	}
+
+	/**
+	 * @return Completed jobs per minute of the last run, including time spent waiting for plans
+	 */
+	public double getCyclesPerMinute() {
+		return runNanos > 0 ? completed * 60e9 / runNanos : 0;
+	}
+
+	/**
+	 * @return Total time spent planning during the last run, in seconds
+	 */
+	public double getPlanSeconds() {
+		return planNanos / 1e9;
+	}
+
+	/**
+	 * @return Time the arm spent waiting for a plan during the last run, in seconds
+	 */
+	public double getWaitSeconds() {
+		return waitNanos / 1e9;
+	}
+
+	public String toString() {
+		return String.format("%d jobs in %.1f s (%.1f cycles/min), planning %.3f s, waiting %.3f s",
+				completed, runNanos / 1e9, getCyclesPerMinute(), getPlanSeconds(), getWaitSeconds());
+	}
+}
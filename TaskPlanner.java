@@ -0,0 +1,193 @@
+/**
+ * Turns pick-and-place jobs into joint trajectories that a MotionExecutor can play.  All inverse
+ * kinematics and safety checks are done here, ahead of time, so a job that can't be done is rejected
+ * before the arm starts moving.  Every move is checked against a ClearanceGuard like the arm's, in the
+ * steps a MotionExecutor will send it, so the arm won't stop a planned job partway for passing too
+ * close to the board.
+ *
+ * Each job is planned from a given start pose and ends with the grip open, at the last retreat
+ * waypoint of the place stop.
+ * Speeds match the defaults of Arm.moveAxesAtSpeed and Arm.moveStraightTo.
+ *
+ * A TaskPlanner only reads the arm's Kinematics, so it can plan on a different thread than the one
+ * moving the arm.  It is not safe to use one TaskPlanner from two threads at once.
+ */
+public class TaskPlanner {
+	// speed of joint moves (the axis with the farthest to go), in degrees per second
+	public static final double JOINT_SPEED = 50;
+	// speed of straight-line moves, in cm per second
+	public static final double STRAIGHT_SPEED = 35;
+	// distance between waypoints of straight-line moves, in cm
+	public static final double STRAIGHT_STEP = 1;
+
+	private static final int NUM_AXES = Arm.NUM_AXES;
+
+	private final Kinematics kinematics;
+	private final ClearanceGuard clearanceGuard;
+	// whether to print why a job can't be planned
+	private boolean verbose = true;
+
+	// state of the plan being built
+	private Trajectory trajectory;
+	private final double[] pose = new double[NUM_AXES];
+	private double time;
+
+	// reused buffers
+	private final double[] solution = new double[NUM_AXES];
+	private final double[] previous = new double[NUM_AXES];
+	private final double[] step = new double[NUM_AXES];
+	private final GripInfo gripInfo = new GripInfo();
+	private final Vec3 point = new Vec3();
+	private final Vec3 direction = new Vec3();
+
+	/**
+	 * Constructor
+	 *
+	 * @param kinematics Geometry of the arm to plan for
+	 * @param groundHeight Height of the board, in cm
+	 */
+	public TaskPlanner(Kinematics kinematics, double groundHeight) {
+		this.kinematics = kinematics;
+		this.clearanceGuard = new ClearanceGuard(kinematics, groundHeight, ClearanceGuard.DEFAULT_MARGIN);
+	}
+
+	/**
+	 * Turns printing of the reasons a job can't be planned on or off.  On by default; planners trying
+	 * out many arms turn it off.
+	 */
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	/**
+	 * Plans a job.
+	 *
+	 * @param job The job to plan
+	 * @param startPose All five axis angles the arm will be at when the job starts
+	 * @return The trajectory for the whole job, starting at startPose, or null if part of the job is
+	 *         out of reach, outside the axis ranges or too close to the board
+	 */
+	public Trajectory plan(PickPlaceJob job, double[] startPose) {
+		trajectory = new Trajectory(256);
+		System.arraycopy(startPose, 0, pose, 0, NUM_AXES);
+		time = 0;
+		trajectory.add(time, pose);
+
+		boolean ok = grip(job.openSeparation)	// make sure the grip is open first
+				&& visit(job.pick, job.closeSeparation)	// grab block
+				&& visit(job.place, job.openSeparation);	// release block
+		Trajectory planned = ok ? trajectory : null;
+		trajectory = null;
+		if (!ok && verbose)
+			Utility.error("cannot plan job: %s%n", job);
+		return planned;
+	}
+
+	private boolean grip(double separation) {
+		double angle = kinematics.findGripAngle(separation, gripInfo);
+		if (Double.isNaN(angle)) {
+			if (verbose)
+				Utility.error("grip separation out of range: %f%n", separation);
+			return false;
+		}
+		System.arraycopy(pose, 0, solution, 0, NUM_AXES);
+		solution[Arm.GRIP] = angle;
+		return jointMove(solution);
+	}
+
+	/**
+	 * Moves to the approach of a stop, in to its point, sets the grip, and goes out through its retreat.
+	 */
+	private boolean visit(PickPlaceJob.Stop stop, double separation) {
+		if (!solve(stop.approach, stop.approachPitch) || !jointMove(solution))	// position grip above block
+			return false;
+		if (!leg(stop.approach, stop.point, stop.pitch, stop.straight)	// drop down
+				|| !grip(separation))
+			return false;
+		Vec3 from = stop.point;
+		for (int i = 0; i < stop.retreat.length; i++) {
+			if (!leg(from, stop.retreat[i], stop.retreatPitches[i], stop.straight))	// go up
+				return false;
+			from = stop.retreat[i];
+		}
+		return true;
+	}
+
+	/**
+	 * Adds a move of the grip tip from one point to another, in a straight line or in joint space.
+	 */
+	private boolean leg(Vec3 from, Vec3 to, double pitch, boolean straight) {
+		if (straight)
+			return straight(from, to, pitch);
+		return solve(to, pitch) && jointMove(solution);
+	}
+
+	/**
+	 * Adds a straight line of the grip tip from one point to another, one IK solution per step.
+	 */
+	private boolean straight(Vec3 from, Vec3 to, double pitch) {
+		double distance = direction.setDirection(from, to);
+		int steps = Math.max(1, (int) Math.ceil(distance / STRAIGHT_STEP));
+		double travelled = 0;
+		for (int i = 1; i <= steps; i++) {
+			double next = Math.min(i * STRAIGHT_STEP, distance);
+			point.set(from).addScaled(direction, next);
+			if (!solve(point, pitch) || !moveTo(solution, (next - travelled) / STRAIGHT_SPEED))
+				return false;
+			travelled = next;
+		}
+		return true;
+	}
+
+	/**
+	 * Solves IK for the point with the current grip into solution, and checks it against the axis ranges.
+	 */
+	private boolean solve(Vec3 target, double pitch) {
+		kinematics.getGripInfo(pose[Arm.GRIP], gripInfo);
+		kinematics.findAnglesConstantPitch(target.x, target.y, target.z, gripInfo.gripLength, pitch, solution);
+		solution[Arm.GRIP] = pose[Arm.GRIP];
+		if (!kinematics.safetyCheckAxisAngles(solution)) {
+			if (verbose)
+				Utility.error("invalid angles:\n%f     %f    %f     %f\nTrying to reach point %s%n", solution[0], solution[1], solution[2], solution[3], target);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Adds a move through joint space to the given pose.
+	 */
+	private boolean jointMove(double[] target) {
+		double distance = 0;
+		for (int i = 0; i < NUM_AXES; i++)
+			distance = Math.max(distance, Math.abs(target[i] - pose[i]));
+		if (distance == 0)
+			return true;
+		return moveTo(target, distance / JOINT_SPEED);
+	}
+
+	/**
+	 * Adds a waypoint the given time after the last one, if the move to it stays clear of the board.
+	 * The move is checked in the steps a MotionExecutor sends it in at normal speed, one per command
+	 * period, since the arm checks each of those.
+	 */
+	private boolean moveTo(double[] target, double duration) {
+		int steps = Math.max(1, (int) Math.ceil(duration / MotionExecutor.COMMAND_PERIOD));
+		System.arraycopy(pose, 0, previous, 0, NUM_AXES);
+		for (int i = 1; i <= steps; i++) {
+			double fraction = (double) i / steps;
+			for (int axis = 0; axis < NUM_AXES; axis++)
+				step[axis] = pose[axis] + (target[axis] - pose[axis]) * fraction;
+			if (!clearanceGuard.check(previous, step)) {
+				if (verbose)
+					Utility.error("move passes too close to the board at:\n%f     %f    %f     %f     %f%n", step[0], step[1], step[2], step[3], step[4]);
+				return false;
+			}
+			System.arraycopy(step, 0, previous, 0, NUM_AXES);
+		}
+		time += duration;
+		System.arraycopy(target, 0, pose, 0, NUM_AXES);
+		trajectory.add(time, pose);
+		return true;
+	}
+}
@@ -0,0 +1,256 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * A joint-space trajectory: a list of timed waypoints, each holding all five axis angles.  Stored in
+ * flat primitive arrays so that long recordings stay compact.
+ *
+ * Trajectories are saved as plain text, one waypoint per line:
+ *   time base shoulder elbow wrist grip
+ * with the time in seconds from the start and the angles in degrees.
+ */
+public class Trajectory {
+	public static final int NUM_AXES = Arm.NUM_AXES;
+
+	private double[] times;
+	private double[] angles;
+	private int size = 0;
+
+	public Trajectory() {
+		this(64);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity Number of waypoints to make room for up front
+	 */
+	public Trajectory(int capacity) {
+		capacity = Math.max(capacity, 1);
+		times = new double[capacity];
+		angles = new double[capacity * NUM_AXES];
+	}
+
+	/**
+	 * Adds a waypoint to the end of the trajectory.
+	 *
+	 * @param time Time in seconds from the start.  Should not be earlier than the previous waypoint.
+	 * @param waypoint All five axis angles
+	 */
+	public void add(double time, double[] waypoint) {
+		ensureCapacity();
+		times[size] = time;
+		System.arraycopy(waypoint, 0, angles, size * NUM_AXES, NUM_AXES);
+		size++;
+	}
+
+	/**
+	 * Removes every waypoint, keeping the room made for them.
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public double getTime(int i) {
+		return times[i];
+	}
+
+	public double getAngle(int i, int axis) {
+		return angles[i * NUM_AXES + axis];
+	}
+
+	/**
+	 * Copies the angles of a waypoint into the given array.
+	 */
+	public void getWaypoint(int i, double[] waypoint) {
+		System.arraycopy(angles, i * NUM_AXES, waypoint, 0, NUM_AXES);
+	}
+
+	/**
+	 * @return Time from the first waypoint to the last, in seconds.  Recordings don't start at 0.
+	 */
+	public double getDuration() {
+		return size == 0 ? 0 : times[size - 1] - times[0];
+	}
+
+	/**
+	 * Writes the angles at the given time into waypoint, interpolating linearly between waypoints.
+	 * Times before the start or after the end give the first or last waypoint.
+	 *
+	 * @param time Time in seconds from the start
+	 * @param waypoint Array to write all five angles into
+	 * @param hint Index of a waypoint at or before the time, to speed up sequential lookups (0 if unknown)
+	 * @return Index of the waypoint at or before the time, to pass as the next hint
+	 */
+	public int interpolate(double time, double[] waypoint, int hint) {
+		int i = Math.max(0, Math.min(hint, size - 1));
+		while (i > 0 && times[i] > time)
+			i--;
+		while (i < size - 1 && times[i + 1] <= time)
+			i++;
+		if (i >= size - 1 || time <= times[i]) {
+			getWaypoint(i, waypoint);
+			return i;
+		}
+		double fraction = (time - times[i]) / (times[i + 1] - times[i]);
+		int a = i * NUM_AXES;
+		int b = a + NUM_AXES;
+		for (int axis = 0; axis < NUM_AXES; axis++) {
+			waypoint[axis] = angles[a + axis] + (angles[b + axis] - angles[a + axis]) * fraction;
+		}
+		return i;
+	}
+
+	/**
+	 * Simplifies the trajectory with the Ramer-Douglas-Peucker algorithm in joint space.  A waypoint is
+	 * dropped if, at its time, the straight line between the waypoints kept on either side of it is
+	 * within the tolerance on every axis.  Timing is preserved, so a replay of the simplified
+	 * trajectory stays within the tolerance of the original at every moment.
+	 *
+	 * @param tolerance Maximum allowed deviation on any axis, in degrees
+	 * @return A new, simplified trajectory
+	 */
+	public Trajectory simplify(double tolerance) {
+		if (size < 3) {
+			Trajectory copy = new Trajectory(size);
+			for (int i = 0; i < size; i++)
+				copy.addFrom(this, i);
+			return copy;
+		}
+		boolean[] keep = new boolean[size];
+		keep[0] = true;
+		keep[size - 1] = true;
+
+		// explicit stack of [first, last] ranges instead of recursion, so long recordings can't overflow
+		int[] stack = new int[2 * size];
+		int top = 0;
+		stack[top++] = 0;
+		stack[top++] = size - 1;
+		while (top > 0) {
+			int last = stack[--top];
+			int first = stack[--top];
+			int worst = -1;
+			double worstDeviation = tolerance;
+			for (int i = first + 1; i < last; i++) {
+				double deviation = deviation(i, first, last);
+				if (deviation > worstDeviation) {
+					worstDeviation = deviation;
+					worst = i;
+				}
+			}
+			if (worst >= 0) {
+				keep[worst] = true;
+				stack[top++] = first;
+				stack[top++] = worst;
+				stack[top++] = worst;
+				stack[top++] = last;
+			}
+		}
+
+		int kept = 0;
+		for (int i = 0; i < size; i++)
+			if (keep[i])
+				kept++;
+		Trajectory simplified = new Trajectory(kept);
+		for (int i = 0; i < size; i++)
+			if (keep[i])
+				simplified.addFrom(this, i);
+		return simplified;
+	}
+
+	/**
+	 * Largest difference on any axis between waypoint i and the line from first to last at i's time.
+	 */
+	private double deviation(int i, int first, int last) {
+		double span = times[last] - times[first];
+		double fraction = span > 0 ? (times[i] - times[first]) / span : 0.5;
+		double max = 0;
+		for (int axis = 0; axis < NUM_AXES; axis++) {
+			double a = angles[first * NUM_AXES + axis];
+			double b = angles[last * NUM_AXES + axis];
+			double expected = a + (b - a) * fraction;
+			max = Math.max(max, Math.abs(angles[i * NUM_AXES + axis] - expected));
+		}
+		return max;
+	}
+
+	private void addFrom(Trajectory other, int i) {
+		ensureCapacity();
+		times[size] = other.times[i];
+		System.arraycopy(other.angles, i * NUM_AXES, angles, size * NUM_AXES, NUM_AXES);
+		size++;
+	}
+
+	private void ensureCapacity() {
+		if (size == times.length) {
+			times = Arrays.copyOf(times, size * 2);
+			angles = Arrays.copyOf(angles, size * 2 * NUM_AXES);
+		}
+	}
+
+	/**
+	 * Saves the trajectory as text.
+	 *
+	 * @param file File to write
+	 * @throws IOException if the file cannot be written
+	 */
+	public void save(File file) throws IOException {
+		PrintWriter out = new PrintWriter(file);
+		try {
+			for (int i = 0; i < size; i++) {
+				out.print(times[i]);
+				for (int axis = 0; axis < NUM_AXES; axis++) {
+					out.print(' ');
+					out.print(angles[i * NUM_AXES + axis]);
+				}
+				out.println();
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Loads a trajectory saved with save().  Blank lines and lines starting with # are ignored.
+	 *
+	 * @param file File to read
+	 * @return The trajectory
+	 * @throws IOException if the file cannot be read or a line is malformed
+	 */
+	public static Trajectory load(File file) throws IOException {
+		Trajectory trajectory = new Trajectory();
+		double[] waypoint = new double[NUM_AXES];
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			int lineNumber = 0;
+			while ((line = in.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				String[] fields = line.split("\\s+");
+				if (fields.length != NUM_AXES + 1)
+					throw new IOException(file + ":" + lineNumber + ": expected time and " + NUM_AXES + " angles");
+				try {
+					for (int axis = 0; axis < NUM_AXES; axis++)
+						waypoint[axis] = Double.parseDouble(fields[axis + 1]);
+					trajectory.add(Double.parseDouble(fields[0]), waypoint);
+				} catch (NumberFormatException e) {
+					throw new IOException(file + ":" + lineNumber + ": " + e.getMessage());
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return trajectory;
+	}
+}
@@ -0,0 +1,498 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Plans the stepped moves of Arm.moveTo, Arm.moveStraightTo and Arm.moveAxesAtSpeed, and remembers the
+ * ones that go to coordinates, so that a work cell repeating the same few moves (home, above the pick,
+ * down, up, above the place...) thousands of times solves, checks and steps each of them only once.
+ *
+ * A move is keyed by its kind, its start pose, its goal and pitch, and its speed and step size.  The
+ * start pose is rounded to angleResolution degrees, the goal to positionResolution cm and the pitch to
+ * angleResolution, and each move is planned from and to the rounded values, so the steps for a key
+ * never depend on which pose first asked for it.  With the default resolutions the rounding is far
+ * finer than a servo step.  The steps of a move are kept as floats, NUM_AXES to a step, with the time
+ * to wait after each one.
+ *
+ * Every step is checked against the axis ranges, and each move between steps against the board with a
+ * ClearanceGuard of the cache's own, so a move that would be rejected part way is refused before the
+ * arm starts it, and isn't cached.  The arm still checks each step as it sends it.
+ *
+ * The cache keeps at most budget bytes of moves (the steps plus ENTRY_OVERHEAD each) and forgets the
+ * least recently used to stay under it.  A budget of 0 turns caching off, and moves are planned from
+ * the exact start and goal.  The cache empties itself when the segment lengths or axis ranges of its
+ * Kinematics change; call clear() for any other change the moves depend on.  Hits, misses, evictions
+ * and invalidations are counted in Metrics as well as per cache.
+ *
+ * Safe to use from any thread.  Steps never change once planned, so they can be played while other
+ * moves are planned.
+ */
+public class TrajectoryCache {
+	public static final long DEFAULT_BUDGET = 1 << 20;	// bytes
+	public static final double DEFAULT_POSITION_RESOLUTION = 0.01;	// cm
+	public static final double DEFAULT_ANGLE_RESOLUTION = 0.01;	// degrees
+	// bytes counted for each move on top of its steps: the key, the steps object and the map's entry
+	public static final int ENTRY_OVERHEAD = 256;
+
+	// kinds of move
+	public static final int JOINT = 0;	// every moving axis steps the same number of degrees (Arm.moveAxesAtSpeed)
+	public static final int EVEN = 1;	// the axes' steps are scaled so they all arrive together (Arm.moveAxesAtSpeedEvenly)
+	public static final int STRAIGHT = 2;	// the grip tip steps along a straight line (Arm.moveStraightTo)
+
+	private static final int NUM_AXES = Arm.NUM_AXES;
+	// kind, start pose, goal, pitch, speed and step size
+	private static final int KEY_LENGTH = 1 + NUM_AXES + 3 + 1 + 2;
+
+	private static final Metrics.Counter hitCounter = Metrics.counter("moveCacheHits");
+	private static final Metrics.Counter missCounter = Metrics.counter("moveCacheMisses");
+	private static final Metrics.Counter evictionCounter = Metrics.counter("moveCacheEvictions");
+	private static final Metrics.Counter invalidationCounter = Metrics.counter("moveCacheInvalidations");
+
+	private final Kinematics kinematics;
+	private final ClearanceGuard clearanceGuard;
+	private final long budget;
+	private final double positionResolution;
+	private final double angleResolution;
+
+	// moves, least recently used first
+	private final LinkedHashMap<Key, Steps> moves = new LinkedHashMap<Key, Steps>(16, 0.75f, true);
+	private long bytes = 0;
+	// segment lengths and axis ranges the cached moves were planned with
+	private final double[] geometry = new double[2 + 2 * NUM_AXES];
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long invalidations = 0;
+	private long planNanos = 0;
+
+	// reused while planning
+	private final Key probe = new Key();
+	private float[] buffer = new float[64 * NUM_AXES];
+	private int count;
+	private final double[] from = new double[NUM_AXES];
+	private final double[] goal = new double[NUM_AXES];
+	private final double[] pose = new double[NUM_AXES];
+	private final double[] last = new double[NUM_AXES];
+	private final double[] stepSizes = new double[NUM_AXES];
+	private final GripInfo gripInfo = new GripInfo();
+	private final Vec3 point = new Vec3();
+	private final Vec3 target = new Vec3();
+	private final Vec3 direction = new Vec3();
+
+	/**
+	 * The planned steps of one move, and how long to wait after sending each.
+	 */
+	public static class Steps {
+		private final float[] angles;
+		private final long stepMillis;
+
+		Steps(float[] angles, long stepMillis) {
+			this.angles = angles;
+			this.stepMillis = stepMillis;
+		}
+
+		/**
+		 * @return Number of steps; 0 if the arm is already there
+		 */
+		public int size() {
+			return angles.length / NUM_AXES;
+		}
+
+		/**
+		 * Copies all five axis angles of a step into the given array.
+		 */
+		public void get(int i, double[] pose) {
+			for (int axis = 0; axis < NUM_AXES; axis++) {
+				pose[axis] = angles[i * NUM_AXES + axis];
+			}
+		}
+
+		/**
+		 * @return Time to wait after sending each step, in ms
+		 */
+		public long getStepMillis() {
+			return stepMillis;
+		}
+
+		int getBytes() {
+			return angles.length * 4 + ENTRY_OVERHEAD;
+		}
+	}
+
+	private static class Key {
+		final long[] values = new long[KEY_LENGTH];
+		int hash;
+
+		Key copy() {
+			Key key = new Key();
+			System.arraycopy(values, 0, key.values, 0, KEY_LENGTH);
+			key.hash = hash;
+			return key;
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object other) {
+			return other instanceof Key && Arrays.equals(values, ((Key) other).values);
+		}
+	}
+
+	/**
+	 * Constructor - a cache with the default budget and resolutions.
+	 *
+	 * @param kinematics Geometry of the arm to plan for
+	 * @param groundHeight Height of the board, in cm
+	 */
+	public TrajectoryCache(Kinematics kinematics, double groundHeight) {
+		this(kinematics, groundHeight, DEFAULT_BUDGET, DEFAULT_POSITION_RESOLUTION, DEFAULT_ANGLE_RESOLUTION);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param kinematics Geometry of the arm to plan for
+	 * @param groundHeight Height of the board, in cm
+	 * @param budget Most bytes of moves to keep, or 0 to plan every move afresh
+	 * @param positionResolution Grid the goals are rounded to, in cm
+	 * @param angleResolution Grid the start poses and pitches are rounded to, in degrees
+	 */
+	public TrajectoryCache(Kinematics kinematics, double groundHeight, long budget, double positionResolution, double angleResolution) {
+		if (budget < 0) {
+			throw new IllegalArgumentException("budget must not be negative: " + budget);
+		}
+		if (!(positionResolution > 0) || !(angleResolution > 0)) {
+			throw new IllegalArgumentException("resolutions must be positive: " + positionResolution + ", " + angleResolution);
+		}
+		this.kinematics = kinematics;
+		this.clearanceGuard = new ClearanceGuard(kinematics, groundHeight, ClearanceGuard.DEFAULT_MARGIN);
+		this.budget = budget;
+		this.positionResolution = positionResolution;
+		this.angleResolution = angleResolution;
+		readGeometry(geometry);
+	}
+
+	/**
+	 * Finds or plans a move of the grip tip to the given coordinates, keeping the grip as it is.
+	 *
+	 * @param kind JOINT or EVEN for a move through joint space, STRAIGHT for a straight line
+	 * @param start All five axis angles the move starts from
+	 * @param x Where to move the grip tip, in cm
+	 * @param y
+	 * @param z
+	 * @param pitch Pitch of the gripper, in degrees
+	 * @param speed Degrees per second of the fastest axis for JOINT and EVEN, cm per second for STRAIGHT
+	 * @param step Degrees of the fastest axis per step for JOINT and EVEN, cm per step for STRAIGHT
+	 * @return The steps, or null if part of the move is out of reach or not safe
+	 */
+	public synchronized Steps moveTo(int kind, double[] start, double x, double y, double z, double pitch, double speed, double step) {
+		if (kind != JOINT && kind != EVEN && kind != STRAIGHT) {
+			throw new IllegalArgumentException("unknown kind of move: " + kind);
+		}
+		if (!(speed > 0) || !(step > 0)) {
+			throw new IllegalArgumentException("speed and step must be positive: " + speed + ", " + step);
+		}
+		if (!isFinite(start) || !isFinite(x) || !isFinite(y) || !isFinite(z) || !isFinite(pitch)) {
+			Utility.error("invalid move to (%f, %f, %f) at pitch %f%n", x, y, z, pitch);
+			return null;
+		}
+		checkGeometry();
+		if (budget == 0) {
+			misses++;
+			missCounter.increment();
+			return plan(kind, start, x, y, z, pitch, speed, step);
+		}
+
+		// round the start and goal, and look the move up
+		long[] key = probe.values;
+		key[0] = kind;
+		for (int i = 0; i < NUM_AXES; i++) {
+			key[1 + i] = Math.round(start[i] / angleResolution);
+			from[i] = key[1 + i] * angleResolution;
+		}
+		key[1 + NUM_AXES] = Math.round(x / positionResolution);
+		key[2 + NUM_AXES] = Math.round(y / positionResolution);
+		key[3 + NUM_AXES] = Math.round(z / positionResolution);
+		key[4 + NUM_AXES] = Math.round(pitch / angleResolution);
+		key[5 + NUM_AXES] = Double.doubleToLongBits(speed);
+		key[6 + NUM_AXES] = Double.doubleToLongBits(step);
+		probe.hash = Arrays.hashCode(key);
+		Steps steps = moves.get(probe);
+		if (steps != null) {
+			hits++;
+			hitCounter.increment();
+			return steps;
+		}
+
+		misses++;
+		missCounter.increment();
+		steps = plan(kind, from, key[1 + NUM_AXES] * positionResolution, key[2 + NUM_AXES] * positionResolution,
+				key[3 + NUM_AXES] * positionResolution, key[4 + NUM_AXES] * angleResolution, speed, step);
+		if (steps != null && steps.getBytes() <= budget) {
+			moves.put(probe.copy(), steps);
+			bytes += steps.getBytes();
+			// forget the least recently used moves until the new one fits
+			Iterator<Steps> oldest = moves.values().iterator();
+			while (bytes > budget) {
+				bytes -= oldest.next().getBytes();
+				oldest.remove();
+				evictions++;
+				evictionCounter.increment();
+			}
+		}
+		return steps;
+	}
+
+	/**
+	 * Plans a move through joint space to the given angles, without caching it.
+	 *
+	 * @param kind JOINT or EVEN
+	 * @param start All five axis angles the move starts from
+	 * @param targetAngles Angles to move to.  Axes left off the end stay where they are.
+	 * @param speed Degrees per second of the fastest axis
+	 * @param step Degrees of the fastest axis per step
+	 * @return The steps, or null if part of the move is not safe
+	 */
+	public synchronized Steps moveAxes(int kind, double[] start, double[] targetAngles, double speed, double step) {
+		if (kind != JOINT && kind != EVEN) {
+			throw new IllegalArgumentException("not a joint move: " + kind);
+		}
+		if (!(speed > 0) || !(step > 0)) {
+			throw new IllegalArgumentException("speed and step must be positive: " + speed + ", " + step);
+		}
+		System.arraycopy(start, 0, goal, 0, NUM_AXES);
+		System.arraycopy(targetAngles, 0, goal, 0, Math.min(targetAngles.length, NUM_AXES));
+		return jointSteps(kind == EVEN, start, goal, speed, step);
+	}
+
+	/**
+	 * Plans a move to coordinates from the given start.
+	 */
+	private Steps plan(int kind, double[] start, double x, double y, double z, double pitch, double speed, double step) {
+		long planStart = System.nanoTime();
+		try {
+			kinematics.getGripInfo(start[Arm.GRIP], gripInfo);
+			if (kind == STRAIGHT) {
+				return straightSteps(start, x, y, z, pitch, gripInfo.gripLength, speed, step);
+			}
+			kinematics.findAnglesConstantPitch(x, y, z, gripInfo.gripLength, pitch, goal);
+			goal[Arm.GRIP] = start[Arm.GRIP];
+			if (!kinematics.safetyCheckAxisAngles(goal)) {
+				Utility.error("invalid angles:\n%f     %f    %f     %f\nTrying to reach point (%f, %f, %f)%n", goal[0], goal[1], goal[2], goal[3], x, y, z);
+				return null;
+			}
+			return jointSteps(kind == EVEN, start, goal, speed, step);
+		} finally {
+			planNanos += System.nanoTime() - planStart;
+		}
+	}
+
+	/**
+	 * Steps from start to target through joint space.  Each axis moves by its step size until it is
+	 * less than a step away, then goes the rest of the way.  Without evenly, every axis steps by step
+	 * degrees; with it, each axis's step is scaled by its distance, so all of them arrive together.
+	 */
+	private Steps jointSteps(boolean evenly, double[] start, double[] target, double speed, double step) {
+		double farthest = 0;
+		for (int i = 0; i < NUM_AXES; i++) {
+			farthest = Math.max(farthest, Math.abs(target[i] - start[i]));
+		}
+		for (int i = 0; i < NUM_AXES; i++) {
+			stepSizes[i] = evenly && farthest > 0 ? Math.abs(target[i] - start[i]) / farthest * step : step;
+		}
+		System.arraycopy(start, 0, pose, 0, NUM_AXES);
+		beginSteps(start);
+		while (true) {
+			boolean there = true;
+			for (int i = 0; i < NUM_AXES; i++) {
+				double remaining = target[i] - pose[i];
+				if (remaining == 0) {
+					continue;
+				}
+				there = false;
+				pose[i] = Math.abs(remaining) > stepSizes[i] ? pose[i] + stepSizes[i] * Math.signum(remaining) : target[i];
+			}
+			if (there) {
+				break;
+			}
+			if (!addStep(pose)) {
+				return null;
+			}
+		}
+		return finishSteps((long) (1 / speed * step * 1000));
+	}
+
+	/**
+	 * Steps the grip tip from where the start pose puts it to the given point, step cm at a time,
+	 * solving each point at the given pitch.
+	 */
+	private Steps straightSteps(double[] start, double x, double y, double z, double pitch, double gripLength, double speed, double step) {
+		kinematics.findCoordinates(start, gripLength, point);
+		target.set(x, y, z);
+		direction.setDirection(point, target);
+		beginSteps(start);
+		boolean reached = false;
+		while (!reached) {
+			if (point.distance(target) < step) {
+				point.set(target);
+				reached = true;
+			} else {
+				point.addScaled(direction, step);
+			}
+			kinematics.findAnglesConstantPitch(point.x, point.y, point.z, gripLength, pitch, pose);
+			pose[Arm.GRIP] = start[Arm.GRIP];
+			if (!kinematics.safetyCheckAxisAngles(pose)) {
+				Utility.error("invalid angles:\n%f     %f    %f     %f\nTrying to reach point (%f, %f, %f)%n", pose[0], pose[1], pose[2], pose[3], point.x, point.y, point.z);
+				return null;
+			}
+			if (!addStep(pose)) {
+				return null;
+			}
+		}
+		return finishSteps((long) (1 / speed * step * 1000));
+	}
+
+	private void beginSteps(double[] start) {
+		count = 0;
+		System.arraycopy(start, 0, last, 0, NUM_AXES);
+	}
+
+	/**
+	 * Checks a step and the move to it from the step before, and adds it.
+	 */
+	private boolean addStep(double[] step) {
+		if (!kinematics.safetyCheckAxisAngles(step)) {
+			Utility.error("invalid angles:\n%f     %f    %f     %f     %f%n", step[0], step[1], step[2], step[3], step[4]);
+			return false;
+		}
+		if (!clearanceGuard.check(last, step)) {
+			Utility.error("move passes too close to the board at:\n%f     %f    %f     %f     %f%n", step[0], step[1], step[2], step[3], step[4]);
+			return false;
+		}
+		System.arraycopy(step, 0, last, 0, NUM_AXES);
+		if ((count + 1) * NUM_AXES > buffer.length) {
+			buffer = Arrays.copyOf(buffer, buffer.length * 2);
+		}
+		for (int axis = 0; axis < NUM_AXES; axis++) {
+			buffer[count * NUM_AXES + axis] = (float) step[axis];
+		}
+		count++;
+		return true;
+	}
+
+	private Steps finishSteps(long stepMillis) {
+		return new Steps(Arrays.copyOf(buffer, count * NUM_AXES), stepMillis);
+	}
+
+	/**
+	 * Empties the cache if the segment lengths or axis ranges have changed since the moves in it were planned.
+	 */
+	private void checkGeometry() {
+		double segment1 = kinematics.segment1Length;
+		double segment2 = kinematics.segment2Length;
+		boolean same = geometry[0] == segment1 && geometry[1] == segment2;
+		for (int i = 0; same && i < NUM_AXES; i++) {
+			same = geometry[2 + 2 * i] == kinematics.axisRanges[i][0] && geometry[3 + 2 * i] == kinematics.axisRanges[i][1];
+		}
+		if (!same) {
+			if (!moves.isEmpty()) {
+				invalidations++;
+				invalidationCounter.increment();
+			}
+			clearMoves();
+			readGeometry(geometry);
+		}
+	}
+
+	private void readGeometry(double[] out) {
+		out[0] = kinematics.segment1Length;
+		out[1] = kinematics.segment2Length;
+		for (int i = 0; i < NUM_AXES; i++) {
+			out[2 + 2 * i] = kinematics.axisRanges[i][0];
+			out[3 + 2 * i] = kinematics.axisRanges[i][1];
+		}
+	}
+
+	private void clearMoves() {
+		moves.clear();
+		bytes = 0;
+	}
+
+	private static boolean isFinite(double value) {
+		return !Double.isNaN(value) && !Double.isInfinite(value);
+	}
+
+	private static boolean isFinite(double[] values) {
+		for (double value : values) {
+			if (!isFinite(value)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Forgets every cached move, e.g. after a change to the kinematics the cache can't see.
+	 */
+	public synchronized void clear() {
+		if (!moves.isEmpty()) {
+			invalidations++;
+			invalidationCounter.increment();
+		}
+		clearMoves();
+		readGeometry(geometry);
+	}
+
+	public long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * @return Number of moves cached
+	 */
+	public synchronized int getSize() {
+		return moves.size();
+	}
+
+	/**
+	 * @return Bytes of moves cached, counted as for the budget
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return Number of times the cache was emptied because the kinematics changed
+	 */
+	public synchronized long getInvalidations() {
+		return invalidations;
+	}
+
+	/**
+	 * @return Fraction of lookups that were hits, 0 if there were none
+	 */
+	public synchronized double getHitRate() {
+		long lookups = hits + misses;
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	public synchronized String toString() {
+		return String.format("%d moves cached in %d of %d bytes, %.1f%% hits (%d hits, %d misses, %d evictions, %d invalidations), %.3f ms planning per miss",
+				moves.size(), bytes, budget, 100 * getHitRate(), hits, misses, evictions, invalidations,
+				misses == 0 ? 0 : planNanos / 1e6 / misses);
+	}
+}
@@ -0,0 +1,56 @@
+/**
+ * Records the joint trajectory commanded to the arm, for example during a Leap teleop session, so that
+ * it can be simplified and replayed later by a MotionExecutor (teach and repeat).
+ *
+ * Attach it with Arm.setTrajectoryRecorder.  Every command the arm sends while recording is added with
+ * its time since start() was called.
+ */
+public class TrajectoryRecorder {
+	private Trajectory trajectory = null;
+	private long startTime = 0;
+	private Clock clock = Clock.SYSTEM;
+
+	/**
+	 * Starts a new recording, discarding anything recorded before.
+	 */
+	public synchronized void start() {
+		trajectory = new Trajectory(4096);
+		startTime = clock.nanoTime();
+	}
+
+	/**
+	 * Stops recording.
+	 *
+	 * @return Everything recorded since start(), or an empty trajectory if it was never started
+	 */
+	public synchronized Trajectory stop() {
+		Trajectory recorded = trajectory == null ? new Trajectory() : trajectory;
+		trajectory = null;
+		return recorded;
+	}
+
+	/**
+	 * Times the recording on another clock, e.g. the arm's VirtualClock.  Arm.setTrajectoryRecorder
+	 * and Arm.setClock call this, so set the clock before starting a recording.
+	 *
+	 * @param clock The clock to use
+	 */
+	public synchronized void setClock(Clock clock) {
+		this.clock = clock;
+	}
+
+	public synchronized boolean isRecording() {
+		return trajectory != null;
+	}
+
+	/**
+	 * Adds a commanded pose to the recording, if one is running.  Called by Arm from the control thread.
+	 *
+	 * @param angles All five axis angles
+	 */
+	public synchronized void record(double[] angles) {
+		if (trajectory != null) {
+			trajectory.add((clock.nanoTime() - startTime) / 1e9, angles);
+		}
+	}
+}
@@ -0,0 +1,121 @@
+/**
+ * Measures the accuracy and speed of each Utility.TrigMode, both for the raw degree trig functions
+ * and for the kinematics paths that use them (inverse kinematics, forward kinematics and the grip
+ * linkage math).
+ *
+ * java TrigBenchmark [seconds per measurement]
+ */
+public class TrigBenchmark {
+	// keeps the JIT from removing the work being timed
+	private static double sink = 0;
+
+	public static void main(String[] args) {
+		double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 1;
+
+		System.out.println("Maximum absolute error against Math:");
+		for (Utility.TrigMode mode : Utility.TrigMode.values()) {
+			System.out.printf("  %-10s sind %.2e  cosd %.2e  atand %.2e  asind %.2e  acosd %.2e%n", mode,
+					forwardError(mode, false), forwardError(mode, true),
+					atanError(mode), inverseError(mode, false), inverseError(mode, true));
+		}
+
+		double[][] ranges = {{-90, 90}, {45, 135}, {-140, 0}, {-90, 90}, {35, 90}};
+		Kinematics kinematics = new Kinematics(15.25, 12, ranges);
+
+		System.out.println();
+		System.out.println("Time per call in nanoseconds:");
+		for (Utility.TrigMode mode : Utility.TrigMode.values()) {
+			Utility.setTrigMode(mode);
+			System.out.printf("  %-10s sind %6.2f  atand %6.2f  acosd %6.2f  IK %7.2f  FK %7.2f  grip %7.2f%n", mode,
+					time(0, kinematics, seconds), time(1, kinematics, seconds), time(2, kinematics, seconds),
+					time(3, kinematics, seconds), time(4, kinematics, seconds), time(5, kinematics, seconds));
+		}
+		Utility.setTrigMode(Utility.TrigMode.EXACT);
+		if (sink == 42)
+			System.out.println();
+	}
+
+	private static double forwardError(Utility.TrigMode mode, boolean cosine) {
+		double max = 0;
+		for (double angle = -720; angle <= 720; angle += 0.001) {
+			double exact = cosine ? Math.cos(Math.toRadians(angle)) : Math.sin(Math.toRadians(angle));
+			double fast = cosine ? Utility.cosd(angle, mode) : Utility.sind(angle, mode);
+			max = Math.max(max, Math.abs(exact - fast));
+		}
+		return max;
+	}
+
+	private static double atanError(Utility.TrigMode mode) {
+		double max = 0;
+		for (double t = -20; t <= 20; t += 0.0001) {
+			double x = Math.sinh(t);	// covers tiny to huge arguments
+			max = Math.max(max, Math.abs(Math.toDegrees(Math.atan(x)) - Utility.atand(x, mode)));
+		}
+		return max;
+	}
+
+	private static double inverseError(Utility.TrigMode mode, boolean cosine) {
+		double max = 0;
+		for (int i = -1000000; i <= 1000000; i++) {
+			double x = i / 1000000.0;
+			double exact = Math.toDegrees(cosine ? Math.acos(x) : Math.asin(x));
+			double fast = cosine ? Utility.acosd(x, mode) : Utility.asind(x, mode);
+			max = Math.max(max, Math.abs(exact - fast));
+		}
+		return max;
+	}
+
+	/**
+	 * Runs one of the workloads repeatedly for about the given time and returns nanoseconds per call.
+	 */
+	private static double time(int workload, Kinematics kinematics, double seconds) {
+		double[] angles = new double[4];
+		double[] coordinates = new double[3];
+		GripInfo info = new GripInfo();
+		int batch = 100000;
+		// warm up, then measure
+		run(workload, kinematics, angles, coordinates, info, batch * 5);
+		long deadline = System.nanoTime() + (long) (seconds * 1e9);
+		long calls = 0;
+		long start = System.nanoTime();
+		while (System.nanoTime() < deadline) {
+			run(workload, kinematics, angles, coordinates, info, batch);
+			calls += batch;
+		}
+		return (double) (System.nanoTime() - start) / calls;
+	}
+
+	private static void run(int workload, Kinematics kinematics, double[] angles, double[] coordinates, GripInfo info, int calls) {
+		double total = 0;
+		for (int i = 0; i < calls; i++) {
+			double v = (i & 1023) / 1024.0;
+			switch (workload) {
+			case 0:
+				total += Utility.sind(v * 360);
+				break;
+			case 1:
+				total += Utility.atand(v * 4 - 2);
+				break;
+			case 2:
+				total += Utility.acosd(v * 2 - 1);
+				break;
+			case 3:
+				kinematics.findAnglesConstantPitch(v * 20 - 10, 20, v * 6 - 3, 12, -55, angles);
+				total += angles[1];
+				break;
+			case 4:
+				angles[0] = v * 90 - 45;
+				angles[1] = 90;
+				angles[2] = -v * 90;
+				angles[3] = -45;
+				kinematics.findCoordinates(angles, 12, coordinates);
+				total += coordinates[2];
+				break;
+			default:
+				kinematics.getGripInfo(35 + v * 55, info);
+				total += info.gripLength;
+			}
+		}
+		sink += total;
+	}
+}
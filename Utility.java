@@ -24,29 +24,173 @@ public class Utility {
 	}
 
 // Trig functions
-	
+
+	/**
+	 * Accuracy modes for the degree trig functions.  Maximum absolute errors against the Math
+	 * functions (measured by TrigBenchmark over the whole domain):
+	 *
+	 * EXACT      - Math.sin/cos/tan/atan/acos/asin after a degree/radian conversion.
+	 * POLYNOMIAL - minimax-style polynomials after range reduction.  sind/cosd: 7e-9,
+	 *              atand/asind/acosd: 3e-7 degrees.  tand has the same relative error as sind/cosd.
+	 * TABLE      - sind/cosd/tand interpolate linearly in a 0.25 degree table.  sind/cosd: 2.4e-6.
+	 *              The inverse functions use the POLYNOMIAL versions.
+	 *
+	 * Servo resolution is about 0.7 degrees, so every mode is far more accurate than the arm.
+	 */
+	public enum TrigMode { EXACT, POLYNOMIAL, TABLE }
+
+	// mode used by the single-argument trig functions
+	private static volatile TrigMode trigMode = TrigMode.EXACT;
+
+	/**
+	 * Selects the accuracy mode used by sind, cosd, tand, atand, acosd and asind everywhere.
+	 * Individual call sites can still pass a mode explicitly.
+	 *
+	 * @param mode The new default mode
+	 */
+	public static void setTrigMode(TrigMode mode) {
+		trigMode = mode;
+	}
+
+	public static TrigMode getTrigMode() {
+		return trigMode;
+	}
+
 	public static double sind(double angle){
-		return Math.sin(Math.toRadians(angle));
+		return sind(angle, trigMode);
 	}
 	
 	public static double cosd(double angle){
-		return Math.cos(Math.toRadians(angle));
+		return cosd(angle, trigMode);
 	}
 	
 	public static double tand(double angle){
-		return Math.tan(Math.toRadians(angle));
+		return tand(angle, trigMode);
 	}
 	
 	public static double atand(double x){
-		return Math.toDegrees(Math.atan(x));
+		return atand(x, trigMode);
 	}
 	
 	public static double acosd(double x){
-		return Math.toDegrees(Math.acos(x));
+		return acosd(x, trigMode);
 	}
 	
 	public static double asind(double x){
-		return Math.toDegrees(Math.asin(x));
+		return asind(x, trigMode);
+	}
+
+	public static double sind(double angle, TrigMode mode){
+		if (mode == TrigMode.TABLE)
+			return tableSind(angle);
+		if (mode == TrigMode.POLYNOMIAL)
+			return polySind(angle);
+		return Math.sin(Math.toRadians(angle));
+	}
+	
+	public static double cosd(double angle, TrigMode mode){
+		if (mode == TrigMode.TABLE)
+			return tableSind(angle + 90);
+		if (mode == TrigMode.POLYNOMIAL)
+			return polySind(angle + 90);
+		return Math.cos(Math.toRadians(angle));
+	}
+	
+	public static double tand(double angle, TrigMode mode){
+		if (mode == TrigMode.TABLE)
+			return tableSind(angle) / tableSind(angle + 90);
+		if (mode == TrigMode.POLYNOMIAL)
+			return polySind(angle) / polySind(angle + 90);
+		return Math.tan(Math.toRadians(angle));
+	}
+	
+	public static double atand(double x, TrigMode mode){
+		if (mode == TrigMode.EXACT)
+			return Math.toDegrees(Math.atan(x));
+		return polyAtand(x);
+	}
+	
+	public static double acosd(double x, TrigMode mode){
+		if (mode == TrigMode.EXACT)
+			return Math.toDegrees(Math.acos(x));
+		return 90 - polyAsind(x);
+	}
+	
+	public static double asind(double x, TrigMode mode){
+		if (mode == TrigMode.EXACT)
+			return Math.toDegrees(Math.asin(x));
+		return polyAsind(x);
+	}
+
+	private static final double DEG_TO_RAD = Math.PI / 180;
+	private static final double RAD_TO_DEG = 180 / Math.PI;
+
+	// sin(x) = x * P(x^2) on [-pi/2, pi/2], fitted at Chebyshev nodes
+	private static final double SIN_0 = 0.999999995698809;
+	private static final double SIN_1 = -0.16666657947846006;
+	private static final double SIN_2 = 0.00833305017067179;
+	private static final double SIN_3 = -0.00019809017408677578;
+	private static final double SIN_4 = 2.6051076353233456e-06;
+
+	// atan(x) = x * Q(x^2) on [-tan(15), tan(15)], fitted at Chebyshev nodes
+	private static final double ATAN_0 = 0.9999999794333654;
+	private static final double ATAN_1 = -0.33332414997138776;
+	private static final double ATAN_2 = 0.19935414387051512;
+	private static final double ATAN_3 = -0.12810438035399493;
+	private static final double TAN_15 = 2 - Math.sqrt(3);
+	private static final double SQRT_3 = Math.sqrt(3);
+
+	// sine table for TABLE mode, covering 0 to 360 degrees inclusive plus one extra entry
+	private static final int TABLE_STEPS_PER_DEGREE = 4;
+	private static final double[] SIN_TABLE = new double[360 * TABLE_STEPS_PER_DEGREE + 2];
+	static {
+		for (int i = 0; i < SIN_TABLE.length; i++)
+			SIN_TABLE[i] = Math.sin(Math.toRadians((double) i / TABLE_STEPS_PER_DEGREE));
+	}
+
+	private static double polySind(double angle) {
+		// reduce to [-180, 180], then fold into [-90, 90]
+		double a = angle - 360 * Math.floor((angle + 180) * (1.0 / 360));
+		if (a > 90)
+			a = 180 - a;
+		else if (a < -90)
+			a = -180 - a;
+		double x = a * DEG_TO_RAD;
+		double u = x * x;
+		return x * (SIN_0 + u * (SIN_1 + u * (SIN_2 + u * (SIN_3 + u * SIN_4))));
+	}
+
+	private static double tableSind(double angle) {
+		double position = (angle - 360 * Math.floor(angle * (1.0 / 360))) * TABLE_STEPS_PER_DEGREE;
+		if (!(position >= 0))
+			return Double.NaN;	// NaN or infinite input
+		int i = (int) position;
+		double fraction = position - i;
+		return SIN_TABLE[i] + (SIN_TABLE[i + 1] - SIN_TABLE[i]) * fraction;
+	}
+
+	private static double polyAtand(double x) {
+		// atan(-x) = -atan(x), atan(x) = 90 - atan(1/x), atan(x) = 30 + atan((x*sqrt(3) - 1) / (x + sqrt(3)))
+		boolean negative = x < 0;
+		double t = negative ? -x : x;
+		boolean inverted = t > 1;
+		if (inverted)
+			t = 1 / t;
+		boolean shifted = t > TAN_15;
+		if (shifted)
+			t = (t * SQRT_3 - 1) / (t + SQRT_3);
+		double u = t * t;
+		double result = t * (ATAN_0 + u * (ATAN_1 + u * (ATAN_2 + u * ATAN_3))) * RAD_TO_DEG;
+		if (shifted)
+			result = result + 30;
+		if (inverted)
+			result = 90 - result;
+		return negative ? -result : result;
+	}
+
+	private static double polyAsind(double x) {
+		// gives NaN outside of [-1, 1], like Math.asin
+		return polyAtand(x / Math.sqrt((1 - x) * (1 + x)));
 	}
 	
 	/// Returns the maximum value in the array.
@@ -83,86 +227,57 @@ public class Utility {
 		return output;
 	}
 	
+	// Note: the array helpers allocate a new array on every call. Prefer Vec3 for 3-vector math.
 	static double[] arrayAddition(double[] x, double[] y)
 	{
-		double[] output = {};
-// Two arrays, add each set of components.
-		{
-			for ( int i = 0; i < x.length; ++i)
-				output[i] = x[i] + y[i];
-		}
-		
+		double[] output = new double[x.length];
+		// Two arrays, add each set of components.
+		for ( int i = 0; i < x.length; ++i)
+			output[i] = x[i] + y[i];
 		return output;
 	}
 	static double[] arrayAddition(double[] x, double y)
 	{
-		double[] output = {};
-		
+		double[] output = new double[x.length];
 		// Array + non-array, add y to every part of x
-		{
-			for ( int i = 0; i < x.length; ++i)
-				output[i] = x[i] + y;
-		}
-		
+		for ( int i = 0; i < x.length; ++i)
+			output[i] = x[i] + y;
 		return output;
 	}
 	static double[] arrayAddition(double x, double[] y)
 	{
-		double[] output = {};
-		
-		// non-array + array, add x to every part of y
-		{
-			for ( int i = 0; i < y.length; ++i)
-				output[i] = x + y[i];
-		}
-		return output;
+		return arrayAddition(y, x);
 	}
 	
 
 	static double[] arrayMultiplication(double[] x, double[] y)
 	{
-		double[] output = {};
+		double[] output = new double[x.length];
 		// Two arrays, multiply each set of components.
-		{
-			for ( int i = 0; i < x.length; ++i)
-				output[i] = x[i] * y[i];
-		}
-		
+		for ( int i = 0; i < x.length; ++i)
+			output[i] = x[i] * y[i];
 		return output;
 	}
 	static double[] arrayMultiplication(double[] x, double y)
 	{
-		double[] output = {};
-		
+		double[] output = new double[x.length];
 		// Array * non-array, multiply y with every part of x
-		{
-			for ( int i = 0; i < x.length; ++i)
-				output[i] = x[i] * y;
-		}
-		
+		for ( int i = 0; i < x.length; ++i)
+			output[i] = x[i] * y;
 		return output;
 	}
 	static double[] arrayMultiplication(double x, double[] y)
 	{
-		double[] output = {};
-		
-		// non-array * array, multiply x with every part of y
-		{
-			for ( int i = 0; i < y.length; ++i)
-				output[i] = x * y[i];
-		}
-		
-		return output;
+		return arrayMultiplication(y, x);
 	}
 
 
 	static double[] getDirectionVector(double[] pointA, double[] pointB)
 	{
-		double[] unitVector =  arraySubtraction(pointB, pointA);
-		for (int i = 0; i < unitVector.length; ++i)
-		{
-			unitVector[i] = unitVector[i] / Math.sqrt( Math.pow((pointB[0]-pointA[0]),2) + Math.pow((pointB[1]-pointA[1]),2) + Math.pow((pointB[2]-pointA[2]),2) );
-		}
+		Vec3 direction = new Vec3();
+		direction.setDirection(new Vec3(pointA), new Vec3(pointB));
+		double[] unitVector = new double[3];
+		direction.toArray(unitVector);
 		return unitVector;
 	}
 	
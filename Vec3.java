@@ -0,0 +1,107 @@
+/**
+ * A mutable 3-vector (x, y, z in cm) for the Cartesian math in Arm.  All operations work in place and
+ * return this, so points can be reused from step to step instead of allocating new arrays.
+ *
+ * Example: next.set(current).addScaled(direction, stepDistance);
+ */
+final class Vec3
+{
+	double x;
+	double y;
+	double z;
+
+	Vec3()
+	{
+	}
+
+	Vec3(double x, double y, double z)
+	{
+		this.set(x, y, z);
+	}
+
+	// creates a vector from an {x, y, z} array
+	Vec3(double[] coordinates)
+	{
+		this.set(coordinates);
+	}
+
+	Vec3 set(double x, double y, double z)
+	{
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		return this;
+	}
+
+	Vec3 set(Vec3 v)
+	{
+		return this.set(v.x, v.y, v.z);
+	}
+
+	Vec3 set(double[] coordinates)
+	{
+		return this.set(coordinates[0], coordinates[1], coordinates[2]);
+	}
+
+	// writes x, y and z into the first three elements of coordinates
+	void toArray(double[] coordinates)
+	{
+		coordinates[0] = this.x;
+		coordinates[1] = this.y;
+		coordinates[2] = this.z;
+	}
+
+	Vec3 add(Vec3 v)
+	{
+		return this.set(this.x + v.x, this.y + v.y, this.z + v.z);
+	}
+
+	Vec3 sub(Vec3 v)
+	{
+		return this.set(this.x - v.x, this.y - v.y, this.z - v.z);
+	}
+
+	Vec3 scale(double s)
+	{
+		return this.set(this.x * s, this.y * s, this.z * s);
+	}
+
+	// this = this + v * s
+	Vec3 addScaled(Vec3 v, double s)
+	{
+		return this.set(this.x + v.x * s, this.y + v.y * s, this.z + v.z * s);
+	}
+
+	double length()
+	{
+		return Math.sqrt(this.x * this.x + this.y * this.y + this.z * this.z);
+	}
+
+	double distance(Vec3 v)
+	{
+		double dx = v.x - this.x;
+		double dy = v.y - this.y;
+		double dz = v.z - this.z;
+		return Math.sqrt(dx * dx + dy * dy + dz * dz);
+	}
+
+	// scales this to unit length. Returns the length before normalizing. A zero vector is left as it is.
+	double normalize()
+	{
+		double length = this.length();
+		if (length > 0)
+			this.scale(1 / length);
+		return length;
+	}
+
+	// sets this to the unit vector pointing from a to b. Returns the distance from a to b.
+	double setDirection(Vec3 a, Vec3 b)
+	{
+		return this.set(b).sub(a).normalize();
+	}
+
+	public String toString()
+	{
+		return "(" + this.x + ", " + this.y + ", " + this.z + ")";
+	}
+}
@@ -1,114 +1,246 @@
+import java.awt.BasicStroke;
 import java.awt.Color;
+import java.awt.Dimension;
 import java.awt.Font;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.Stroke;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.Arrays;
 
 import javax.swing.JFrame;
-import javax.swing.JLabel;
-import javax.swing.SwingConstants;
-
-import com.leapmotion.leap.Controller;
-import com.leapmotion.leap.Hand;
-import com.leapmotion.leap.HandList;
-import com.leapmotion.leap.Listener;
-import com.leapmotion.leap.Vector;
+import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
 /**
- * A GUI class that displays leap coordinate data.
+ * A GUI class that displays leap coordinate data and the pose of the arm.
+ *
+ * The arm publishes its pose into a PoseSnapshot from the control thread.  This class never runs
+ * on the control thread: a Swing timer copies the latest snapshot on the event dispatch thread at a
+ * fixed rate and repaints only when the pose has changed, so the cost of the GUI is bounded no
+ * matter how fast the Leap delivers frames.  The arm is drawn where its ServoModel estimates the
+ * servos really are, which lags behind the commands while they move.
  *
  * @author Haley Garrison
  */
-public class View extends Listener {
+public class View {
 	// window constants
 	private static final int WINDOW_WIDTH = 600;
 	private static final int WINDOW_HEIGHT = 600;
-	
+
+	// display refresh period in milliseconds (~30 frames per second)
+	private static final int REFRESH_PERIOD = 33;
+
+	// layout of the two arm projections
+	private static final int TEXT_HEIGHT = 200;
+	private static final int PLOT_SIZE = 280;
+	private static final int PLOT_MARGIN = 13;
+	private static final double PIXELS_PER_CM = 6;
+
+	// shared drawing resources
+	private static final Font TEXT_FONT = new Font("Helvetica", Font.PLAIN, 20);
+	private static final Font CAPTION_FONT = new Font("Helvetica", Font.PLAIN, 12);
+	private static final Stroke ARM_STROKE = new BasicStroke(4, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+	private static final Stroke THIN_STROKE = new BasicStroke(1);
+	private static final Color ARM_COLOR = new Color(40, 90, 200);
+	private static final Color GRID_COLOR = new Color(220, 220, 220);
+
+	private final Arm arm;
+
 	// GUI objects
 	private JFrame window = null;
-	private JLabel xlabel = null;
-	private JLabel ylabel = null;
-	private JLabel zlabel = null;
-	private JLabel griplabel = null;
-	
-	// used to slow frame updates
-	private int counter = 0;
+	private ArmPanel panel = null;
+
+	// private copy of the arm's pose and estimated servo angles, only touched on the event dispatch thread
+	private final PoseSnapshot pose = new PoseSnapshot();
+	private long lastVersion = -1;
+	private final double[] angles = new double[Arm.NUM_AXES];
+	private final double[] drawnAngles = new double[Arm.NUM_AXES];
 
 	/**
-	 * Creates a new frame and initializes ui elements
+	 * Creates a new frame and starts refreshing it from the arm's pose.
+	 *
+	 * @param arm The arm to display
 	 */
-	public View() {
-		// create new frame
+	public View(Arm arm) {
+		this.arm = arm;
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				createWindow();
+			}
+		});
+	}
+
+	/**
+	 * Builds the window and starts the refresh timer.  Must be called on the event dispatch thread.
+	 */
+	private void createWindow() {
 		window = new JFrame("RobotControl");
-		window.setSize(WINDOW_WIDTH, WINDOW_HEIGHT);
 		window.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-		window.setBackground(Color.WHITE);
-		
-		// set layout to null to use custom coordinates
-		window.setLayout(null);
-		
-		// add some labels for coordinate data
-		xlabel = makeLabel("X: 0.0", 20);
-		ylabel = makeLabel("Y: 0.0", 20);
-		zlabel = makeLabel("Z: 0.0", 20);
-		griplabel = makeLabel("Grip: 0.0", 20);
-		
-		// position the labels
-		xlabel.setLocation(0, (WINDOW_HEIGHT-20)/5 - xlabel.getHeight()/2);
-		ylabel.setLocation(0, (WINDOW_HEIGHT-20)*2/5 - ylabel.getHeight()/2);
-		zlabel.setLocation(0, (WINDOW_HEIGHT-20)*3/5 - zlabel.getHeight()/2);
-		griplabel.setLocation(0, (WINDOW_HEIGHT-20)*4/5 - griplabel.getHeight()/2);
-		
-		// add labels and make visible
-		window.add(xlabel);
-		window.add(ylabel);
-		window.add(zlabel);
-		window.add(griplabel);
+
+		panel = new ArmPanel();
+		window.setContentPane(panel);
+		window.pack();
 		window.setVisible(true);
+
+		Timer timer = new Timer(REFRESH_PERIOD, new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				refresh();
+			}
+		});
+		timer.setCoalesce(true);
+		timer.start();
 	}
-	
+
 	/**
-	 * Convenience method to generate labels
-	 * 
-	 * @param text Text to display
-	 * @param fontSize Font size
-	 * @return A configured JLabel
+	 * Copies the latest pose and repaints if it or the estimated servo angles changed.  Called by the
+	 * refresh timer.
 	 */
-	private JLabel makeLabel(String text, int fontSize) {
-		JLabel label = new JLabel(text, SwingConstants.CENTER);
-		label.setFont(new Font("Helvetica", Font.PLAIN, fontSize));
-		label.setSize(WINDOW_WIDTH, fontSize + 5);
-		label.setForeground(Color.BLACK);
-		return label;
+	private void refresh() {
+		long version = arm.getPoseSnapshot().copyTo(pose);
+		arm.getEstimatedAngles(angles);
+		if (version != lastVersion || !Arrays.equals(angles, drawnAngles)) {
+			lastVersion = version;
+			System.arraycopy(angles, 0, drawnAngles, 0, Arm.NUM_AXES);
+			panel.repaint();
+		}
 	}
-	
+
 	/**
-	 * Updates the display whenever a new frame is received
-	 * 
-	 * @param c Leap controller
+	 * Panel that draws the coordinate data and a side and top projection of the arm.  All buffers
+	 * are allocated once and reused on every paint.
 	 */
-	public void onFrame(Controller c) {
-		// Check that there are hands in the field
-		HandList hands = c.frame().hands();
-		if (hands.count() <= 0) {
-			return;
+	private class ArmPanel extends JPanel {
+		// reused text and geometry buffers
+		private final StringBuilder text = new StringBuilder(64);
+		private char[] chars = new char[64];
+		private final GripInfo gripInfo = new GripInfo();
+		private final double[] wrist = new double[3];
+		private final double[] tip = new double[3];
+		private final int[] xPoints = new int[4];
+		private final int[] yPoints = new int[4];
+
+		ArmPanel() {
+			super(true);	// double buffered
+			setPreferredSize(new Dimension(WINDOW_WIDTH, WINDOW_HEIGHT));
+			setBackground(Color.WHITE);
+		}
+
+		protected void paintComponent(Graphics g) {
+			super.paintComponent(g);
+			Graphics2D g2 = (Graphics2D) g;
+			g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+
+			drawCoordinates(g2);
+
+			// joint positions from the arm's kinematics, where the servos are estimated to be
+			double[] angles = drawnAngles;
+			Kinematics kinematics = arm.kinematics;
+			kinematics.getGripInfo(angles[Arm.GRIP], gripInfo);
+			kinematics.findCoordinates(angles, 0, wrist);
+			kinematics.findCoordinates(angles, gripInfo.gripLength, tip);
+			double elbowHorizontal = kinematics.segment1Length * Utility.cosd(angles[Arm.SHOULDER]);
+			double elbowZ = kinematics.segment1Length * Utility.sind(angles[Arm.SHOULDER]);
+			double elbowX = elbowHorizontal * Utility.sind(angles[Arm.BASE]);
+			double elbowY = elbowHorizontal * Utility.cosd(angles[Arm.BASE]);
+
+			// side view: horizontal distance from the base against height
+			int left = PLOT_MARGIN;
+			int top = TEXT_HEIGHT + PLOT_MARGIN;
+			drawPlotFrame(g2, left, top, "Side");
+			int originX = left + PLOT_SIZE / 4;
+			int originY = top + PLOT_SIZE * 2 / 3;
+			setPoint(0, originX, originY, 0, 0);
+			setPoint(1, originX, originY, elbowHorizontal, elbowZ);
+			setPoint(2, originX, originY, Math.hypot(wrist[0], wrist[1]), wrist[2]);
+			setPoint(3, originX, originY, Math.hypot(tip[0], tip[1]), tip[2]);
+			drawArm(g2, left, originY);
+
+			// top view: x against y
+			left = WINDOW_WIDTH - PLOT_SIZE - PLOT_MARGIN;
+			drawPlotFrame(g2, left, top, "Top");
+			originX = left + PLOT_SIZE / 2;
+			originY = top + PLOT_SIZE * 5 / 6;
+			setPoint(0, originX, originY, 0, 0);
+			setPoint(1, originX, originY, elbowX, elbowY);
+			setPoint(2, originX, originY, wrist[0], wrist[1]);
+			setPoint(3, originX, originY, tip[0], tip[1]);
+			drawArm(g2, left, originY);
+		}
+
+		/**
+		 * Draws the hand coordinates and axis angles.
+		 */
+		private void drawCoordinates(Graphics2D g) {
+			g.setFont(TEXT_FONT);
+			g.setColor(Color.BLACK);
+			int lineHeight = TEXT_HEIGHT / 5;
+
+			// Convert leap coordinate system into 'Z-up' system
+			text.setLength(0);
+			text.append("X: ").append((long) Math.floor(pose.getHandX()));
+			drawCentered(g, lineHeight);
+			text.setLength(0);
+			text.append("Y: ").append((long) Math.floor(pose.getHandZ()));
+			drawCentered(g, lineHeight * 2);
+			text.setLength(0);
+			text.append("Z: ").append((long) Math.floor(pose.getHandY()));
+			drawCentered(g, lineHeight * 3);
+			text.setLength(0);
+			text.append("Grip: ").append((long) Math.floor(pose.getHandGrip()));
+			drawCentered(g, lineHeight * 4);
+
+			g.setFont(CAPTION_FONT);
+			text.setLength(0);
+			text.append("Axes:");
+			for (int i = 0; i < PoseSnapshot.NUM_AXES; i++) {
+				text.append(' ').append(Math.round(drawnAngles[i]));
+			}
+			drawCentered(g, lineHeight * 5 - 8);
+		}
+
+		/**
+		 * Draws the contents of the text buffer centered horizontally without creating a String.
+		 */
+		private void drawCentered(Graphics2D g, int baseline) {
+			int length = text.length();
+			if (chars.length < length) {
+				chars = new char[length * 2];
+			}
+			text.getChars(0, length, chars, 0);
+			int width = g.getFontMetrics().charsWidth(chars, 0, length);
+			g.drawChars(chars, 0, length, (WINDOW_WIDTH - width) / 2, baseline);
 		}
-		
-		// Check that the hand is open
-		Hand hand = hands.rightmost();
-		if (hand.fingers().count() < 2) {
-			return;
+
+		private void drawPlotFrame(Graphics2D g, int left, int top, String caption) {
+			g.setStroke(THIN_STROKE);
+			g.setColor(GRID_COLOR);
+			g.drawRect(left, top, PLOT_SIZE, PLOT_SIZE);
+			g.setColor(Color.GRAY);
+			g.setFont(CAPTION_FONT);
+			g.drawString(caption, left + 4, top + 14);
 		}
-		
-		counter++;
-		// Slows the refresh rate
-		if (counter % 5 != 0) {
-			return;
+
+		/**
+		 * Draws the arm from the point buffers, along with the ground line.
+		 */
+		private void drawArm(Graphics2D g, int left, int groundY) {
+			g.setStroke(THIN_STROKE);
+			g.setColor(GRID_COLOR);
+			g.drawLine(left, groundY, left + PLOT_SIZE, groundY);
+			g.setStroke(ARM_STROKE);
+			g.setColor(ARM_COLOR);
+			g.drawPolyline(xPoints, yPoints, xPoints.length);
+			g.setColor(Color.RED);
+			g.fillOval(xPoints[3] - 4, yPoints[3] - 4, 8, 8);
 		}
 
-		// Update display
-		Vector position = hand.palmPosition();
-		double grip = hand.sphereRadius();
-		xlabel.setText("X: " + Math.floor(position.getX()));
-		// Convert leap coordinate system into 'Z-up' system
-		ylabel.setText("Y: " + Math.floor(position.getZ()));
-		zlabel.setText("Z: " + Math.floor(position.getY()));
-		griplabel.setText("Grip: " + Math.floor(grip));
+		private void setPoint(int i, int originX, int originY, double horizontal, double vertical) {
+			xPoints[i] = originX + (int) Math.round(horizontal * PIXELS_PER_CM);
+			yPoints[i] = originY - (int) Math.round(vertical * PIXELS_PER_CM);
+		}
 	}
 }
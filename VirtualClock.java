@@ -0,0 +1,120 @@
+import java.util.Arrays;
+
+/**
+ * A Clock that only moves on when it is told to, so that motion code runs as fast as the computer
+ * can plan it instead of as fast as the arm moves.  Sleeping moves the clock on to the end of the
+ * sleep at once, which is right as long as one thread does the moving and sleeping (the control
+ * thread, or a TaskEngine's); anything else, such as planning, takes no time at all.
+ *
+ * With a SimulatedArduino.Link attached, the clock hands the Arduino every byte as it arrives over
+ * the simulated line, and lets it refresh the servos, every ms it moves on.  The bytes sent, when
+ * they were sent and where the servos end up are then the same every run.
+ *
+ * Run on its own, it stacks and unstacks the blocks on a simulated arm and reports how long that
+ * took the arm and the computer, and what was sent.
+ *
+ * java VirtualClock
+ */
+public class VirtualClock extends Clock {
+	private static final long MILLI = 1000000;
+
+	private volatile long now;
+	private long sleeps = 0;
+	private SimulatedArduino.Link link = null;
+
+	/**
+	 * Constructor - the clock starts at 0.
+	 */
+	public VirtualClock() {
+		this(0);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param start Time to start at, in ns
+	 */
+	public VirtualClock(long start) {
+		now = start;
+	}
+
+	public long nanoTime() {
+		return now;
+	}
+
+	/**
+	 * Moves the clock on to the deadline, as if the thread had slept until then.  Like Thread.sleep,
+	 * throws if the thread was interrupted, clearing the interrupt.
+	 */
+	public synchronized void sleepUntil(long deadline) throws InterruptedException {
+		if (Thread.interrupted()) {
+			throw new InterruptedException();
+		}
+		sleeps++;
+		advanceTo(deadline);
+	}
+
+	/**
+	 * Moves the clock on by the given time.
+	 *
+	 * @param nanos Time to move on by, in ns.  Negative times are ignored; the clock never goes back.
+	 */
+	public synchronized void advance(long nanos) {
+		advanceTo(now + Math.max(0, nanos));
+	}
+
+	private void advanceTo(long deadline) {
+		if (deadline <= now) {
+			return;
+		}
+		if (link != null) {
+			// every whole ms on the way, as often as the firmware's loop looks at millis()
+			for (long t = (now / MILLI + 1) * MILLI; t <= deadline; t += MILLI) {
+				now = t;
+				link.deliver(t);
+			}
+		}
+		now = deadline;
+	}
+
+	/**
+	 * Attaches the simulated line to an Arduino, to be delivered to as the clock moves on.  Pass
+	 * null to detach it.
+	 */
+	public synchronized void setLink(SimulatedArduino.Link link) {
+		this.link = link;
+	}
+
+	/**
+	 * @return Number of times sleepUntil or sleep has been called
+	 */
+	public synchronized long getSleeps() {
+		return sleeps;
+	}
+
+	public static void main(String[] args) {
+		VirtualClock clock = new VirtualClock();
+		SimulatedArduino arduino = new SimulatedArduino();
+		SimulatedArduino.Link link = new SimulatedArduino.Link(arduino);
+		clock.setLink(link);
+		Arm arm = new Arm(link);
+		arm.setClock(clock);
+
+		long realStart = System.nanoTime();
+		arm.stackBlocks();
+		arm.unstackBlocks();
+		// let the last bytes arrive and the servos settle
+		clock.advance(SimulatedArduino.MAX_INTERVAL_MS * MILLI + link.getMaxDelay());
+		double realSeconds = (System.nanoTime() - realStart) / 1e9;
+		double armSeconds = clock.nanoTime() / 1e9;
+
+		double[] servo = new double[Arm.NUM_AXES];
+		arduino.getServoAngles(servo);
+		System.out.printf("Stacked and unstacked the blocks in %.1f s of arm time, %.2f s of real time (%.0f times faster)%n",
+				armSeconds, realSeconds, armSeconds / realSeconds);
+		System.out.printf("%d packets (%d bytes, checksum %08x), %d sleeps, longest line delay %.1f ms%n",
+				arduino.getAnglePackets() + arduino.getSetpoints(), link.getBytesSent(), link.getChecksum(),
+				clock.getSleeps(), link.getMaxDelay() / 1e6);
+		System.out.println("servos end at " + Arrays.toString(servo));
+	}
+}
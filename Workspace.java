@@ -0,0 +1,139 @@
+/**
+ * The space around the arm: the board it is mounted on (a horizontal plane) and any number of
+ * box-shaped obstacles, all in the arm's coordinates (cm, origin at the shoulder axis, z up).
+ *
+ * A pose is free if every point along the arm, from the elbow out to the grip tip, is at least the
+ * margin above the board and outside every box grown by the margin.  The links are checked at
+ * SAMPLE_SPACING intervals.
+ *
+ * Checks don't allocate or lock, so any number of threads can check poses at the same time.  Boxes
+ * can be added or removed while checks are running; a check sees either the old or the new set.
+ */
+public class Workspace {
+	// height of the board below the shoulder axis, in cm
+	public static final double DEFAULT_GROUND_HEIGHT = -8;
+	// how close any part of the arm may come to the board or a box, in cm
+	public static final double DEFAULT_MARGIN = 0.5;
+	// distance between the points checked along each link, in cm
+	public static final double SAMPLE_SPACING = 1;
+
+	private final Kinematics kinematics;
+	private final double groundHeight;
+	private final double margin;
+
+	// minX, minY, minZ, maxX, maxY, maxZ of each box, already grown by the margin.  Replaced, never modified.
+	private volatile double[] boxes = new double[0];
+
+	/**
+	 * Constructor - uses the default board height and margin.
+	 *
+	 * @param kinematics Geometry of the arm
+	 */
+	public Workspace(Kinematics kinematics) {
+		this(kinematics, DEFAULT_GROUND_HEIGHT, DEFAULT_MARGIN);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param kinematics Geometry of the arm
+	 * @param groundHeight Height of the board, in cm
+	 * @param margin How close any part of the arm may come to the board or a box, in cm
+	 */
+	public Workspace(Kinematics kinematics, double groundHeight, double margin) {
+		this.kinematics = kinematics;
+		this.groundHeight = groundHeight;
+		this.margin = margin;
+	}
+
+	/**
+	 * Adds a box-shaped obstacle.
+	 *
+	 * @param min Corner of the box with the smallest coordinates
+	 * @param max Corner of the box with the largest coordinates
+	 */
+	public synchronized void addBox(Vec3 min, Vec3 max) {
+		double[] old = boxes;
+		double[] grown = new double[old.length + 6];
+		System.arraycopy(old, 0, grown, 0, old.length);
+		grown[old.length] = Math.min(min.x, max.x) - margin;
+		grown[old.length + 1] = Math.min(min.y, max.y) - margin;
+		grown[old.length + 2] = Math.min(min.z, max.z) - margin;
+		grown[old.length + 3] = Math.max(min.x, max.x) + margin;
+		grown[old.length + 4] = Math.max(min.y, max.y) + margin;
+		grown[old.length + 5] = Math.max(min.z, max.z) + margin;
+		boxes = grown;
+	}
+
+	/**
+	 * Removes all boxes.  The board stays.
+	 */
+	public synchronized void clearBoxes() {
+		boxes = new double[0];
+	}
+
+	public int getBoxCount() {
+		return boxes.length / 6;
+	}
+
+	public double getGroundHeight() {
+		return groundHeight;
+	}
+
+	/**
+	 * Checks whether the arm is clear of the board and every box in the given pose.
+	 *
+	 * @param angles Base, shoulder, elbow and wrist angles (a grip angle after them is ignored)
+	 * @param gripLength Distance from the wrist axis to the grip tip, in cm
+	 * @return true if no part of the arm is within the margin of the board or a box
+	 */
+	public boolean isFree(double[] angles, double gripLength) {
+		double[] boxes = this.boxes;
+		double sinBase = Utility.sind(angles[Arm.BASE]);
+		double cosBase = Utility.cosd(angles[Arm.BASE]);
+		double shoulder = angles[Arm.SHOULDER];
+		double elbow = shoulder + angles[Arm.ELBOW];
+		double pitch = elbow + angles[Arm.WRIST];
+
+		// each link, in the vertical plane of the arm: horizontal distance and height of its ends
+		double elbowH = kinematics.segment1Length * Utility.cosd(shoulder);
+		double elbowZ = kinematics.segment1Length * Utility.sind(shoulder);
+		double wristH = elbowH + kinematics.segment2Length * Utility.cosd(elbow);
+		double wristZ = elbowZ + kinematics.segment2Length * Utility.sind(elbow);
+		double tipH = wristH + gripLength * Utility.cosd(pitch);
+		double tipZ = wristZ + gripLength * Utility.sind(pitch);
+
+		return isLinkFree(0, 0, elbowH, elbowZ, kinematics.segment1Length, sinBase, cosBase, boxes)
+				&& isLinkFree(elbowH, elbowZ, wristH, wristZ, kinematics.segment2Length, sinBase, cosBase, boxes)
+				&& isLinkFree(wristH, wristZ, tipH, tipZ, gripLength, sinBase, cosBase, boxes);
+	}
+
+	/**
+	 * Checks points along a link, from just past its start to its end.
+	 */
+	private boolean isLinkFree(double h0, double z0, double h1, double z1, double length, double sinBase, double cosBase, double[] boxes) {
+		int samples = Math.max(1, (int) Math.ceil(length / SAMPLE_SPACING));
+		for (int i = 1; i <= samples; i++) {
+			double fraction = (double) i / samples;
+			double h = h0 + (h1 - h0) * fraction;
+			double z = z0 + (z1 - z0) * fraction;
+			if (!isPointFree(h * sinBase, h * cosBase, z, boxes)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean isPointFree(double x, double y, double z, double[] boxes) {
+		if (z < groundHeight + margin) {
+			return false;
+		}
+		for (int b = 0; b < boxes.length; b += 6) {
+			if (x > boxes[b] && y > boxes[b + 1] && z > boxes[b + 2]
+					&& x < boxes[b + 3] && y < boxes[b + 4] && z < boxes[b + 5]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}